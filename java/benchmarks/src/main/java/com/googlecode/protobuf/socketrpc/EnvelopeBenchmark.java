@@ -0,0 +1,164 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Measures encoding and decoding the RPC envelopes with
+ * {@link SocketConnection}, over a {@link MemorySocket} instead of the
+ * network. In delimited mode the connection is reused like a persistent
+ * connection would be, while in undelimited mode every message needs a new
+ * connection, as it does for real.
+ *
+ * @author Shardul Deo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvelopeBenchmark {
+
+  @Param({ "true", "false" })
+  public boolean delimited;
+
+  @Param({ "16", "1024", "65536" })
+  public int payloadSize;
+
+  private RpcForwarder rpcForwarder;
+  private RequestEnvelope requestEnvelope;
+  private ResponseEnvelope responseEnvelope;
+  private byte[] requestBytes;
+  private byte[] responseBytes;
+
+  // Reused in delimited mode
+  private MemorySocket encodeSocket;
+  private SocketConnection encodeConnection;
+  private MemorySocket requestSocket;
+  private SocketConnection requestConnection;
+  private MemorySocket responseSocket;
+  private SocketConnection responseConnection;
+
+  @Setup
+  public void setUp() throws IOException {
+    rpcForwarder = new RpcForwarder();
+    rpcForwarder.registerBlockingService(TestService
+        .newReflectiveBlockingService(new TestService.BlockingInterface() {
+          @Override
+          public Response testMethod(RpcController controller,
+              Request request) throws ServiceException {
+            throw new UnsupportedOperationException();
+          }
+        }));
+    requestEnvelope = new RequestEnvelope(RpcBenchmarks.METHOD,
+        RpcBenchmarks.createRequest(payloadSize)).withRequestId(1);
+    responseEnvelope = new ResponseEnvelope(
+        RpcBenchmarks.createResponse(payloadSize), true /* callback */, null,
+        null).withRequestId(1);
+    requestBytes = encode(requestEnvelope);
+    responseBytes = encode(responseEnvelope);
+
+    encodeSocket = new MemorySocket();
+    encodeConnection = new SocketConnection(encodeSocket, delimited);
+    requestSocket = new MemorySocket(requestBytes);
+    requestConnection = new SocketConnection(requestSocket, delimited);
+    responseSocket = new MemorySocket(responseBytes);
+    responseConnection = new SocketConnection(responseSocket, delimited);
+  }
+
+  private byte[] encode(MessageLite message) throws IOException {
+    MemorySocket socket = new MemorySocket();
+    new SocketConnection(socket, delimited).sendProtoMessage(message);
+    return socket.toByteArray();
+  }
+
+  @Benchmark
+  public Object encodeRequest() throws IOException {
+    return send(requestEnvelope);
+  }
+
+  @Benchmark
+  public Object encodeResponse() throws IOException {
+    return send(responseEnvelope);
+  }
+
+  private MemorySocket send(MessageLite message) throws IOException {
+    if (delimited) {
+      encodeSocket.clear();
+      encodeConnection.sendProtoMessage(message);
+      return encodeSocket;
+    }
+    MemorySocket socket = new MemorySocket();
+    new SocketConnection(socket, false).sendProtoMessage(message);
+    return socket;
+  }
+
+  @Benchmark
+  public Message decodeRequest() throws IOException {
+    RequestDecoder decoder = new RequestDecoder(rpcForwarder);
+    if (delimited) {
+      requestSocket.rewind();
+      requestConnection.receiveProtoMessage(decoder);
+    } else {
+      new SocketConnection(new MemorySocket(requestBytes), false)
+          .receiveProtoMessage(decoder);
+    }
+    return decoder.getRequest();
+  }
+
+  @Benchmark
+  public Message decodeResponse() throws IOException, ServiceException {
+    SocketRpcProtos.Response.Builder builder =
+        SocketRpcProtos.Response.newBuilder();
+    if (delimited) {
+      responseSocket.rewind();
+      responseConnection.receiveProtoMessage(builder);
+    } else {
+      new SocketConnection(new MemorySocket(responseBytes), false)
+          .receiveProtoMessage(builder);
+    }
+    return RpcChannelImpl.handleRpcResponse(Response.getDefaultInstance(),
+        builder.build(), new SocketRpcController());
+  }
+}
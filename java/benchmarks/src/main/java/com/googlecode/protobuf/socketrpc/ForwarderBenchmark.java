@@ -0,0 +1,104 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.googlecode.protobuf.socketrpc.RpcForwarder.RpcException;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Measures {@link RpcForwarder#doBlockingRpc(RequestDecoder)}: finding the
+ * method, parsing the request message, calling the service and wrapping its
+ * response, for both a blocking service and a service with a callback.
+ *
+ * @author Shardul Deo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForwarderBenchmark {
+
+  @Param({ "16", "1024", "65536" })
+  public int payloadSize;
+
+  private RpcForwarder blockingForwarder;
+  private RpcForwarder forwarder;
+  private SocketRpcProtos.Request rpcRequest;
+
+  @Setup
+  public void setUp() {
+    final Response response = RpcBenchmarks.createResponse(payloadSize);
+    blockingForwarder = new RpcForwarder();
+    blockingForwarder.registerBlockingService(TestService
+        .newReflectiveBlockingService(new TestService.BlockingInterface() {
+          @Override
+          public Response testMethod(RpcController controller,
+              Request request) {
+            return response;
+          }
+        }));
+    forwarder = new RpcForwarder();
+    forwarder.registerService(new TestService() {
+      @Override
+      public void testMethod(RpcController controller, Request request,
+          RpcCallback<Response> done) {
+        done.run(response);
+      }
+    });
+    rpcRequest = SocketRpcProtos.Request.newBuilder()
+        .setServiceName(RpcBenchmarks.METHOD.getService().getFullName())
+        .setMethodName(RpcBenchmarks.METHOD.getName())
+        .setRequestProto(
+            RpcBenchmarks.createRequest(payloadSize).toByteString())
+        .build();
+  }
+
+  @Benchmark
+  public Object blockingService() throws RpcException {
+    return blockingForwarder.doBlockingRpc(
+        RequestDecoder.forRequest(rpcRequest));
+  }
+
+  @Benchmark
+  public Object service() throws RpcException {
+    return forwarder.doBlockingRpc(RequestDecoder.forRequest(rpcRequest));
+  }
+}
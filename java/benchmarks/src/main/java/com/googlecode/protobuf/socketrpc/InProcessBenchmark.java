@@ -0,0 +1,130 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Compares blocking RPCs to a service in the same JVM over loopback TCP, over
+ * the in-process transport with serialized messages and over the in-process
+ * transport passing messages by reference. Every call uses a new connection,
+ * as with the plain connection factories.
+ *
+ * @author Shardul Deo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InProcessBenchmark {
+
+  private static final int PORT = 8088;
+  private static final String NAME = "InProcessBenchmark";
+
+  @Param({ "tcp", "inProcess", "byReference" })
+  public String transport;
+
+  @Param({ "16", "65536" })
+  public int payloadSize;
+
+  private ExecutorService threadPool;
+  private RpcServer rpcServer;
+  private TestService.BlockingInterface stub;
+  private Request request;
+
+  @Setup
+  public void setUp() throws InterruptedException {
+    ServerRpcConnectionFactory serverFactory;
+    RpcConnectionFactory clientFactory;
+    if ("tcp".equals(transport)) {
+      serverFactory = SocketRpcConnectionFactories
+          .createServerRpcConnectionFactory(PORT);
+      clientFactory = SocketRpcConnectionFactories
+          .createRpcConnectionFactory("localhost", PORT);
+    } else {
+      serverFactory = SocketRpcConnectionFactories
+          .createInProcessServerRpcConnectionFactory(NAME);
+      clientFactory = SocketRpcConnectionFactories
+          .createInProcessRpcConnectionFactory(NAME,
+              "byReference".equals(transport));
+    }
+
+    final Response response = RpcBenchmarks.createResponse(payloadSize);
+    threadPool = Executors.newCachedThreadPool();
+    rpcServer = new RpcServer(serverFactory, threadPool, true);
+    rpcServer.registerBlockingService(TestService
+        .newReflectiveBlockingService(new TestService.BlockingInterface() {
+          @Override
+          public Response testMethod(RpcController controller,
+              Request request) {
+            return response;
+          }
+        }));
+    rpcServer.startServer();
+    // Give the server time to start listening
+    Thread.sleep(500);
+
+    stub = TestService.newBlockingStub(
+        RpcChannels.newBlockingRpcChannel(clientFactory));
+    request = RpcBenchmarks.createRequest(payloadSize);
+  }
+
+  @TearDown
+  public void tearDown() {
+    rpcServer.shutDown();
+    threadPool.shutdownNow();
+  }
+
+  @Benchmark
+  public Object call() throws ServiceException {
+    return stub.testMethod(new SocketRpcController(), request);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public Object call16Threads() throws ServiceException {
+    return stub.testMethod(new SocketRpcController(), request);
+  }
+}
@@ -0,0 +1,388 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Open-loop load generator. Unlike the JMH benchmarks, which start a call as
+ * soon as the previous one completes, this starts calls at a constant rate
+ * no matter how long the server takes to respond, so queueing in the server
+ * shows up in the latencies. Run it with:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar \
+ *     com.googlecode.protobuf.socketrpc.LoadGenerator [name=value]...
+ * </pre>
+ *
+ * Options, with their defaults:
+ * <ul>
+ * <li>{@code rate=1000}: Calls per second. With {@code sweep=true}, the rate
+ * to start the sweep at.
+ * <li>{@code duration=10}, {@code warmup=2}: Seconds to measure for at each
+ * rate, after warming up for this many seconds at the same rate.
+ * <li>{@code connections=4}: Number of {@link AsyncRpcChannel}s that calls
+ * are spread over.
+ * <li>{@code payload=16}: Size of the request and response messages.
+ * <li>{@code sweep=false}: Whether to keep raising the rate by a factor of
+ * {@code step=1.5} (up to {@code maxRate=1000000}) until past the knee of the
+ * latency curve: the rate after which the server can't keep up or the p99
+ * latency exceeds {@code kneeFactor=5} times the p99 at the first rate.
+ * <li>{@code host}, {@code port=8087}: Server to call, which must serve
+ * {@link TestService} over a non-blocking connection factory. Without a
+ * host, a server is started in this JVM with {@code serverThreads=4}
+ * threads, whose service waits {@code serviceMicros=100} microseconds before
+ * responding. Its admission limits can be set with {@code maxInFlight} and
+ * {@code maxQueued}.
+ * </ul>
+ * <p>
+ * Each call's latency is measured from when it was meant to start according
+ * to the rate, not from when it actually started. Otherwise, whenever the
+ * generator falls behind (e.g. because of a GC pause, or because connecting
+ * blocks), the calls it should have made during that time would never be
+ * measured, which is known as coordinated omission. For the same reason,
+ * calls still unfinished when the generator stops waiting for them count as
+ * having taken until then. Failed calls, which are often rejected quickly
+ * once the server is overloaded, are counted but left out of the latencies.
+ * The latency measured from the actual start is reported as well, to show
+ * the difference.
+ *
+ * @author Shardul Deo
+ */
+public class LoadGenerator {
+
+  private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+  // Calls are started at least a nanosecond apart
+  private static final double MAX_RATE = TimeUnit.SECONDS.toNanos(1);
+
+  private final List<AsyncRpcChannel> channels;
+  private final Request request;
+
+  LoadGenerator(List<AsyncRpcChannel> channels, Request request) {
+    this.channels = channels;
+    this.request = request;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    for (String arg : args) {
+      int split = arg.indexOf('=');
+      if (split < 0) {
+        usage("Expected name=value: " + arg);
+      }
+      options.put(arg.substring(0, split), arg.substring(split + 1));
+    }
+    double rate = getRate(options, "rate", 1000);
+    long durationNanos = TimeUnit.SECONDS.toNanos(
+        getInt(options, "duration", 10));
+    long warmupNanos = TimeUnit.SECONDS.toNanos(getInt(options, "warmup", 2));
+    int connections = getInt(options, "connections", 4);
+    int payloadSize = getInt(options, "payload", 16);
+    int port = getInt(options, "port", 8087);
+    String host = options.get("host");
+
+    RpcServer rpcServer = null;
+    ExecutorService serverExecutor = null;
+    if (host == null) {
+      host = "localhost";
+      serverExecutor = Executors.newFixedThreadPool(
+          getInt(options, "serverThreads", 4));
+      rpcServer = startServer(port, serverExecutor,
+          getInt(options, "serviceMicros", 100), payloadSize);
+      int maxInFlight = getInt(options, "maxInFlight", 0);
+      if (maxInFlight > 0) {
+        rpcServer.setAdmissionLimits(maxInFlight,
+            getInt(options, "maxQueued", Integer.MAX_VALUE));
+      }
+    }
+    List<AsyncRpcChannel> channels = new ArrayList<AsyncRpcChannel>();
+    for (int i = 0; i < connections; i++) {
+      channels.add(RpcChannels.newAsyncRpcChannel(host, port,
+          RpcChannels.SAME_THREAD_EXECUTOR));
+    }
+    try {
+      LoadGenerator generator = new LoadGenerator(channels,
+          RpcBenchmarks.createRequest(payloadSize));
+      if (Boolean.parseBoolean(options.get("sweep"))) {
+        generator.sweep(rate, getRate(options, "maxRate", 1000000),
+            getDouble(options, "step", 1.5),
+            getDouble(options, "kneeFactor", 5), warmupNanos, durationNanos);
+      } else {
+        generator.run(rate, warmupNanos);
+        System.out.println(generator.run(rate, durationNanos));
+      }
+    } finally {
+      for (AsyncRpcChannel channel : channels) {
+        channel.close();
+      }
+      if (rpcServer != null) {
+        rpcServer.shutDown();
+        serverExecutor.shutdownNow();
+      }
+    }
+  }
+
+  private static RpcServer startServer(int port, ExecutorService executor,
+      final int serviceMicros, int payloadSize) throws InterruptedException {
+    final Response response = RpcBenchmarks.createResponse(payloadSize);
+    RpcServer rpcServer = new RpcServer(SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(port), executor, true);
+    rpcServer.registerBlockingService(TestService
+        .newReflectiveBlockingService(new TestService.BlockingInterface() {
+          @Override
+          public Response testMethod(RpcController controller,
+              Request request) {
+            if (serviceMicros > 0) {
+              LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(
+                  serviceMicros));
+            }
+            return response;
+          }
+        }));
+    rpcServer.startServer();
+    // Give the server time to start listening
+    Thread.sleep(500);
+    return rpcServer;
+  }
+
+  /**
+   * Run at increasing rates until past the knee of the latency curve, and
+   * print the results of each rate.
+   *
+   * @return The highest rate before the knee, or 0 if the server couldn't
+   *         keep up with the first rate.
+   */
+  double sweep(double startRate, double maxRate, double step,
+      double kneeFactor, long warmupNanos, long durationNanos)
+      throws InterruptedException {
+    double kneeRate = 0;
+    long baselineP99 = -1;
+    for (double rate = startRate; rate <= maxRate; rate *= step) {
+      run(rate, warmupNanos);
+      Result result = run(rate, durationNanos);
+      System.out.println(result);
+      long p99 = result.latency.getValueAtPercentile(99);
+      if (baselineP99 < 0) {
+        baselineP99 = Math.max(p99, 1);
+      }
+      if (!result.keptUp() || p99 > baselineP99 * kneeFactor) {
+        break;
+      }
+      kneeRate = rate;
+    }
+    System.out.println(kneeRate > 0
+        ? String.format("Knee at about %.0f calls/s", kneeRate)
+        : "Server could not keep up with the first rate");
+    return kneeRate;
+  }
+
+  /**
+   * Start calls at the given rate for the given time, then wait for them to
+   * complete.
+   */
+  Result run(double rate, long durationNanos) throws InterruptedException {
+    if (!(rate > 0 && rate <= MAX_RATE)) {
+      throw new IllegalArgumentException("Invalid rate: " + rate);
+    }
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LatencyHistogram uncorrectedLatency = new LatencyHistogram();
+    // Intended start of each call in progress, by index
+    final ConcurrentMap<Long, Long> outstanding =
+        new ConcurrentHashMap<Long, Long>();
+    final AtomicLong failures = new AtomicLong();
+    long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    long start = System.nanoTime();
+    long calls = durationNanos / intervalNanos;
+    long maxLagNanos = 0;
+
+    for (long i = 0; i < calls; i++) {
+      final Long index = i;
+      final long intendedStart = start + i * intervalNanos;
+      long now = System.nanoTime();
+      while (intendedStart - now > 0) {
+        LockSupport.parkNanos(intendedStart - now);
+        now = System.nanoTime();
+      }
+      maxLagNanos = Math.max(maxLagNanos, now - intendedStart);
+
+      final long actualStart = now;
+      final SocketRpcController controller = new SocketRpcController();
+      outstanding.put(index, intendedStart);
+      channels.get((int) (i % channels.size())).callMethod(
+          RpcBenchmarks.METHOD, controller, request,
+          Response.getDefaultInstance(), new RpcCallback<Message>() {
+            @Override
+            public void run(Message response) {
+              long end = System.nanoTime();
+              if (outstanding.remove(index) == null) {
+                // Already counted as unfinished
+                return;
+              }
+              if (controller.failed()) {
+                failures.incrementAndGet();
+                return;
+              }
+              latency.record(end - intendedStart);
+              uncorrectedLatency.record(end - actualStart);
+            }
+          });
+    }
+    long sendEnd = System.nanoTime();
+
+    long drainDeadline = sendEnd + DRAIN_TIMEOUT_NANOS;
+    while (!outstanding.isEmpty() && drainDeadline - System.nanoTime() > 0) {
+      Thread.sleep(1);
+    }
+    // Until the last call completed, so a backlog lowers the throughput
+    long end = System.nanoTime();
+    long unfinished = 0;
+    for (Long index : outstanding.keySet()) {
+      Long intendedStart = outstanding.remove(index);
+      if (intendedStart != null) {
+        // Took at least this long, leaving it out would hide the backlog
+        latency.record(end - intendedStart);
+        unfinished++;
+      }
+    }
+    return new Result(rate, calls, end - start, failures.get(), unfinished,
+        maxLagNanos, latency.getSnapshot(), uncorrectedLatency.getSnapshot());
+  }
+
+  private static int getInt(Map<String, String> options, String name,
+      int defaultValue) {
+    String value = options.get(name);
+    try {
+      return value == null ? defaultValue : Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      usage("Expected a whole number: " + name + "=" + value);
+      return defaultValue;
+    }
+  }
+
+  private static double getDouble(Map<String, String> options, String name,
+      double defaultValue) {
+    String value = options.get(name);
+    try {
+      return value == null ? defaultValue : Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      usage("Expected a number: " + name + "=" + value);
+      return defaultValue;
+    }
+  }
+
+  private static double getRate(Map<String, String> options, String name,
+      double defaultValue) {
+    double rate = getDouble(options, name, defaultValue);
+    // Also rejects NaN
+    if (!(rate > 0 && rate <= MAX_RATE)) {
+      usage(name + " must be more than 0 and at most " + (long) MAX_RATE
+          + " calls per second: " + options.get(name));
+    }
+    return rate;
+  }
+
+  private static void usage(String error) {
+    System.err.println(error);
+    System.err.println("Usage: java " + LoadGenerator.class.getName()
+        + " [name=value]...");
+    System.exit(1);
+  }
+
+  /**
+   * Outcome of running at one rate.
+   */
+  static class Result {
+
+    final double rate;
+    final long calls;
+    final long elapsedNanos;
+    final long failures;
+    final long unfinished;
+    final long maxLagNanos;
+    final LatencyHistogram.Snapshot latency;
+    final LatencyHistogram.Snapshot uncorrectedLatency;
+
+    Result(double rate, long calls, long elapsedNanos, long failures,
+        long unfinished, long maxLagNanos, LatencyHistogram.Snapshot latency,
+        LatencyHistogram.Snapshot uncorrectedLatency) {
+      this.rate = rate;
+      this.calls = calls;
+      this.elapsedNanos = elapsedNanos;
+      this.failures = failures;
+      this.unfinished = unfinished;
+      this.maxLagNanos = maxLagNanos;
+      this.latency = latency;
+      this.uncorrectedLatency = uncorrectedLatency;
+    }
+
+    /**
+     * @return Calls completed successfully per second.
+     */
+    double getThroughput() {
+      return (double) (calls - failures - unfinished)
+          * TimeUnit.SECONDS.toNanos(1) / Math.max(elapsedNanos, 1);
+    }
+
+    /**
+     * @return Whether almost all calls completed, and at close to the rate
+     *         they were started at.
+     */
+    boolean keptUp() {
+      return unfinished == 0 && failures <= calls / 100
+          && getThroughput() >= rate * 0.95;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("rate=%.0f/s throughput=%.0f/s calls=%d "
+          + "failed=%d unfinished=%d p50=%dus p99=%dus p99.9=%dus max=%dus "
+          + "(uncorrected p99=%dus max=%dus, max send lag=%dus)", rate,
+          getThroughput(), calls, failures, unfinished,
+          toMicros(latency.getValueAtPercentile(50)),
+          toMicros(latency.getValueAtPercentile(99)),
+          toMicros(latency.getValueAtPercentile(99.9)),
+          toMicros(latency.getMax()),
+          toMicros(uncorrectedLatency.getValueAtPercentile(99)),
+          toMicros(uncorrectedLatency.getMax()), toMicros(maxLagNanos));
+    }
+
+    private static long toMicros(long nanos) {
+      return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+  }
+}
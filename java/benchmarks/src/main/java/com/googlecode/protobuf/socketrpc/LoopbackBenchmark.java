@@ -0,0 +1,154 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Measures whole RPCs over loopback sockets, against an {@link RpcServer}
+ * with a non-blocking connection factory. Blocking calls go over a
+ * multiplexed connection, async calls over an {@link AsyncRpcChannel}.
+ *
+ * @author Shardul Deo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+  private static final int PORT = 8086;
+  private static final int PIPELINED_CALLS = 16;
+
+  @Param({ "16", "1024", "65536" })
+  public int payloadSize;
+
+  private ExecutorService threadPool;
+  private RpcServer rpcServer;
+  private MultiplexedRpcConnectionFactory connectionFactory;
+  private TestService.BlockingInterface blockingStub;
+  private AsyncRpcChannel asyncChannel;
+  private Request request;
+
+  @Setup
+  public void setUp() throws InterruptedException {
+    final Response response = RpcBenchmarks.createResponse(payloadSize);
+    threadPool = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors());
+    rpcServer = new RpcServer(SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(PORT), threadPool, true);
+    rpcServer.registerBlockingService(TestService
+        .newReflectiveBlockingService(new TestService.BlockingInterface() {
+          @Override
+          public Response testMethod(RpcController controller,
+              Request request) {
+            return response;
+          }
+        }));
+    rpcServer.startServer();
+    // Give the server time to start listening
+    Thread.sleep(500);
+
+    connectionFactory = MultiplexedRpcConnectionFactory.createInstance(
+        SocketRpcConnectionFactories.createRpcConnectionFactory("localhost",
+            PORT));
+    BlockingRpcChannel blockingChannel =
+        RpcChannels.newBlockingRpcChannel(connectionFactory);
+    blockingStub = TestService.newBlockingStub(blockingChannel);
+    asyncChannel = RpcChannels.newAsyncRpcChannel("localhost", PORT,
+        RpcChannels.SAME_THREAD_EXECUTOR);
+    request = RpcBenchmarks.createRequest(payloadSize);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    asyncChannel.close();
+    connectionFactory.close();
+    rpcServer.shutDown();
+    threadPool.shutdownNow();
+  }
+
+  @Benchmark
+  public Object blockingCall() throws ServiceException {
+    return blockingStub.testMethod(new SocketRpcController(), request);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public Object blockingCall16Threads() throws ServiceException {
+    return blockingStub.testMethod(new SocketRpcController(), request);
+  }
+
+  @Benchmark
+  public Object asyncCall() throws InterruptedException, ExecutionException {
+    return asyncChannel.callMethod(RpcBenchmarks.METHOD,
+        new SocketRpcController(), request, Response.getDefaultInstance())
+        .get();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PIPELINED_CALLS)
+  public Object asyncPipelined()
+      throws InterruptedException, ExecutionException {
+    List<RpcFuture<Message>> futures =
+        new ArrayList<RpcFuture<Message>>(PIPELINED_CALLS);
+    for (int i = 0; i < PIPELINED_CALLS; i++) {
+      futures.add(asyncChannel.callMethod(RpcBenchmarks.METHOD,
+          new SocketRpcController(), request, Response.getDefaultInstance()));
+    }
+    Message last = null;
+    for (RpcFuture<Message> future : futures) {
+      last = future.get();
+    }
+    return last;
+  }
+}
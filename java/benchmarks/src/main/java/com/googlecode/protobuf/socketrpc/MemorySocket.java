@@ -0,0 +1,154 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * {@link Socket} that reads back what was written to it, so that
+ * {@link SocketConnection} can be measured without the cost of the network.
+ * Reading past the written bytes returns end of stream.
+ *
+ * @author Shardul Deo
+ */
+class MemorySocket extends Socket {
+
+  private byte[] buffer;
+  private int readPosition = 0;
+  private int writePosition;
+  private boolean closed = false;
+
+  MemorySocket() {
+    this(new byte[1024], 0);
+  }
+
+  /**
+   * Create a socket from which the given bytes can be read, without copying
+   * them.
+   */
+  MemorySocket(byte[] input) {
+    this(input, input.length);
+  }
+
+  private MemorySocket(byte[] buffer, int writePosition) {
+    this.buffer = buffer;
+    this.writePosition = writePosition;
+  }
+
+  private final InputStream input = new InputStream() {
+    @Override
+    public int read() {
+      return readPosition < writePosition ? buffer[readPosition++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (readPosition == writePosition) {
+        return -1;
+      }
+      int n = Math.min(len, writePosition - readPosition);
+      System.arraycopy(buffer, readPosition, b, off, n);
+      readPosition += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return writePosition - readPosition;
+    }
+  };
+
+  private final OutputStream output = new OutputStream() {
+    @Override
+    public void write(int b) {
+      ensureCapacity(1);
+      buffer[writePosition++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(len);
+      System.arraycopy(b, off, buffer, writePosition, len);
+      writePosition += len;
+    }
+  };
+
+  private void ensureCapacity(int length) {
+    if (writePosition + length > buffer.length) {
+      buffer = Arrays.copyOf(buffer,
+          Math.max(buffer.length * 2, writePosition + length));
+    }
+  }
+
+  /**
+   * Forget everything written so far.
+   */
+  void clear() {
+    readPosition = 0;
+    writePosition = 0;
+  }
+
+  /**
+   * Read the bytes written so far again.
+   */
+  void rewind() {
+    readPosition = 0;
+  }
+
+  /**
+   * @return Copy of the bytes written so far.
+   */
+  byte[] toByteArray() {
+    return Arrays.copyOf(buffer, writePosition);
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return input;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return output;
+  }
+
+  @Override
+  public void shutdownOutput() {
+    // Readers see the end of the written bytes as end of stream anyway
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+  }
+
+  @Override
+  public boolean isClosed() {
+    return closed;
+  }
+}
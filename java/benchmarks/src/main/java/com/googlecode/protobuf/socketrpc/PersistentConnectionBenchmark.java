@@ -0,0 +1,154 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.MessageLite.Builder;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+
+/**
+ * Measures how {@link PersistentConnection} holds up when many threads share
+ * it. Each operation is one RPC, sending a request and reading a response
+ * under the connection's locks. The connection underneath serializes the
+ * request and parses a canned response, so the time spent holding the locks
+ * grows with the message size, as it would on a real socket.
+ *
+ * @author Shardul Deo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistentConnectionBenchmark {
+
+  @Param({ "16", "1024", "65536" })
+  public int payloadSize;
+
+  private PersistentConnection connection;
+  private RequestEnvelope requestEnvelope;
+
+  @Setup
+  public void setUp() {
+    connection = new PersistentConnection(new CannedConnection(
+        RpcBenchmarks.createResponse(payloadSize)), true /* client */);
+    requestEnvelope = new RequestEnvelope(RpcBenchmarks.METHOD,
+        RpcBenchmarks.createRequest(payloadSize));
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Object threads01() throws IOException {
+    return call();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object threads04() throws IOException {
+    return call();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public Object threads16() throws IOException {
+    return call();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public Object threads64() throws IOException {
+    return call();
+  }
+
+  private Object call() throws IOException {
+    Connection call = connection.newCall();
+    call.sendProtoMessage(requestEnvelope);
+    SocketRpcProtos.Response.Builder builder =
+        SocketRpcProtos.Response.newBuilder();
+    call.receiveProtoMessage(builder);
+    return builder;
+  }
+
+  /**
+   * Connection that throws away what is sent and always receives the same
+   * response.
+   */
+  private static class CannedConnection implements Connection {
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+      }
+    };
+
+    private final byte[] response;
+
+    CannedConnection(MessageLite response) {
+      this.response = SocketRpcProtos.Response.newBuilder()
+          .setCallback(true)
+          .setResponseProto(response.toByteString())
+          .build()
+          .toByteArray();
+    }
+
+    @Override
+    public void sendProtoMessage(MessageLite message) throws IOException {
+      message.writeTo(NULL_OUTPUT);
+    }
+
+    @Override
+    public void receiveProtoMessage(Builder messageBuilder)
+        throws IOException {
+      messageBuilder.mergeFrom(response);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isClosed() {
+      return false;
+    }
+  }
+}
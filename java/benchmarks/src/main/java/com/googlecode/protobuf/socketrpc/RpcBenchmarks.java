@@ -0,0 +1,81 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Runs the JMH benchmarks with the GC profiler, so that the bytes allocated
+ * per operation are reported next to the throughput. Takes the usual JMH
+ * command line options, e.g. to only run the envelope benchmarks:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar EnvelopeBenchmark -p payloadSize=1024
+ * </pre>
+ *
+ * Benchmarks are in the same package as the code they measure, so that they
+ * can use package-private classes such as {@link SocketConnection}.
+ *
+ * @author Shardul Deo
+ */
+public class RpcBenchmarks {
+
+  static final MethodDescriptor METHOD =
+      TestService.getDescriptor().getMethods().get(0);
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+
+  /**
+   * Create a request whose payload is the given number of bytes.
+   */
+  static Request createRequest(int payloadSize) {
+    return Request.newBuilder().setStrData(createPayload(payloadSize)).build();
+  }
+
+  /**
+   * Create a response whose payload is the given number of bytes.
+   */
+  static Response createResponse(int payloadSize) {
+    return Response.newBuilder().setStrData(createPayload(payloadSize))
+        .build();
+  }
+
+  private static String createPayload(int size) {
+    StringBuilder payload = new StringBuilder(size);
+    for (int i = 0; i < size; i++) {
+      payload.append((char) ('a' + i % 26));
+    }
+    return payload.toString();
+  }
+}
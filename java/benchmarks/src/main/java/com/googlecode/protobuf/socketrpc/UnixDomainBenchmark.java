@@ -0,0 +1,154 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Compares RPCs to a server on the same host over loopback TCP and over Unix
+ * domain sockets. Both use the blocking connection factories, with a
+ * multiplexed connection and with a persistent one that sends calls serially.
+ * Needs Java 16 or later for the Unix domain sockets.
+ *
+ * @author Shardul Deo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnixDomainBenchmark {
+
+  private static final int PORT = 8087;
+
+  @Param({ "tcp", "unix" })
+  public String transport;
+
+  @Param({ "16", "65536" })
+  public int payloadSize;
+
+  private ExecutorService threadPool;
+  private File socketFile;
+  private RpcServer rpcServer;
+  private MultiplexedRpcConnectionFactory multiplexedFactory;
+  private TestService.BlockingInterface multiplexedStub;
+  private PersistentRpcConnectionFactory persistentFactory;
+  private TestService.BlockingInterface persistentStub;
+  private Request request;
+
+  @Setup
+  public void setUp() throws IOException, InterruptedException {
+    boolean unix = "unix".equals(transport);
+    ServerRpcConnectionFactory serverFactory;
+    RpcConnectionFactory clientFactory;
+    if (unix) {
+      socketFile = File.createTempFile("socketrpc", ".sock");
+      serverFactory = SocketRpcConnectionFactories
+          .createUnixDomainServerRpcConnectionFactory(socketFile.getPath());
+      clientFactory = SocketRpcConnectionFactories
+          .createUnixDomainRpcConnectionFactory(socketFile.getPath());
+    } else {
+      serverFactory = SocketRpcConnectionFactories
+          .createServerRpcConnectionFactory(PORT);
+      clientFactory = SocketRpcConnectionFactories
+          .createRpcConnectionFactory("localhost", PORT);
+    }
+
+    final Response response = RpcBenchmarks.createResponse(payloadSize);
+    threadPool = Executors.newCachedThreadPool();
+    // Serves both persistent and multiplexed connections
+    rpcServer = new RpcServer(PersistentRpcConnectionFactory
+        .createServerInstance(serverFactory), threadPool, true);
+    rpcServer.registerBlockingService(TestService
+        .newReflectiveBlockingService(new TestService.BlockingInterface() {
+          @Override
+          public Response testMethod(RpcController controller,
+              Request request) {
+            return response;
+          }
+        }));
+    rpcServer.startServer();
+    // Give the server time to start listening
+    Thread.sleep(500);
+
+    multiplexedFactory =
+        MultiplexedRpcConnectionFactory.createInstance(clientFactory);
+    multiplexedStub = TestService.newBlockingStub(
+        RpcChannels.newBlockingRpcChannel(multiplexedFactory));
+    persistentFactory =
+        PersistentRpcConnectionFactory.createInstance(clientFactory);
+    persistentStub = TestService.newBlockingStub(
+        RpcChannels.newBlockingRpcChannel(persistentFactory));
+    request = RpcBenchmarks.createRequest(payloadSize);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    multiplexedFactory.close();
+    persistentFactory.close();
+    rpcServer.shutDown();
+    threadPool.shutdownNow();
+    if (socketFile != null) {
+      socketFile.delete();
+    }
+  }
+
+  @Benchmark
+  public Object multiplexedCall() throws ServiceException {
+    return multiplexedStub.testMethod(new SocketRpcController(), request);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public Object multiplexedCall16Threads() throws ServiceException {
+    return multiplexedStub.testMethod(new SocketRpcController(), request);
+  }
+
+  @Benchmark
+  public Object persistentCall() throws ServiceException {
+    return persistentStub.testMethod(new SocketRpcController(), request);
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Compares RPC throughput of the blocking client and server code when run
+ * with a fixed pool of platform threads and with
+ * {@link RpcExecutors#newVirtualThreadPerTaskExecutor()}.
+ * <p>
+ * Each call is a blocking RPC over a multiplexed connection to a non-blocking
+ * server, whose service sleeps for the given latency. Every invocation starts
+ * {@link #CONCURRENCY} calls at once. With platform threads, the client and
+ * server each have a pool of {@link #POOL_SIZE} threads, so at most that many
+ * calls are in progress at a time. The virtual mode needs Java 21 or later.
+ *
+ * @author Shardul Deo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VirtualThreadBenchmark {
+
+  private static final int PORT = 8089;
+  static final int CONCURRENCY = 2000;
+  static final int POOL_SIZE = 200;
+
+  @Param({ "platform", "virtual" })
+  public String threads;
+
+  @Param({ "10" })
+  public int latencyMillis;
+
+  private ExecutorService serverExecutor;
+  private ExecutorService clientExecutor;
+  private RpcServer rpcServer;
+  private MultiplexedRpcConnectionFactory connectionFactory;
+  private TestService.BlockingInterface stub;
+  private Request request;
+
+  @Setup
+  public void setUp() throws InterruptedException {
+    if ("virtual".equals(threads)) {
+      if (!RpcExecutors.isVirtualThreadSupported()) {
+        throw new IllegalStateException(
+            "Virtual threads are not supported by this JVM");
+      }
+      serverExecutor = RpcExecutors.newVirtualThreadPerTaskExecutor();
+      clientExecutor = RpcExecutors.newVirtualThreadPerTaskExecutor();
+    } else {
+      serverExecutor = Executors.newFixedThreadPool(POOL_SIZE);
+      clientExecutor = Executors.newFixedThreadPool(POOL_SIZE);
+    }
+
+    final Response response = RpcBenchmarks.createResponse(16);
+    final int latency = latencyMillis;
+    rpcServer = new RpcServer(SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(PORT), serverExecutor, true);
+    rpcServer.registerBlockingService(TestService
+        .newReflectiveBlockingService(new TestService.BlockingInterface() {
+          @Override
+          public Response testMethod(RpcController controller,
+              Request request) throws ServiceException {
+            try {
+              Thread.sleep(latency);
+            } catch (InterruptedException e) {
+              throw new ServiceException("Interrupted");
+            }
+            return response;
+          }
+        }));
+    rpcServer.startServer();
+    // Give the server time to start listening
+    Thread.sleep(500);
+
+    connectionFactory = MultiplexedRpcConnectionFactory.createInstance(
+        SocketRpcConnectionFactories.createRpcConnectionFactory(
+            "localhost", PORT));
+    stub = TestService.newBlockingStub(
+        RpcChannels.newBlockingRpcChannel(connectionFactory));
+    request = RpcBenchmarks.createRequest(16);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    connectionFactory.close();
+    clientExecutor.shutdownNow();
+    rpcServer.shutDown();
+    serverExecutor.shutdownNow();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CONCURRENCY)
+  public void calls() throws InterruptedException {
+    final AtomicInteger failures = new AtomicInteger(0);
+    final CountDownLatch done = new CountDownLatch(CONCURRENCY);
+    for (int i = 0; i < CONCURRENCY; i++) {
+      clientExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            stub.testMethod(new SocketRpcController(), request);
+          } catch (ServiceException e) {
+            failures.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+    done.await();
+    if (failures.get() > 0) {
+      throw new IllegalStateException(failures.get() + " calls failed");
+    }
+  }
+}
@@ -0,0 +1,281 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many tasks {@link RpcServer} runs in its executor at the same
+ * time. Up to {@code maxInFlight} tasks are handed to the executor; further
+ * tasks wait in a queue of up to {@code maxQueued} tasks, and once that is full
+ * tasks are shed right away instead of piling up in the executor's own queue.
+ * <p>
+ * Queued tasks are run earliest deadline first, so that requests that can
+ * still make their deadline are not stuck behind ones that are about to miss
+ * theirs. Tasks without a deadline are queued as if their deadline was a
+ * default time after they were queued, so that a steady stream of tasks with
+ * deadlines can't keep them waiting forever. They are not shed once it
+ * passes.
+ *
+ * @author Shardul Deo
+ */
+class AdmissionController {
+
+  private static final long DEFAULT_QUEUE_DEADLINE_NANOS =
+      TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * Handles queued tasks that are shed because the executor rejected them.
+   */
+  interface ShedHandler {
+
+    /**
+     * Called instead of running the task, e.g. to let the client know.
+     */
+    void shed(Runnable task);
+  }
+
+  private final Executor executor;
+  private final ShedHandler shedHandler;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // Guarded by lock
+  private final PriorityQueue<QueuedTask> queue =
+      new PriorityQueue<QueuedTask>();
+  private long queuedCount = 0;
+  private int maxInFlight = Integer.MAX_VALUE;
+  private int maxQueued = 0;
+  private long defaultQueueDeadlineNanos = DEFAULT_QUEUE_DEADLINE_NANOS;
+  private int inFlight = 0;
+
+  private final AtomicLong accepted = new AtomicLong(0);
+  private final AtomicLong shed = new AtomicLong(0);
+
+  AdmissionController(Executor executor, ShedHandler shedHandler) {
+    this.executor = executor;
+    this.shedHandler = shedHandler;
+  }
+
+  /**
+   * Change the limits, which also applies to tasks already admitted once
+   * they complete.
+   */
+  void setLimits(int maxInFlight, int maxQueued) {
+    if (maxInFlight < 1 || maxQueued < 0) {
+      throw new IllegalArgumentException("Invalid limits: " + maxInFlight
+          + ", " + maxQueued);
+    }
+    lock.lock();
+    try {
+      this.maxInFlight = maxInFlight;
+      this.maxQueued = maxQueued;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Change how long after being queued tasks without a deadline are handled
+   * as if their deadline passed.
+   */
+  void setDefaultQueueDeadline(long timeout, TimeUnit unit) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("Invalid timeout: " + timeout);
+    }
+    lock.lock();
+    try {
+      this.defaultQueueDeadlineNanos = unit.toNanos(timeout);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Run the given task in the executor, or queue it if too many tasks are
+   * running.
+   *
+   * @return false if the task was shed because the queue is full or the
+   *         executor rejected it.
+   */
+  boolean admit(Runnable task) {
+    return admit(task, false, 0);
+  }
+
+  /**
+   * Like {@link #admit(Runnable)}, for a task with the given deadline.
+   *
+   * @param deadlineNanos Deadline as a {@link System#nanoTime()} value.
+   */
+  boolean admit(Runnable task, long deadlineNanos) {
+    return admit(task, true, deadlineNanos);
+  }
+
+  private boolean admit(Runnable task, boolean hasDeadline,
+      long deadlineNanos) {
+    lock.lock();
+    try {
+      if (inFlight >= maxInFlight) {
+        if (queue.size() >= maxQueued) {
+          shed.incrementAndGet();
+          return false;
+        }
+        if (!hasDeadline) {
+          deadlineNanos = System.nanoTime() + defaultQueueDeadlineNanos;
+        }
+        queue.add(new QueuedTask(task, deadlineNanos, queuedCount++));
+        accepted.incrementAndGet();
+        return true;
+      }
+      inFlight++;
+    } finally {
+      lock.unlock();
+    }
+    try {
+      executor.execute(new AdmittedTask(task));
+    } catch (RejectedExecutionException e) {
+      completed();
+      shed.incrementAndGet();
+      return false;
+    }
+    accepted.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Called when an admitted task completes, to run the next queued one.
+   */
+  private void completed() {
+    while (true) {
+      QueuedTask next;
+      lock.lock();
+      try {
+        next = inFlight <= maxInFlight ? queue.poll() : null;
+        if (next == null) {
+          inFlight--;
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+      try {
+        executor.execute(new AdmittedTask(next.task));
+        return;
+      } catch (RejectedExecutionException e) {
+        // Executor is shutting down, shed the task and try the next one
+        shed.incrementAndGet();
+        shedHandler.shed(next.task);
+      }
+    }
+  }
+
+  /**
+   * @return Number of tasks admitted so far, whether run right away or
+   *         queued.
+   */
+  long getAcceptedCount() {
+    return accepted.get();
+  }
+
+  /**
+   * @return Number of tasks shed so far.
+   */
+  long getShedCount() {
+    return shed.get();
+  }
+
+  /**
+   * @return Number of tasks handed to the executor and not yet completed.
+   */
+  int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return Number of tasks waiting to be handed to the executor.
+   */
+  int getQueued() {
+    lock.lock();
+    try {
+      return queue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Task waiting in the queue.
+   */
+  private static class QueuedTask implements Comparable<QueuedTask> {
+
+    private final Runnable task;
+    // The default one for tasks without a deadline
+    private final long deadlineNanos;
+    // Keeps tasks with the same deadline in order
+    private final long sequence;
+
+    private QueuedTask(Runnable task, long deadlineNanos, long sequence) {
+      this.task = task;
+      this.deadlineNanos = deadlineNanos;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(QueuedTask other) {
+      if (deadlineNanos != other.deadlineNanos) {
+        // nanoTime values can only be compared by their difference
+        return deadlineNanos - other.deadlineNanos < 0 ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence
+          ? 0 : 1);
+    }
+  }
+
+  /**
+   * Admitted task that lets the controller know when it completes.
+   */
+  private class AdmittedTask implements Runnable {
+
+    private final Runnable task;
+
+    private AdmittedTask(Runnable task) {
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      try {
+        task.run();
+      } finally {
+        completed();
+      }
+    }
+  }
+}
@@ -0,0 +1,503 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.socketrpc.NioChannel.FrameHandler;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response;
+
+/**
+ * {@link RpcChannel} that performs RPCs without blocking any thread while
+ * waiting for responses. Requests are sent over a single non-blocking socket,
+ * tagged with request ids, and responses are read by one selector thread. An
+ * RPC in progress only costs a small object, no matter how many there are.
+ * <p>
+ * Callbacks are run using the {@link Executor} given when creating the
+ * channel. RPCs can also be made using
+ * {@link #callMethod(MethodDescriptor, RpcController, Message, Message)},
+ * which returns an {@link RpcFuture}. Canceling an RPC, with
+ * {@link SocketRpcController#startCancel()} or the future, fails it with
+ * {@code CANCELED} right away and sends the server a cancel request. An RPC
+ * whose deadline passes before its response arrives fails with
+ * {@code DEADLINE_EXCEEDED} and is canceled the same way.
+ * <p>
+ * Like {@link MultiplexedRpcConnectionFactory}, the server must be able to
+ * handle multiple requests from the same connection concurrently and must
+ * return request ids, i.e. it must use either
+ * {@link SocketRpcConnectionFactories#createNioServerRpcConnectionFactory(int)}
+ * or {@link PersistentRpcConnectionFactory#createServerInstance}. If the
+ * connection fails, pending RPCs fail with an {@code IO_ERROR} and a new
+ * connection is created for the next RPC. The {@link #close()} method must
+ * explicitly be called when the client has finished using the channel.
+ * <p>
+ * Use {@link RpcChannels#newAsyncRpcChannel(String, int, Executor)} to create
+ * instances. Like other channels, it MUST be used with
+ * {@link SocketRpcController}, and calls are recorded in
+ * {@link RpcMetrics#getClientMetrics()}.
+ *
+ * @author Shardul Deo
+ */
+public class AsyncRpcChannel implements RpcChannel, Closeable {
+
+  private static final Logger LOG =
+      Logger.getLogger(AsyncRpcChannel.class.getName());
+
+  private final String host;
+  private final int port;
+  private final Executor executor;
+  private final AtomicLong nextRequestId = new AtomicLong(0);
+  private final ChannelStats stats = new ChannelStats();
+  private volatile ObjectName mbeanName = null;
+
+  private volatile ClientChannel channel = null;
+  private volatile boolean closed = false;
+
+  // Guards connecting and closing
+  private final ReentrantLock lock = new ReentrantLock();
+  private SelectorThread selectorThread = null;
+
+  AsyncRpcChannel(String host, int port, Executor executor) {
+    this.host = host;
+    this.port = port;
+    this.executor = executor;
+  }
+
+  /**
+   * Call the given method without blocking. The callback is run using this
+   * channel's executor, unless the RPC fails before the request is sent in
+   * which case it is run in the calling thread.
+   * <p>
+   * This doesn't call the callback if the server-side implementation did not
+   * call the callback. If any error occurs, it will call the callback with
+   * null and update the controller with the error.
+   */
+  @Override
+  public void callMethod(MethodDescriptor method, RpcController controller,
+      Message request, Message responsePrototype, RpcCallback<Message> done) {
+    call(method, (SocketRpcController) controller, request, responsePrototype,
+        done, false /* alwaysCallback */);
+  }
+
+  /**
+   * Call the given method without blocking and return the future result.
+   * Unlike {@link #callMethod(MethodDescriptor, RpcController, Message,
+   * Message, RpcCallback)}, the future completes with a null result if the
+   * server-side implementation did not call the callback.
+   */
+  public RpcFuture<Message> callMethod(MethodDescriptor method,
+      RpcController controller, Message request, Message responsePrototype) {
+    SocketRpcController socketController = (SocketRpcController) controller;
+    final RpcFuture<Message> future = new RpcFuture<Message>(socketController);
+    call(method, socketController, request, responsePrototype,
+        new RpcCallback<Message>() {
+          @Override
+          public void run(Message response) {
+            future.set(response);
+          }
+        }, true /* alwaysCallback */);
+    return future;
+  }
+
+  /**
+   * Call the given method without blocking.
+   *
+   * @param alwaysCallback Whether to call the callback, with a null response,
+   *        even if the server-side implementation did not call the callback.
+   */
+  void call(MethodDescriptor method,
+      SocketRpcController socketController, Message request,
+      Message responsePrototype, RpcCallback<Message> done,
+      boolean alwaysCallback) {
+    long startNanos = System.nanoTime();
+    stats.callStarted();
+    try {
+      // Check request
+      if (!request.isInitialized()) {
+        RpcChannelImpl.handleError(socketController,
+            ErrorReason.INVALID_REQUEST_PROTO, "Request is uninitialized",
+            null);
+      }
+      RpcChannelImpl.checkCanStart(socketController);
+      ClientChannel local = getChannel(socketController);
+      PendingCall call = new PendingCall(method, request, startNanos,
+          socketController, responsePrototype, done, alwaysCallback);
+      local.send(method, request, call);
+    } catch (ServiceException e) {
+      // Call done with null, controller has the error information
+      RpcChannelImpl.recordCall(stats, method, startNanos, socketController,
+          request, null);
+      if (done != null) {
+        done.run(null);
+      }
+    }
+  }
+
+  private ClientChannel getChannel(SocketRpcController socketController)
+      throws ServiceException {
+    ClientChannel local = channel;
+    if (local != null && !local.nioChannel.isClosed()) {
+      return local;
+    }
+    try {
+      return connect();
+    } catch (UnknownHostException e) {
+      return RpcChannelImpl.handleError(socketController,
+          ErrorReason.UNKNOWN_HOST, "Could not find host: " + e.getMessage(),
+          e);
+    } catch (IOException e) {
+      return RpcChannelImpl.handleError(socketController, ErrorReason.IO_ERROR,
+          String.format("Error connecting to %s:%d", host, port), e);
+    }
+  }
+
+  private ClientChannel connect() throws IOException {
+    lock.lock();
+    try {
+      return connectLocked();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private ClientChannel connectLocked() throws IOException {
+    if (closed) {
+      throw new IOException("Channel closed");
+    }
+    ClientChannel local = channel;
+    if (local != null && !local.nioChannel.isClosed()) {
+      return local;
+    }
+    if (selectorThread == null) {
+      SelectorThread thread = new SelectorThread("AsyncRpcChannel-IO");
+      thread.start();
+      selectorThread = thread;
+    }
+    InetSocketAddress address = new InetSocketAddress(host, port);
+    if (address.isUnresolved()) {
+      throw new UnknownHostException(host);
+    }
+    SocketChannel socketChannel = SocketChannel.open(address);
+    try {
+      local = new ClientChannel(socketChannel, selectorThread);
+    } catch (IOException e) {
+      socketChannel.close();
+      throw e;
+    }
+    selectorThread.register(local.nioChannel);
+    channel = local;
+    return local;
+  }
+
+  /**
+   * Closes the connection used by this channel. Any RPCs in progress fail.
+   */
+  @Override
+  public void close() {
+    RpcMBeans.unregister(mbeanName);
+    lock.lock();
+    try {
+      closed = true;
+      ClientChannel local = channel;
+      if (local != null) {
+        local.nioChannel.close();
+      }
+      if (selectorThread != null) {
+        selectorThread.shutDown();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Publish this channel over JMX until it is closed.
+   */
+  void registerMBean() {
+    mbeanName = RpcMBeans.registerChannel(new ChannelBean());
+  }
+
+  /**
+   * Publishes the state of this channel over JMX.
+   */
+  private class ChannelBean implements RpcChannelMXBean {
+
+    @Override
+    public String getType() {
+      return AsyncRpcChannel.class.getSimpleName();
+    }
+
+    @Override
+    public String getTarget() {
+      return host + ":" + port;
+    }
+
+    @Override
+    public long getCallsStarted() {
+      return stats.getStarted();
+    }
+
+    @Override
+    public long getCallsFailed() {
+      return stats.getFailed();
+    }
+
+    @Override
+    public long getCallsInFlight() {
+      ClientChannel local = channel;
+      return local == null ? 0 : local.pendingCalls.size();
+    }
+
+    @Override
+    public long getCallsRetried() {
+      // Calls are never retried
+      return 0;
+    }
+
+    @Override
+    public int getOpenConnections() {
+      ClientChannel local = channel;
+      return local != null && !local.nioChannel.isClosed() ? 1 : 0;
+    }
+
+    @Override
+    public boolean isClosed() {
+      return closed;
+    }
+  }
+
+  /**
+   * Run the completion of a call using the executor.
+   */
+  private void complete(PendingCall call, Response rpcResponse,
+      String error) {
+    complete(call, rpcResponse, ErrorReason.IO_ERROR, error);
+  }
+
+  private void complete(final PendingCall call, final Response rpcResponse,
+      final ErrorReason reason, final String error) {
+    call.socketController.setCancelHook(null);
+    ScheduledFuture<?> deadlineTimer = call.deadlineTimer;
+    if (deadlineTimer != null) {
+      deadlineTimer.cancel(false);
+    }
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        if (rpcResponse == null) {
+          call.fail(reason, error);
+        } else {
+          call.complete(rpcResponse);
+        }
+      }
+    };
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      LOG.log(Level.WARNING, "Executor rejected RPC completion", e);
+      task.run();
+    }
+  }
+
+  /**
+   * An RPC waiting for its response.
+   */
+  private class PendingCall {
+
+    private final MethodDescriptor method;
+    private final Message request;
+    private final long startNanos;
+    private final SocketRpcController socketController;
+    private final Message responsePrototype;
+    private final RpcCallback<Message> done;
+    private final boolean alwaysCallback;
+    private volatile ScheduledFuture<?> deadlineTimer = null;
+
+    private PendingCall(MethodDescriptor method, Message request,
+        long startNanos, SocketRpcController socketController,
+        Message responsePrototype, RpcCallback<Message> done,
+        boolean alwaysCallback) {
+      this.method = method;
+      this.request = request;
+      this.startNanos = startNanos;
+      this.socketController = socketController;
+      this.responsePrototype = responsePrototype;
+      this.done = done;
+      this.alwaysCallback = alwaysCallback;
+    }
+
+    private void complete(Response rpcResponse) {
+      Message response = null;
+      try {
+        response = RpcChannelImpl.handleRpcResponse(responsePrototype,
+            rpcResponse, socketController);
+      } catch (ServiceException e) {
+        // Controller has the error information
+      }
+      RpcChannelImpl.recordCall(stats, method, startNanos, socketController,
+          request, rpcResponse);
+      // Callback if failed or server invoked callback
+      if (socketController.failed() || rpcResponse.getCallback()
+          || alwaysCallback) {
+        if (done != null) {
+          done.run(response);
+        }
+      }
+    }
+
+    private void fail(ErrorReason reason, String error) {
+      try {
+        RpcChannelImpl.handleError(socketController, reason, error, null);
+      } catch (ServiceException e) {
+        // Controller has the error information
+      }
+      RpcChannelImpl.recordCall(stats, method, startNanos, socketController,
+          request, null);
+      if (done != null) {
+        done.run(null);
+      }
+    }
+  }
+
+  /**
+   * One connection to the server along with the RPCs waiting for responses
+   * on it.
+   */
+  private class ClientChannel implements FrameHandler {
+
+    private final NioChannel nioChannel;
+    private final ConcurrentMap<Long, PendingCall> pendingCalls =
+        new ConcurrentHashMap<Long, PendingCall>();
+
+    private ClientChannel(SocketChannel socketChannel,
+        SelectorThread selectorThread) throws IOException {
+      nioChannel = new NioChannel(socketChannel, selectorThread, this);
+    }
+
+    private void send(MethodDescriptor method, Message request,
+        PendingCall call) {
+      final long requestId = nextRequestId.incrementAndGet();
+      // Added before sending so the call fails if the channel closes
+      pendingCalls.put(requestId, call);
+      call.socketController.setCancelHook(new Runnable() {
+        @Override
+        public void run() {
+          cancel(requestId, ErrorReason.CANCELED, "Canceled");
+        }
+      });
+      call.deadlineTimer = RpcChannelImpl.scheduleDeadline(
+          call.socketController, new Runnable() {
+            @Override
+            public void run() {
+              cancel(requestId, ErrorReason.DEADLINE_EXCEEDED,
+                  "Deadline exceeded while waiting for response");
+            }
+          });
+      if (!pendingCalls.containsKey(requestId)) {
+        // Already canceled, or completed right away
+        return;
+      }
+      try {
+        nioChannel.writeFrame(RpcChannelImpl.createRpcRequest(method, request,
+            call.socketController).withRequestId(requestId));
+      } catch (IOException e) {
+        if (pendingCalls.remove(requestId) != null) {
+          complete(call, null, String.format(
+              "Error writing over connection %s", nioChannel));
+        }
+      }
+    }
+
+    /**
+     * Stop waiting for the response to the given request, fail it with the
+     * given error and tell the server it is canceled.
+     */
+    private void cancel(long requestId, ErrorReason reason, String error) {
+      PendingCall call = pendingCalls.remove(requestId);
+      if (call == null) {
+        // Already completed
+        return;
+      }
+      try {
+        nioChannel.writeFrame(RpcChannelImpl.createCancelRequest(requestId));
+      } catch (IOException e) {
+        // Channel is closed, so the server stops anyway
+      }
+      complete(call, null, reason, error);
+    }
+
+    @Override
+    public void frameReceived(NioChannel channel, byte[] frame) {
+      Response rpcResponse;
+      try {
+        rpcResponse = Response.parseFrom(frame);
+      } catch (InvalidProtocolBufferException e) {
+        LOG.log(Level.WARNING, "Bad response from server", e);
+        channel.close();
+        return;
+      }
+      PendingCall call = pendingCalls.remove(rpcResponse.getRequestId());
+      if (call == null) {
+        // The call was canceled, or the server is confused
+        LOG.fine("Received response for unknown request id "
+            + rpcResponse.getRequestId());
+        return;
+      }
+      complete(call, rpcResponse, null);
+    }
+
+    @Override
+    public void channelClosed(NioChannel channel) {
+      Iterator<Long> ids = pendingCalls.keySet().iterator();
+      while (ids.hasNext()) {
+        PendingCall call = pendingCalls.remove(ids.next());
+        if (call != null) {
+          complete(call, null, String.format(
+              "Connection %s closed before response was received", channel));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,55 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+
+/**
+ * {@link Connection} whose request has already been read into memory, so the
+ * server can look at it before deciding when to handle it.
+ *
+ * @author Shardul Deo
+ */
+interface BufferedConnection extends Connection {
+
+  /**
+   * @return {@link System#nanoTime()} when the request was read.
+   */
+  long getReceivedNanos();
+
+  /**
+   * @return The encoded request, or null if it was already received. The
+   *         request can still be received afterwards.
+   */
+  byte[] peekRequest();
+
+  /**
+   * @return The client connection the request came over. Requests can only be
+   *         canceled over the same client connection.
+   */
+  Object getChannel();
+
+  /**
+   * Close this connection without sending a response or closing the client
+   * connection, for requests such as cancel requests that don't get one.
+   */
+  void release();
+}
@@ -0,0 +1,70 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+/**
+ * Call counters of a single channel, published by its
+ * {@link RpcChannelMXBean}.
+ *
+ * @author Shardul Deo
+ */
+class ChannelStats {
+
+  private static final int STARTED = 0;
+  private static final int COMPLETED = 1;
+  private static final int FAILED = 2;
+  private static final int RETRIED = 3;
+
+  private final StripedCounters counters = new StripedCounters(4);
+
+  void callStarted() {
+    counters.add(STARTED, 1);
+  }
+
+  void callCompleted(boolean failed) {
+    counters.add(COMPLETED, 1);
+    if (failed) {
+      counters.add(FAILED, 1);
+    }
+  }
+
+  void callRetried() {
+    counters.add(RETRIED, 1);
+  }
+
+  long getStarted() {
+    return counters.sum(STARTED);
+  }
+
+  long getFailed() {
+    return counters.sum(FAILED);
+  }
+
+  long getRetried() {
+    return counters.sum(RETRIED);
+  }
+
+  long getInFlight() {
+    // Read completed first so that calls completing meanwhile aren't negative
+    long completed = counters.sum(COMPLETED);
+    return Math.max(0, counters.sum(STARTED) - completed);
+  }
+}
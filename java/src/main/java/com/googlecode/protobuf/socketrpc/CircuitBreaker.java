@@ -0,0 +1,220 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Circuit breaker of one endpoint of a
+ * {@link LoadBalancingRpcConnectionFactory}. While closed, RPCs go through
+ * and consecutive failures are counted. Once there are too many, or the
+ * endpoint is ejected for being slow, the breaker opens and RPCs to the
+ * endpoint fail fast. After a backoff time it becomes half-open and lets a
+ * single probe RPC through: if that succeeds the breaker closes, otherwise
+ * it opens again for twice as long.
+ * <p>
+ * Breakers of the same factory share a count of open breakers, so that only
+ * a limited number of endpoints are ejected at the same time.
+ *
+ * @author Shardul Deo
+ */
+final class CircuitBreaker {
+
+  enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  /**
+   * Whether an RPC may go to the endpoint.
+   */
+  enum Permit {
+    DENIED, ALLOWED, PROBE
+  }
+
+  private final int failureThreshold;
+  private final long ejectionNanos;
+  private final long maxEjectionNanos;
+  private final AtomicInteger openBreakers;
+  private final int maxOpenBreakers;
+
+  private volatile State state = State.CLOSED;
+  private volatile int consecutiveFailures = 0;
+
+  // Guarded by this
+  private int ejections = 0;
+  private long openUntilNanos = 0;
+  private long closedSinceNanos = System.nanoTime();
+  private boolean probing = false;
+
+  /**
+   * @param failureThreshold Consecutive failures that open the breaker, 0 to
+   *        only open it by calling {@link #eject(long)}.
+   * @param ejectionNanos Time the breaker stays open the first time.
+   * @param maxEjectionNanos Longest time the breaker stays open. Also the
+   *        time after which a closed breaker forgets how often it opened.
+   * @param openBreakers Number of open breakers, shared between breakers.
+   * @param maxOpenBreakers Breakers don't open once this many are open.
+   */
+  CircuitBreaker(int failureThreshold, long ejectionNanos,
+      long maxEjectionNanos, AtomicInteger openBreakers,
+      int maxOpenBreakers) {
+    this.failureThreshold = failureThreshold;
+    this.ejectionNanos = ejectionNanos;
+    this.maxEjectionNanos = Math.max(ejectionNanos, maxEjectionNanos);
+    this.openBreakers = openBreakers;
+    this.maxOpenBreakers = maxOpenBreakers;
+  }
+
+  State getState() {
+    return state;
+  }
+
+  /**
+   * @return Number of times the breaker opened since it last stayed closed
+   *         for a while.
+   */
+  synchronized int getEjections() {
+    return ejections;
+  }
+
+  /**
+   * @return Whether {@link #acquire(long)} would currently allow an RPC.
+   */
+  boolean isAvailable(long nowNanos) {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    synchronized (this) {
+      switch (state) {
+        case OPEN:
+          return nowNanos - openUntilNanos >= 0;
+        case HALF_OPEN:
+          return !probing;
+        default:
+          return true;
+      }
+    }
+  }
+
+  /**
+   * Ask to send an RPC to the endpoint. A {@link Permit#PROBE} must be
+   * followed by a call to {@link #onResult} so that the next probe can go.
+   */
+  Permit acquire(long nowNanos) {
+    if (state == State.CLOSED) {
+      return Permit.ALLOWED;
+    }
+    synchronized (this) {
+      switch (state) {
+        case OPEN:
+          if (nowNanos - openUntilNanos < 0) {
+            return Permit.DENIED;
+          }
+          state = State.HALF_OPEN;
+          probing = true;
+          return Permit.PROBE;
+        case HALF_OPEN:
+          if (probing) {
+            return Permit.DENIED;
+          }
+          probing = true;
+          return Permit.PROBE;
+        default:
+          return Permit.ALLOWED;
+      }
+    }
+  }
+
+  /**
+   * Record the result of an RPC that was allowed by the given permit.
+   * Results of RPCs started before the breaker opened are ignored.
+   */
+  void onResult(Permit permit, boolean failed, long nowNanos) {
+    if (permit == Permit.PROBE) {
+      synchronized (this) {
+        probing = false;
+        if (failed) {
+          open(nowNanos);
+        } else {
+          close(nowNanos);
+        }
+      }
+    } else if (!failed) {
+      if (consecutiveFailures != 0) {
+        consecutiveFailures = 0;
+      }
+    } else if (failureThreshold > 0) {
+      synchronized (this) {
+        if (state == State.CLOSED
+            && ++consecutiveFailures >= failureThreshold) {
+          tryOpen(nowNanos);
+        }
+      }
+    }
+  }
+
+  /**
+   * Open a closed breaker, e.g. because the endpoint is much slower than the
+   * others.
+   *
+   * @return Whether the breaker was opened, which it isn't if too many
+   *         breakers are already open.
+   */
+  synchronized boolean eject(long nowNanos) {
+    return state == State.CLOSED && tryOpen(nowNanos);
+  }
+
+  private boolean tryOpen(long nowNanos) {
+    int open;
+    do {
+      open = openBreakers.get();
+      if (open >= maxOpenBreakers) {
+        return false;
+      }
+    } while (!openBreakers.compareAndSet(open, open + 1));
+    if (nowNanos - closedSinceNanos > maxEjectionNanos) {
+      ejections = 0;
+    }
+    open(nowNanos);
+    return true;
+  }
+
+  private void open(long nowNanos) {
+    ejections++;
+    // Double the backoff for every ejection, without overflowing
+    long backoff = ejectionNanos;
+    for (int i = 1; i < ejections && backoff < maxEjectionNanos; i++) {
+      backoff *= 2;
+    }
+    openUntilNanos = nowNanos + Math.min(backoff, maxEjectionNanos);
+    consecutiveFailures = 0;
+    state = State.OPEN;
+  }
+
+  private void close(long nowNanos) {
+    if (state != State.CLOSED) {
+      openBreakers.decrementAndGet();
+    }
+    closedSinceNanos = nowNanos;
+    consecutiveFailures = 0;
+    state = State.CLOSED;
+  }
+}
@@ -0,0 +1,401 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * {@link RpcConnectionFactory} that sends all requests with the same key to
+ * the same server, e.g. the replica that holds the shard of the key in
+ * memory. The key is taken from the request by a {@link KeyExtractor}, e.g.
+ * the value of a field (see {@link #newFieldKeyExtractor(String)}). Each
+ * server is an endpoint with a name and its own {@link RpcConnectionFactory}.
+ * Use {@link #newBuilder} to create instances.
+ * <p>
+ * Keys are routed with a consistent hash ring: every endpoint is hashed onto
+ * the ring at many points, its virtual nodes, and a key goes to the endpoint
+ * of the first point after the hash of the key. Since the points only depend
+ * on the endpoint names, clients with the same endpoints route keys the same
+ * way. When an endpoint is added, it only takes over keys from the others,
+ * and when one is removed, only its keys move, spread over the others.
+ * Requests without a key go to a random endpoint.
+ * <p>
+ * Endpoints can be added and removed while the factory is in use. The
+ * {@link #close()} method must explicitly be called when the client has
+ * finished using the factory, it closes the factories of all endpoints.
+ *
+ * @author Shardul Deo
+ */
+public class ConsistentHashRpcConnectionFactory implements
+    RoutingRpcConnectionFactory, Closeable {
+
+  /**
+   * Takes the routing key out of a request.
+   */
+  public interface KeyExtractor {
+
+    /**
+     * @return Key of the request, or null if it has none.
+     */
+    ByteString getKey(Message request);
+  }
+
+  private final KeyExtractor keyExtractor;
+  private final int virtualNodes;
+  private final Random random = new Random();
+
+  // Guarded by this, the ring is rebuilt when endpoints change
+  private final Map<String, RpcConnectionFactory> endpoints;
+  private volatile Ring ring;
+
+  /**
+   * Create a builder for a factory that routes requests by the keys the given
+   * extractor takes out of them.
+   */
+  public static Builder newBuilder(KeyExtractor keyExtractor) {
+    return new Builder(keyExtractor);
+  }
+
+  /**
+   * Create a builder for a factory that routes requests by the value of the
+   * field with the given path, see {@link #newFieldKeyExtractor(String)}.
+   */
+  public static Builder newBuilder(String fieldPath) {
+    return new Builder(newFieldKeyExtractor(fieldPath));
+  }
+
+  private ConsistentHashRpcConnectionFactory(Builder builder) {
+    this.keyExtractor = builder.keyExtractor;
+    this.virtualNodes = builder.virtualNodes;
+    this.endpoints =
+        new LinkedHashMap<String, RpcConnectionFactory>(builder.endpoints);
+    this.ring = new Ring(endpoints, virtualNodes);
+  }
+
+  /**
+   * Create a {@link KeyExtractor} that uses the value of the field with the
+   * given path, the names of the fields from the request down separated by
+   * dots, e.g. {@code user.id}. Requests where the field, or a message on the
+   * way to it, is not set or doesn't exist have no key. The field must not be
+   * repeated.
+   * <p>
+   * Strings and bytes are used as is, numbers and booleans as their decimal
+   * string, enums as the string of their number, and messages serialized.
+   */
+  public static KeyExtractor newFieldKeyExtractor(String fieldPath) {
+    final String[] names = fieldPath.split("\\.");
+    return new KeyExtractor() {
+      @Override
+      public ByteString getKey(Message request) {
+        Message message = request;
+        for (int i = 0;; i++) {
+          FieldDescriptor field =
+              message.getDescriptorForType().findFieldByName(names[i]);
+          if (field == null || field.isRepeated() || !message.hasField(field)) {
+            return null;
+          }
+          Object value = message.getField(field);
+          if (i == names.length - 1) {
+            return toKey(value);
+          }
+          if (!(value instanceof Message)) {
+            return null;
+          }
+          message = (Message) value;
+        }
+      }
+    };
+  }
+
+  private static ByteString toKey(Object value) {
+    if (value instanceof ByteString) {
+      return (ByteString) value;
+    }
+    if (value instanceof Message) {
+      return ((Message) value).toByteString();
+    }
+    if (value instanceof EnumValueDescriptor) {
+      value = ((EnumValueDescriptor) value).getNumber();
+    }
+    return ByteString.copyFromUtf8(value.toString());
+  }
+
+  /**
+   * Connect to the endpoint of the request's key.
+   */
+  @Override
+  public Connection createConnection(MethodDescriptor method,
+      Message request) throws UnknownHostException, IOException {
+    ByteString key = keyExtractor.getKey(request);
+    if (key == null) {
+      return createConnection();
+    }
+    return ring.get(hash(key)).createConnection();
+  }
+
+  /**
+   * Connect to a random endpoint, for requests without a key.
+   */
+  @Override
+  public Connection createConnection() throws UnknownHostException,
+      IOException {
+    Ring current = ring;
+    return current.getEndpoint(random.nextInt(current.size()))
+        .createConnection();
+  }
+
+  /**
+   * @return Name of the endpoint that requests with the given key are sent
+   *         to.
+   */
+  public String getEndpointName(ByteString key) {
+    return ring.getName(hash(key));
+  }
+
+  /**
+   * @return Names of the endpoints, in the order they were added.
+   */
+  public synchronized List<String> getEndpointNames() {
+    return Collections.unmodifiableList(
+        new ArrayList<String>(endpoints.keySet()));
+  }
+
+  /**
+   * Add an endpoint, which takes over about its share of the keys from the
+   * other endpoints.
+   *
+   * @throws IllegalArgumentException If there already is an endpoint with the
+   *         given name.
+   */
+  public synchronized void addEndpoint(String name,
+      RpcConnectionFactory factory) {
+    if (endpoints.containsKey(name)) {
+      throw new IllegalArgumentException("Duplicate endpoint: " + name);
+    }
+    endpoints.put(name, factory);
+    ring = new Ring(endpoints, virtualNodes);
+  }
+
+  /**
+   * Remove an endpoint, its keys move to the other endpoints. RPCs in
+   * progress on it complete.
+   *
+   * @return The factory of the endpoint, which is not closed, or null if
+   *         there is no endpoint with the given name.
+   * @throws IllegalStateException If it is the last endpoint.
+   */
+  public synchronized RpcConnectionFactory removeEndpoint(String name) {
+    if (!endpoints.containsKey(name)) {
+      return null;
+    }
+    if (endpoints.size() == 1) {
+      throw new IllegalStateException("Can't remove the last endpoint");
+    }
+    RpcConnectionFactory factory = endpoints.remove(name);
+    ring = new Ring(endpoints, virtualNodes);
+    return factory;
+  }
+
+  /**
+   * Close the factories of all endpoints that can be closed.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    IOException error = null;
+    for (RpcConnectionFactory factory : endpoints.values()) {
+      if (factory instanceof Closeable) {
+        try {
+          ((Closeable) factory).close();
+        } catch (IOException e) {
+          error = e;
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "consistent hash " + endpoints.keySet();
+  }
+
+  /**
+   * 64-bit FNV-1a hash, with the MurmurHash3 finalizer to spread similar
+   * keys over the whole ring.
+   */
+  static long hash(ByteString bytes) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < bytes.size(); i++) {
+      hash ^= bytes.byteAt(i) & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * Immutable hash ring, sorted points with the endpoint of each.
+   */
+  private static class Ring {
+
+    private final String[] names;
+    private final RpcConnectionFactory[] factories;
+    private final long[] points;
+    private final int[] owners;
+
+    private Ring(Map<String, RpcConnectionFactory> endpoints,
+        int virtualNodes) {
+      int size = endpoints.size();
+      names = endpoints.keySet().toArray(new String[size]);
+      factories = endpoints.values().toArray(new RpcConnectionFactory[size]);
+
+      final long[] hashes = new long[size * virtualNodes];
+      Integer[] order = new Integer[hashes.length];
+      for (int i = 0; i < size; i++) {
+        for (int node = 0; node < virtualNodes; node++) {
+          int index = i * virtualNodes + node;
+          hashes[index] = hash(ByteString.copyFromUtf8(names[i] + "#" + node));
+          order[index] = index;
+        }
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          long x = hashes[a];
+          long y = hashes[b];
+          // Ties, which are very unlikely, are broken by index so that the
+          // ring doesn't depend on the sort
+          return x < y ? -1 : x > y ? 1 : a.compareTo(b);
+        }
+      });
+      points = new long[hashes.length];
+      owners = new int[hashes.length];
+      for (int i = 0; i < order.length; i++) {
+        points[i] = hashes[order[i]];
+        owners[i] = order[i] / virtualNodes;
+      }
+    }
+
+    /**
+     * @return Index of the endpoint of the first point at or after the hash.
+     */
+    private int indexOf(long hash) {
+      int i = Arrays.binarySearch(points, hash);
+      if (i < 0) {
+        i = -i - 1;
+        if (i == points.length) {
+          // Wrap around
+          i = 0;
+        }
+      } else {
+        // Use the first of equal points
+        while (i > 0 && points[i - 1] == hash) {
+          i--;
+        }
+      }
+      return owners[i];
+    }
+
+    private RpcConnectionFactory get(long hash) {
+      return factories[indexOf(hash)];
+    }
+
+    private String getName(long hash) {
+      return names[indexOf(hash)];
+    }
+
+    private RpcConnectionFactory getEndpoint(int index) {
+      return factories[index];
+    }
+
+    private int size() {
+      return factories.length;
+    }
+  }
+
+  /**
+   * Builder for {@link ConsistentHashRpcConnectionFactory}.
+   */
+  public static class Builder {
+
+    private final KeyExtractor keyExtractor;
+    private final Map<String, RpcConnectionFactory> endpoints =
+        new LinkedHashMap<String, RpcConnectionFactory>();
+    private int virtualNodes = 160;
+
+    private Builder(KeyExtractor keyExtractor) {
+      this.keyExtractor = keyExtractor;
+    }
+
+    /**
+     * Add a server, by a name that identifies it to all clients, e.g. its
+     * host and port, and the factory of connections to it.
+     */
+    public Builder addEndpoint(String name, RpcConnectionFactory factory) {
+      if (endpoints.containsKey(name)) {
+        throw new IllegalArgumentException("Duplicate endpoint: " + name);
+      }
+      endpoints.put(name, factory);
+      return this;
+    }
+
+    /**
+     * Number of points of every endpoint on the ring. More points spread the
+     * keys more evenly but make the ring bigger. Defaults to 160.
+     */
+    public Builder setVirtualNodes(int virtualNodes) {
+      if (virtualNodes <= 0) {
+        throw new IllegalArgumentException("virtualNodes must be positive");
+      }
+      this.virtualNodes = virtualNodes;
+      return this;
+    }
+
+    public ConsistentHashRpcConnectionFactory build() {
+      if (endpoints.isEmpty()) {
+        throw new IllegalArgumentException("No endpoints");
+      }
+      return new ConsistentHashRpcConnectionFactory(this);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.MessageLite.Builder;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Request;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response;
+
+/**
+ * An {@link RpcConnectionFactory} that does a handshake with the server on
+ * every new {@link Connection}, in which the server gives out a small integer
+ * id for each of its registered methods. RPCs sent over the connection then
+ * carry the method id instead of the service and method names.
+ * <p>
+ * Servers that don't support the handshake fail it with
+ * {@code SERVICE_NOT_FOUND}, in which case the names are sent as before. The
+ * same happens for methods that were registered on the server after the
+ * handshake.
+ * <p>
+ * Since the handshake is only worth it if more than one RPC is sent over the
+ * connection, this is meant to be wrapped by
+ * {@link PersistentRpcConnectionFactory},
+ * {@link MultiplexedRpcConnectionFactory} or
+ * {@link PooledRpcConnectionFactory}, and to talk to servers that keep
+ * connections open. If used with {@link SocketRpcConnectionFactories}, only
+ * delimited connection factories can be used.
+ *
+ * @author Shardul Deo
+ */
+public class HandshakeRpcConnectionFactory implements RpcConnectionFactory {
+
+  private static final Request HANDSHAKE_REQUEST = Request.newBuilder()
+      .setServiceName(RpcForwarder.HANDSHAKE_SERVICE)
+      .setMethodName("Handshake")
+      .setRequestProto(ByteString.EMPTY)
+      .build();
+
+  private final RpcConnectionFactory factory;
+
+  /**
+   * Create a client-side {@link RpcConnectionFactory} which does a handshake
+   * on every connection created by the given factory.
+   */
+  public static HandshakeRpcConnectionFactory createInstance(
+      RpcConnectionFactory factory) {
+    return new HandshakeRpcConnectionFactory(factory);
+  }
+
+  private HandshakeRpcConnectionFactory(RpcConnectionFactory factory) {
+    this.factory = factory;
+  }
+
+  @Override
+  public Connection createConnection() throws UnknownHostException,
+      IOException {
+    Connection connection = factory.createConnection();
+    boolean success = false;
+    try {
+      Map<String, Integer> methodIds = doHandshake(connection);
+      success = true;
+      return new HandshakeConnection(connection, methodIds);
+    } finally {
+      if (!success) {
+        connection.close();
+      }
+    }
+  }
+
+  /**
+   * @return Method ids keyed by full method name, empty if the server doesn't
+   *         support the handshake.
+   */
+  private static Map<String, Integer> doHandshake(Connection connection)
+      throws IOException {
+    connection.sendProtoMessage(HANDSHAKE_REQUEST);
+    Response.Builder responseBuilder = Response.newBuilder();
+    connection.receiveProtoMessage(responseBuilder);
+    Response response = responseBuilder.build();
+    if (response.hasErrorReason() || !response.hasResponseProto()) {
+      return Collections.emptyMap();
+    }
+
+    HandshakeResponse handshake;
+    try {
+      handshake = HandshakeResponse.parseFrom(response.getResponseProto());
+    } catch (InvalidProtocolBufferException e) {
+      throw new IOException("Bad handshake response: " + e.getMessage());
+    }
+    Map<String, Integer> methodIds = new HashMap<String, Integer>();
+    for (MethodId method : handshake.getMethodList()) {
+      methodIds.put(method.getServiceName() + "." + method.getMethodName(),
+          method.getId());
+    }
+    return methodIds;
+  }
+
+  /**
+   * Connection that replaces the names in requests with method ids.
+   */
+  private static class HandshakeConnection implements CancellableConnection {
+
+    private final Connection connection;
+    private final Map<String, Integer> methodIds;
+
+    private HandshakeConnection(Connection connection,
+        Map<String, Integer> methodIds) {
+      this.connection = connection;
+      this.methodIds = methodIds;
+    }
+
+    @Override
+    public void sendProtoMessage(MessageLite message) throws IOException {
+      if (message instanceof RequestEnvelope) {
+        RequestEnvelope envelope = (RequestEnvelope) message;
+        Integer id = methodIds.get(envelope.getMethod().getFullName());
+        if (id != null) {
+          message = envelope.withMethodId(id);
+        }
+      }
+      connection.sendProtoMessage(message);
+    }
+
+    @Override
+    public void receiveProtoMessage(Builder messageBuilder)
+        throws IOException {
+      connection.receiveProtoMessage(messageBuilder);
+    }
+
+    @Override
+    public void cancel() {
+      RpcChannelImpl.cancel(connection);
+    }
+
+    @Override
+    public void close() throws IOException {
+      connection.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+      return connection.isClosed();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "handshake " + factory;
+  }
+}
@@ -0,0 +1,474 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Descriptors.ServiceDescriptor;
+import com.googlecode.protobuf.socketrpc.RpcMetrics.MethodSnapshot;
+
+/**
+ * {@link RpcChannel} that hedges calls to idempotent methods: if the first
+ * attempt has not been answered after a delay, a second attempt is sent, the
+ * first answer is used and the other attempt is canceled. Every attempt gets
+ * its own connection from the {@link RpcConnectionFactory}, so with a
+ * {@link LoadBalancingRpcConnectionFactory} the second attempt usually goes to
+ * another server. This cuts the tail latency caused by a server that is
+ * occasionally slow, e.g. while it pauses for garbage collection.
+ * <p>
+ * Since the server may handle both attempts, only methods added with
+ * {@link Builder#addIdempotentMethod} are hedged, other calls are made like
+ * with a channel from {@link RpcChannels}. The hedge delay is a percentile of
+ * the method's latency in {@link RpcMetrics#getClientMetrics()}, or a fixed
+ * delay until enough calls have been recorded. Hedges are limited by a budget,
+ * a percentage of the hedgeable calls, so that hedging can't turn an overload
+ * into a worse one. A failed attempt does not cause a hedge, it fails the call
+ * unless the other attempt is still in progress.
+ * <p>
+ * Responses are waited for using the {@link Executor} given when creating the
+ * channel, which must be able to wait for every attempt in progress at once.
+ * Unlike other channels, the callback is called with null if the server-side
+ * implementation did not call the callback. Like other channels, it MUST be
+ * used with {@link SocketRpcController}, and attempts are recorded in
+ * {@link RpcMetrics#getClientMetrics()}. The {@link #close()} method must
+ * explicitly be called when the client has finished using the channel.
+ *
+ * @author Shardul Deo
+ */
+public class HedgingRpcChannel implements RpcChannel, BlockingRpcChannel,
+    Closeable {
+
+  // How often hedge delays are computed from the client metrics again
+  private static final long DELAY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  // Calls of a method to record before using its latency percentile
+  static final long MIN_LATENCY_SAMPLES = 100;
+
+  // Hedges that can be sent in a burst
+  private static final int MAX_BURST = 10;
+
+  private final RpcChannelImpl channel;
+  private final Executor executor;
+  private final Set<String> idempotentMethods;
+  private final long hedgeDelayNanos;
+  private final double hedgeDelayPercentile;
+  private final RequestBudget budget;
+  private final ConcurrentMap<String, HedgeDelay> delays =
+      new ConcurrentHashMap<String, HedgeDelay>();
+  private final ScheduledExecutorService timer;
+
+  private final AtomicLong hedgeableCalls = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+
+  /**
+   * Create a builder for a channel that gets connections from the given
+   * factory and waits for responses using the given executor.
+   */
+  public static Builder newBuilder(RpcConnectionFactory connectionFactory,
+      Executor executor) {
+    return new Builder(connectionFactory, executor);
+  }
+
+  private HedgingRpcChannel(Builder builder) {
+    this.channel = new RpcChannelImpl(builder.connectionFactory,
+        builder.executor);
+    this.executor = builder.executor;
+    this.idempotentMethods = new HashSet<String>(builder.idempotentMethods);
+    this.hedgeDelayNanos = builder.hedgeDelayNanos;
+    this.hedgeDelayPercentile = builder.hedgeDelayPercentile;
+    this.budget = new RequestBudget(builder.hedgeBudgetPercent, MAX_BURST);
+    timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "HedgingRpcChannel");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    channel.registerMBean();
+  }
+
+  @Override
+  public void callMethod(MethodDescriptor method, RpcController controller,
+      Message request, Message responsePrototype, RpcCallback<Message> done) {
+    SocketRpcController socketController = (SocketRpcController) controller;
+    if (!isIdempotent(method)) {
+      channel.call(method, socketController, request, responsePrototype, done,
+          true /* alwaysCallback */);
+      return;
+    }
+    hedgeableCalls.incrementAndGet();
+    budget.deposit();
+    new HedgedCall(method, socketController, request, responsePrototype,
+        done).start(getHedgeDelayNanos(method.getFullName()));
+  }
+
+  @Override
+  public Message callBlockingMethod(MethodDescriptor method,
+      RpcController controller, Message request, Message responsePrototype)
+      throws ServiceException {
+    if (!isIdempotent(method)) {
+      return channel.callBlockingMethod(method, controller, request,
+          responsePrototype);
+    }
+    SocketRpcController socketController = (SocketRpcController) controller;
+    final RpcFuture<Message> future =
+        new RpcFuture<Message>(socketController);
+    callMethod(method, socketController, request, responsePrototype,
+        new RpcCallback<Message>() {
+          @Override
+          public void run(Message response) {
+            future.set(response);
+          }
+        });
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          // The call completes soon after being canceled
+          interrupted = true;
+          socketController.startCancel();
+        } catch (ExecutionException e) {
+          throw (ServiceException) e.getCause();
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private boolean isIdempotent(MethodDescriptor method) {
+    return idempotentMethods.contains(method.getFullName());
+  }
+
+  /**
+   * @return Time to wait for the first attempt before sending a hedge.
+   */
+  long getHedgeDelayNanos(String methodName) {
+    if (hedgeDelayPercentile <= 0) {
+      return hedgeDelayNanos;
+    }
+    long now = System.nanoTime();
+    HedgeDelay delay = delays.get(methodName);
+    if (delay == null || now - delay.computedNanos > DELAY_REFRESH_NANOS) {
+      delay = new HedgeDelay(computeHedgeDelayNanos(methodName), now);
+      delays.put(methodName, delay);
+    }
+    return delay.delayNanos;
+  }
+
+  private long computeHedgeDelayNanos(String methodName) {
+    MethodSnapshot snapshot =
+        RpcMetrics.getClientMetrics().getSnapshot(methodName);
+    if (snapshot == null
+        || snapshot.getLatency().getCount() < MIN_LATENCY_SAMPLES) {
+      return hedgeDelayNanos;
+    }
+    return snapshot.getLatency().getValueAtPercentile(hedgeDelayPercentile);
+  }
+
+  /**
+   * @return Number of calls to idempotent methods.
+   */
+  public long getHedgeableCallCount() {
+    return hedgeableCalls.get();
+  }
+
+  /**
+   * @return Number of hedges sent.
+   */
+  public long getHedgeCount() {
+    return hedges.get();
+  }
+
+  /**
+   * @return Number of calls answered by the hedge rather than the first
+   *         attempt.
+   */
+  public long getHedgeWinCount() {
+    return hedgeWins.get();
+  }
+
+  /**
+   * Stop sending hedges. Calls in progress still complete.
+   */
+  @Override
+  public void close() {
+    timer.shutdownNow();
+  }
+
+  /**
+   * Hedge delay of a method, with when it was computed.
+   */
+  private static class HedgeDelay {
+
+    private final long delayNanos;
+    private final long computedNanos;
+
+    private HedgeDelay(long delayNanos, long computedNanos) {
+      this.delayNanos = delayNanos;
+      this.computedNanos = computedNanos;
+    }
+  }
+
+  /**
+   * A call to an idempotent method, which runs as a hedge timer task once the
+   * hedge delay has passed.
+   */
+  private class HedgedCall implements Runnable {
+
+    private final MethodDescriptor method;
+    private final SocketRpcController socketController;
+    private final Message request;
+    private final Message responsePrototype;
+    private final RpcCallback<Message> done;
+
+    // Guarded by this
+    private final List<SocketRpcController> attempts =
+        new ArrayList<SocketRpcController>(2);
+    private int inProgress = 0;
+    private boolean completed = false;
+    private ScheduledFuture<?> hedgeTimer = null;
+
+    private HedgedCall(MethodDescriptor method,
+        SocketRpcController socketController, Message request,
+        Message responsePrototype, RpcCallback<Message> done) {
+      this.method = method;
+      this.socketController = socketController;
+      this.request = request;
+      this.responsePrototype = responsePrototype;
+      this.done = done;
+    }
+
+    private void start(long delayNanos) {
+      socketController.setCancelHook(new Runnable() {
+        @Override
+        public void run() {
+          cancelAttempts(null);
+        }
+      });
+      attempt();
+      synchronized (this) {
+        if (completed) {
+          return;
+        }
+        try {
+          hedgeTimer = timer.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+          // Channel is closed, don't hedge
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (completed || socketController.isCanceled()
+            || socketController.isDeadlineExceeded()) {
+          return;
+        }
+      }
+      if (!budget.tryWithdraw()) {
+        return;
+      }
+      hedges.incrementAndGet();
+      // Connecting may block, keep it off the timer thread
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          attempt();
+        }
+      });
+    }
+
+    private void attempt() {
+      final SocketRpcController attempt = new SocketRpcController();
+      attempt.inheritDeadline(socketController);
+      synchronized (this) {
+        if (completed) {
+          return;
+        }
+        attempts.add(attempt);
+        inProgress++;
+      }
+      if (socketController.isCanceled()) {
+        // Missed by the cancel hook
+        attempt.startCancel();
+      }
+      channel.call(method, attempt, request, responsePrototype,
+          new RpcCallback<Message>() {
+            @Override
+            public void run(Message response) {
+              attemptCompleted(attempt, response);
+            }
+          }, true /* alwaysCallback */);
+    }
+
+    private void attemptCompleted(SocketRpcController attempt,
+        Message response) {
+      synchronized (this) {
+        inProgress--;
+        if (completed || (attempt.failed() && inProgress > 0)) {
+          // Already answered, or the other attempt may still succeed
+          return;
+        }
+        completed = true;
+        if (hedgeTimer != null) {
+          hedgeTimer.cancel(false);
+        }
+        if (!attempt.failed() && attempt != attempts.get(0)) {
+          hedgeWins.incrementAndGet();
+        }
+      }
+      socketController.setCancelHook(null);
+      cancelAttempts(attempt);
+      if (attempt.failed()) {
+        socketController.setFailed(attempt.errorText(),
+            attempt.errorReason());
+      }
+      if (done != null) {
+        done.run(response);
+      }
+    }
+
+    /**
+     * Cancel all attempts but the given one.
+     */
+    private void cancelAttempts(SocketRpcController except) {
+      List<SocketRpcController> toCancel;
+      synchronized (this) {
+        toCancel = new ArrayList<SocketRpcController>(attempts);
+      }
+      for (SocketRpcController attempt : toCancel) {
+        if (attempt != except) {
+          attempt.startCancel();
+        }
+      }
+    }
+  }
+
+  /**
+   * Builder for {@link HedgingRpcChannel}.
+   */
+  public static class Builder {
+
+    private final RpcConnectionFactory connectionFactory;
+    private final Executor executor;
+    private final Set<String> idempotentMethods = new HashSet<String>();
+    private long hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(20);
+    private double hedgeDelayPercentile = 95;
+    private double hedgeBudgetPercent = 5;
+
+    private Builder(RpcConnectionFactory connectionFactory,
+        Executor executor) {
+      this.connectionFactory = connectionFactory;
+      this.executor = executor;
+    }
+
+    /**
+     * Hedge calls to the given method, which must be safe to handle twice.
+     */
+    public Builder addIdempotentMethod(MethodDescriptor method) {
+      idempotentMethods.add(method.getFullName());
+      return this;
+    }
+
+    /**
+     * Hedge calls to all methods of the given service.
+     */
+    public Builder addIdempotentService(ServiceDescriptor service) {
+      for (MethodDescriptor method : service.getMethods()) {
+        addIdempotentMethod(method);
+      }
+      return this;
+    }
+
+    /**
+     * Hedge delay used until a method's latency percentile is known, or
+     * always if the percentile is 0. Defaults to 20 ms.
+     */
+    public Builder setHedgeDelay(long delay, TimeUnit unit) {
+      if (delay < 0) {
+        throw new IllegalArgumentException("delay must not be negative");
+      }
+      this.hedgeDelayNanos = unit.toNanos(delay);
+      return this;
+    }
+
+    /**
+     * Percentile of a method's latency to use as its hedge delay, e.g. 95
+     * hedges the slowest 5% of calls. 0 always uses the fixed delay. Defaults
+     * to 95.
+     */
+    public Builder setHedgeDelayPercentile(double hedgeDelayPercentile) {
+      if (hedgeDelayPercentile < 0 || hedgeDelayPercentile > 100) {
+        throw new IllegalArgumentException(
+            "hedgeDelayPercentile must be between 0 and 100");
+      }
+      this.hedgeDelayPercentile = hedgeDelayPercentile;
+      return this;
+    }
+
+    /**
+     * Most hedges to send, as a percentage of the calls to idempotent
+     * methods, apart from a burst of 10 hedges. Defaults to 5.
+     */
+    public Builder setHedgeBudgetPercent(double hedgeBudgetPercent) {
+      if (hedgeBudgetPercent < 0) {
+        throw new IllegalArgumentException(
+            "hedgeBudgetPercent must not be negative");
+      }
+      this.hedgeBudgetPercent = hedgeBudgetPercent;
+      return this;
+    }
+
+    public HedgingRpcChannel build() {
+      return new HedgingRpcChannel(this);
+    }
+  }
+}
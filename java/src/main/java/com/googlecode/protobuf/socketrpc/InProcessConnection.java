@@ -0,0 +1,210 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.MessageLite.Builder;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+
+/**
+ * One end of a pair of {@link Connection}s between a client and a server in
+ * the same process. Messages are put straight into the other end's queue, so
+ * there is no socket and no framing.
+ * <p>
+ * By default messages are serialized when sent and parsed when received, so
+ * the client and the service never share objects, just like over a socket.
+ * In pass-by-reference mode, request and response messages are handed over
+ * as they are, since protobuf messages are immutable. Only the envelopes
+ * that the RPC channel and server read are skipped over this way, anything
+ * else, e.g. the responses read by a {@link MultiplexedConnection}, is still
+ * serialized.
+ *
+ * @author Shardul Deo
+ */
+class InProcessConnection implements Connection {
+
+  // Queued after the last message once the other end is closed
+  private static final Object CLOSED = new Object();
+
+  private final BlockingQueue<Object> inbox =
+      new LinkedBlockingQueue<Object>();
+  private final boolean passByReference;
+  private final String name;
+  private InProcessConnection peer;
+
+  // Client end only, handed the server end when the request is sent
+  private final AtomicReference<InProcessServerRpcConnectionFactory> server;
+
+  private volatile boolean closed = false;
+
+  // Response message taken aside by receiveResponse()
+  private Message response = null;
+
+  private InProcessConnection(String name, boolean passByReference,
+      InProcessServerRpcConnectionFactory server) {
+    this.name = name;
+    this.passByReference = passByReference;
+    this.server = new AtomicReference<InProcessServerRpcConnectionFactory>(
+        server);
+  }
+
+  /**
+   * Create a connection to the given server. The server gets its end of the
+   * connection once the first message is sent over it, so if its executor
+   * runs tasks in the calling thread the whole call happens in the client's
+   * thread.
+   *
+   * @return The client end of the connection.
+   */
+  static InProcessConnection connect(
+      InProcessServerRpcConnectionFactory server, boolean passByReference) {
+    InProcessConnection client = new InProcessConnection(server.getName(),
+        passByReference, server);
+    InProcessConnection serverEnd = new InProcessConnection(server.getName(),
+        passByReference, null);
+    client.peer = serverEnd;
+    serverEnd.peer = client;
+    return client;
+  }
+
+  @Override
+  public void sendProtoMessage(MessageLite message) throws IOException {
+    if (closed) {
+      throw new IOException("Connection closed: " + this);
+    }
+    if (peer.closed) {
+      throw new IOException("Connection closed by server: " + this);
+    }
+    peer.inbox.add(passByReference ? message : message.toByteString());
+    InProcessServerRpcConnectionFactory local = server.getAndSet(null);
+    if (local != null) {
+      try {
+        local.accept(peer);
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+  }
+
+  @Override
+  public void receiveProtoMessage(Builder messageBuilder) throws IOException {
+    Object message = take();
+    if (message instanceof ByteString) {
+      messageBuilder.mergeFrom((ByteString) message);
+    } else if (message instanceof RequestEnvelope
+        && messageBuilder instanceof RequestDecoder) {
+      ((RequestDecoder) messageBuilder).mergeFromEnvelope(
+          (RequestEnvelope) message);
+    } else {
+      messageBuilder.mergeFrom(((MessageLite) message).toByteString());
+    }
+  }
+
+  /**
+   * Receive an RPC response. In pass-by-reference mode the response message
+   * is not put into the builder but kept aside, to be taken with
+   * {@link #takeResponse()}.
+   */
+  void receiveResponse(SocketRpcProtos.Response.Builder builder)
+      throws IOException {
+    Object message = take();
+    if (!(message instanceof ResponseEnvelope)) {
+      builder.mergeFrom(message instanceof ByteString ? (ByteString) message
+          : ((MessageLite) message).toByteString());
+      return;
+    }
+    ResponseEnvelope envelope = (ResponseEnvelope) message;
+    MessageLite responseMessage = envelope.getResponse();
+    if (responseMessage instanceof Message) {
+      response = (Message) responseMessage;
+    } else if (responseMessage != null) {
+      builder.setResponseProto(responseMessage.toByteString());
+    }
+    if (envelope.hasError()) {
+      builder.setError(envelope.getError());
+    }
+    if (envelope.getErrorReason() != null) {
+      builder.setErrorReason(envelope.getErrorReason());
+    }
+    builder.setCallback(envelope.getCallback());
+    if (envelope.hasRequestId()) {
+      builder.setRequestId(envelope.getRequestId());
+    }
+  }
+
+  /**
+   * @return The response message kept aside by the last
+   *         {@link #receiveResponse(SocketRpcProtos.Response.Builder)}, or
+   *         null if there was none.
+   */
+  Message takeResponse() {
+    Message local = response;
+    response = null;
+    return local;
+  }
+
+  private Object take() throws IOException {
+    Object message;
+    try {
+      // Thread blocks here until the other end sends something
+      message = inbox.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while receiving");
+    }
+    if (message == CLOSED) {
+      // Let any other thread reading know too
+      inbox.add(CLOSED);
+      throw new EOFException("Connection closed: " + this);
+    }
+    return message;
+  }
+
+  @Override
+  public void close() {
+    if (!closed) {
+      closed = true;
+      // Wakes up threads reading on both ends, after the messages already sent
+      inbox.add(CLOSED);
+      peer.inbox.add(CLOSED);
+    }
+  }
+
+  @Override
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public String toString() {
+    return "inprocess:" + name;
+  }
+}
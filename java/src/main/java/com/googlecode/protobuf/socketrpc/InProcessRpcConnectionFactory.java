@@ -0,0 +1,68 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.net.ConnectException;
+
+/**
+ * Client-side {@link RpcConnectionFactory} that connects to an
+ * {@link RpcServer} in the same process, without sockets. Use
+ * {@link SocketRpcConnectionFactories} to create instances.
+ *
+ * @see InProcessConnection
+ *
+ * @author Shardul Deo
+ */
+class InProcessRpcConnectionFactory implements RpcConnectionFactory {
+
+  private final String name;
+  private final boolean passByReference;
+
+  /**
+   * @param name Name of the server.
+   * @param passByReference Whether to hand request and response messages
+   *        over without serializing them.
+   */
+  InProcessRpcConnectionFactory(String name, boolean passByReference) {
+    if (name == null) {
+      throw new IllegalArgumentException("name must not be null");
+    }
+    this.name = name;
+    this.passByReference = passByReference;
+  }
+
+  @Override
+  public Connection createConnection() throws IOException {
+    InProcessServerRpcConnectionFactory server =
+        InProcessServerRpcConnectionFactory.getServer(name);
+    if (server == null) {
+      throw new ConnectException("No in-process server listening on: "
+          + name);
+    }
+    return InProcessConnection.connect(server, passByReference);
+  }
+
+  @Override
+  public String toString() {
+    return "inprocess:" + name;
+  }
+}
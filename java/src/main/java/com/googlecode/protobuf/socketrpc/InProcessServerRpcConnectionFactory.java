@@ -0,0 +1,169 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+/**
+ * Server-side {@link ServerRpcConnectionFactory} for clients in the same
+ * process, which find it by name. Use {@link SocketRpcConnectionFactories} to
+ * create instances.
+ * <p>
+ * An {@link RpcServer} started with this factory handles the connections
+ * right away in the client's thread, handing them to its executor without
+ * going through the server thread. Otherwise, e.g. when this factory is
+ * wrapped by {@link PersistentRpcConnectionFactory#createServerInstance},
+ * {@link #createConnection()} returns them one by one like any other factory.
+ *
+ * @author Shardul Deo
+ */
+class InProcessServerRpcConnectionFactory implements
+    ServerRpcConnectionFactory {
+
+  private static final Logger LOG =
+      Logger.getLogger(InProcessServerRpcConnectionFactory.class.getName());
+
+  // Servers that are listening, by name
+  private static final
+      ConcurrentMap<String, InProcessServerRpcConnectionFactory> SERVERS =
+          new ConcurrentHashMap<String, InProcessServerRpcConnectionFactory>();
+
+  // Queued once the factory is closed
+  private static final Object CLOSED = new Object();
+
+  /**
+   * Handles connections as soon as clients connect.
+   */
+  interface Handler {
+
+    /**
+     * Called in the client's thread.
+     */
+    void handle(Connection connection);
+  }
+
+  private final String name;
+  private final BlockingQueue<Object> pending =
+      new LinkedBlockingQueue<Object>();
+
+  private volatile Handler handler = null;
+  private boolean listening = false;
+  private volatile boolean closed = false;
+
+  /**
+   * @param name Name clients connect to, unique within the process.
+   */
+  InProcessServerRpcConnectionFactory(String name) {
+    if (name == null) {
+      throw new IllegalArgumentException("name must not be null");
+    }
+    this.name = name;
+  }
+
+  /**
+   * @return The listening server with the given name, or null if there is
+   *         none.
+   */
+  static InProcessServerRpcConnectionFactory getServer(String name) {
+    return SERVERS.get(name);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Start listening, handing connections to the given handler instead of
+   * returning them from {@link #createConnection()}.
+   */
+  void setHandler(Handler handler) throws IOException {
+    listen();
+    this.handler = handler;
+  }
+
+  @Override
+  public Connection createConnection() throws IOException {
+    listen();
+    Object connection;
+    try {
+      // Thread blocks here waiting for requests
+      connection = pending.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for requests");
+    }
+    if (connection == CLOSED) {
+      // Let any other thread waiting know too
+      pending.add(CLOSED);
+      throw new IOException("Server closed: " + name);
+    }
+    return (Connection) connection;
+  }
+
+  private synchronized void listen() throws IOException {
+    if (listening) {
+      return;
+    }
+    if (closed) {
+      throw new IOException("Server closed: " + name);
+    }
+    if (SERVERS.putIfAbsent(name, this) != null) {
+      throw new IOException("Name is in use: " + name);
+    }
+    LOG.info("Listening for in-process requests on: " + name);
+    listening = true;
+  }
+
+  /**
+   * Accept the server end of a connection from a client.
+   */
+  void accept(InProcessConnection connection) throws IOException {
+    if (closed) {
+      throw new ConnectException("Server closed: " + name);
+    }
+    Handler local = handler;
+    if (local != null) {
+      local.handle(connection);
+    } else {
+      pending.add(connection);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    SERVERS.remove(name, this);
+    // Connections that were not handled yet get an EOF
+    for (Object connection; (connection = pending.poll()) != null;) {
+      ((InProcessConnection) connection).close();
+    }
+    pending.add(CLOSED);
+  }
+}
@@ -0,0 +1,229 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets: every power
+ * of two range is split into 16 equal buckets, so recorded values are kept
+ * to within 1/16th (6.25%) of their actual value. Values from 0 up to about
+ * 4.8 hours are tracked, longer ones are counted in the last bucket.
+ * <p>
+ * Recording a value only updates a few counters in the recording thread's own
+ * stripe, so it costs a few nanoseconds and threads on different cores don't
+ * contend much. Use {@link #getSnapshot()} to read the histogram.
+ *
+ * @author Shardul Deo
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Highest power of two tracked
+  private static final int MAX_EXPONENT = 44;
+  static final int BUCKETS = bucketIndex((1L << MAX_EXPONENT) - 1) + 1;
+
+  // Counter indexes
+  private static final int TOTAL = 0;
+  private static final int MAX = 1;
+  private static final int FIRST_BUCKET = 2;
+
+  // A stripe of buckets takes over 5 KB, so fewer stripes than for other
+  // counters, at the cost of some contention on machines with many cores
+  static final int MAX_STRIPES = 4;
+
+  private final StripedCounters counters =
+      new StripedCounters(FIRST_BUCKET + BUCKETS, MAX_STRIPES);
+
+  /**
+   * Record the given latency.
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      // Clock went backwards
+      nanos = 0;
+    }
+    counters.add(FIRST_BUCKET + bucketIndex(nanos), 1);
+    counters.add(TOTAL, nanos);
+    counters.updateMax(MAX, nanos);
+  }
+
+  /**
+   * Record the given latency.
+   */
+  public void record(long duration, TimeUnit unit) {
+    record(unit.toNanos(duration));
+  }
+
+  /**
+   * Forget all recorded values.
+   */
+  public void reset() {
+    counters.reset();
+  }
+
+  /**
+   * @return The values recorded so far. Values recorded while the snapshot is
+   *         taken may be partly included.
+   */
+  public Snapshot getSnapshot() {
+    long[] buckets = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = counters.sum(FIRST_BUCKET + i);
+      count += buckets[i];
+    }
+    return new Snapshot(buckets, count, counters.sum(TOTAL),
+        counters.max(MAX));
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent >= MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int shift = exponent - SUB_BUCKET_BITS;
+    // Top bits of the value, including the leading one
+    int mantissa = (int) (value >>> shift);
+    return (shift + 1) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+  }
+
+  static long bucketLowerBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+    return mantissa << shift;
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    return bucketLowerBound(index) + (1L << shift) - 1;
+  }
+
+  /**
+   * Immutable copy of a {@link LatencyHistogram}.
+   */
+  public static class Snapshot {
+
+    private final long[] buckets;
+    private final long count;
+    private final long total;
+    private final long max;
+
+    private Snapshot(long[] buckets, long count, long total, long max) {
+      this.buckets = buckets;
+      this.count = count;
+      this.total = total;
+      this.max = max;
+    }
+
+    /**
+     * @return Number of values recorded.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return Mean of the recorded values in nanoseconds, or 0 if there are
+     *         none.
+     */
+    public double getMean() {
+      return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * @return Lowest recorded value in nanoseconds, rounded down to its
+     *         bucket, or 0 if there are none.
+     */
+    public long getMin() {
+      for (int i = 0; i < buckets.length; i++) {
+        if (buckets[i] > 0) {
+          return bucketLowerBound(i);
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * @return Highest recorded value in nanoseconds, or 0 if there are none.
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * @param percentile Between 0 and 100, e.g. 99.9.
+     * @return Value in nanoseconds that the given percentage of recorded values
+     *         are at or below, rounded up to its bucket, or 0 if there are no
+     *         values.
+     */
+    public long getValueAtPercentile(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException("Invalid percentile: "
+            + percentile);
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+      long seen = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        seen += buckets[i];
+        if (seen >= rank) {
+          return Math.min(bucketUpperBound(i), max);
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * @return Number of recorded values in each bucket, for exporting the
+     *         whole histogram. Use {@link #getBucketUpperBound(int)} for the
+     *         bucket boundaries.
+     */
+    public long[] getBucketCounts() {
+      return buckets.clone();
+    }
+
+    /**
+     * @return Highest value in nanoseconds counted in the bucket with the
+     *         given index.
+     */
+    public static long getBucketUpperBound(int index) {
+      return index == BUCKETS - 1 ? Long.MAX_VALUE : bucketUpperBound(index);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("count=%d mean=%.0fns p50=%dns p99=%dns "
+          + "p99.9=%dns max=%dns", count, getMean(),
+          getValueAtPercentile(50), getValueAtPercentile(99),
+          getValueAtPercentile(99.9), max);
+    }
+  }
+}
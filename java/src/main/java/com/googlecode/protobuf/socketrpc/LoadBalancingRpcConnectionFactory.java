@@ -0,0 +1,650 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.MessageLite;
+import com.googlecode.protobuf.socketrpc.CircuitBreaker.Permit;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+
+/**
+ * An {@link RpcConnectionFactory} that spreads RPCs over several servers,
+ * choosing a server for every RPC instead of for every connection. Each
+ * server is an {@link Endpoint} with its own {@link RpcConnectionFactory},
+ * e.g. a {@link MultiplexedRpcConnectionFactory} or a
+ * {@link PooledRpcConnectionFactory}. Use {@link #newBuilder} to create
+ * instances.
+ * <p>
+ * The server is chosen by one of the {@link Policy policies}. For all of
+ * them, every endpoint keeps track of its RPCs in progress and of its peak
+ * EWMA latency, the exponentially weighted moving average of its response
+ * times, which jumps up to the latest response time when that is higher.
+ * With {@link Policy#PEAK_EWMA}, traffic moves away from a slow server as
+ * soon as it responds slowly, and comes back gradually once it has recovered.
+ * <p>
+ * Every endpoint also has a circuit breaker. An endpoint is ejected, i.e. no
+ * RPCs are sent to it, after a number of consecutive failures or after
+ * several consecutive responses far slower than the latency of the other
+ * endpoints, so that a single slow response, e.g. during a garbage collection
+ * pause, is not enough. After a backoff time a
+ * single probe RPC is sent to it, which either brings it back or ejects it
+ * for twice as long. When all endpoints are ejected, {@link #createConnection}
+ * fails fast with a {@link CircuitOpenException}, and RPCs fail with
+ * {@code CIRCUIT_OPEN}.
+ * <p>
+ * The {@link #close()} method must explicitly be called when the client has
+ * finished using the factory, it closes the factories of all endpoints.
+ *
+ * @author Shardul Deo
+ */
+public class LoadBalancingRpcConnectionFactory implements RpcConnectionFactory,
+    Closeable {
+
+  /**
+   * How the endpoint for an RPC is chosen.
+   */
+  public enum Policy {
+
+    /**
+     * Each endpoint in turn.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * The endpoint with the fewest RPCs in progress.
+     */
+    LEAST_OUTSTANDING,
+
+    /**
+     * The cheaper of two endpoints chosen at random, where the cost of an
+     * endpoint is its peak EWMA latency times the number of RPCs in progress
+     * plus one. Choosing between two random endpoints, instead of always
+     * choosing the cheapest one, keeps all clients from sending their RPCs to
+     * the same endpoint at once.
+     */
+    PEAK_EWMA
+  }
+
+  // Latency outliers must also be at least this much slower than the others
+  private static final long MIN_OUTLIER_EXCESS_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(1);
+  // Consecutive slow responses that make an endpoint a latency outlier
+  static final int OUTLIER_RESPONSES = 3;
+
+  private final List<Endpoint> endpoints;
+  private final Policy policy;
+  private final double outlierLatencyFactor;
+  private final AtomicInteger openBreakers = new AtomicInteger();
+  private final AtomicInteger nextIndex = new AtomicInteger();
+  private final Random random = new Random();
+
+  /**
+   * Create a builder for a factory that balances RPCs over the servers that
+   * the given factories connect to.
+   */
+  public static Builder newBuilder(
+      List<? extends RpcConnectionFactory> factories) {
+    return new Builder(factories);
+  }
+
+  private LoadBalancingRpcConnectionFactory(Builder builder) {
+    int maxOpenBreakers = Math.max(1,
+        builder.factories.size() * builder.maxEjectionPercent / 100);
+    List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    for (RpcConnectionFactory factory : builder.factories) {
+      endpoints.add(new Endpoint(factory,
+          TimeUnit.MILLISECONDS.toNanos(builder.decayTimeMillis),
+          new CircuitBreaker(builder.failureThreshold,
+              TimeUnit.MILLISECONDS.toNanos(builder.ejectionTimeMillis),
+              TimeUnit.MILLISECONDS.toNanos(builder.maxEjectionTimeMillis),
+              openBreakers, maxOpenBreakers)));
+    }
+    this.endpoints = Collections.unmodifiableList(endpoints);
+    this.policy = builder.policy;
+    this.outlierLatencyFactor = builder.outlierLatencyFactor;
+  }
+
+  /**
+   * Choose an endpoint and create a connection to it. The connection counts
+   * as an RPC in progress on the endpoint until it is closed.
+   *
+   * @throws CircuitOpenException If all endpoints are ejected.
+   */
+  @Override
+  public Connection createConnection() throws UnknownHostException,
+      IOException {
+    // Another thread may take the last probe of the chosen endpoint
+    for (int attempt = 0; attempt < endpoints.size(); attempt++) {
+      long now = System.nanoTime();
+      Endpoint endpoint = chooseEndpoint(now);
+      if (endpoint == null) {
+        break;
+      }
+      Permit permit = endpoint.breaker.acquire(now);
+      if (permit != Permit.DENIED) {
+        return createConnection(endpoint, permit);
+      }
+    }
+    throw new CircuitOpenException("All endpoints are ejected: " + this);
+  }
+
+  Connection createConnection(Endpoint endpoint, Permit permit)
+      throws IOException {
+    endpoint.inFlight.incrementAndGet();
+    Connection connection;
+    try {
+      connection = endpoint.factory.createConnection();
+    } catch (IOException e) {
+      callCompleted(endpoint, permit, -1, true /* failed */);
+      throw e;
+    } catch (RuntimeException e) {
+      callCompleted(endpoint, permit, -1, true /* failed */);
+      throw e;
+    }
+    return new BalancedConnection(endpoint, permit, connection);
+  }
+
+  /**
+   * @param latencyNanos Response time, or -1 if there was no response.
+   */
+  private void callCompleted(Endpoint endpoint, Permit permit,
+      long latencyNanos, boolean failed) {
+    long now = System.nanoTime();
+    endpoint.callCompleted(latencyNanos, failed, now);
+    endpoint.breaker.onResult(permit, failed, now);
+    if (latencyNanos >= 0) {
+      checkOutlier(endpoint, latencyNanos, now);
+    }
+  }
+
+  /**
+   * Eject the endpoint once enough of its responses in a row were far slower
+   * than the (lower) median latency of the other endpoints. Its own peak EWMA
+   * latency is not used, since it jumps up with a single slow response.
+   */
+  private void checkOutlier(Endpoint endpoint, long latencyNanos,
+      long nowNanos) {
+    if (outlierLatencyFactor <= 0 || endpoints.size() < 2) {
+      return;
+    }
+    // Only compare with endpoints that have responded
+    double[] others = new double[endpoints.size() - 1];
+    int count = 0;
+    for (Endpoint other : endpoints) {
+      double ewma = other.getEwma(nowNanos);
+      if (other != endpoint && ewma > 0) {
+        others[count++] = ewma;
+      }
+    }
+    if (count == 0) {
+      return;
+    }
+    Arrays.sort(others, 0, count);
+    double median = others[(count - 1) / 2];
+    if (latencyNanos <= median * outlierLatencyFactor
+        || latencyNanos - median < MIN_OUTLIER_EXCESS_NANOS) {
+      endpoint.slowResponses.set(0);
+    } else if (endpoint.slowResponses.incrementAndGet() >= OUTLIER_RESPONSES) {
+      endpoint.slowResponses.set(0);
+      endpoint.breaker.eject(nowNanos);
+    }
+  }
+
+  /**
+   * @return The endpoint the policy chooses among the endpoints that aren't
+   *         ejected, or null if all of them are.
+   */
+  Endpoint chooseEndpoint(long nowNanos) {
+    List<Endpoint> candidates = endpoints;
+    if (openBreakers.get() > 0) {
+      candidates = new ArrayList<Endpoint>(endpoints.size());
+      for (Endpoint endpoint : endpoints) {
+        if (endpoint.breaker.isAvailable(nowNanos)) {
+          candidates.add(endpoint);
+        }
+      }
+      if (candidates.isEmpty()) {
+        return null;
+      }
+    }
+    switch (policy) {
+      case LEAST_OUTSTANDING:
+        return chooseLeastOutstanding(candidates);
+      case PEAK_EWMA:
+        return choosePeakEwma(candidates, nowNanos);
+      default:
+        return candidates.get(nextIndex(candidates.size()));
+    }
+  }
+
+  private int nextIndex(int size) {
+    return (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % size;
+  }
+
+  private Endpoint chooseLeastOutstanding(List<Endpoint> candidates) {
+    // Start at a different endpoint each time to spread ties evenly
+    int size = candidates.size();
+    int start = nextIndex(size);
+    Endpoint best = null;
+    for (int i = 0; i < size; i++) {
+      Endpoint endpoint = candidates.get((start + i) % size);
+      if (best == null
+          || endpoint.getInFlightRequests() < best.getInFlightRequests()) {
+        best = endpoint;
+      }
+    }
+    return best;
+  }
+
+  private Endpoint choosePeakEwma(List<Endpoint> candidates, long nowNanos) {
+    int size = candidates.size();
+    if (size == 1) {
+      return candidates.get(0);
+    }
+    int first = random.nextInt(size);
+    int second = random.nextInt(size - 1);
+    if (second >= first) {
+      second++;
+    }
+    Endpoint a = candidates.get(first);
+    Endpoint b = candidates.get(second);
+    return a.getCost(nowNanos) <= b.getCost(nowNanos) ? a : b;
+  }
+
+  /**
+   * @return The endpoints RPCs are balanced over, in the order they were
+   *         given.
+   */
+  public List<Endpoint> getEndpoints() {
+    return endpoints;
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Close the factories of all endpoints that can be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    IOException error = null;
+    for (Endpoint endpoint : endpoints) {
+      if (endpoint.factory instanceof Closeable) {
+        try {
+          ((Closeable) endpoint.factory).close();
+        } catch (IOException e) {
+          error = e;
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "balanced " + policy + " " + endpoints;
+  }
+
+  /**
+   * Whether an error returned by a server means that something is wrong with
+   * the server, rather than with the request.
+   */
+  static boolean isServerError(ErrorReason reason) {
+    switch (reason) {
+      case SERVICE_NOT_FOUND:
+      case METHOD_NOT_FOUND:
+      case RPC_ERROR:
+      case IO_ERROR:
+      case SERVER_OVERLOADED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * A server that RPCs are balanced over, with the statistics used to choose
+   * between servers.
+   */
+  public static final class Endpoint {
+
+    // Cost of an endpoint that has RPCs in progress but has never responded
+    private static final double UNMEASURED_PENALTY_NANOS =
+        TimeUnit.SECONDS.toNanos(1);
+
+    private final RpcConnectionFactory factory;
+    private final long decayNanos;
+    final CircuitBreaker breaker;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    // Consecutive responses far slower than the other endpoints
+    private final AtomicInteger slowResponses = new AtomicInteger();
+
+    // Guarded by this
+    private double ewmaNanos = 0;
+    private long lastUpdateNanos = System.nanoTime();
+
+    Endpoint(RpcConnectionFactory factory, long decayNanos,
+        CircuitBreaker breaker) {
+      this.factory = factory;
+      this.decayNanos = decayNanos;
+      this.breaker = breaker;
+    }
+
+    public RpcConnectionFactory getConnectionFactory() {
+      return factory;
+    }
+
+    /**
+     * @return Number of RPCs in progress.
+     */
+    public int getInFlightRequests() {
+      return inFlight.get();
+    }
+
+    /**
+     * @return Number of completed RPCs, including failed ones.
+     */
+    public long getCallCount() {
+      return calls.get();
+    }
+
+    /**
+     * @return Number of RPCs that failed because of an I/O error or a server
+     *         error.
+     */
+    public long getFailureCount() {
+      return failures.get();
+    }
+
+    /**
+     * @return Peak EWMA latency, decayed to the current time.
+     */
+    public long getLatencyNanos() {
+      return (long) getEwma(System.nanoTime());
+    }
+
+    /**
+     * @return Whether RPCs are currently not sent to this endpoint, apart from
+     *         probes.
+     */
+    public boolean isEjected() {
+      return breaker.getState() != CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * @return Number of times this endpoint was ejected since it last was
+     *         healthy for a while.
+     */
+    public int getEjectionCount() {
+      return breaker.getEjections();
+    }
+
+    void callCompleted(long latencyNanos, boolean failed, long nowNanos) {
+      inFlight.decrementAndGet();
+      calls.incrementAndGet();
+      if (failed) {
+        failures.incrementAndGet();
+      }
+      if (latencyNanos >= 0) {
+        recordLatency(latencyNanos, nowNanos);
+      }
+    }
+
+    synchronized void recordLatency(long latencyNanos, long nowNanos) {
+      if (latencyNanos > ewmaNanos) {
+        // Peak: slow responses count in full right away
+        ewmaNanos = latencyNanos;
+        lastUpdateNanos = nowNanos;
+        return;
+      }
+      double weight = decay(nowNanos);
+      ewmaNanos = ewmaNanos * weight + latencyNanos * (1 - weight);
+    }
+
+    synchronized double getEwma(long nowNanos) {
+      // Decays towards 0 while there are no responses, so that an endpoint
+      // that was slow gets RPCs again to measure whether it still is
+      ewmaNanos *= decay(nowNanos);
+      return ewmaNanos;
+    }
+
+    /**
+     * @return Weight of the current average given the time since the last
+     *         update, which becomes the time of the last update.
+     */
+    private double decay(long nowNanos) {
+      long elapsed = Math.max(0, nowNanos - lastUpdateNanos);
+      lastUpdateNanos = Math.max(lastUpdateNanos, nowNanos);
+      return Math.exp(-(double) elapsed / decayNanos);
+    }
+
+    double getCost(long nowNanos) {
+      double ewma = getEwma(nowNanos);
+      int outstanding = inFlight.get();
+      if (ewma == 0 && outstanding > 0) {
+        return UNMEASURED_PENALTY_NANOS + outstanding;
+      }
+      return ewma * (outstanding + 1);
+    }
+
+    @Override
+    public String toString() {
+      return factory.toString();
+    }
+  }
+
+  /**
+   * Connection for a single RPC to an endpoint, which updates the endpoint's
+   * statistics when it is closed.
+   */
+  private class BalancedConnection implements CancellableConnection {
+
+    private final Endpoint endpoint;
+    private final Permit permit;
+    private final Connection connection;
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile long latencyNanos = -1;
+    private volatile boolean failed = false;
+
+    BalancedConnection(Endpoint endpoint, Permit permit,
+        Connection connection) {
+      this.endpoint = endpoint;
+      this.permit = permit;
+      this.connection = connection;
+    }
+
+    @Override
+    public void sendProtoMessage(MessageLite message) throws IOException {
+      try {
+        connection.sendProtoMessage(message);
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public void receiveProtoMessage(MessageLite.Builder messageBuilder)
+        throws IOException {
+      try {
+        connection.receiveProtoMessage(messageBuilder);
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+      latencyNanos = System.nanoTime() - startNanos;
+      if (messageBuilder instanceof SocketRpcProtos.Response.Builder) {
+        SocketRpcProtos.Response.Builder response =
+            (SocketRpcProtos.Response.Builder) messageBuilder;
+        if (response.hasErrorReason()
+            && isServerError(response.getErrorReason())) {
+          failed = true;
+        }
+      }
+    }
+
+    @Override
+    public void cancel() {
+      RpcChannelImpl.cancel(connection);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed.compareAndSet(false, true)) {
+        try {
+          connection.close();
+        } finally {
+          callCompleted(endpoint, permit, latencyNanos, failed);
+        }
+      }
+    }
+
+    @Override
+    public boolean isClosed() {
+      return connection.isClosed();
+    }
+  }
+
+  /**
+   * Builder for {@link LoadBalancingRpcConnectionFactory}.
+   */
+  public static class Builder {
+
+    private final List<RpcConnectionFactory> factories;
+    private Policy policy = Policy.PEAK_EWMA;
+    private long decayTimeMillis = 10000;
+    private int failureThreshold = 5;
+    private double outlierLatencyFactor = 5;
+    private long ejectionTimeMillis = 10000;
+    private long maxEjectionTimeMillis = 300000;
+    private int maxEjectionPercent = 50;
+
+    private Builder(List<? extends RpcConnectionFactory> factories) {
+      if (factories.isEmpty()) {
+        throw new IllegalArgumentException("No endpoints");
+      }
+      this.factories = new ArrayList<RpcConnectionFactory>(factories);
+    }
+
+    /**
+     * How to choose the endpoint for each RPC. Defaults to
+     * {@link Policy#PEAK_EWMA}.
+     */
+    public Builder setPolicy(Policy policy) {
+      if (policy == null) {
+        throw new NullPointerException("policy");
+      }
+      this.policy = policy;
+      return this;
+    }
+
+    /**
+     * Time constant of the peak EWMA latency: the weight of a response time
+     * falls to 1/e after this long. Lower values forget slow responses
+     * sooner. Defaults to 10 seconds.
+     */
+    public Builder setDecayTimeMillis(long decayTimeMillis) {
+      if (decayTimeMillis <= 0) {
+        throw new IllegalArgumentException(
+            "decayTimeMillis must be positive");
+      }
+      this.decayTimeMillis = decayTimeMillis;
+      return this;
+    }
+
+    /**
+     * Number of consecutive RPCs to an endpoint that fail with an I/O error or
+     * a server error (e.g. {@code RPC_ERROR}) after which the endpoint is
+     * ejected. A value <=0 never ejects endpoints for failing. Defaults to 5.
+     */
+    public Builder setFailureThreshold(int failureThreshold) {
+      this.failureThreshold = failureThreshold;
+      return this;
+    }
+
+    /**
+     * Eject an endpoint when 3 of its responses in a row took more than this
+     * many times the median latency of the other endpoints. A value <=0 never
+     * ejects endpoints for being slow. Defaults to 5.
+     */
+    public Builder setOutlierLatencyFactor(double outlierLatencyFactor) {
+      this.outlierLatencyFactor = outlierLatencyFactor;
+      return this;
+    }
+
+    /**
+     * Time an endpoint is ejected for the first time, doubled every time it
+     * is ejected again without having been healthy for a while. Defaults to
+     * 10 seconds.
+     */
+    public Builder setEjectionTimeMillis(long ejectionTimeMillis) {
+      if (ejectionTimeMillis <= 0) {
+        throw new IllegalArgumentException(
+            "ejectionTimeMillis must be positive");
+      }
+      this.ejectionTimeMillis = ejectionTimeMillis;
+      return this;
+    }
+
+    /**
+     * Longest time an endpoint is ejected for. Defaults to 5 minutes.
+     */
+    public Builder setMaxEjectionTimeMillis(long maxEjectionTimeMillis) {
+      this.maxEjectionTimeMillis = maxEjectionTimeMillis;
+      return this;
+    }
+
+    /**
+     * Maximum percentage of endpoints ejected at the same time, though one
+     * endpoint can always be ejected. Defaults to 50.
+     */
+    public Builder setMaxEjectionPercent(int maxEjectionPercent) {
+      if (maxEjectionPercent < 0 || maxEjectionPercent > 100) {
+        throw new IllegalArgumentException(
+            "maxEjectionPercent must be between 0 and 100");
+      }
+      this.maxEjectionPercent = maxEjectionPercent;
+      return this;
+    }
+
+    public LoadBalancingRpcConnectionFactory build() {
+      return new LoadBalancingRpcConnectionFactory(this);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+
+/**
+ * Counters and latency histogram of a single method, kept by
+ * {@link RpcMetrics}.
+ *
+ * @author Shardul Deo
+ */
+class MethodMetrics {
+
+  // Counter indexes, followed by one error counter per ErrorReason number
+  private static final int REQUESTS = 0;
+  private static final int ERRORS = 1;
+  private static final int REQUEST_BYTES = 2;
+  private static final int RESPONSE_BYTES = 3;
+  private static final int FIRST_ERROR_REASON = 4;
+
+  private final String methodName;
+  private final StripedCounters counters =
+      new StripedCounters(FIRST_ERROR_REASON + maxErrorReasonNumber() + 1);
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  MethodMetrics(String methodName) {
+    this.methodName = methodName;
+  }
+
+  private static int maxErrorReasonNumber() {
+    int max = 0;
+    for (ErrorReason reason : ErrorReason.values()) {
+      max = Math.max(max, reason.getNumber());
+    }
+    return max;
+  }
+
+  /**
+   * Record a completed call.
+   *
+   * @param errorReason Why the call failed, or null if it succeeded.
+   * @param requestBytes Size of the request message.
+   * @param responseBytes Size of the response message, 0 if there is none.
+   */
+  void record(long latencyNanos, ErrorReason errorReason, long requestBytes,
+      long responseBytes) {
+    counters.add(REQUESTS, 1);
+    if (errorReason != null) {
+      counters.add(ERRORS, 1);
+      counters.add(FIRST_ERROR_REASON + errorReason.getNumber(), 1);
+    }
+    counters.add(REQUEST_BYTES, requestBytes);
+    counters.add(RESPONSE_BYTES, responseBytes);
+    latency.record(latencyNanos);
+  }
+
+  void reset() {
+    counters.reset();
+    latency.reset();
+  }
+
+  RpcMetrics.MethodSnapshot getSnapshot() {
+    Map<ErrorReason, Long> errorCounts =
+        new EnumMap<ErrorReason, Long>(ErrorReason.class);
+    for (ErrorReason reason : ErrorReason.values()) {
+      long count = counters.sum(FIRST_ERROR_REASON + reason.getNumber());
+      if (count > 0) {
+        errorCounts.put(reason, count);
+      }
+    }
+    return new RpcMetrics.MethodSnapshot(methodName, counters.sum(REQUESTS),
+        counters.sum(ERRORS), errorCounts, counters.sum(REQUEST_BYTES),
+        counters.sum(RESPONSE_BYTES), latency.getSnapshot());
+  }
+}
@@ -0,0 +1,170 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.beans.ConstructorProperties;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.googlecode.protobuf.socketrpc.RpcMetrics.MethodSnapshot;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+
+/**
+ * Metrics of one method as published over JMX, with latencies in
+ * microseconds. See {@link RpcMetrics.MethodSnapshot} for all the recorded
+ * data.
+ *
+ * @author Shardul Deo
+ */
+public class MethodStatistics {
+
+  private final String methodName;
+  private final long requestCount;
+  private final long errorCount;
+  private final Map<String, Long> errorCounts;
+  private final long requestBytes;
+  private final long responseBytes;
+  private final double requestsPerSecond;
+  private final double meanMicros;
+  private final long p50Micros;
+  private final long p90Micros;
+  private final long p99Micros;
+  private final long p999Micros;
+  private final long maxMicros;
+
+  @ConstructorProperties({ "methodName", "requestCount", "errorCount",
+      "errorCounts", "requestBytes", "responseBytes", "requestsPerSecond",
+      "meanMicros", "p50Micros", "p90Micros", "p99Micros", "p999Micros",
+      "maxMicros" })
+  public MethodStatistics(String methodName, long requestCount,
+      long errorCount, Map<String, Long> errorCounts, long requestBytes,
+      long responseBytes, double requestsPerSecond, double meanMicros,
+      long p50Micros, long p90Micros, long p99Micros, long p999Micros,
+      long maxMicros) {
+    this.methodName = methodName;
+    this.requestCount = requestCount;
+    this.errorCount = errorCount;
+    this.errorCounts = Collections.unmodifiableMap(
+        new TreeMap<String, Long>(errorCounts));
+    this.requestBytes = requestBytes;
+    this.responseBytes = responseBytes;
+    this.requestsPerSecond = requestsPerSecond;
+    this.meanMicros = meanMicros;
+    this.p50Micros = p50Micros;
+    this.p90Micros = p90Micros;
+    this.p99Micros = p99Micros;
+    this.p999Micros = p999Micros;
+    this.maxMicros = maxMicros;
+  }
+
+  /**
+   * Create the statistics of a method from its snapshot.
+   */
+  static MethodStatistics of(MethodSnapshot snapshot,
+      double requestsPerSecond) {
+    Map<String, Long> errorCounts = new TreeMap<String, Long>();
+    for (Map.Entry<ErrorReason, Long> entry
+        : snapshot.getErrorCounts().entrySet()) {
+      errorCounts.put(entry.getKey().name(), entry.getValue());
+    }
+    LatencyHistogram.Snapshot latency = snapshot.getLatency();
+    return new MethodStatistics(snapshot.getMethodName(),
+        snapshot.getRequestCount(), snapshot.getErrorCount(), errorCounts,
+        snapshot.getRequestBytes(), snapshot.getResponseBytes(),
+        requestsPerSecond, latency.getMean() / 1000,
+        toMicros(latency.getValueAtPercentile(50)),
+        toMicros(latency.getValueAtPercentile(90)),
+        toMicros(latency.getValueAtPercentile(99)),
+        toMicros(latency.getValueAtPercentile(99.9)),
+        toMicros(latency.getMax()));
+  }
+
+  private static long toMicros(long nanos) {
+    return nanos / 1000;
+  }
+
+  public String getMethodName() {
+    return methodName;
+  }
+
+  public long getRequestCount() {
+    return requestCount;
+  }
+
+  public long getErrorCount() {
+    return errorCount;
+  }
+
+  /**
+   * @return Number of failed calls by {@link ErrorReason} name.
+   */
+  public Map<String, Long> getErrorCounts() {
+    return errorCounts;
+  }
+
+  public long getRequestBytes() {
+    return requestBytes;
+  }
+
+  public long getResponseBytes() {
+    return responseBytes;
+  }
+
+  /**
+   * @return Calls per second over the last minute or so, or since the
+   *         statistics were first published if that is more recent.
+   */
+  public double getRequestsPerSecond() {
+    return requestsPerSecond;
+  }
+
+  public double getMeanMicros() {
+    return meanMicros;
+  }
+
+  public long getP50Micros() {
+    return p50Micros;
+  }
+
+  public long getP90Micros() {
+    return p90Micros;
+  }
+
+  public long getP99Micros() {
+    return p99Micros;
+  }
+
+  public long getP999Micros() {
+    return p999Micros;
+  }
+
+  public long getMaxMicros() {
+    return maxMicros;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: requests=%d errors=%d rate=%.1f/s p50=%dus "
+        + "p99=%dus max=%dus", methodName, requestCount, errorCount,
+        requestsPerSecond, p50Micros, p99Micros, maxMicros);
+  }
+}
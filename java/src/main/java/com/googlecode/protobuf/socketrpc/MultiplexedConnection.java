@@ -0,0 +1,239 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.MessageLite.Builder;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+
+/**
+ * Client-side wrapper for a {@link Connection} over which many RPCs can be in
+ * progress at the same time. Every request sent is given a unique request id
+ * and a reader thread matches each response received to its request using the
+ * id, so responses can be received in any order.
+ * <p>
+ * Each RPC is done using its own {@link Connection} created using
+ * {@link #newCall()}. Canceling an RPC sends a cancel request with its id, and
+ * its response is dropped if the server sends one anyway.
+ *
+ * @author Shardul Deo
+ */
+class MultiplexedConnection implements Runnable {
+
+  private static final Logger LOG =
+      Logger.getLogger(MultiplexedConnection.class.getName());
+
+  final Connection inner;
+
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final AtomicLong lastRequestId = new AtomicLong();
+  private final ConcurrentMap<Long, Call> pendingCalls =
+      new ConcurrentHashMap<Long, Call>();
+  private volatile IOException failure = null;
+
+  MultiplexedConnection(Connection connection) {
+    this.inner = connection;
+  }
+
+  /**
+   * Start the thread that reads responses.
+   */
+  void start() {
+    Thread reader = new Thread(this, "MultiplexedConnection-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Create a {@link Connection} for doing a single RPC over this connection.
+   */
+  Connection newCall() {
+    return new Call();
+  }
+
+  /**
+   * Reads responses and hands them to the calls waiting for them.
+   */
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        SocketRpcProtos.Response.Builder builder =
+            SocketRpcProtos.Response.newBuilder();
+        inner.receiveProtoMessage(builder);
+        if (!builder.hasRequestId()) {
+          // Either the server closed the connection or it doesn't support
+          // request ids, in both cases there is no way to continue.
+          throw new IOException("Connection closed or server does not support"
+              + " multiplexed connections");
+        }
+        Call call = pendingCalls.remove(builder.getRequestId());
+        if (call != null) {
+          call.complete(builder.build(), null);
+        }
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Close the connection and fail all pending calls with the given error.
+   */
+  private void fail(IOException e) {
+    if (failure == null) {
+      failure = e;
+      if (!inner.isClosed()) {
+        LOG.log(Level.WARNING, "Closing multiplexed connection", e);
+      }
+    }
+    close();
+    for (Call call : pendingCalls.values()) {
+      pendingCalls.remove(call.requestId);
+      call.complete(null, failure);
+    }
+  }
+
+  void close() {
+    try {
+      inner.close();
+    } catch (IOException e) {
+      // It's ok
+    }
+  }
+
+  boolean isClosed() {
+    return failure != null || inner.isClosed();
+  }
+
+  /**
+   * A single RPC over the multiplexed connection.
+   */
+  private class Call implements CancellableConnection {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile long requestId = 0;
+    private volatile SocketRpcProtos.Response response = null;
+    private volatile IOException error = null;
+
+    private void complete(SocketRpcProtos.Response response,
+        IOException error) {
+      this.response = response;
+      this.error = error;
+      done.countDown();
+    }
+
+    @Override
+    public void sendProtoMessage(MessageLite message) throws IOException {
+      if (requestId != 0) {
+        throw new IllegalStateException("Request already sent");
+      }
+      MessageLite request;
+      if (message instanceof RequestEnvelope) {
+        requestId = lastRequestId.incrementAndGet();
+        request = ((RequestEnvelope) message).withRequestId(requestId);
+      } else if (message instanceof SocketRpcProtos.Request) {
+        requestId = lastRequestId.incrementAndGet();
+        request = ((SocketRpcProtos.Request) message).toBuilder()
+            .setRequestId(requestId).build();
+      } else {
+        throw new IllegalArgumentException(
+            "Only RPC requests can be sent over a multiplexed connection");
+      }
+
+      // Register before sending, the response could come back right away
+      pendingCalls.put(requestId, this);
+      if (failure != null) {
+        pendingCalls.remove(requestId);
+        throw new IOException("Connection failed", failure);
+      }
+      writeLock.lock();
+      try {
+        inner.sendProtoMessage(request);
+      } catch (IOException e) {
+        // Part of the request might have been written, connection is unusable
+        fail(e);
+        throw e;
+      } finally {
+        writeLock.unlock();
+      }
+    }
+
+    @Override
+    public void receiveProtoMessage(Builder messageBuilder)
+        throws IOException {
+      if (requestId == 0) {
+        throw new IllegalStateException("Request not sent");
+      }
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        pendingCalls.remove(requestId);
+        throw new IOException("Interrupted while waiting for response", e);
+      }
+      if (error != null) {
+        throw new IOException("Connection failed", error);
+      }
+      if (messageBuilder instanceof SocketRpcProtos.Response.Builder) {
+        ((SocketRpcProtos.Response.Builder) messageBuilder).mergeFrom(response);
+      } else {
+        messageBuilder.mergeFrom(response.toByteString());
+      }
+    }
+
+    @Override
+    public void cancel() {
+      if (requestId == 0 || pendingCalls.remove(requestId) == null) {
+        // Not sent yet or already completed
+        return;
+      }
+      writeLock.lock();
+      try {
+        inner.sendProtoMessage(RpcChannelImpl.createCancelRequest(requestId));
+      } catch (IOException e) {
+        fail(e);
+      } finally {
+        writeLock.unlock();
+      }
+      complete(null, new IOException("Call canceled"));
+    }
+
+    @Override
+    public void close() {
+      // Late response, if any, is dropped
+      pendingCalls.remove(requestId);
+    }
+
+    @Override
+    public boolean isClosed() {
+      return MultiplexedConnection.this.isClosed();
+    }
+  }
+}
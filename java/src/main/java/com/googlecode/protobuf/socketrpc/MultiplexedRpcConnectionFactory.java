@@ -0,0 +1,123 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An {@link RpcConnectionFactory} that uses a single {@link Connection} to
+ * send and receive multiple RPCs at the same time. Unlike
+ * {@link PersistentRpcConnectionFactory}, RPCs are not sent serially. Each
+ * request is tagged with a request id that the server copies into the
+ * response, so a slow RPC doesn't hold up other RPCs and responses can be
+ * received in any order.
+ * <p>
+ * The server must be able to handle multiple requests from the same
+ * connection concurrently and must return request ids, i.e. it must use either
+ * {@link SocketRpcConnectionFactories#createNioServerRpcConnectionFactory(int)}
+ * or {@link PersistentRpcConnectionFactory#createServerInstance}.
+ * <p>
+ * If the connection fails, pending RPCs fail with an {@code IO_ERROR} and a new
+ * connection is created for the next RPC. The {@link #close()} method must
+ * explicitly be called when the client has finished using the factory.
+ * <p>
+ * If used with {@link SocketRpcConnectionFactories}, only delimited connection
+ * factories can be used.
+ *
+ * @author Shardul Deo
+ */
+public class MultiplexedRpcConnectionFactory implements RpcConnectionFactory,
+    Closeable {
+
+  private final RpcConnectionFactory factory;
+  private volatile MultiplexedConnection connection = null;
+  private volatile boolean closed = false;
+
+  // Guards connecting and closing
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Create a client-side multiplexed {@link RpcConnectionFactory} which uses
+   * the given factory to create the shared {@link Connection}.
+   */
+  public static MultiplexedRpcConnectionFactory createInstance(
+      RpcConnectionFactory factory) {
+    return new MultiplexedRpcConnectionFactory(factory);
+  }
+
+  private MultiplexedRpcConnectionFactory(RpcConnectionFactory factory) {
+    this.factory = factory;
+  }
+
+  @Override
+  public Connection createConnection() throws UnknownHostException,
+      IOException {
+    MultiplexedConnection local = connection;
+    if (local == null || local.isClosed()) {
+      local = initConnection();
+    }
+    return local.newCall();
+  }
+
+  private MultiplexedConnection initConnection()
+      throws UnknownHostException, IOException {
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IOException("Connection factory closed");
+      }
+      MultiplexedConnection local = connection;
+      if (local == null || local.isClosed()) {
+        local = new MultiplexedConnection(factory.createConnection());
+        local.start();
+        connection = local;
+      }
+      return local;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Closes the connection used by this factory. Any RPCs in progress fail.
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      closed = true;
+      MultiplexedConnection local = connection;
+      if (local != null) {
+        local.close();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "multiplexed " + factory;
+  }
+}
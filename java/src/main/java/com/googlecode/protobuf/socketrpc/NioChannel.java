@@ -0,0 +1,231 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Non-blocking {@link SocketChannel} that is read and written by a
+ * {@link SelectorThread} using the same delimited framing as
+ * {@link SocketConnection}. i.e. Each frame is a varint length followed by
+ * that many bytes of protocol buffer data.
+ * <p>
+ * Frames can be written from any thread using
+ * {@link #writeFrame(MessageLite)}, they are queued and flushed by the
+ * selector thread.
+ *
+ * @author Shardul Deo
+ */
+class NioChannel {
+
+  /**
+   * Limit on the size of a single frame, same as the protobuf default size
+   * limit.
+   */
+  static final int MAX_FRAME_SIZE = 64 << 20;
+
+  /**
+   * Handles events of a channel. Methods are called in the selector thread so
+   * they should not block.
+   */
+  interface FrameHandler {
+
+    /**
+     * Called when a complete frame has been read from the channel.
+     */
+    void frameReceived(NioChannel channel, byte[] frame);
+
+    /**
+     * Called once when the channel is closed, either by the peer or locally.
+     */
+    void channelClosed(NioChannel channel);
+  }
+
+  final SocketChannel channel;
+  private final SelectorThread selectorThread;
+  private final FrameHandler handler;
+
+  private final Queue<ByteBuffer> writeQueue =
+      new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        flush();
+      } catch (IOException e) {
+        close();
+      }
+    }
+  };
+
+  // Only accessed from the selector thread
+  private SelectionKey key = null;
+  private int lengthShift = 0;
+  private int length = 0;
+  private byte[] frame = null;
+  private int framePosition = 0;
+
+  NioChannel(SocketChannel channel, SelectorThread selectorThread,
+      FrameHandler handler) throws IOException {
+    this.channel = channel;
+    this.selectorThread = selectorThread;
+    this.handler = handler;
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+  }
+
+  /**
+   * Called by the selector thread once the channel is registered with it.
+   */
+  void registered(SelectionKey key) throws IOException {
+    this.key = key;
+    if (!writeQueue.isEmpty()) {
+      flush();
+    }
+  }
+
+  /**
+   * Queue the given message to be written as a delimited frame. Can be called
+   * from any thread.
+   */
+  void writeFrame(MessageLite message) throws IOException {
+    if (isClosed()) {
+      throw new IOException("Channel closed: " + this);
+    }
+    int size = message.getSerializedSize();
+    byte[] bytes = new byte[
+        CodedOutputStream.computeRawVarint32Size(size) + size];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeRawVarint32(size);
+    message.writeTo(out);
+    out.checkNoSpaceLeft();
+
+    writeQueue.add(ByteBuffer.wrap(bytes));
+    if (flushScheduled.compareAndSet(false, true)) {
+      selectorThread.execute(flushTask);
+    }
+  }
+
+  /**
+   * Write as much queued data as the socket accepts. If some data is left,
+   * the selector thread will continue when the socket becomes writable.
+   */
+  void flush() throws IOException {
+    // Reset flag first so writes queued while flushing schedule another flush
+    flushScheduled.set(false);
+    if (key == null || !key.isValid()) {
+      return;
+    }
+    ByteBuffer buffer;
+    while ((buffer = writeQueue.peek()) != null) {
+      channel.write(buffer);
+      if (buffer.hasRemaining()) {
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        return;
+      }
+      writeQueue.poll();
+    }
+    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+  }
+
+  /**
+   * Read available data from the socket, using the given buffer, and pass any
+   * complete frames to the handler.
+   */
+  void read(ByteBuffer buffer) throws IOException {
+    buffer.clear();
+    if (channel.read(buffer) < 0) {
+      // Peer closed the connection
+      close();
+      return;
+    }
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      if (frame == null) {
+        readLength(buffer.get());
+      }
+      if (frame != null) {
+        int count = Math.min(buffer.remaining(),
+            frame.length - framePosition);
+        buffer.get(frame, framePosition, count);
+        framePosition += count;
+        if (framePosition == frame.length) {
+          byte[] complete = frame;
+          frame = null;
+          handler.frameReceived(this, complete);
+        }
+      }
+    }
+  }
+
+  private void readLength(byte b) throws IOException {
+    length |= (b & 0x7f) << lengthShift;
+    if ((b & 0x80) != 0) {
+      lengthShift += 7;
+      if (lengthShift >= 35) {
+        throw new IOException("Malformed frame length");
+      }
+      return;
+    }
+    if (length < 0 || length > MAX_FRAME_SIZE) {
+      throw new IOException("Frame too large: " + length);
+    }
+    frame = new byte[length];
+    framePosition = 0;
+    length = 0;
+    lengthShift = 0;
+  }
+
+  /**
+   * Close the channel. Can be called from any thread.
+   */
+  void close() {
+    if (closed.compareAndSet(false, true)) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // It's ok
+      }
+      writeQueue.clear();
+      handler.channelClosed(this);
+    }
+  }
+
+  boolean isClosed() {
+    return closed.get();
+  }
+
+  @Override
+  public String toString() {
+    return "NioChannel:" + channel.socket().getRemoteSocketAddress();
+  }
+}
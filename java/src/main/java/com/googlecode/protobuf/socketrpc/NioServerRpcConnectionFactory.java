@@ -0,0 +1,279 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.MessageLite.Builder;
+import com.googlecode.protobuf.socketrpc.NioChannel.FrameHandler;
+import com.googlecode.protobuf.socketrpc.SelectorThread.AcceptHandler;
+
+/**
+ * {@link ServerRpcConnectionFactory} that uses non-blocking sockets and a small
+ * number of selector threads to serve any number of client connections. Use
+ * {@link SocketRpcConnectionFactories} to create instances.
+ * <p>
+ * Requests are read in the selector threads and only complete requests are
+ * returned by {@link #createConnection()}, so the threads handling them never
+ * block on the network. The {@link Connection} returned can be used to send
+ * the response to that one request, after which it should be closed. Closing
+ * it leaves the client's socket open so that the client can send further
+ * requests over it, unless no response was sent in which case the socket is
+ * closed. Since every request is handled separately, clients can also send
+ * multiple requests over the same socket without waiting for responses.
+ * Requests being in memory also lets {@link RpcServer} order queued ones by
+ * their deadlines.
+ * <p>
+ * Only the delimited communication mode is supported, and clients can use
+ * either the regular or persistent delimited connection factories.
+ *
+ * @author Shardul Deo
+ */
+class NioServerRpcConnectionFactory implements ServerRpcConnectionFactory {
+
+  private static final Logger LOG =
+      Logger.getLogger(NioServerRpcConnectionFactory.class.getName());
+
+  // Queued after the factory is closed to wake up waiting server threads
+  private static final Connection CLOSED = new RequestConnection(null, null);
+
+  private final int port;
+  private final int backlog;
+  private final InetAddress bindAddr;
+  private final int ioThreads;
+
+  private final BlockingQueue<Connection> requests =
+      new LinkedBlockingQueue<Connection>();
+  private final AtomicInteger openConnections = new AtomicInteger(0);
+  private final FrameHandler frameHandler = new FrameHandler() {
+    @Override
+    public void frameReceived(NioChannel channel, byte[] frame) {
+      requests.add(new RequestConnection(channel, frame));
+    }
+
+    @Override
+    public void channelClosed(NioChannel channel) {
+      openConnections.decrementAndGet();
+    }
+  };
+
+  private volatile ServerSocketChannel serverChannel = null;
+  private SelectorThread[] selectorThreads;
+  private volatile boolean closed = false;
+
+  /**
+   * @param port Port that this server socket will be started on.
+   * @param backlog the maximum length of the queue. A value <=0 uses default
+   *        backlog.
+   * @param bindAddr the local InetAddress the server socket will bind to. A
+   *        null value binds to any/all local IP addresses.
+   * @param ioThreads Number of selector threads used for reading/writing.
+   */
+  NioServerRpcConnectionFactory(int port, int backlog, InetAddress bindAddr,
+      int ioThreads) {
+    if (ioThreads < 1) {
+      throw new IllegalArgumentException("ioThreads must be positive");
+    }
+    this.port = port;
+    this.backlog = backlog;
+    this.bindAddr = bindAddr;
+    this.ioThreads = ioThreads;
+  }
+
+  @Override
+  public Connection createConnection() throws IOException {
+    // Use Java 1.5+ double checked locking to lazy init
+    if (serverChannel == null) {
+      initServerChannel();
+    }
+
+    // Thread blocks here waiting for requests
+    Connection connection;
+    try {
+      connection = requests.take();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while waiting for requests", e);
+    }
+    if (connection == CLOSED) {
+      // Wake up any other waiting threads as well
+      requests.add(CLOSED);
+      throw new IOException("Server closed");
+    }
+    return connection;
+  }
+
+  private synchronized void initServerChannel() throws IOException {
+    if (serverChannel != null) {
+      return;
+    }
+    if (closed) {
+      throw new IOException("Server closed");
+    }
+    LOG.info("Listening for requests on port: " + port);
+    ServerSocketChannel local = ServerSocketChannel.open();
+    try {
+      // Like ServerSocket, so that the port can be reused right after closing
+      local.socket().setReuseAddress(true);
+      local.socket().bind(new InetSocketAddress(bindAddr, port), backlog);
+      local.configureBlocking(false);
+
+      selectorThreads = new SelectorThread[ioThreads];
+      for (int i = 0; i < ioThreads; i++) {
+        selectorThreads[i] = new SelectorThread("RpcServer-IO-" + i);
+      }
+    } catch (IOException e) {
+      local.close();
+      throw e;
+    }
+    for (SelectorThread selectorThread : selectorThreads) {
+      selectorThread.start();
+    }
+
+    // Accept in the first thread and spread connections over all of them
+    selectorThreads[0].registerAcceptor(local, new AcceptHandler() {
+      private int next = 0;
+
+      @Override
+      public void accepted(SocketChannel channel) throws IOException {
+        SelectorThread selectorThread = selectorThreads[next];
+        next = (next + 1) % selectorThreads.length;
+        openConnections.incrementAndGet();
+        selectorThread.register(
+            new NioChannel(channel, selectorThread, frameHandler));
+      }
+    });
+    serverChannel = local;
+  }
+
+  /**
+   * @return Number of client connections currently open.
+   */
+  int getOpenConnections() {
+    return openConnections.get();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    ServerSocketChannel local = serverChannel;
+    if (local != null) {
+      local.close();
+      for (SelectorThread selectorThread : selectorThreads) {
+        selectorThread.shutDown();
+      }
+      // The port is only released once the selectors are closed
+      try {
+        for (SelectorThread selectorThread : selectorThreads) {
+          selectorThread.join();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    requests.clear();
+    requests.add(CLOSED);
+  }
+
+  /**
+   * {@link Connection} for responding to a single request that has already
+   * been read.
+   */
+  private static class RequestConnection implements BufferedConnection {
+
+    private final NioChannel channel;
+    private final long receivedNanos = System.nanoTime();
+    private byte[] request;
+    // Cancel requests respond from another thread
+    private volatile boolean responded = false;
+    private volatile boolean closed = false;
+
+    RequestConnection(NioChannel channel, byte[] request) {
+      this.channel = channel;
+      this.request = request;
+    }
+
+    @Override
+    public long getReceivedNanos() {
+      return receivedNanos;
+    }
+
+    @Override
+    public byte[] peekRequest() {
+      return request;
+    }
+
+    @Override
+    public Object getChannel() {
+      return channel;
+    }
+
+    @Override
+    public void release() {
+      closed = true;
+    }
+
+    @Override
+    public void receiveProtoMessage(Builder messageBuilder) throws IOException {
+      if (request == null) {
+        // Further requests on the channel get their own connections
+        throw new EOFException("Request already received");
+      }
+      byte[] local = request;
+      request = null;
+      messageBuilder.mergeFrom(local);
+    }
+
+    @Override
+    public void sendProtoMessage(MessageLite message) throws IOException {
+      channel.writeFrame(message);
+      responded = true;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        if (!responded) {
+          // Client would wait forever, let it know nothing is coming
+          channel.close();
+        }
+      }
+    }
+
+    @Override
+    public boolean isClosed() {
+      return closed || channel.isClosed();
+    }
+  }
+}
@@ -21,7 +21,12 @@
 package com.googlecode.protobuf.socketrpc;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.protobuf.MessageLite;
@@ -31,6 +36,12 @@ import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
 /**
  * Persistent wrapper for a {@link Connection}. This connection can be used
  * multiple times and is also thread safe.
+ * <p>
+ * On the client side each RPC uses a {@link Connection} created with
+ * {@link #newCall()}, which gives the request an id so that the RPC can be
+ * canceled. A canceled call fails as soon as its thread is not in the middle
+ * of reading a response, and its own response, which servers that support
+ * canceling send right away, is thrown away by whichever call reads it.
  *
  * @author Shardul Deo
  */
@@ -42,6 +53,10 @@ class PersistentConnection implements Connection {
   // Using fair locks so threads don't wait for too long
   private final Semaphore readLock = new Semaphore(1, true /* fair */);
   private final ReentrantLock writeLock = new ReentrantLock(true /* fair */);
+  private final AtomicLong lastRequestId = new AtomicLong();
+  // Ids of canceled calls whose responses have not been read yet
+  private final Set<Long> canceledIds =
+      Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
 
   PersistentConnection(Connection connection, boolean client) {
     this.inner = connection;
@@ -97,8 +112,118 @@ class PersistentConnection implements Connection {
     // No-op since we want to reuse it.
   }
 
+  /**
+   * Create a {@link Connection} for doing a single RPC over this connection,
+   * client-side only.
+   */
+  Connection newCall() {
+    return new Call();
+  }
+
   @Override
   public boolean isClosed() {
     return inner.isClosed();
   }
+
+  /**
+   * A single RPC over the persistent connection.
+   */
+  private class Call implements CancellableConnection {
+
+    // How often a call waiting for the read lock checks if it was canceled
+    private static final long CANCEL_CHECK_MILLIS = 50;
+
+    private volatile boolean hasRequestId = false;
+    private volatile long requestId = 0;
+    private volatile boolean canceled = false;
+
+    @Override
+    public void sendProtoMessage(MessageLite message) throws IOException {
+      if (message instanceof RequestEnvelope) {
+        requestId = lastRequestId.incrementAndGet();
+        message = ((RequestEnvelope) message).withRequestId(requestId);
+        hasRequestId = true;
+      } else if (message instanceof SocketRpcProtos.Request) {
+        SocketRpcProtos.Request request = (SocketRpcProtos.Request) message;
+        if (!request.hasRequestId()) {
+          request = request.toBuilder()
+              .setRequestId(lastRequestId.incrementAndGet())
+              .build();
+        }
+        requestId = request.getRequestId();
+        message = request;
+        hasRequestId = true;
+      }
+      PersistentConnection.this.sendProtoMessage(message);
+    }
+
+    @Override
+    public void receiveProtoMessage(Builder messageBuilder)
+        throws IOException {
+      if (!hasRequestId
+          || !(messageBuilder instanceof SocketRpcProtos.Response.Builder)) {
+        PersistentConnection.this.receiveProtoMessage(messageBuilder);
+        return;
+      }
+      SocketRpcProtos.Response.Builder response =
+          (SocketRpcProtos.Response.Builder) messageBuilder;
+      acquireReadLockUnlessCanceled();
+      try {
+        inner.receiveProtoMessage(response);
+        // Skip responses to canceled calls that gave up waiting
+        while (response.hasRequestId() && response.getRequestId() != requestId
+            && canceledIds.remove(response.getRequestId())) {
+          response.clear();
+          inner.receiveProtoMessage(response);
+        }
+      } finally {
+        readLock.release();
+      }
+      if (canceled) {
+        if (response.getRequestId() == requestId) {
+          canceledIds.remove(requestId);
+        }
+        throw new IOException("Call canceled");
+      }
+    }
+
+    private void acquireReadLockUnlessCanceled() throws IOException {
+      try {
+        while (!canceled) {
+          if (readLock.tryAcquire(CANCEL_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while waiting for read lock", e);
+      }
+      // Its response is skipped by the call that reads it
+      throw new IOException("Call canceled");
+    }
+
+    @Override
+    public void cancel() {
+      if (!hasRequestId) {
+        return;
+      }
+      canceledIds.add(requestId);
+      canceled = true;
+      try {
+        PersistentConnection.this.sendProtoMessage(
+            RpcChannelImpl.createCancelRequest(requestId));
+      } catch (IOException e) {
+        // Reading the response will fail as well
+      }
+    }
+
+    @Override
+    public void close() {
+      // No-op since the connection is reused.
+    }
+
+    @Override
+    public boolean isClosed() {
+      return PersistentConnection.this.isClosed();
+    }
+  }
 }
@@ -23,6 +23,7 @@ package com.googlecode.protobuf.socketrpc;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
 
@@ -39,6 +40,11 @@ import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
  * {@link #close()} method must explicitly be called when the client has
  * finished using the factory.
  * <p>
+ * Use {@link MultiplexedRpcConnectionFactory} instead on the client-side if RPCs
+ * should not be sent serially. The server-side factory created by
+ * {@link #createServerInstance(ServerRpcConnectionFactory)} handles requests
+ * concurrently and can be used with either client.
+ * <p>
  * If used with {@link SocketRpcConnectionFactories}, only delimited connection
  * factories can be used.
  *
@@ -51,6 +57,9 @@ public class PersistentRpcConnectionFactory implements
   private volatile PersistentConnection connection = null;
   private final boolean server;
 
+  // Not synchronized so that virtual threads connecting don't pin carriers
+  private final ReentrantLock initLock = new ReentrantLock();
+
   /**
    * Create a client-side persistent {@link RpcConnectionFactory} which uses the
    * given factory to create the persistent {@link Connection}.
@@ -95,19 +104,25 @@ public class PersistentRpcConnectionFactory implements
       // Server thread blocks here for readLock so that multiple handler threads
       // aren't created.
       local.acquireReadLock();
+      return local;
     }
 
-    return local;
+    return local.newCall();
   }
 
-  private synchronized PersistentConnection initConnecton()
+  private PersistentConnection initConnecton()
       throws UnknownHostException, IOException {
-    PersistentConnection local = connection;
-    if (local == null) {
-      connection = local = new PersistentConnection(factory.createConnection(),
-          !server);
+    initLock.lock();
+    try {
+      PersistentConnection local = connection;
+      if (local == null) {
+        connection = local = new PersistentConnection(
+            factory.createConnection(), !server);
+      }
+      return local;
+    } finally {
+      initLock.unlock();
     }
-    return local;
   }
 
   /**
@@ -129,4 +144,9 @@ public class PersistentRpcConnectionFactory implements
       ((ServerRpcConnectionFactory) factory).close();
     }
   }
+
+  @Override
+  public String toString() {
+    return "persistent " + factory;
+  }
 }
\ No newline at end of file
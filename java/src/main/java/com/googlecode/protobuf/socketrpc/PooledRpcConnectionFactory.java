@@ -0,0 +1,504 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.protobuf.MessageLite;
+
+/**
+ * An {@link RpcConnectionFactory} that keeps a pool of open connections to a
+ * server and reuses them for multiple RPCs, so that RPCs don't pay for
+ * connecting to the server every time. Use {@link #newBuilder} to create
+ * instances.
+ * <p>
+ * Each {@link Connection} returned by {@link #createConnection()} is checked
+ * out of the pool and is returned to the pool when it is closed, as long as
+ * the RPC done over it completed without errors. When all connections are in
+ * use, callers wait for one to be returned, up to a configured number of
+ * waiting callers and time, after which an {@link IOException} is thrown.
+ * <p>
+ * The pool keeps a minimum number of idle connections open, closes connections
+ * that have not been used for some time and closes connections that have been
+ * open for too long, so that load can be spread over servers as they come and
+ * go.
+ * <p>
+ * Connections are only reusable in delimited mode, so only delimited
+ * connection factories can be used with {@link SocketRpcConnectionFactories}.
+ * The server must keep connections open after responding, i.e. it must either
+ * use {@link SocketRpcConnectionFactories#createNioServerRpcConnectionFactory(int)}
+ * or be an {@link RpcServer} in keep-alive mode.
+ * The {@link #close()} method must explicitly be called when the client has
+ * finished using the factory.
+ *
+ * @author Shardul Deo
+ */
+public class PooledRpcConnectionFactory implements RpcConnectionFactory,
+    Closeable {
+
+  private static final Logger LOG =
+      Logger.getLogger(PooledRpcConnectionFactory.class.getName());
+
+  private final RpcConnectionFactory factory;
+  private final int maxConnections;
+  private final int minIdle;
+  private final int maxWaiting;
+  private final long maxWaitNanos;
+  private final long maxIdleNanos;
+  private final long maxLifetimeNanos;
+  private final ScheduledExecutorService maintenanceExecutor;
+
+  // All state below is guarded by lock
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition returned = lock.newCondition();
+  // Most recently used connections are first so that extra ones become idle
+  private final Deque<PooledEntry> idle = new ArrayDeque<PooledEntry>();
+  private int open = 0;
+  private int waiting = 0;
+  private boolean closed = false;
+
+  /**
+   * Create a builder for a pool of connections created by the given factory.
+   */
+  public static Builder newBuilder(RpcConnectionFactory factory) {
+    return new Builder(factory);
+  }
+
+  private PooledRpcConnectionFactory(Builder builder) {
+    this.factory = builder.factory;
+    this.maxConnections = builder.maxConnections;
+    this.minIdle = Math.min(builder.minIdle, builder.maxConnections);
+    this.maxWaiting = builder.maxWaiting;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(builder.maxWaitMillis);
+    this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(builder.maxIdleMillis);
+    this.maxLifetimeNanos =
+        TimeUnit.MILLISECONDS.toNanos(builder.maxLifetimeMillis);
+
+    maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "PooledRpcConnectionFactory");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        maintain();
+      }
+    }, 0, builder.maintenanceIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Check out a connection from the pool, creating a new one if none is idle
+   * and the pool isn't full. Blocks if the pool is full.
+   *
+   * @throws IOException If the pool is closed, too many callers are already
+   *         waiting, the wait times out or a new connection cannot be created.
+   */
+  @Override
+  public Connection createConnection() throws UnknownHostException,
+      IOException {
+    List<PooledEntry> expired = new ArrayList<PooledEntry>();
+    lock.lock();
+    try {
+      long waitNanos = maxWaitNanos;
+      while (true) {
+        if (closed) {
+          throw new IOException("Connection pool closed");
+        }
+        long now = System.nanoTime();
+        PooledEntry entry;
+        while ((entry = idle.pollFirst()) != null) {
+          if (entry.isReusable(now)) {
+            return new PooledConnection(entry);
+          }
+          expired.add(entry);
+          open--;
+        }
+        if (open < maxConnections) {
+          // Reserve a place and connect outside the lock
+          open++;
+          break;
+        }
+        if (waiting >= maxWaiting) {
+          throw new IOException("Connection pool exhausted, " + waiting
+              + " callers already waiting");
+        }
+        if (waitNanos <= 0) {
+          throw new IOException("Timed out waiting for pooled connection");
+        }
+        waiting++;
+        try {
+          waitNanos = returned.awaitNanos(waitNanos);
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted while waiting for connection", e);
+        } finally {
+          waiting--;
+        }
+      }
+    } finally {
+      lock.unlock();
+      closeAll(expired);
+    }
+    return new PooledConnection(connect());
+  }
+
+  /**
+   * Create a new connection for a place already reserved in the pool.
+   */
+  private PooledEntry connect() throws UnknownHostException, IOException {
+    try {
+      return new PooledEntry(factory.createConnection());
+    } catch (IOException e) {
+      release();
+      throw e;
+    } catch (RuntimeException e) {
+      release();
+      throw e;
+    }
+  }
+
+  /**
+   * Give up a place in the pool, after its connection is closed.
+   */
+  private void release() {
+    lock.lock();
+    try {
+      open--;
+      returned.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void checkIn(PooledEntry entry, boolean reusable) {
+    if (reusable) {
+      lock.lock();
+      try {
+        if (!closed && entry.isReusable(System.nanoTime())) {
+          entry.lastUsed = System.nanoTime();
+          idle.addFirst(entry);
+          returned.signal();
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    entry.close();
+    release();
+  }
+
+  /**
+   * Evict expired idle connections and open new ones to have the minimum
+   * number of idle connections.
+   */
+  private void maintain() {
+    List<PooledEntry> expired = new ArrayList<PooledEntry>();
+    int toCreate;
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      long now = System.nanoTime();
+      for (Iterator<PooledEntry> it = idle.iterator(); it.hasNext();) {
+        PooledEntry entry = it.next();
+        if (!entry.isReusable(now)) {
+          it.remove();
+          expired.add(entry);
+          open--;
+        }
+      }
+      toCreate = Math.min(minIdle - idle.size(), maxConnections - open);
+      if (toCreate > 0) {
+        open += toCreate;
+      }
+    } finally {
+      lock.unlock();
+    }
+    closeAll(expired);
+    for (int i = 0; i < toCreate; i++) {
+      try {
+        checkIn(connect(), true);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Error pre-creating pooled connection", e);
+        // Remaining places reserved for pre-creating are not used
+        for (int j = i + 1; j < toCreate; j++) {
+          release();
+        }
+        break;
+      }
+    }
+  }
+
+  private static void closeAll(List<PooledEntry> entries) {
+    for (PooledEntry entry : entries) {
+      entry.close();
+    }
+  }
+
+  /**
+   * @return Number of open connections, both idle and in use.
+   */
+  public int getOpenConnections() {
+    lock.lock();
+    try {
+      return open;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return Number of idle connections.
+   */
+  public int getIdleConnections() {
+    lock.lock();
+    try {
+      return idle.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Close the pool and all idle connections. Connections in use are closed
+   * when they are returned.
+   */
+  @Override
+  public void close() {
+    List<PooledEntry> toClose;
+    lock.lock();
+    try {
+      closed = true;
+      toClose = new ArrayList<PooledEntry>(idle);
+      open -= idle.size();
+      idle.clear();
+      returned.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    maintenanceExecutor.shutdownNow();
+    closeAll(toClose);
+  }
+
+  /**
+   * A connection in the pool.
+   */
+  private class PooledEntry {
+
+    private final Connection connection;
+    private final long created = System.nanoTime();
+    private long lastUsed = created;
+
+    private PooledEntry(Connection connection) {
+      this.connection = connection;
+    }
+
+    private boolean isReusable(long now) {
+      return !connection.isClosed()
+          && (maxIdleNanos <= 0 || now - lastUsed < maxIdleNanos)
+          && (maxLifetimeNanos <= 0 || now - created < maxLifetimeNanos);
+    }
+
+    private void close() {
+      try {
+        connection.close();
+      } catch (IOException e) {
+        // It's ok
+      }
+    }
+  }
+
+  /**
+   * {@link Connection} checked out of the pool. Closing it returns the
+   * underlying connection to the pool if every message sent got a response
+   * without any error, otherwise the underlying connection is closed.
+   */
+  private class PooledConnection implements CancellableConnection {
+
+    private final PooledEntry entry;
+    private int pendingResponses = 0;
+    private boolean failed = false;
+    private boolean closed = false;
+
+    private PooledConnection(PooledEntry entry) {
+      this.entry = entry;
+    }
+
+    @Override
+    public void sendProtoMessage(MessageLite message) throws IOException {
+      pendingResponses++;
+      try {
+        entry.connection.sendProtoMessage(message);
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public void receiveProtoMessage(MessageLite.Builder messageBuilder)
+        throws IOException {
+      try {
+        entry.connection.receiveProtoMessage(messageBuilder);
+        pendingResponses--;
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public void cancel() {
+      // Unread response makes the connection unusable, closing it also stops
+      // the read
+      entry.close();
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        checkIn(entry, !failed && pendingResponses == 0);
+      }
+    }
+
+    @Override
+    public boolean isClosed() {
+      return closed || entry.connection.isClosed();
+    }
+  }
+
+  /**
+   * Builder for {@link PooledRpcConnectionFactory}.
+   */
+  public static class Builder {
+
+    private final RpcConnectionFactory factory;
+    private int maxConnections = 8;
+    private int minIdle = 0;
+    private int maxWaiting = Integer.MAX_VALUE;
+    private long maxWaitMillis = 10000;
+    private long maxIdleMillis = 60000;
+    private long maxLifetimeMillis = 0;
+    private long maintenanceIntervalMillis = 1000;
+
+    private Builder(RpcConnectionFactory factory) {
+      this.factory = factory;
+    }
+
+    /**
+     * Maximum number of connections open at the same time, idle or in use.
+     * Defaults to 8.
+     */
+    public Builder setMaxConnections(int maxConnections) {
+      if (maxConnections < 1) {
+        throw new IllegalArgumentException("maxConnections must be positive");
+      }
+      this.maxConnections = maxConnections;
+      return this;
+    }
+
+    /**
+     * Number of idle connections that are opened in advance and kept open.
+     * Defaults to 0.
+     */
+    public Builder setMinIdle(int minIdle) {
+      this.minIdle = minIdle;
+      return this;
+    }
+
+    /**
+     * Maximum number of callers waiting for a connection when all connections
+     * are in use. Any more fail right away. Defaults to no limit.
+     */
+    public Builder setMaxWaiting(int maxWaiting) {
+      this.maxWaiting = maxWaiting;
+      return this;
+    }
+
+    /**
+     * Maximum time to wait for a connection when all connections are in use.
+     * Defaults to 10 seconds.
+     */
+    public Builder setMaxWaitMillis(long maxWaitMillis) {
+      this.maxWaitMillis = maxWaitMillis;
+      return this;
+    }
+
+    /**
+     * Idle connections unused for this long are closed, a value <=0 keeps
+     * them open. Defaults to 1 minute.
+     */
+    public Builder setMaxIdleMillis(long maxIdleMillis) {
+      this.maxIdleMillis = maxIdleMillis;
+      return this;
+    }
+
+    /**
+     * Connections open for this long are closed when they are next idle, a
+     * value <=0 keeps them open. Defaults to no limit.
+     */
+    public Builder setMaxLifetimeMillis(long maxLifetimeMillis) {
+      this.maxLifetimeMillis = maxLifetimeMillis;
+      return this;
+    }
+
+    /**
+     * How often idle connections are checked for eviction and the minimum
+     * number of idle connections is restored. Defaults to 1 second.
+     */
+    public Builder setMaintenanceIntervalMillis(
+        long maintenanceIntervalMillis) {
+      this.maintenanceIntervalMillis = maintenanceIntervalMillis;
+      return this;
+    }
+
+    public PooledRpcConnectionFactory build() {
+      return new PooledRpcConnectionFactory(this);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "pooled " + factory;
+  }
+}
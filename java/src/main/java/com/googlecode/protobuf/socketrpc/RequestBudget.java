@@ -0,0 +1,83 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket that limits extra requests, i.e. retries and hedges, to a
+ * percentage of calls. Every call adds a fraction of a token, up to a
+ * maximum, and every extra request takes a whole token. When servers fail or
+ * slow down, the bucket soon runs dry and extra requests stop, instead of
+ * multiplying the load on them.
+ *
+ * @author Shardul Deo
+ */
+final class RequestBudget {
+
+  // Tokens are kept in millionths
+  private static final long TOKEN = 1000000;
+
+  private final long perCall;
+  private final long max;
+  private final AtomicLong tokens;
+
+  /**
+   * @param percent Extra requests per 100 calls.
+   * @param maxTokens Extra requests that can be made in a burst, which the
+   *        bucket starts with.
+   */
+  RequestBudget(double percent, int maxTokens) {
+    this.perCall = Math.round(percent / 100 * TOKEN);
+    this.max = maxTokens * TOKEN;
+    this.tokens = new AtomicLong(max);
+  }
+
+  /**
+   * Add the share of a call.
+   */
+  void deposit() {
+    while (true) {
+      long current = tokens.get();
+      if (current >= max
+          || tokens.compareAndSet(current, Math.min(max, current + perCall))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Take a token for an extra request.
+   *
+   * @return Whether there was one.
+   */
+  boolean tryWithdraw() {
+    while (true) {
+      long current = tokens.get();
+      if (current < TOKEN) {
+        return false;
+      }
+      if (tokens.compareAndSet(current, current - TOKEN)) {
+        return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,439 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.UninitializedMessageException;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * Builder that decodes a {@link SocketRpcProtos.Request} straight from the
+ * connection's input stream. The service and method names, or the method id
+ * given out in a handshake, are read first, so the {@code request_proto} field
+ * can be parsed directly into the method's request message instead of being
+ * copied into a {@link ByteString} and parsed again later. Each byte of the
+ * request is only read once.
+ * <p>
+ * If the method is not known when {@code request_proto} is read, e.g. because
+ * the client sent the fields in a different order or the service does not
+ * exist, the request bytes are kept as they are and parsed later by
+ * {@link RpcForwarder}.
+ *
+ * @author Shardul Deo
+ */
+final class RequestDecoder extends AbstractMessageLite.Builder<RequestDecoder> {
+
+  private static final int SERVICE_NAME_TAG = makeTag(
+      SocketRpcProtos.Request.SERVICE_NAME_FIELD_NUMBER, 2);
+  private static final int METHOD_NAME_TAG = makeTag(
+      SocketRpcProtos.Request.METHOD_NAME_FIELD_NUMBER, 2);
+  private static final int REQUEST_PROTO_TAG = makeTag(
+      SocketRpcProtos.Request.REQUEST_PROTO_FIELD_NUMBER, 2);
+  private static final int REQUEST_ID_TAG = makeTag(
+      SocketRpcProtos.Request.REQUEST_ID_FIELD_NUMBER, 0);
+  private static final int METHOD_ID_TAG = makeTag(
+      SocketRpcProtos.Request.METHOD_ID_FIELD_NUMBER, 0);
+  private static final int TIMEOUT_MILLIS_TAG = makeTag(
+      SocketRpcProtos.Request.TIMEOUT_MILLIS_FIELD_NUMBER, 0);
+  private static final int CANCEL_TAG = makeTag(
+      SocketRpcProtos.Request.CANCEL_FIELD_NUMBER, 0);
+
+  // Longer timeouts are cut down to this so deadlines don't overflow
+  static final long MAX_TIMEOUT_MILLIS = TimeUnit.DAYS.toMillis(365 * 100);
+
+  private final RpcForwarder rpcForwarder;
+
+  private String serviceName = null;
+  private String methodName = null;
+  private boolean hasRequestProto = false;
+  private Message request = null;
+  private ByteString requestBytes = null;
+  private InvalidProtocolBufferException requestError = null;
+  private int requestSize = 0;
+  private boolean hasRequestId = false;
+  private long requestId = 0;
+  private boolean hasMethodId = false;
+  private int methodId = 0;
+  private boolean hasTimeout = false;
+  private long timeoutMillis = 0;
+  private boolean cancel = false;
+
+  // Only set when peeking at the header
+  private boolean skipRequestProto = false;
+
+  // System.nanoTime() when the request was received, the timeout counts from
+  // then
+  private long receivedNanos = System.nanoTime();
+
+  /**
+   * @param rpcForwarder Used to look up the request message type of the
+   *        method being called, can be null to never parse request messages.
+   */
+  RequestDecoder(RpcForwarder rpcForwarder) {
+    this.rpcForwarder = rpcForwarder;
+  }
+
+  /**
+   * Create a decoder holding an already parsed {@link SocketRpcProtos.Request}.
+   */
+  static RequestDecoder forRequest(SocketRpcProtos.Request rpcRequest) {
+    RequestDecoder decoder = new RequestDecoder(null);
+    if (rpcRequest.hasServiceName()) {
+      decoder.serviceName = rpcRequest.getServiceName();
+    }
+    if (rpcRequest.hasMethodName()) {
+      decoder.methodName = rpcRequest.getMethodName();
+    }
+    if (rpcRequest.hasRequestProto()) {
+      decoder.hasRequestProto = true;
+      decoder.requestBytes = rpcRequest.getRequestProto();
+      decoder.requestSize = decoder.requestBytes.size();
+    }
+    decoder.hasRequestId = rpcRequest.hasRequestId();
+    decoder.requestId = rpcRequest.getRequestId();
+    decoder.hasMethodId = rpcRequest.hasMethodId();
+    decoder.methodId = rpcRequest.getMethodId();
+    decoder.hasTimeout = rpcRequest.hasTimeoutMillis();
+    decoder.timeoutMillis = clampTimeoutMillis(
+        rpcRequest.getTimeoutMillis());
+    decoder.cancel = rpcRequest.getCancel();
+    return decoder;
+  }
+
+  /**
+   * Decode everything but the request message of an encoded request, without
+   * copying or parsing the request message.
+   *
+   * @return The decoder, or null if the request is malformed.
+   */
+  static RequestDecoder peekHeader(byte[] request) {
+    RequestDecoder decoder = new RequestDecoder(null);
+    decoder.skipRequestProto = true;
+    try {
+      decoder.mergeFrom(request);
+    } catch (InvalidProtocolBufferException e) {
+      return null;
+    }
+    return decoder;
+  }
+
+  private static long clampTimeoutMillis(long timeoutMillis) {
+    // Values over 2^63 are negative
+    return timeoutMillis < 0 || timeoutMillis > MAX_TIMEOUT_MILLIS
+        ? MAX_TIMEOUT_MILLIS : timeoutMillis;
+  }
+
+  private static int makeTag(int fieldNumber, int wireType) {
+    return (fieldNumber << 3) | wireType;
+  }
+
+  String getServiceName() {
+    return serviceName == null ? "" : serviceName;
+  }
+
+  String getMethodName() {
+    return methodName == null ? "" : methodName;
+  }
+
+  boolean hasRequestId() {
+    return hasRequestId;
+  }
+
+  long getRequestId() {
+    return requestId;
+  }
+
+  boolean hasMethodId() {
+    return hasMethodId;
+  }
+
+  int getMethodId() {
+    return methodId;
+  }
+
+  boolean hasTimeout() {
+    return hasTimeout;
+  }
+
+  long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * @return Whether this cancels the earlier request with the same request
+   *         id.
+   */
+  boolean isCancel() {
+    return cancel;
+  }
+
+  /**
+   * Set when the request was received, if it was before this decoder was
+   * created.
+   */
+  void setReceivedNanos(long receivedNanos) {
+    this.receivedNanos = receivedNanos;
+  }
+
+  /**
+   * @return The request's deadline as a {@link System#nanoTime()} value, only
+   *         valid if it {@link #hasTimeout()}.
+   */
+  long getDeadlineNanos() {
+    return receivedNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+  }
+
+  /**
+   * @return The request message parsed while decoding, or null if it wasn't.
+   */
+  Message getRequest() {
+    return request;
+  }
+
+  /**
+   * @return The request message bytes if they were not parsed while decoding.
+   */
+  ByteString getRequestBytes() {
+    return requestBytes;
+  }
+
+  /**
+   * @return Size of the encoded request message.
+   */
+  int getRequestSize() {
+    return requestSize;
+  }
+
+  /**
+   * @return The error parsing the request message while decoding, if any.
+   */
+  InvalidProtocolBufferException getRequestError() {
+    return requestError;
+  }
+
+  /**
+   * Take the fields of a request sent within the same process, without
+   * encoding it. The request message is kept as it is, since messages are
+   * immutable, and {@link RpcForwarder} hands it straight to the service if
+   * it has the method's request type.
+   */
+  RequestDecoder mergeFromEnvelope(RequestEnvelope envelope) {
+    MethodDescriptor method = envelope.getMethod();
+    serviceName = method.getService().getFullName();
+    methodName = method.getName();
+    hasRequestProto = true;
+    request = null;
+    requestBytes = null;
+    requestError = null;
+    MessageLite message = envelope.getRequest();
+    requestSize = message.getSerializedSize();
+    if (message instanceof Message) {
+      request = (Message) message;
+    } else {
+      requestBytes = message.toByteString();
+    }
+    if (envelope.hasRequestId()) {
+      hasRequestId = true;
+      requestId = envelope.getRequestId();
+    }
+    if (envelope.hasTimeout()) {
+      hasTimeout = true;
+      timeoutMillis = clampTimeoutMillis(envelope.getTimeoutMillis());
+    }
+    return this;
+  }
+
+  @Override
+  public RequestDecoder mergeFrom(CodedInputStream input,
+      ExtensionRegistryLite extensionRegistry) throws IOException {
+    while (true) {
+      int tag = input.readTag();
+      if (tag == 0) {
+        return this;
+      } else if (tag == SERVICE_NAME_TAG) {
+        serviceName = input.readString();
+      } else if (tag == METHOD_NAME_TAG) {
+        methodName = input.readString();
+      } else if (tag == REQUEST_PROTO_TAG) {
+        readRequestProto(input, extensionRegistry);
+      } else if (tag == REQUEST_ID_TAG) {
+        hasRequestId = true;
+        requestId = input.readUInt64();
+      } else if (tag == METHOD_ID_TAG) {
+        hasMethodId = true;
+        methodId = input.readUInt32();
+      } else if (tag == TIMEOUT_MILLIS_TAG) {
+        hasTimeout = true;
+        timeoutMillis = clampTimeoutMillis(input.readUInt64());
+      } else if (tag == CANCEL_TAG) {
+        cancel = input.readBool();
+      } else if (!input.skipField(tag)) {
+        return this;
+      }
+    }
+  }
+
+  private void readRequestProto(CodedInputStream input,
+      ExtensionRegistryLite extensionRegistry) throws IOException {
+    hasRequestProto = true;
+    request = null;
+    requestBytes = null;
+    requestError = null;
+    if (skipRequestProto) {
+      requestSize = input.readRawVarint32();
+      input.skipRawBytes(requestSize);
+      return;
+    }
+    Message prototype = null;
+    if (rpcForwarder != null) {
+      if (hasMethodId) {
+        prototype = rpcForwarder.getRequestPrototype(methodId);
+      } else if (serviceName != null && methodName != null) {
+        prototype = rpcForwarder.getRequestPrototype(serviceName, methodName);
+      }
+    }
+    if (prototype == null) {
+      requestBytes = input.readBytes();
+      requestSize = requestBytes.size();
+      return;
+    }
+
+    // Parse the request message straight from the stream
+    int length = input.readRawVarint32();
+    requestSize = length;
+    int oldLimit = input.pushLimit(length);
+    Message.Builder builder = prototype.newBuilderForType();
+    try {
+      builder.mergeFrom(input, extensionRegistry);
+      request = builder.buildPartial();
+    } catch (InvalidProtocolBufferException e) {
+      // Request is bad but the envelope may still be fine, skip the rest of it
+      requestError = e;
+      input.skipRawBytes(input.getBytesUntilLimit());
+    }
+    input.popLimit(oldLimit);
+  }
+
+  @Override
+  public boolean isInitialized() {
+    return (hasMethodId || serviceName != null && methodName != null)
+        && hasRequestProto;
+  }
+
+  @Override
+  public RequestDecoder clear() {
+    serviceName = null;
+    methodName = null;
+    hasRequestProto = false;
+    request = null;
+    requestBytes = null;
+    requestError = null;
+    requestSize = 0;
+    hasRequestId = false;
+    requestId = 0;
+    hasMethodId = false;
+    methodId = 0;
+    hasTimeout = false;
+    timeoutMillis = 0;
+    cancel = false;
+    return this;
+  }
+
+  @Override
+  public RequestDecoder clone() {
+    RequestDecoder clone = new RequestDecoder(rpcForwarder);
+    clone.serviceName = serviceName;
+    clone.methodName = methodName;
+    clone.hasRequestProto = hasRequestProto;
+    clone.request = request;
+    clone.requestBytes = requestBytes;
+    clone.requestError = requestError;
+    clone.requestSize = requestSize;
+    clone.hasRequestId = hasRequestId;
+    clone.requestId = requestId;
+    clone.hasMethodId = hasMethodId;
+    clone.methodId = methodId;
+    clone.hasTimeout = hasTimeout;
+    clone.timeoutMillis = timeoutMillis;
+    clone.receivedNanos = receivedNanos;
+    clone.cancel = cancel;
+    clone.skipRequestProto = skipRequestProto;
+    return clone;
+  }
+
+  /**
+   * Not used when handling requests, this re-encodes the request message.
+   */
+  @Override
+  public SocketRpcProtos.Request build() {
+    if (!isInitialized()) {
+      throw new UninitializedMessageException(buildPartial());
+    }
+    return buildPartial();
+  }
+
+  /**
+   * Not used when handling requests, this re-encodes the request message.
+   */
+  @Override
+  public SocketRpcProtos.Request buildPartial() {
+    SocketRpcProtos.Request.Builder builder =
+        SocketRpcProtos.Request.newBuilder();
+    if (serviceName != null) {
+      builder.setServiceName(serviceName);
+    }
+    if (methodName != null) {
+      builder.setMethodName(methodName);
+    }
+    if (request != null) {
+      builder.setRequestProto(request.toByteString());
+    } else if (requestBytes != null) {
+      builder.setRequestProto(requestBytes);
+    }
+    if (hasRequestId) {
+      builder.setRequestId(requestId);
+    }
+    if (hasMethodId) {
+      builder.setMethodId(methodId);
+    }
+    if (hasTimeout) {
+      builder.setTimeoutMillis(timeoutMillis);
+    }
+    if (cancel) {
+      builder.setCancel(true);
+    }
+    return builder.buildPartial();
+  }
+
+  @Override
+  public SocketRpcProtos.Request getDefaultInstanceForType() {
+    return SocketRpcProtos.Request.getDefaultInstance();
+  }
+}
@@ -0,0 +1,250 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.WireFormat;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * Encodes a {@link SocketRpcProtos.Request} for an RPC without first
+ * serializing the request message into a {@link com.google.protobuf.ByteString}
+ * and then copying it into the envelope. The request message is written
+ * straight into the connection's output stream as the {@code request_proto}
+ * field. The encoded service and method names are cached per
+ * {@link MethodDescriptor}. If the server gave out an id for the method in a
+ * handshake, the id can be sent instead of the names.
+ * <p>
+ * The bytes written are wire-compatible with the equivalent
+ * {@link SocketRpcProtos.Request}, though not in field number order: header
+ * fields such as {@code method_id} and {@code timeout_millis} are written
+ * before the {@code request_proto} payload so that servers can peek them.
+ *
+ * @see HandshakeRpcConnectionFactory
+ *
+ * @author Shardul Deo
+ */
+final class RequestEnvelope extends AbstractMessageLite {
+
+  // Encoded service_name and method_name fields of each method called
+  private static final ConcurrentMap<MethodDescriptor, byte[]> HEADERS =
+      new ConcurrentHashMap<MethodDescriptor, byte[]>();
+
+  private final MethodDescriptor method;
+  private final byte[] header;
+  private final MessageLite request;
+  private final boolean hasRequestId;
+  private final long requestId;
+  private final boolean hasTimeout;
+  private final long timeoutMillis;
+
+  private int serializedSize = -1;
+
+  RequestEnvelope(MethodDescriptor method, MessageLite request) {
+    this(method, getHeader(method), request, false, 0, false, 0);
+  }
+
+  private RequestEnvelope(MethodDescriptor method, byte[] header,
+      MessageLite request, boolean hasRequestId, long requestId,
+      boolean hasTimeout, long timeoutMillis) {
+    this.method = method;
+    this.header = header;
+    this.request = request;
+    this.hasRequestId = hasRequestId;
+    this.requestId = requestId;
+    this.hasTimeout = hasTimeout;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * @return Copy of this envelope with the given request id.
+   */
+  RequestEnvelope withRequestId(long requestId) {
+    return new RequestEnvelope(method, header, request, true, requestId,
+        hasTimeout, timeoutMillis);
+  }
+
+  /**
+   * @return Copy of this envelope with the given timeout.
+   */
+  RequestEnvelope withTimeoutMillis(long timeoutMillis) {
+    return new RequestEnvelope(method, header, request, hasRequestId,
+        requestId, true, timeoutMillis);
+  }
+
+  /**
+   * @return Copy of this envelope that sends the given method id instead of
+   *         the service and method names. The names are sent as empty
+   *         strings, since they are required fields.
+   */
+  RequestEnvelope withMethodId(int methodId) {
+    byte[] idHeader = new byte[CodedOutputStream.computeStringSize(
+        SocketRpcProtos.Request.SERVICE_NAME_FIELD_NUMBER, "")
+        + CodedOutputStream.computeStringSize(
+            SocketRpcProtos.Request.METHOD_NAME_FIELD_NUMBER, "")
+        + CodedOutputStream.computeUInt32Size(
+            SocketRpcProtos.Request.METHOD_ID_FIELD_NUMBER, methodId)];
+    CodedOutputStream output = CodedOutputStream.newInstance(idHeader);
+    try {
+      output.writeString(SocketRpcProtos.Request.SERVICE_NAME_FIELD_NUMBER,
+          "");
+      output.writeString(SocketRpcProtos.Request.METHOD_NAME_FIELD_NUMBER, "");
+      output.writeUInt32(SocketRpcProtos.Request.METHOD_ID_FIELD_NUMBER,
+          methodId);
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new RuntimeException("Writing to a byte array threw", e);
+    }
+    return new RequestEnvelope(method, idHeader, request, hasRequestId,
+        requestId, hasTimeout, timeoutMillis);
+  }
+
+  /**
+   * @return The method being called.
+   */
+  MethodDescriptor getMethod() {
+    return method;
+  }
+
+  /**
+   * @return The request message, as given.
+   */
+  MessageLite getRequest() {
+    return request;
+  }
+
+  boolean hasRequestId() {
+    return hasRequestId;
+  }
+
+  long getRequestId() {
+    return requestId;
+  }
+
+  boolean hasTimeout() {
+    return hasTimeout;
+  }
+
+  long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  private static byte[] getHeader(MethodDescriptor method) {
+    byte[] header = HEADERS.get(method);
+    if (header == null) {
+      String serviceName = method.getService().getFullName();
+      String methodName = method.getName();
+      header = new byte[CodedOutputStream.computeStringSize(
+          SocketRpcProtos.Request.SERVICE_NAME_FIELD_NUMBER, serviceName)
+          + CodedOutputStream.computeStringSize(
+              SocketRpcProtos.Request.METHOD_NAME_FIELD_NUMBER, methodName)];
+      CodedOutputStream output = CodedOutputStream.newInstance(header);
+      try {
+        output.writeString(SocketRpcProtos.Request.SERVICE_NAME_FIELD_NUMBER,
+            serviceName);
+        output.writeString(SocketRpcProtos.Request.METHOD_NAME_FIELD_NUMBER,
+            methodName);
+        output.checkNoSpaceLeft();
+      } catch (IOException e) {
+        throw new RuntimeException("Writing to a byte array threw", e);
+      }
+      // Harmless if another thread got here first
+      HEADERS.put(method, header);
+    }
+    return header;
+  }
+
+  @Override
+  public void writeTo(CodedOutputStream output) throws IOException {
+    output.writeRawBytes(header);
+    // Before the request so servers can find it without reading that
+    if (hasTimeout) {
+      output.writeUInt64(SocketRpcProtos.Request.TIMEOUT_MILLIS_FIELD_NUMBER,
+          timeoutMillis);
+    }
+    output.writeTag(SocketRpcProtos.Request.REQUEST_PROTO_FIELD_NUMBER,
+        WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    output.writeRawVarint32(request.getSerializedSize());
+    request.writeTo(output);
+    if (hasRequestId) {
+      output.writeUInt64(SocketRpcProtos.Request.REQUEST_ID_FIELD_NUMBER,
+          requestId);
+    }
+  }
+
+  @Override
+  public int getSerializedSize() {
+    int size = serializedSize;
+    if (size == -1) {
+      int requestSize = request.getSerializedSize();
+      size = header.length
+          + CodedOutputStream.computeTagSize(
+              SocketRpcProtos.Request.REQUEST_PROTO_FIELD_NUMBER)
+          + CodedOutputStream.computeRawVarint32Size(requestSize)
+          + requestSize;
+      if (hasTimeout) {
+        size += CodedOutputStream.computeUInt64Size(
+            SocketRpcProtos.Request.TIMEOUT_MILLIS_FIELD_NUMBER,
+            timeoutMillis);
+      }
+      if (hasRequestId) {
+        size += CodedOutputStream.computeUInt64Size(
+            SocketRpcProtos.Request.REQUEST_ID_FIELD_NUMBER, requestId);
+      }
+      serializedSize = size;
+    }
+    return size;
+  }
+
+  @Override
+  public SocketRpcProtos.Request getDefaultInstanceForType() {
+    return SocketRpcProtos.Request.getDefaultInstance();
+  }
+
+  @Override
+  public boolean isInitialized() {
+    return true;
+  }
+
+  @Override
+  public SocketRpcProtos.Request.Builder newBuilderForType() {
+    return SocketRpcProtos.Request.newBuilder();
+  }
+
+  /**
+   * Not used when sending requests, so this just parses the encoded bytes.
+   */
+  @Override
+  public SocketRpcProtos.Request.Builder toBuilder() {
+    try {
+      return SocketRpcProtos.Request.newBuilder().mergeFrom(toByteString());
+    } catch (InvalidProtocolBufferException e) {
+      throw new RuntimeException("Parsing encoded request threw", e);
+    }
+  }
+}
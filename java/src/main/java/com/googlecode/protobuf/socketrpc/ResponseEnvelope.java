@@ -0,0 +1,221 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.WireFormat;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+
+/**
+ * Encodes a {@link SocketRpcProtos.Response} without first serializing the
+ * response message into a {@link ByteString} and then copying it into the
+ * envelope. The response message is written straight into the connection's
+ * output stream as the {@code response_proto} field.
+ * <p>
+ * The bytes written are the same as those of the equivalent
+ * {@link SocketRpcProtos.Response}, so clients can't tell the difference.
+ *
+ * @author Shardul Deo
+ */
+final class ResponseEnvelope extends AbstractMessageLite {
+
+  private final MessageLite response;
+  private final boolean callback;
+  private final String error;
+  private final ErrorReason errorReason;
+  private final boolean hasRequestId;
+  private final long requestId;
+
+  private int serializedSize = -1;
+
+  /**
+   * @param response Response message, null if there is none.
+   * @param callback Whether the callback was invoked.
+   * @param error Error message, null if there is no error.
+   * @param errorReason Error reason, null if there is no error.
+   */
+  ResponseEnvelope(MessageLite response, boolean callback, String error,
+      ErrorReason errorReason) {
+    this(response, callback, error, errorReason, false, 0);
+  }
+
+  private ResponseEnvelope(MessageLite response, boolean callback,
+      String error, ErrorReason errorReason, boolean hasRequestId,
+      long requestId) {
+    this.response = response;
+    this.callback = callback;
+    this.error = error;
+    this.errorReason = errorReason;
+    this.hasRequestId = hasRequestId;
+    this.requestId = requestId;
+  }
+
+  /**
+   * Create an envelope for an error.
+   */
+  static ResponseEnvelope forError(String error, ErrorReason errorReason) {
+    return new ResponseEnvelope(null, false, error, errorReason);
+  }
+
+  /**
+   * @return Copy of this envelope with the given request id.
+   */
+  ResponseEnvelope withRequestId(long requestId) {
+    return new ResponseEnvelope(response, callback, error, errorReason, true,
+        requestId);
+  }
+
+  boolean hasResponseProto() {
+    return response != null;
+  }
+
+  /**
+   * @return The response message, as given, null if there is none.
+   */
+  MessageLite getResponse() {
+    return response;
+  }
+
+  /**
+   * Serializes the response message, only meant for tests.
+   */
+  ByteString getResponseProto() {
+    return response == null ? ByteString.EMPTY : response.toByteString();
+  }
+
+  /**
+   * @return Size of the encoded response message, 0 if there is none.
+   */
+  int getResponseSize() {
+    return response == null ? 0 : response.getSerializedSize();
+  }
+
+  boolean getCallback() {
+    return callback;
+  }
+
+  boolean hasError() {
+    return error != null;
+  }
+
+  String getError() {
+    return error == null ? "" : error;
+  }
+
+  ErrorReason getErrorReason() {
+    return errorReason;
+  }
+
+  boolean hasRequestId() {
+    return hasRequestId;
+  }
+
+  long getRequestId() {
+    return requestId;
+  }
+
+  @Override
+  public void writeTo(CodedOutputStream output) throws IOException {
+    if (response != null) {
+      output.writeTag(SocketRpcProtos.Response.RESPONSE_PROTO_FIELD_NUMBER,
+          WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeRawVarint32(response.getSerializedSize());
+      response.writeTo(output);
+    }
+    if (error != null) {
+      output.writeString(SocketRpcProtos.Response.ERROR_FIELD_NUMBER, error);
+    }
+    output.writeBool(SocketRpcProtos.Response.CALLBACK_FIELD_NUMBER, callback);
+    if (errorReason != null) {
+      output.writeEnum(SocketRpcProtos.Response.ERROR_REASON_FIELD_NUMBER,
+          errorReason.getNumber());
+    }
+    if (hasRequestId) {
+      output.writeUInt64(SocketRpcProtos.Response.REQUEST_ID_FIELD_NUMBER,
+          requestId);
+    }
+  }
+
+  @Override
+  public int getSerializedSize() {
+    int size = serializedSize;
+    if (size == -1) {
+      size = 0;
+      if (response != null) {
+        int responseSize = response.getSerializedSize();
+        size += CodedOutputStream.computeTagSize(
+            SocketRpcProtos.Response.RESPONSE_PROTO_FIELD_NUMBER)
+            + CodedOutputStream.computeRawVarint32Size(responseSize)
+            + responseSize;
+      }
+      if (error != null) {
+        size += CodedOutputStream.computeStringSize(
+            SocketRpcProtos.Response.ERROR_FIELD_NUMBER, error);
+      }
+      size += CodedOutputStream.computeBoolSize(
+          SocketRpcProtos.Response.CALLBACK_FIELD_NUMBER, callback);
+      if (errorReason != null) {
+        size += CodedOutputStream.computeEnumSize(
+            SocketRpcProtos.Response.ERROR_REASON_FIELD_NUMBER,
+            errorReason.getNumber());
+      }
+      if (hasRequestId) {
+        size += CodedOutputStream.computeUInt64Size(
+            SocketRpcProtos.Response.REQUEST_ID_FIELD_NUMBER, requestId);
+      }
+      serializedSize = size;
+    }
+    return size;
+  }
+
+  @Override
+  public SocketRpcProtos.Response getDefaultInstanceForType() {
+    return SocketRpcProtos.Response.getDefaultInstance();
+  }
+
+  @Override
+  public boolean isInitialized() {
+    return true;
+  }
+
+  @Override
+  public SocketRpcProtos.Response.Builder newBuilderForType() {
+    return SocketRpcProtos.Response.newBuilder();
+  }
+
+  /**
+   * Not used when sending responses, so this just parses the encoded bytes.
+   */
+  @Override
+  public SocketRpcProtos.Response.Builder toBuilder() {
+    try {
+      return SocketRpcProtos.Response.newBuilder().mergeFrom(toByteString());
+    } catch (InvalidProtocolBufferException e) {
+      throw new RuntimeException("Parsing encoded response threw", e);
+    }
+  }
+}
@@ -0,0 +1,243 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+
+/**
+ * When and how a channel created by {@link RpcChannels} retries failed calls.
+ * Use {@link #newBuilder()} to create instances.
+ * <p>
+ * A call is retried only if it failed for a retryable {@link ErrorReason}:
+ * <ul>
+ * <li>An {@code IO_ERROR} before the request was sent, i.e. while connecting
+ * or writing the request, is always retryable since the server never handled
+ * the request.</li>
+ * <li>Otherwise the reason must be one of the method's retryable reasons, set
+ * with {@link Builder#setRetryableReasons(MethodDescriptor, ErrorReason...)},
+ * or else one of the default ones, {@code SERVER_OVERLOADED} unless set with
+ * {@link Builder#setRetryableReasons(ErrorReason...)}. The server may have
+ * handled a request that failed for other reasons, so only add them for
+ * idempotent methods.</li>
+ * </ul>
+ * Retries wait for a random time up to an exponentially growing backoff,
+ * which spreads out the retries of clients that failed at the same time. A
+ * call is not retried if the backoff would take it past its deadline or if it
+ * was canceled. Retries are also limited by a budget of each channel, a
+ * percentage of its calls, so that they stop rather than multiply the load
+ * while servers are failing. Only blocking calls wait in their own thread,
+ * the retries of non-blocking calls are scheduled on a timer.
+ *
+ * @author Shardul Deo
+ */
+public final class RetryPolicy {
+
+  // Retries that can be made in a burst
+  private static final int MAX_BURST = 10;
+
+  private final int maxAttempts;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  private final double backoffMultiplier;
+  private final double retryBudgetPercent;
+  private final Set<ErrorReason> retryableReasons;
+  private final Map<String, Set<ErrorReason>> methodRetryableReasons;
+  private final Random random = new Random();
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  private RetryPolicy(Builder builder) {
+    this.maxAttempts = builder.maxAttempts;
+    this.initialBackoffNanos = builder.initialBackoffNanos;
+    this.maxBackoffNanos = builder.maxBackoffNanos;
+    this.backoffMultiplier = builder.backoffMultiplier;
+    this.retryBudgetPercent = builder.retryBudgetPercent;
+    this.retryableReasons = builder.retryableReasons;
+    this.methodRetryableReasons =
+        new HashMap<String, Set<ErrorReason>>(builder.methodRetryableReasons);
+  }
+
+  /**
+   * @return Most attempts of a call, including the first one.
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * @return Most retries, as a percentage of the calls of a channel.
+   */
+  public double getRetryBudgetPercent() {
+    return retryBudgetPercent;
+  }
+
+  /**
+   * @param sent Whether the request was sent to the server.
+   * @return Whether a call that failed for the given reason may be retried.
+   */
+  public boolean isRetryable(MethodDescriptor method, ErrorReason reason,
+      boolean sent) {
+    if (reason == null) {
+      return false;
+    }
+    if (!sent && reason == ErrorReason.IO_ERROR) {
+      return true;
+    }
+    Set<ErrorReason> reasons = methodRetryableReasons.get(method.getFullName());
+    return (reasons == null ? retryableReasons : reasons).contains(reason);
+  }
+
+  /**
+   * @param attempt Number of the attempt that failed, starting at 1.
+   * @return Time to wait before the next attempt, random between 0 and the
+   *         exponential backoff.
+   */
+  long getBackoffNanos(int attempt) {
+    double backoff = initialBackoffNanos
+        * Math.pow(backoffMultiplier, attempt - 1);
+    return (long) (random.nextDouble() * Math.min(backoff, maxBackoffNanos));
+  }
+
+  /**
+   * @return New budget for the retries of a channel.
+   */
+  RequestBudget newBudget() {
+    return new RequestBudget(retryBudgetPercent, MAX_BURST);
+  }
+
+  /**
+   * Builder for {@link RetryPolicy}.
+   */
+  public static class Builder {
+
+    private int maxAttempts = 3;
+    private long initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(10);
+    private long maxBackoffNanos = TimeUnit.SECONDS.toNanos(1);
+    private double backoffMultiplier = 2;
+    private double retryBudgetPercent = 10;
+    private Set<ErrorReason> retryableReasons =
+        Collections.unmodifiableSet(EnumSet.of(ErrorReason.SERVER_OVERLOADED));
+    private final Map<String, Set<ErrorReason>> methodRetryableReasons =
+        new HashMap<String, Set<ErrorReason>>();
+
+    private Builder() {
+    }
+
+    /**
+     * Most attempts of a call, including the first one. 1 disables retries.
+     * Defaults to 3.
+     */
+    public Builder setMaxAttempts(int maxAttempts) {
+      if (maxAttempts < 1) {
+        throw new IllegalArgumentException("maxAttempts must be positive");
+      }
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /**
+     * Backoff before the first retry. Defaults to 10 ms.
+     */
+    public Builder setInitialBackoff(long backoff, TimeUnit unit) {
+      if (backoff < 0) {
+        throw new IllegalArgumentException("backoff must not be negative");
+      }
+      this.initialBackoffNanos = unit.toNanos(backoff);
+      return this;
+    }
+
+    /**
+     * Longest backoff. Defaults to 1 second.
+     */
+    public Builder setMaxBackoff(long backoff, TimeUnit unit) {
+      if (backoff < 0) {
+        throw new IllegalArgumentException("backoff must not be negative");
+      }
+      this.maxBackoffNanos = unit.toNanos(backoff);
+      return this;
+    }
+
+    /**
+     * Factor the backoff grows by with every retry. Defaults to 2.
+     */
+    public Builder setBackoffMultiplier(double backoffMultiplier) {
+      if (backoffMultiplier < 1) {
+        throw new IllegalArgumentException(
+            "backoffMultiplier must be at least 1");
+      }
+      this.backoffMultiplier = backoffMultiplier;
+      return this;
+    }
+
+    /**
+     * Most retries, as a percentage of the calls of a channel, apart from a
+     * burst of 10 retries. Defaults to 10.
+     */
+    public Builder setRetryBudgetPercent(double retryBudgetPercent) {
+      if (retryBudgetPercent < 0) {
+        throw new IllegalArgumentException(
+            "retryBudgetPercent must not be negative");
+      }
+      this.retryBudgetPercent = retryBudgetPercent;
+      return this;
+    }
+
+    /**
+     * Reasons for which calls to methods without their own retryable reasons
+     * are retried. Defaults to {@code SERVER_OVERLOADED}.
+     */
+    public Builder setRetryableReasons(ErrorReason... reasons) {
+      this.retryableReasons = toSet(reasons);
+      return this;
+    }
+
+    /**
+     * Reasons for which calls to the given method are retried, instead of
+     * the default ones.
+     */
+    public Builder setRetryableReasons(MethodDescriptor method,
+        ErrorReason... reasons) {
+      methodRetryableReasons.put(method.getFullName(), toSet(reasons));
+      return this;
+    }
+
+    private static Set<ErrorReason> toSet(ErrorReason... reasons) {
+      Set<ErrorReason> set = EnumSet.noneOf(ErrorReason.class);
+      Collections.addAll(set, reasons);
+      return Collections.unmodifiableSet(set);
+    }
+
+    public RetryPolicy build() {
+      return new RetryPolicy(this);
+    }
+  }
+}
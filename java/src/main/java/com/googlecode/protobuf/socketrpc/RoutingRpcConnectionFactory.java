@@ -0,0 +1,45 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * {@link RpcConnectionFactory} that chooses the server to connect to by the
+ * request, e.g. {@link ConsistentHashRpcConnectionFactory}. Channels created
+ * by {@link RpcChannels} call
+ * {@link #createConnection(MethodDescriptor, Message)} instead of
+ * {@link #createConnection()}.
+ *
+ * @author Shardul Deo
+ */
+public interface RoutingRpcConnectionFactory extends RpcConnectionFactory {
+
+  /**
+   * Create a connection over which the given request can be sent.
+   */
+  Connection createConnection(MethodDescriptor method, Message request)
+      throws UnknownHostException, IOException;
+}
@@ -22,11 +22,19 @@ package com.googlecode.protobuf.socketrpc;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.lang.ref.WeakReference;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
@@ -40,7 +48,12 @@ import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response;
 
 /**
  * {@link RpcChannel} implementation that uses a {@link RpcConnectionFactory} to
- * perform blocking and non-blocking rpcs.
+ * perform blocking and non-blocking rpcs. Failed calls are retried according
+ * to the {@link RetryPolicy}, if there is one. Calls are recorded in
+ * {@link RpcMetrics#getClientMetrics()}, once however many attempts they
+ * took. A call whose deadline passes while it waits for the response fails
+ * with {@code DEADLINE_EXCEEDED}, and is canceled like with
+ * {@link SocketRpcController#startCancel()}.
  *
  * @author Shardul Deo
  */
@@ -49,74 +62,185 @@ class RpcChannelImpl implements RpcChannel, BlockingRpcChannel {
   private final static Logger LOG =
       Logger.getLogger(RpcChannelImpl.class.getName());
 
+  // Shared by all channels since they are never closed, also schedules
+  // retries of non-blocking calls
+  private static final ScheduledExecutorService DEADLINE_TIMER =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "RpcDeadlineTimer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
   private final RpcConnectionFactory connectionFactory;
   private final Executor executor;
+  private final ChannelStats stats = new ChannelStats();
+  private final RetryPolicy retryPolicy;
+  private final RequestBudget retryBudget;
 
   RpcChannelImpl(RpcConnectionFactory connectionFactory, Executor executor) {
+    this(connectionFactory, executor, null);
+  }
+
+  /**
+   * @param retryPolicy Null to never retry calls.
+   */
+  RpcChannelImpl(RpcConnectionFactory connectionFactory, Executor executor,
+      RetryPolicy retryPolicy) {
     this.connectionFactory = connectionFactory;
     this.executor = executor;
+    this.retryPolicy = retryPolicy;
+    this.retryBudget = retryPolicy == null ? null : retryPolicy.newBudget();
   }
 
   @Override
   public void callMethod(MethodDescriptor method, RpcController controller,
-      Message request, final Message responsePrototype,
-      final RpcCallback<Message> done) {
+      Message request, Message responsePrototype, RpcCallback<Message> done) {
     // Must pass in a SocketRpcController
-    final SocketRpcController socketController
-        = (SocketRpcController) controller;
+    call(method, (SocketRpcController) controller, request, responsePrototype,
+        done, false /* alwaysCallback */);
+  }
 
-    // Send request over connection
-    final Connection connection;
-    try {
-      connection = createConnection(socketController);
-    } catch (ServiceException e) {
-      // Call done with null, controller has the error information
-      callbackWithNull(done);
-      return;
+  /**
+   * Call the given method without blocking for the response.
+   *
+   * @param alwaysCallback Whether to call the callback, with a null response,
+   *        even if the server-side implementation did not call the callback.
+   */
+  void call(MethodDescriptor method, SocketRpcController socketController,
+      Message request, Message responsePrototype, RpcCallback<Message> done,
+      boolean alwaysCallback) {
+    stats.callStarted();
+    if (retryBudget != null) {
+      retryBudget.deposit();
     }
+    new Call(method, socketController, request, responsePrototype, done,
+        alwaysCallback).attempt();
+  }
+
+  /**
+   * A non-blocking call, which may take several attempts.
+   */
+  private class Call {
+
+    private final MethodDescriptor method;
+    private final SocketRpcController socketController;
+    private final Message request;
+    private final Message responsePrototype;
+    private final RpcCallback<Message> done;
+    private final boolean alwaysCallback;
+    private final long startNanos = System.nanoTime();
+    private int attempts = 0;
+
+    private Call(MethodDescriptor method, SocketRpcController socketController,
+        Message request, Message responsePrototype, RpcCallback<Message> done,
+        boolean alwaysCallback) {
+      this.method = method;
+      this.socketController = socketController;
+      this.request = request;
+      this.responsePrototype = responsePrototype;
+      this.done = done;
+      this.alwaysCallback = alwaysCallback;
+    }
+
+    /**
+     * Send the request and listen for the response using the executor.
+     */
+    private void attempt() {
+      attempts++;
+      final Connection connection;
+      try {
+        connection = createConnection(method, socketController, request);
+      } catch (ServiceException e) {
+        // Controller has the error information
+        failed(false /* sent */, null);
+        return;
+      }
+      final ScheduledFuture<?> deadlineTimer = watchDeadline(socketController,
+          connection);
 
-    try {
-      sendRpcRequest(method, socketController, request, connection);
-    } catch (ServiceException e) {
-      // Call done with null, controller has the error information
       try {
-        callbackWithNull(done);
+        sendRpcRequest(method, socketController, request, connection);
+      } catch (ServiceException e) {
+        close(connection, socketController, deadlineTimer);
+        failed(false /* sent */, null);
+        return;
+      }
+
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          receive(connection, deadlineTimer);
+        }
+      });
+    }
+
+    private void receive(Connection connection,
+        ScheduledFuture<?> deadlineTimer) {
+      Response rpcResponse = null;
+      Message response = null;
+      try {
+        // Thread blocks here until server sends a response
+        rpcResponse = receiveRpcResponse(socketController, connection);
+        response = handleRpcResponse(responsePrototype, rpcResponse,
+            socketController, connection);
+      } catch (ServiceException e) {
+        // Controller has the error information
       } finally {
-        close(connection);
+        close(connection, socketController, deadlineTimer);
+      }
+      if (socketController.failed()) {
+        failed(true /* sent */, rpcResponse);
+      } else {
+        completed(rpcResponse, response);
       }
-      return;
     }
 
-    // Listen for the response using the executor
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        try {
-          // Thread blocks here until server sends a response
-          Response rpcResponse = receiveRpcResponse(socketController,
-              connection);
-          Message response = handleRpcResponse(responsePrototype, rpcResponse,
-              socketController);
-
-          // Callback if failed or server invoked callback
-          if (socketController.failed() || rpcResponse.getCallback()) {
-            if (done != null) {
-              done.run(response);
-            }
+    /**
+     * Retry the failed attempt after a backoff, or fail the call. No thread
+     * waits for the backoff, the retry is scheduled on the timer and started
+     * on the executor.
+     */
+    private void failed(boolean sent, final Response rpcResponse) {
+      long backoffNanos = getRetryBackoffNanos(method, socketController,
+          attempts, sent);
+      if (backoffNanos < 0) {
+        completed(rpcResponse, null);
+        return;
+      }
+      final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+          retrying(socketController);
+          attempt();
+        }
+      };
+      DEADLINE_TIMER.schedule(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            executor.execute(retry);
+          } catch (RejectedExecutionException e) {
+            // Executor is shutting down, the call keeps its error
+            completed(rpcResponse, null);
           }
-        } catch (ServiceException e) {
-          // Call done with null, controller has the error information
-          callbackWithNull(done);
-        } finally {
-          close(connection);
         }
-      }
-    });
-  }
+      }, backoffNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void completed(Response rpcResponse, Message response) {
+      recordCall(stats, method, startNanos, socketController, request,
+          rpcResponse);
 
-  private static void callbackWithNull(RpcCallback<Message> done) {
-    if (done != null) {
-      done.run(null);
+      // Callback if failed, if server invoked callback or if asked to
+      if (socketController.failed() || rpcResponse.getCallback()
+          || alwaysCallback) {
+        if (done != null) {
+          done.run(response);
+        }
+      }
     }
   }
 
@@ -126,31 +250,250 @@ class RpcChannelImpl implements RpcChannel, BlockingRpcChannel {
       throws ServiceException {
     // Must pass in a SocketRpcController
     SocketRpcController socketController = (SocketRpcController) controller;
-    final Connection connection = createConnection(socketController);
+    long startNanos = System.nanoTime();
+    stats.callStarted();
+    if (retryBudget != null) {
+      retryBudget.deposit();
+    }
+    Response rpcResponse = null;
     try {
-      sendRpcRequest(method, socketController, request, connection);
-      Response rpcResponse = receiveRpcResponse(socketController, connection);
-      return handleRpcResponse(responsePrototype, rpcResponse,
-          socketController);
+      for (int attempt = 1;; attempt++) {
+        rpcResponse = null;
+        boolean sent = false;
+        try {
+          final Connection connection = createConnection(method,
+              socketController, request);
+          ScheduledFuture<?> deadlineTimer = watchDeadline(socketController,
+              connection);
+          try {
+            sendRpcRequest(method, socketController, request, connection);
+            sent = true;
+            rpcResponse = receiveRpcResponse(socketController, connection);
+            return handleRpcResponse(responsePrototype, rpcResponse,
+                socketController, connection);
+          } finally {
+            close(connection, socketController, deadlineTimer);
+          }
+        } catch (ServiceException e) {
+          long backoffNanos = getRetryBackoffNanos(method, socketController,
+              attempt, sent);
+          if (backoffNanos < 0 || !backOff(socketController, backoffNanos)) {
+            throw e;
+          }
+        }
+      }
     } finally {
-      close(connection);
+      recordCall(stats, method, startNanos, socketController, request,
+          rpcResponse);
+    }
+  }
+
+  /**
+   * @param attempts Number of attempts made so far, the last one failed.
+   * @param sent Whether the request of the failed attempt was sent.
+   * @return Time to wait before retrying the failed call, or -1 if it must
+   *         not be retried.
+   */
+  private long getRetryBackoffNanos(MethodDescriptor method,
+      SocketRpcController socketController, int attempts, boolean sent) {
+    if (retryPolicy == null || attempts >= retryPolicy.getMaxAttempts()
+        || socketController.isCanceled()
+        || !retryPolicy.isRetryable(method, socketController.errorReason(),
+            sent)) {
+      return -1;
+    }
+    long backoffNanos = retryPolicy.getBackoffNanos(attempts);
+    if (socketController.getTimeRemaining(TimeUnit.NANOSECONDS)
+        <= backoffNanos || !retryBudget.tryWithdraw()) {
+      return -1;
+    }
+    return backoffNanos;
+  }
+
+  /**
+   * Wait before retrying a failed blocking call and clear its error.
+   *
+   * @return false if interrupted, the call then keeps its error.
+   */
+  private boolean backOff(SocketRpcController socketController,
+      long backoffNanos) {
+    try {
+      TimeUnit.NANOSECONDS.sleep(backoffNanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    retrying(socketController);
+    return true;
+  }
+
+  /**
+   * Clear the error of a failed call that is about to be retried.
+   */
+  private void retrying(SocketRpcController socketController) {
+    stats.callRetried();
+    socketController.clearFailure();
+  }
+
+  /**
+   * Record a completed call in the client metrics.
+   *
+   * @param rpcResponse Null if no response was received.
+   */
+  static void recordCall(ChannelStats stats, MethodDescriptor method,
+      long startNanos, SocketRpcController socketController, Message request,
+      Response rpcResponse) {
+    ErrorReason reason = null;
+    if (socketController.failed()) {
+      reason = socketController.errorReason() == null
+          ? ErrorReason.RPC_FAILED : socketController.errorReason();
+    }
+    stats.callCompleted(reason != null);
+    RpcMetrics.getClientMetrics().getMethodMetrics(method.getFullName())
+        .record(System.nanoTime() - startNanos, reason,
+            request.getSerializedSize(), rpcResponse == null ? 0
+                : rpcResponse.getResponseProto().size());
+  }
+
+  /**
+   * Publish this channel over JMX until it is garbage collected.
+   */
+  void registerMBean() {
+    RpcMBeans.registerChannel(new ChannelBean(this), this);
+  }
+
+  /**
+   * Publishes the state of a channel over JMX without keeping it reachable.
+   */
+  private static class ChannelBean implements RpcChannelMXBean {
+
+    private final WeakReference<RpcChannelImpl> channel;
+    private final ChannelStats stats;
+    private final RpcConnectionFactory connectionFactory;
+
+    private ChannelBean(RpcChannelImpl channel) {
+      this.channel = new WeakReference<RpcChannelImpl>(channel);
+      this.stats = channel.stats;
+      this.connectionFactory = channel.connectionFactory;
+    }
+
+    @Override
+    public String getType() {
+      return RpcChannelImpl.class.getSimpleName();
+    }
+
+    @Override
+    public String getTarget() {
+      return connectionFactory.toString();
+    }
+
+    @Override
+    public long getCallsStarted() {
+      return stats.getStarted();
+    }
+
+    @Override
+    public long getCallsFailed() {
+      return stats.getFailed();
+    }
+
+    @Override
+    public long getCallsInFlight() {
+      return stats.getInFlight();
+    }
+
+    @Override
+    public long getCallsRetried() {
+      return stats.getRetried();
+    }
+
+    @Override
+    public int getOpenConnections() {
+      if (connectionFactory instanceof PooledRpcConnectionFactory) {
+        return ((PooledRpcConnectionFactory) connectionFactory)
+            .getOpenConnections();
+      }
+      return -1;
+    }
+
+    @Override
+    public boolean isClosed() {
+      // Channel can't be closed, only collected
+      return channel.get() == null;
     }
   }
 
-  private Connection createConnection(SocketRpcController socketController)
+  private Connection createConnection(MethodDescriptor method,
+      SocketRpcController socketController, Message request)
       throws ServiceException {
+    checkCanStart(socketController);
+    final Connection connection;
     try {
-      return connectionFactory.createConnection();
+      if (connectionFactory instanceof RoutingRpcConnectionFactory) {
+        connection = ((RoutingRpcConnectionFactory) connectionFactory)
+            .createConnection(method, request);
+      } else {
+        connection = connectionFactory.createConnection();
+      }
     } catch (UnknownHostException e) {
       return handleError(socketController, ErrorReason.UNKNOWN_HOST,
           "Could not find host: " + e.getMessage(), e);
+    } catch (CircuitOpenException e) {
+      // Expected while servers are down, no need for a stack trace
+      return handleError(socketController, ErrorReason.CIRCUIT_OPEN,
+          e.getMessage(), null);
     } catch (IOException e) {
       return handleError(socketController, ErrorReason.IO_ERROR, String.format(
           "Error creating connection using factory %s", connectionFactory), e);
     }
+    socketController.setCancelHook(new Runnable() {
+      @Override
+      public void run() {
+        cancel(connection);
+      }
+    });
+    return connection;
   }
 
-  private void close(Connection connection) {
+  /**
+   * Stop waiting for the response on the given connection once the deadline
+   * of the call passes, making the call fail.
+   *
+   * @return Timer to cancel once the call completes, or null if the call has
+   *         no deadline.
+   */
+  private static ScheduledFuture<?> watchDeadline(
+      SocketRpcController socketController, final Connection connection) {
+    return scheduleDeadline(socketController, new Runnable() {
+      @Override
+      public void run() {
+        cancel(connection);
+      }
+    });
+  }
+
+  /**
+   * Run the given task when the deadline of the call passes.
+   *
+   * @return Timer to cancel once the call completes, or null if the call has
+   *         no deadline.
+   */
+  static ScheduledFuture<?> scheduleDeadline(
+      SocketRpcController socketController, Runnable task) {
+    if (!socketController.hasDeadline()) {
+      return null;
+    }
+    return DEADLINE_TIMER.schedule(task,
+        socketController.getTimeRemaining(TimeUnit.NANOSECONDS),
+        TimeUnit.NANOSECONDS);
+  }
+
+  private void close(Connection connection,
+      SocketRpcController socketController, ScheduledFuture<?> deadlineTimer) {
+    if (deadlineTimer != null) {
+      deadlineTimer.cancel(false);
+    }
+    socketController.setCancelHook(null);
     try {
       connection.close();
     } catch (IOException e) {
@@ -158,6 +501,38 @@ class RpcChannelImpl implements RpcChannel, BlockingRpcChannel {
     }
   }
 
+  /**
+   * Stop waiting for the response on the given connection, telling the server
+   * if the connection is shared.
+   */
+  static void cancel(Connection connection) {
+    if (connection instanceof CancellableConnection) {
+      ((CancellableConnection) connection).cancel();
+      return;
+    }
+    try {
+      // Makes a thread reading from it fail
+      connection.close();
+    } catch (IOException e) {
+      // It's ok
+    }
+  }
+
+  /**
+   * Create the request that cancels the one with the given id. The required
+   * fields are set, to empty values, so that servers that don't know about
+   * cancel requests can still parse it.
+   */
+  static SocketRpcProtos.Request createCancelRequest(long requestId) {
+    return SocketRpcProtos.Request.newBuilder()
+        .setServiceName("")
+        .setMethodName("")
+        .setRequestProto(ByteString.EMPTY)
+        .setRequestId(requestId)
+        .setCancel(true)
+        .build();
+  }
+
   private void sendRpcRequest(MethodDescriptor method,
       SocketRpcController socketController, Message request,
       Connection connection) throws ServiceException {
@@ -167,17 +542,21 @@ class RpcChannelImpl implements RpcChannel, BlockingRpcChannel {
           "Request is uninitialized", null);
     }
 
-    // Create RPC request protobuf
-    SocketRpcProtos.Request rpcRequest = SocketRpcProtos.Request.newBuilder()
-        .setRequestProto(request.toByteString())
-        .setServiceName(method.getService().getFullName())
-        .setMethodName(method.getName())
-        .build();
+    // Create RPC request protobuf, request is serialized straight into it
+    RequestEnvelope rpcRequest = createRpcRequest(method, request,
+        socketController);
 
     // Send request
     try {
       connection.sendProtoMessage(rpcRequest);
     } catch (IOException e) {
+      if (socketController.isCanceled()) {
+        handleError(socketController, ErrorReason.CANCELED, "Canceled", null);
+      }
+      if (socketController.isDeadlineExceeded()) {
+        handleError(socketController, ErrorReason.DEADLINE_EXCEEDED,
+            "Deadline exceeded while sending request", null);
+      }
       handleError(socketController, ErrorReason.IO_ERROR, String.format(
           "Error writing over connection %s", connection), e);
     }
@@ -189,19 +568,90 @@ class RpcChannelImpl implements RpcChannel, BlockingRpcChannel {
       // Read and handle response
       SocketRpcProtos.Response.Builder builder = SocketRpcProtos.Response
           .newBuilder();
-      connection.receiveProtoMessage(builder);
+      if (connection instanceof InProcessConnection) {
+        // May keep the response message aside instead of serializing it
+        ((InProcessConnection) connection).receiveResponse(builder);
+      } else {
+        connection.receiveProtoMessage(builder);
+      }
       if (!builder.isInitialized()) {
         return handleError(socketController, ErrorReason.BAD_RESPONSE_PROTO,
             "Bad response from server", null);
       }
       return builder.build();
     } catch (IOException e) {
+      if (socketController.isCanceled()) {
+        return handleError(socketController, ErrorReason.CANCELED, "Canceled",
+            null);
+      }
+      if (socketController.isDeadlineExceeded()) {
+        return handleError(socketController, ErrorReason.DEADLINE_EXCEEDED,
+            "Deadline exceeded while waiting for response", null);
+      }
       return handleError(socketController, ErrorReason.IO_ERROR, String.format(
           "Error reading over connection %s", connection), e);
     }
   }
 
-  private Message handleRpcResponse(Message responsePrototype,
+  /**
+   * Fail the call if it was canceled or its deadline has already passed,
+   * since the server would not handle the request anyway.
+   */
+  static void checkCanStart(SocketRpcController socketController)
+      throws ServiceException {
+    if (socketController.isCanceled()) {
+      handleError(socketController, ErrorReason.CANCELED,
+          "Canceled before sending request", null);
+    }
+    if (socketController.isDeadlineExceeded()) {
+      handleError(socketController, ErrorReason.DEADLINE_EXCEEDED,
+          "Deadline exceeded before sending request", null);
+    }
+  }
+
+  /**
+   * Create the RPC request protobuf, with the time left until the deadline if
+   * the call has one.
+   */
+  static RequestEnvelope createRpcRequest(MethodDescriptor method,
+      Message request, SocketRpcController socketController) {
+    RequestEnvelope rpcRequest = new RequestEnvelope(method, request);
+    if (socketController.hasDeadline()) {
+      rpcRequest = rpcRequest.withTimeoutMillis(
+          socketController.getTimeoutMillis());
+    }
+    return rpcRequest;
+  }
+
+  /**
+   * Get the response message out of the RPC response, or the one an
+   * in-process connection handed over by reference.
+   */
+  private static Message handleRpcResponse(Message responsePrototype,
+      SocketRpcProtos.Response rpcResponse,
+      SocketRpcController socketController, Connection connection)
+      throws ServiceException {
+    if (connection instanceof InProcessConnection) {
+      Message response = ((InProcessConnection) connection).takeResponse();
+      if (response != null && !rpcResponse.hasError()) {
+        if (response.getDescriptorForType()
+            == responsePrototype.getDescriptorForType()) {
+          return response;
+        }
+        // Service responded with another type, let it be parsed as usual
+        rpcResponse = rpcResponse.toBuilder()
+            .setResponseProto(response.toByteString()).build();
+      }
+    }
+    return handleRpcResponse(responsePrototype, rpcResponse,
+        socketController);
+  }
+
+  /**
+   * Get the response message out of the RPC response, failing the controller
+   * if the RPC failed.
+   */
+  static Message handleRpcResponse(Message responsePrototype,
       SocketRpcProtos.Response rpcResponse,
       SocketRpcController socketController)
       throws ServiceException {
@@ -232,7 +682,7 @@ class RpcChannelImpl implements RpcChannel, BlockingRpcChannel {
     }
   }
 
-  private <T> T handleError(SocketRpcController socketController,
+  static <T> T handleError(SocketRpcController socketController,
       ErrorReason reason, String msg, Exception e)
       throws ServiceException {
     if (e == null) {
@@ -0,0 +1,72 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+/**
+ * Management interface of a channel created by {@link RpcChannels},
+ * registered as
+ * {@code com.googlecode.protobuf.socketrpc:type=RpcChannel,name=channel-N}
+ * until the channel is closed or garbage collected. Attributes are computed
+ * when they are read.
+ *
+ * @author Shardul Deo
+ */
+public interface RpcChannelMXBean {
+
+  /**
+   * @return Kind of channel, e.g. {@code AsyncRpcChannel}.
+   */
+  String getType();
+
+  /**
+   * @return Server the channel connects to, or its connection factory.
+   */
+  String getTarget();
+
+  /**
+   * @return Number of calls made so far.
+   */
+  long getCallsStarted();
+
+  /**
+   * @return Number of calls that failed so far.
+   */
+  long getCallsFailed();
+
+  /**
+   * @return Number of calls waiting for a response.
+   */
+  long getCallsInFlight();
+
+  /**
+   * @return Number of times calls were retried so far, see
+   *         {@link RetryPolicy}.
+   */
+  long getCallsRetried();
+
+  /**
+   * @return Number of open connections, or -1 if the connection factory
+   *         doesn't keep track of them.
+   */
+  int getOpenConnections();
+
+  boolean isClosed();
+}
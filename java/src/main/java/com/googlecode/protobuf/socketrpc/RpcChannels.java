@@ -20,6 +20,7 @@
 
 package com.googlecode.protobuf.socketrpc;
 
+import java.util.List;
 import java.util.concurrent.Executor;
 
 import com.google.protobuf.BlockingRpcChannel;
@@ -33,7 +34,10 @@ import com.google.protobuf.RpcChannel;
  * multithreaded (since a new socket is created for every RPC).
  * <p>
  * All channels created using this class MUST be used with
- * {@link SocketRpcController}.
+ * {@link SocketRpcController}. Channels can retry failed calls, see
+ * {@link RetryPolicy}. Each channel is published over JMX, see
+ * {@link RpcChannelMXBean}, and calls are recorded in
+ * {@link RpcMetrics#getClientMetrics()}.
  *
  * @see SocketRpcConnectionFactory
  * @see SocketRpcController
@@ -66,7 +70,51 @@ public final class RpcChannels {
    */
   public static RpcChannel newRpcChannel(
       RpcConnectionFactory connectionFactory, Executor executor) {
-    return new RpcChannelImpl(connectionFactory, executor);
+    return register(new RpcChannelImpl(connectionFactory, executor));
+  }
+
+  /**
+   * Create a {@link RpcChannel} like
+   * {@link #newRpcChannel(RpcConnectionFactory, Executor)} that retries failed
+   * calls according to the given policy. Backoffs are waited for using the
+   * executor, never in the thread calling the RPC method.
+   */
+  public static RpcChannel newRpcChannel(
+      RpcConnectionFactory connectionFactory, Executor executor,
+      RetryPolicy retryPolicy) {
+    return register(new RpcChannelImpl(connectionFactory, executor,
+        retryPolicy));
+  }
+
+  /**
+   * Create a {@link RpcChannel} like
+   * {@link #newRpcChannel(RpcConnectionFactory, Executor)} that listens for
+   * each RPC response in its own virtual thread, so waiting for responses
+   * only costs a small amount of memory. If the JDK does not support virtual
+   * threads, platform threads are used instead.
+   *
+   * @see RpcExecutors#newVirtualThreadPerTaskExecutor()
+   */
+  public static RpcChannel newVirtualThreadRpcChannel(
+      RpcConnectionFactory connectionFactory) {
+    return register(new RpcChannelImpl(connectionFactory,
+        RpcExecutors.newVirtualThreadPerTaskExecutor()));
+  }
+
+  /**
+   * Create an {@link AsyncRpcChannel} that connects to the RPC server at the
+   * given host and port using a non-blocking socket, and uses the given
+   * {@link Executor} to run callbacks. Unlike channels created with
+   * {@link #newRpcChannel(RpcConnectionFactory, Executor)}, no thread waits
+   * for the response of an RPC.
+   * <p>
+   * See {@link AsyncRpcChannel} for the servers it can be used with.
+   */
+  public static AsyncRpcChannel newAsyncRpcChannel(String host, int port,
+      Executor executor) {
+    AsyncRpcChannel channel = new AsyncRpcChannel(host, port, executor);
+    channel.registerMBean();
+    return channel;
   }
 
   /**
@@ -75,6 +123,33 @@ public final class RpcChannels {
    */
   public static BlockingRpcChannel newBlockingRpcChannel(
       RpcConnectionFactory connectionFactory) {
-    return new RpcChannelImpl(connectionFactory, SAME_THREAD_EXECUTOR);
+    return register(new RpcChannelImpl(connectionFactory,
+        SAME_THREAD_EXECUTOR));
+  }
+
+  /**
+   * Create a {@link BlockingRpcChannel} like
+   * {@link #newBlockingRpcChannel(RpcConnectionFactory)} that retries failed
+   * calls according to the given policy.
+   */
+  public static BlockingRpcChannel newBlockingRpcChannel(
+      RpcConnectionFactory connectionFactory, RetryPolicy retryPolicy) {
+    return register(new RpcChannelImpl(connectionFactory,
+        SAME_THREAD_EXECUTOR, retryPolicy));
+  }
+
+  /**
+   * Create a {@link ScatterGather} that calls methods on all of the given
+   * shards at once. Use {@link AsyncRpcChannel} shards so that no thread
+   * waits for their responses.
+   */
+  public static ScatterGather newScatterGather(
+      List<? extends RpcChannel> shards) {
+    return new ScatterGather(shards);
+  }
+
+  private static RpcChannelImpl register(RpcChannelImpl channel) {
+    channel.registerMBean();
+    return channel;
   }
 }
@@ -0,0 +1,105 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Utility class to create executors for {@link RpcServer} and the channels
+ * created by {@link RpcChannels}.
+ * <p>
+ * Both block a thread on socket I/O for every RPC in progress. On a JDK that
+ * has virtual threads (Java 21+), {@link #newVirtualThreadPerTaskExecutor()}
+ * runs every task in its own virtual thread, so the blocking code scales to a
+ * very large number of concurrent RPCs. The connection factories of this
+ * package don't hold monitors while doing I/O, so virtual threads are not
+ * pinned to their carrier threads while blocked.
+ *
+ * @author Shardul Deo
+ */
+public final class RpcExecutors {
+
+  private static final Logger LOG =
+      Logger.getLogger(RpcExecutors.class.getName());
+
+  // Executors.newVirtualThreadPerTaskExecutor(), null if not available
+  private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR =
+      findVirtualThreadMethod();
+
+  private RpcExecutors() {
+  }
+
+  private static Method findVirtualThreadMethod() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return Whether this JDK has virtual threads.
+   */
+  public static boolean isVirtualThreadSupported() {
+    return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+  }
+
+  /**
+   * Create an {@link ExecutorService} that runs every task in a new virtual
+   * thread. If virtual threads are not supported, it runs every task in a
+   * daemon platform thread instead, reusing idle threads.
+   */
+  public static ExecutorService newVirtualThreadPerTaskExecutor() {
+    if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+      try {
+        return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR
+            .invoke(null);
+      } catch (IllegalAccessException e) {
+        LOG.log(Level.WARNING, "Could not create virtual thread executor", e);
+      } catch (InvocationTargetException e) {
+        LOG.log(Level.WARNING, "Could not create virtual thread executor", e);
+      }
+    }
+    return Executors.newCachedThreadPool(new DaemonThreadFactory());
+  }
+
+  /**
+   * Creates daemon threads so that idle ones don't keep the JVM running.
+   */
+  private static class DaemonThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "RpcExecutor-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
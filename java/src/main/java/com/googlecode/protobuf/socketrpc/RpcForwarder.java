@@ -20,10 +20,14 @@
 
 package com.googlecode.protobuf.socketrpc;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.google.protobuf.BlockingService;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
@@ -34,8 +38,6 @@ import com.google.protobuf.Descriptors.MethodDescriptor;
 import com.google.protobuf.Descriptors.ServiceDescriptor;
 import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
 import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Request;
-import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response;
-import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response.Builder;
 
 /**
  * Proxy that handles the RPC received by the server and forwards it to the
@@ -44,29 +46,180 @@ import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response.Builder;
  * Both the {@link #doRpc(Request, RpcCallback)} and
  * {@link #doBlockingRpc(Request)} methods try to find a matching
  * {@link BlockingService} first and a matching {@link Service} second.
+ * <p>
+ * Every registered method gets a small integer id, which clients can learn
+ * with a handshake RPC to {@link #HANDSHAKE_SERVICE} and then send instead of
+ * the service and method names. A method keeps its id even if its service is
+ * unregistered and registered again.
  *
  * @author Shardul Deo
  */
 class RpcForwarder {
 
+  /**
+   * Reserved service name of the handshake RPC, which returns a
+   * {@link SocketRpcProtos.HandshakeResponse} with the method ids.
+   */
+  static final String HANDSHAKE_SERVICE = "protobuf.socketrpc.Handshake";
+
+  // Registered services, only changed while holding the lock on this
   private final Map<String, Service> serviceMap =
     new HashMap<String, Service>();
   private final Map<String, BlockingService> blockingServiceMap =
     new HashMap<String, BlockingService>();
+  private final Map<String, Integer> methodIds = new HashMap<String, Integer>();
+
+  // Immutable, replaced whenever services are registered or unregistered
+  private volatile Map<String, ServiceEntry> dispatchTable =
+      Collections.emptyMap();
+  // Same entries indexed by method id, ids start at 1
+  private volatile MethodEntry[] methodTable = new MethodEntry[1];
 
   /**
-   * Register an RPC service implementation to this forwarder.
+   * Register an RPC service implementation to this forwarder. This can be done
+   * while RPCs are being forwarded.
    */
-  public void registerService(Service service) {
+  public synchronized void registerService(Service service) {
     serviceMap.put(service.getDescriptorForType().getFullName(), service);
+    rebuildDispatchTable();
   }
 
   /**
-   * Register an RPC blocking service implementation to this forwarder.
+   * Register an RPC blocking service implementation to this forwarder. This
+   * can be done while RPCs are being forwarded.
    */
-  public void registerBlockingService(BlockingService service) {
+  public synchronized void registerBlockingService(BlockingService service) {
     blockingServiceMap.put(service.getDescriptorForType().getFullName(),
         service);
+    rebuildDispatchTable();
+  }
+
+  /**
+   * Unregister an RPC service implementation from this forwarder. RPCs already
+   * forwarded to it are not affected.
+   */
+  public synchronized void unregisterService(Service service) {
+    String name = service.getDescriptorForType().getFullName();
+    if (serviceMap.get(name) == service) {
+      serviceMap.remove(name);
+      rebuildDispatchTable();
+    }
+  }
+
+  /**
+   * Unregister an RPC blocking service implementation from this forwarder.
+   * RPCs already forwarded to it are not affected.
+   */
+  public synchronized void unregisterBlockingService(BlockingService service) {
+    String name = service.getDescriptorForType().getFullName();
+    if (blockingServiceMap.get(name) == service) {
+      blockingServiceMap.remove(name);
+      rebuildDispatchTable();
+    }
+  }
+
+  /**
+   * Resolve every method of every registered service up front, so that
+   * forwarding an RPC only needs two lookups and no locking.
+   */
+  private void rebuildDispatchTable() {
+    Map<String, ServiceEntry> table = new HashMap<String, ServiceEntry>();
+    for (Service service : serviceMap.values()) {
+      ServiceEntry entry = new ServiceEntry(service.getDescriptorForType());
+      for (MethodDescriptor method : entry.descriptor.getMethods()) {
+        entry.methods.put(method.getName(), new MethodEntry(method,
+            getMethodId(method), service.getRequestPrototype(method), null,
+            service));
+      }
+      table.put(entry.descriptor.getFullName(), entry);
+    }
+    // Blocking services take precedence
+    for (BlockingService service : blockingServiceMap.values()) {
+      ServiceEntry entry = new ServiceEntry(service.getDescriptorForType());
+      for (MethodDescriptor method : entry.descriptor.getMethods()) {
+        entry.methods.put(method.getName(), new MethodEntry(method,
+            getMethodId(method), service.getRequestPrototype(method), service,
+            null));
+      }
+      table.put(entry.descriptor.getFullName(), entry);
+    }
+
+    MethodEntry[] methods = new MethodEntry[methodIds.size() + 1];
+    for (ServiceEntry service : table.values()) {
+      for (MethodEntry method : service.methods.values()) {
+        methods[method.id] = method;
+      }
+    }
+    methodTable = methods;
+    dispatchTable = Collections.unmodifiableMap(table);
+  }
+
+  /**
+   * Get the id of the given method, assigning the next one if it doesn't have
+   * one yet.
+   */
+  private int getMethodId(MethodDescriptor method) {
+    Integer id = methodIds.get(method.getFullName());
+    if (id == null) {
+      id = methodIds.size() + 1;
+      methodIds.put(method.getFullName(), id);
+    }
+    return id;
+  }
+
+  /**
+   * @return Full names of the registered services, sorted.
+   */
+  List<String> getServiceNames() {
+    List<String> names = new ArrayList<String>(dispatchTable.keySet());
+    Collections.sort(names);
+    return names;
+  }
+
+  /**
+   * Get the request prototype of the given method, so that requests for it can
+   * be parsed while being read.
+   *
+   * @return null if there is no such service or method.
+   */
+  Message getRequestPrototype(String serviceName, String methodName) {
+    ServiceEntry service = dispatchTable.get(serviceName);
+    if (service == null) {
+      return null;
+    }
+    MethodEntry method = service.methods.get(methodName);
+    return method == null ? null : method.requestPrototype;
+  }
+
+  /**
+   * Get the request prototype of the method with the given id.
+   *
+   * @return null if there is no such method.
+   */
+  Message getRequestPrototype(int methodId) {
+    MethodEntry[] methods = methodTable;
+    if (methodId <= 0 || methodId >= methods.length
+        || methods[methodId] == null) {
+      return null;
+    }
+    return methods[methodId].requestPrototype;
+  }
+
+  /**
+   * Get the full name of the method the request is for, without resolving
+   * anything that isn't already in the dispatch table.
+   *
+   * @return null if there is no such method.
+   */
+  String getMethodName(RequestDecoder rpcRequest) {
+    if (isHandshake(rpcRequest)) {
+      return HANDSHAKE_SERVICE;
+    }
+    try {
+      return getMethod(rpcRequest).descriptor.getFullName();
+    } catch (RpcException e) {
+      return null;
+    }
   }
 
   /**
@@ -75,26 +228,39 @@ class RpcForwarder {
    *
    * @throws RpcException If there was some error executing the RPC.
    */
-  public SocketRpcProtos.Response doBlockingRpc(
+  public ResponseEnvelope doBlockingRpc(
       SocketRpcProtos.Request rpcRequest) throws RpcException {
-    // Get the service, first try BlockingService
-    BlockingService blockingService = blockingServiceMap.get(
-        rpcRequest.getServiceName());
-    if (blockingService != null) {
-      return forwardToBlockingService(rpcRequest, blockingService);
-    }
+    return doBlockingRpc(RequestDecoder.forRequest(rpcRequest));
+  }
 
-    // Now try Service
-    Service service = serviceMap.get(rpcRequest.getServiceName());
-    if (service == null) {
-      throw new RpcException(ErrorReason.SERVICE_NOT_FOUND,
-          "Could not find service: " + rpcRequest.getServiceName(), null);
+  /**
+   * Handle the blocking RPC request decoded by a {@link RequestDecoder} by
+   * forwarding it to the correct service/method.
+   *
+   * @throws RpcException If there was some error executing the RPC.
+   */
+  public ResponseEnvelope doBlockingRpc(RequestDecoder rpcRequest)
+      throws RpcException {
+    return doBlockingRpc(rpcRequest, newController(rpcRequest));
+  }
+
+  /**
+   * Like {@link #doBlockingRpc(RequestDecoder)}, passing the given controller
+   * to the service.
+   */
+  ResponseEnvelope doBlockingRpc(RequestDecoder rpcRequest,
+      SocketRpcController socketController) throws RpcException {
+    if (isHandshake(rpcRequest)) {
+      return createHandshakeResponse();
+    }
+    MethodEntry method = getMethod(rpcRequest);
+    if (method.blockingService != null) {
+      return forwardToBlockingService(rpcRequest, method, socketController);
     }
 
     // Call service using an instant callback
     Callback<Message> callback = new Callback<Message>();
-    SocketRpcController socketController = new SocketRpcController();
-    forwardToService(rpcRequest, callback, service, socketController);
+    forwardToService(rpcRequest, callback, method, socketController);
 
     // Build and return response (callback invocation is optional)
     return createRpcResponse(callback.response, callback.invoked,
@@ -108,106 +274,177 @@ class RpcForwarder {
    * @throws RpcException If there was some error executing the RPC.
    */
   public void doRpc(SocketRpcProtos.Request rpcRequest,
-      final RpcCallback<SocketRpcProtos.Response> rpcCallback)
-      throws RpcException {
+      RpcCallback<ResponseEnvelope> rpcCallback) throws RpcException {
+    doRpc(RequestDecoder.forRequest(rpcRequest), rpcCallback);
+  }
 
-    // Get the service, first try BlockingService
-    BlockingService blockingService = blockingServiceMap.get(
-        rpcRequest.getServiceName());
-    if (blockingService != null) {
-      Response response = forwardToBlockingService(rpcRequest, blockingService);
-      rpcCallback.run(response);
+  /**
+   * Handle the the non-blocking RPC request decoded by a
+   * {@link RequestDecoder} by forwarding it to the correct service/method.
+   *
+   * @throws RpcException If there was some error executing the RPC.
+   */
+  public void doRpc(RequestDecoder rpcRequest,
+      RpcCallback<ResponseEnvelope> rpcCallback) throws RpcException {
+    doRpc(rpcRequest, newController(rpcRequest), rpcCallback);
+  }
+
+  /**
+   * Like {@link #doRpc(RequestDecoder, RpcCallback)}, passing the given
+   * controller to the service.
+   */
+  void doRpc(RequestDecoder rpcRequest,
+      final SocketRpcController socketController,
+      final RpcCallback<ResponseEnvelope> rpcCallback) throws RpcException {
+    if (isHandshake(rpcRequest)) {
+      rpcCallback.run(createHandshakeResponse());
       return;
     }
-
-    // Now try Service
-    Service service = serviceMap.get(rpcRequest.getServiceName());
-    if (service == null) {
-      throw new RpcException(ErrorReason.SERVICE_NOT_FOUND,
-          "Could not find service: " + rpcRequest.getServiceName(), null);
+    MethodEntry method = getMethod(rpcRequest);
+    if (method.blockingService != null) {
+      ResponseEnvelope response = forwardToBlockingService(rpcRequest,
+          method, socketController);
+      rpcCallback.run(response);
+      return;
     }
 
     // Call service using wrapper around rpcCallback
-    final SocketRpcController socketController = new SocketRpcController();
     RpcCallback<Message> callback = new RpcCallback<Message>() {
       @Override
       public void run(Message response) {
         rpcCallback.run(createRpcResponse(response, true, socketController));
       }
     };
-    forwardToService(rpcRequest, callback, service, socketController);
+    forwardToService(rpcRequest, callback, method, socketController);
   }
 
-  private Response forwardToBlockingService(Request rpcRequest,
-      BlockingService blockingService) throws RpcException {
-    // Get matching method
-    MethodDescriptor method = getMethod(rpcRequest,
-        blockingService.getDescriptorForType());
+  /**
+   * Create the controller passed to the service, with the request's deadline.
+   */
+  static SocketRpcController newController(RequestDecoder rpcRequest) {
+    SocketRpcController socketController = new SocketRpcController();
+    if (rpcRequest.hasTimeout()) {
+      socketController.setDeadlineNanos(rpcRequest.getDeadlineNanos());
+    }
+    return socketController;
+  }
 
+  private ResponseEnvelope forwardToBlockingService(RequestDecoder rpcRequest,
+      MethodEntry method, SocketRpcController socketController)
+      throws RpcException {
     // Create request for method
-    Message request = getRequestProto(rpcRequest,
-        blockingService.getRequestPrototype(method));
+    Message request = getRequestProto(rpcRequest, method.requestPrototype);
 
     // Call method
-    SocketRpcController socketController = new SocketRpcController();
     try {
-      Message response = blockingService.callBlockingMethod(method,
-          socketController, request);
+      Message response = method.blockingService.callBlockingMethod(
+          method.descriptor, socketController, request);
       return createRpcResponse(response, true, socketController);
     } catch (ServiceException e) {
       throw new RpcException(ErrorReason.RPC_FAILED, e.getMessage(), e);
     } catch (RuntimeException e) {
       throw new RpcException(ErrorReason.RPC_ERROR,
-          "Error running method " + method.getFullName(), e);
+          "Error running method " + method.descriptor.getFullName(), e);
     }
   }
 
-  private void forwardToService(SocketRpcProtos.Request rpcRequest,
-      RpcCallback<Message> callback, Service service,
+  private void forwardToService(RequestDecoder rpcRequest,
+      RpcCallback<Message> callback, MethodEntry method,
       RpcController socketController) throws RpcException {
-    // Get matching method
-    MethodDescriptor method = getMethod(rpcRequest,
-        service.getDescriptorForType());
-
     // Create request for method
-    Message request = getRequestProto(rpcRequest,
-        service.getRequestPrototype(method));
+    Message request = getRequestProto(rpcRequest, method.requestPrototype);
 
     // Call method
     try {
-      service.callMethod(method, socketController, request, callback);
+      method.service.callMethod(method.descriptor, socketController, request,
+          callback);
     } catch (RuntimeException e) {
       throw new RpcException(ErrorReason.RPC_ERROR,
-          "Error running method " + method.getFullName(), e);
+          "Error running method " + method.descriptor.getFullName(), e);
+    }
+  }
+
+  private static boolean isHandshake(RequestDecoder rpcRequest) {
+    return !rpcRequest.hasMethodId()
+        && HANDSHAKE_SERVICE.equals(rpcRequest.getServiceName());
+  }
+
+  /**
+   * Create the response of the handshake RPC, listing the ids of all currently
+   * registered methods.
+   */
+  private ResponseEnvelope createHandshakeResponse() {
+    SocketRpcProtos.HandshakeResponse.Builder builder =
+        SocketRpcProtos.HandshakeResponse.newBuilder();
+    for (MethodEntry method : methodTable) {
+      if (method != null) {
+        builder.addMethod(SocketRpcProtos.MethodId.newBuilder()
+            .setServiceName(method.descriptor.getService().getFullName())
+            .setMethodName(method.descriptor.getName())
+            .setId(method.id));
+      }
     }
+    return new ResponseEnvelope(builder.build(), true, null, null);
   }
 
   /**
-   * Get matching method.
+   * Get matching method from the dispatch table.
    */
-  private MethodDescriptor getMethod(SocketRpcProtos.Request rpcRequest,
-      ServiceDescriptor descriptor) throws RpcException {
-    MethodDescriptor method = descriptor.findMethodByName(
-        rpcRequest.getMethodName());
+  private MethodEntry getMethod(RequestDecoder rpcRequest)
+      throws RpcException {
+    if (rpcRequest.hasMethodId()) {
+      MethodEntry[] methods = methodTable;
+      int id = rpcRequest.getMethodId();
+      if (id <= 0 || id >= methods.length || methods[id] == null) {
+        throw new RpcException(ErrorReason.METHOD_NOT_FOUND,
+            "Could not find method with id: " + id, null);
+      }
+      return methods[id];
+    }
+    ServiceEntry service = dispatchTable.get(rpcRequest.getServiceName());
+    if (service == null) {
+      throw new RpcException(ErrorReason.SERVICE_NOT_FOUND,
+          "Could not find service: " + rpcRequest.getServiceName(), null);
+    }
+    MethodEntry method = service.methods.get(rpcRequest.getMethodName());
     if (method == null) {
       throw new RpcException(
           ErrorReason.METHOD_NOT_FOUND,
           String.format("Could not find method %s in service %s",
-              rpcRequest.getMethodName(), descriptor.getFullName()),
+              rpcRequest.getMethodName(), service.descriptor.getFullName()),
           null);
     }
     return method;
   }
 
   /**
-   * Get request protobuf for the RPC method.
+   * Get request protobuf for the RPC method, parsing it unless it was already
+   * parsed while decoding.
    */
-  private Message getRequestProto(SocketRpcProtos.Request rpcRequest,
+  private Message getRequestProto(RequestDecoder rpcRequest,
       Message requestPrototype) throws RpcException {
+    if (rpcRequest.getRequestError() != null) {
+      throw new RpcException(ErrorReason.BAD_REQUEST_PROTO,
+          "Invalid request proto", rpcRequest.getRequestError());
+    }
+    Message request = rpcRequest.getRequest();
+    if (request != null && request.getDescriptorForType()
+        == requestPrototype.getDescriptorForType()) {
+      if (!request.isInitialized()) {
+        throw new RpcException(ErrorReason.BAD_REQUEST_PROTO,
+            "Invalid request proto", null);
+      }
+      return request;
+    }
+
+    ByteString requestBytes = request != null ? request.toByteString()
+        : rpcRequest.getRequestBytes();
+    if (requestBytes == null) {
+      requestBytes = ByteString.EMPTY;
+    }
     Message.Builder builder;
     try {
-      builder = requestPrototype.newBuilderForType()
-          .mergeFrom(rpcRequest.getRequestProto());
+      builder = requestPrototype.newBuilderForType().mergeFrom(requestBytes);
       if (!builder.isInitialized()) {
         throw new RpcException(ErrorReason.BAD_REQUEST_PROTO,
             "Invalid request proto", null);
@@ -220,29 +457,61 @@ class RpcForwarder {
   }
 
   /**
-   * Create RPC response protobuf from method invocation results.
+   * Create RPC response protobuf from method invocation results. The response
+   * is serialized straight into it when it is sent.
    */
-  private SocketRpcProtos.Response createRpcResponse(Message response,
+  private ResponseEnvelope createRpcResponse(Message response,
       boolean callbackInvoked, SocketRpcController socketController) {
-    Builder responseBuilder = SocketRpcProtos.Response.newBuilder();
-    if (response != null) {
-      responseBuilder.setCallback(true).setResponseProto(
-          response.toByteString());
-    } else {
-      // Set whether callback was called (in case of async)
-      responseBuilder.setCallback(callbackInvoked);
-    }
+    // Set whether callback was called (in case of async)
+    boolean callback = response != null || callbackInvoked;
     if (socketController.failed()) {
-      responseBuilder.setError(socketController.errorText());
-      responseBuilder.setErrorReason(ErrorReason.RPC_FAILED);
+      return new ResponseEnvelope(response, callback,
+          socketController.errorText(), ErrorReason.RPC_FAILED);
+    }
+    return new ResponseEnvelope(response, callback, null, null);
+  }
+
+  /**
+   * Dispatch table entry for a registered service.
+   */
+  private static class ServiceEntry {
+
+    private final ServiceDescriptor descriptor;
+    private final Map<String, MethodEntry> methods =
+        new HashMap<String, MethodEntry>();
+
+    private ServiceEntry(ServiceDescriptor descriptor) {
+      this.descriptor = descriptor;
+    }
+  }
+
+  /**
+   * Dispatch table entry for a method of a registered service, along with the
+   * service that implements it.
+   */
+  private static class MethodEntry {
+
+    private final MethodDescriptor descriptor;
+    private final int id;
+    private final Message requestPrototype;
+    private final BlockingService blockingService;
+    private final Service service;
+
+    private MethodEntry(MethodDescriptor descriptor, int id,
+        Message requestPrototype, BlockingService blockingService,
+        Service service) {
+      this.descriptor = descriptor;
+      this.id = id;
+      this.requestPrototype = requestPrototype;
+      this.blockingService = blockingService;
+      this.service = service;
     }
-    return responseBuilder.build();
   }
 
   /**
    * Callback that just saves the response and the fact that it was invoked.
    */
-  static class Callback<T extends Message> implements RpcCallback<T> {
+  static class Callback<T> implements RpcCallback<T> {
 
     private T response = null;
     private boolean invoked = false;
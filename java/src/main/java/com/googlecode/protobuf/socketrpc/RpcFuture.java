@@ -0,0 +1,168 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.protobuf.ServiceException;
+
+/**
+ * {@link Future} result of an RPC made using {@link AsyncRpcChannel}. Waiting
+ * for the result is optional, listeners can be added instead to be notified
+ * when the RPC completes.
+ * <p>
+ * If the RPC fails, {@link #get()} throws an {@link ExecutionException} caused
+ * by a {@link ServiceException}, and the {@link SocketRpcController} used for
+ * the RPC has the error information. If the server does not call the
+ * callback, the result is null. Canceling the future cancels the RPC using
+ * {@link SocketRpcController#startCancel()}.
+ *
+ * @author Shardul Deo
+ */
+public class RpcFuture<T> implements Future<T> {
+
+  private final SocketRpcController controller;
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  // Guarded by this, null once the RPC has completed
+  private List<Listener> listeners = new ArrayList<Listener>();
+  private T response = null;
+  private boolean cancelled = false;
+
+  RpcFuture(SocketRpcController controller) {
+    this.controller = controller;
+  }
+
+  /**
+   * Complete the future with the given response and notify listeners.
+   */
+  void set(T response) {
+    complete(response, false);
+  }
+
+  private void complete(T response, boolean cancel) {
+    List<Listener> toNotify;
+    synchronized (this) {
+      if (listeners == null) {
+        return;
+      }
+      this.response = response;
+      cancelled = cancel;
+      toNotify = listeners;
+      listeners = null;
+    }
+    done.countDown();
+    for (Listener listener : toNotify) {
+      listener.execute();
+    }
+  }
+
+  /**
+   * Run the given listener using the given executor once the RPC completes,
+   * or right away if it already has.
+   */
+  public void addListener(Runnable listener, Executor executor) {
+    Listener entry = new Listener(listener, executor);
+    synchronized (this) {
+      if (listeners != null) {
+        listeners.add(entry);
+        return;
+      }
+    }
+    entry.execute();
+  }
+
+  /**
+   * Cancel the RPC, the future completes right away.
+   *
+   * @param mayInterruptIfRunning Ignored, no thread is waiting for the
+   *        response.
+   * @return false if the RPC has already completed.
+   */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    if (isDone()) {
+      return false;
+    }
+    controller.startCancel();
+    complete(null, true /* cancel */);
+    return isCancelled();
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  @Override
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  @Override
+  public T get() throws InterruptedException, ExecutionException {
+    done.await();
+    return getResponse();
+  }
+
+  @Override
+  public T get(long timeout, TimeUnit unit) throws InterruptedException,
+      ExecutionException, TimeoutException {
+    if (!done.await(timeout, unit)) {
+      throw new TimeoutException("RPC did not complete in time");
+    }
+    return getResponse();
+  }
+
+  private synchronized T getResponse() throws ExecutionException {
+    if (cancelled) {
+      throw new CancellationException("RPC canceled");
+    }
+    if (controller.failed()) {
+      throw new ExecutionException(
+          new ServiceException(controller.errorText()));
+    }
+    return response;
+  }
+
+  private static class Listener {
+
+    private final Runnable listener;
+    private final Executor executor;
+
+    private Listener(Runnable listener, Executor executor) {
+      this.listener = listener;
+      this.executor = executor;
+    }
+
+    private void execute() {
+      executor.execute(listener);
+    }
+  }
+}
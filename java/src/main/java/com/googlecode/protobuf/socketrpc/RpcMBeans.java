@@ -0,0 +1,287 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.googlecode.protobuf.socketrpc.RpcMetrics.MethodSnapshot;
+
+/**
+ * Registers the MBeans of servers and channels with the platform
+ * {@link MBeanServer}. Monitoring is best effort: if registration fails, e.g.
+ * because of a security manager, it is logged and the server or channel
+ * works as usual.
+ *
+ * @author Shardul Deo
+ */
+final class RpcMBeans {
+
+  private static final Logger LOG = Logger.getLogger(RpcMBeans.class.getName());
+
+  static final String DOMAIN = "com.googlecode.protobuf.socketrpc";
+
+  // Call rates are worked out over this many sample intervals
+  static final int RATE_WINDOW_SAMPLES = 6;
+  private static final long SAMPLE_INTERVAL_SECONDS = 10;
+
+  // Takes the samples of all metrics views
+  private static final ScheduledExecutorService SAMPLER =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "RpcMetricsSampler");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private static final AtomicInteger nextServerId = new AtomicInteger(1);
+  private static final AtomicInteger nextChannelId = new AtomicInteger(1);
+
+  // Channels without a close() method are unregistered once collected
+  private static final ReferenceQueue<Object> collectedChannels =
+      new ReferenceQueue<Object>();
+  private static boolean clientMetricsRegistered = false;
+
+  private RpcMBeans() {
+  }
+
+  /**
+   * Register the MBean of a server.
+   *
+   * @return The name it was registered under, or null if it wasn't.
+   */
+  static ObjectName registerServer(RpcServerMXBean bean) {
+    return register(DOMAIN + ":type=RpcServer,name=server-"
+        + nextServerId.getAndIncrement(), bean);
+  }
+
+  /**
+   * Register the MBean of a channel that is unregistered with
+   * {@link #unregister(ObjectName)} when the channel is closed.
+   *
+   * @return The name it was registered under, or null if it wasn't.
+   */
+  static ObjectName registerChannel(RpcChannelMXBean bean) {
+    unregisterCollectedChannels();
+    registerClientMetrics();
+    return register(DOMAIN + ":type=RpcChannel,name=channel-"
+        + nextChannelId.getAndIncrement(), bean);
+  }
+
+  /**
+   * Register the MBean of a channel that can't be closed. It is unregistered
+   * once the channel has been garbage collected, so the bean must not
+   * reference the channel strongly.
+   */
+  static void registerChannel(RpcChannelMXBean bean, Object channel) {
+    ObjectName name = registerChannel(bean);
+    if (name != null) {
+      new ChannelReference(channel, name);
+    }
+  }
+
+  private static synchronized void registerClientMetrics() {
+    if (!clientMetricsRegistered) {
+      clientMetricsRegistered = true;
+      register(DOMAIN + ":type=ClientMetrics",
+          new MetricsView(RpcMetrics.getClientMetrics()));
+    }
+  }
+
+  private static ObjectName register(String name, Object bean) {
+    try {
+      ObjectName objectName = new ObjectName(name);
+      getMBeanServer().registerMBean(bean, objectName);
+      return objectName;
+    } catch (JMException e) {
+      LOG.log(Level.WARNING, "Could not register MBean " + name, e);
+    } catch (SecurityException e) {
+      LOG.log(Level.WARNING, "Could not register MBean " + name, e);
+    }
+    return null;
+  }
+
+  /**
+   * Unregister an MBean, does nothing if the name is null.
+   */
+  static void unregister(ObjectName name) {
+    if (name == null) {
+      return;
+    }
+    try {
+      getMBeanServer().unregisterMBean(name);
+    } catch (JMException e) {
+      LOG.log(Level.FINE, "Could not unregister MBean " + name, e);
+    } catch (SecurityException e) {
+      LOG.log(Level.FINE, "Could not unregister MBean " + name, e);
+    }
+  }
+
+  private static void unregisterCollectedChannels() {
+    ChannelReference reference;
+    while ((reference = (ChannelReference) collectedChannels.poll()) != null) {
+      synchronized (ChannelReference.references) {
+        ChannelReference.references.remove(reference);
+      }
+      unregister(reference.name);
+    }
+  }
+
+  private static MBeanServer getMBeanServer() {
+    return ManagementFactory.getPlatformMBeanServer();
+  }
+
+  /**
+   * Weak reference to a registered channel.
+   */
+  private static class ChannelReference extends WeakReference<Object> {
+
+    // Keeps the references themselves reachable until they are enqueued
+    private static final List<ChannelReference> references =
+        new ArrayList<ChannelReference>();
+
+    private final ObjectName name;
+
+    private ChannelReference(Object channel, ObjectName name) {
+      super(channel, collectedChannels);
+      this.name = name;
+      synchronized (references) {
+        references.add(this);
+      }
+    }
+  }
+
+  /**
+   * Publishes {@link RpcMetrics} as {@link MethodStatistics}. Call rates are
+   * worked out from samples of the counts taken on a timer, over the last
+   * minute or so, so they are the same whoever reads them and however often.
+   */
+  static class MetricsView implements RpcMetricsMXBean {
+
+    private final RpcMetrics metrics;
+    // Guarded by this, oldest first
+    private final LinkedList<Sample> samples = new LinkedList<Sample>();
+
+    MetricsView(RpcMetrics metrics) {
+      this.metrics = metrics;
+      sample(System.nanoTime());
+      Sampler sampler = new Sampler(this);
+      sampler.future = SAMPLER.scheduleAtFixedRate(sampler,
+          SAMPLE_INTERVAL_SECONDS, SAMPLE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sample the counts, dropping samples that are older than the window.
+     */
+    synchronized void sample(long nowNanos) {
+      Map<String, Long> counts = new HashMap<String, Long>();
+      for (MethodSnapshot snapshot : metrics.getSnapshot().values()) {
+        counts.put(snapshot.getMethodName(), snapshot.getRequestCount());
+      }
+      samples.addLast(new Sample(nowNanos, counts));
+      while (samples.size() > RATE_WINDOW_SAMPLES + 1) {
+        samples.removeFirst();
+      }
+    }
+
+    @Override
+    public synchronized List<MethodStatistics> getMethods() {
+      long now = System.nanoTime();
+      Sample oldest = samples.getFirst();
+      double seconds = (double) (now - oldest.nanos)
+          / TimeUnit.SECONDS.toNanos(1);
+      List<MethodStatistics> methods = new ArrayList<MethodStatistics>();
+      for (MethodSnapshot snapshot : metrics.getSnapshot().values()) {
+        // Methods first called after the sample had no calls then
+        Long previous = oldest.counts.get(snapshot.getMethodName());
+        // Counts go down when the metrics are reset
+        long calls = Math.max(0, snapshot.getRequestCount()
+            - (previous == null ? 0 : previous));
+        methods.add(MethodStatistics.of(snapshot,
+            seconds > 0 ? calls / seconds : 0));
+      }
+      return methods;
+    }
+
+    @Override
+    public void reset() {
+      metrics.reset();
+    }
+  }
+
+  /**
+   * Request counts of all methods at one point in time.
+   */
+  private static class Sample {
+
+    private final long nanos;
+    private final Map<String, Long> counts;
+
+    private Sample(long nanos, Map<String, Long> counts) {
+      this.nanos = nanos;
+      this.counts = counts;
+    }
+  }
+
+  /**
+   * Samples a view until it is garbage collected, e.g. after the server it
+   * belongs to was shut down.
+   */
+  private static class Sampler implements Runnable {
+
+    private final WeakReference<MetricsView> view;
+    private volatile ScheduledFuture<?> future;
+
+    private Sampler(MetricsView view) {
+      this.view = new WeakReference<MetricsView>(view);
+    }
+
+    @Override
+    public void run() {
+      MetricsView current = view.get();
+      if (current != null) {
+        current.sample(System.nanoTime());
+      } else if (future != null) {
+        future.cancel(false);
+      }
+    }
+  }
+}
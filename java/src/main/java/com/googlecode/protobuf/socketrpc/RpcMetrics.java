@@ -0,0 +1,201 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+
+/**
+ * Per-method request counts, error counts by {@link ErrorReason}, request and
+ * response message sizes and latency histograms. Each {@link RpcServer} keeps
+ * its own (see {@link RpcServer#getMetrics()}), while all RPC channels share
+ * {@link #getClientMetrics()}.
+ * <p>
+ * Methods are named by their full name, e.g. {@code package.Service.Method}.
+ * Server requests for methods that are not registered are counted under
+ * {@link #UNKNOWN_METHOD}, so clients can't make the set of methods grow.
+ * <p>
+ * Server latency is measured from when the request was read until the
+ * response was sent, including time spent waiting for a thread. Client latency
+ * is measured from the call until the response was handled.
+ * <p>
+ * Counters are striped by thread so that recording doesn't contend, and
+ * stripes are only allocated once used. On a machine with 64 or more cores a
+ * method can take up to about 40 KB: 22 KB for its latency histogram, which
+ * uses at most 4 stripes, and 17 KB for its other counters. That goes for
+ * every server and for the client metrics.
+ *
+ * @author Shardul Deo
+ */
+public class RpcMetrics {
+
+  /**
+   * Name that requests are counted under when their method is not known.
+   */
+  public static final String UNKNOWN_METHOD = "<unknown>";
+
+  private static final RpcMetrics CLIENT_METRICS = new RpcMetrics();
+
+  private final ConcurrentMap<String, MethodMetrics> methods =
+      new ConcurrentHashMap<String, MethodMetrics>();
+
+  /**
+   * @return The metrics of calls made by all RPC channels in this JVM.
+   */
+  public static RpcMetrics getClientMetrics() {
+    return CLIENT_METRICS;
+  }
+
+  /**
+   * Get the metrics of the given method, creating them on first use.
+   */
+  MethodMetrics getMethodMetrics(String methodName) {
+    MethodMetrics metrics = methods.get(methodName);
+    if (metrics == null) {
+      MethodMetrics created = new MethodMetrics(methodName);
+      metrics = methods.putIfAbsent(methodName, created);
+      if (metrics == null) {
+        metrics = created;
+      }
+    }
+    return metrics;
+  }
+
+  /**
+   * @return The metrics of the given method, or null if it hasn't been called.
+   */
+  public MethodSnapshot getSnapshot(String methodName) {
+    MethodMetrics metrics = methods.get(methodName);
+    return metrics == null ? null : metrics.getSnapshot();
+  }
+
+  /**
+   * @return The metrics of every method called so far, by method name.
+   */
+  public SortedMap<String, MethodSnapshot> getSnapshot() {
+    SortedMap<String, MethodSnapshot> snapshot =
+        new TreeMap<String, MethodSnapshot>();
+    for (MethodMetrics metrics : methods.values()) {
+      MethodSnapshot method = metrics.getSnapshot();
+      snapshot.put(method.getMethodName(), method);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Set all counters back to 0 and forget all recorded latencies.
+   */
+  public void reset() {
+    for (MethodMetrics metrics : methods.values()) {
+      metrics.reset();
+    }
+  }
+
+  /**
+   * Immutable copy of the metrics of one method.
+   */
+  public static class MethodSnapshot {
+
+    private final String methodName;
+    private final long requestCount;
+    private final long errorCount;
+    private final Map<ErrorReason, Long> errorCounts;
+    private final long requestBytes;
+    private final long responseBytes;
+    private final LatencyHistogram.Snapshot latency;
+
+    MethodSnapshot(String methodName, long requestCount, long errorCount,
+        Map<ErrorReason, Long> errorCounts, long requestBytes,
+        long responseBytes, LatencyHistogram.Snapshot latency) {
+      this.methodName = methodName;
+      this.requestCount = requestCount;
+      this.errorCount = errorCount;
+      this.errorCounts = Collections.unmodifiableMap(errorCounts);
+      this.requestBytes = requestBytes;
+      this.responseBytes = responseBytes;
+      this.latency = latency;
+    }
+
+    public String getMethodName() {
+      return methodName;
+    }
+
+    /**
+     * @return Number of completed calls, including failed ones.
+     */
+    public long getRequestCount() {
+      return requestCount;
+    }
+
+    /**
+     * @return Number of failed calls.
+     */
+    public long getErrorCount() {
+      return errorCount;
+    }
+
+    /**
+     * @return Number of calls that failed for the given reason.
+     */
+    public long getErrorCount(ErrorReason reason) {
+      Long count = errorCounts.get(reason);
+      return count == null ? 0 : count;
+    }
+
+    /**
+     * @return Number of failed calls for every reason that occurred.
+     */
+    public Map<ErrorReason, Long> getErrorCounts() {
+      return errorCounts;
+    }
+
+    /**
+     * @return Total size of the request messages.
+     */
+    public long getRequestBytes() {
+      return requestBytes;
+    }
+
+    /**
+     * @return Total size of the response messages.
+     */
+    public long getResponseBytes() {
+      return responseBytes;
+    }
+
+    public LatencyHistogram.Snapshot getLatency() {
+      return latency;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: requests=%d errors=%s requestBytes=%d "
+          + "responseBytes=%d latency=[%s]", methodName, requestCount,
+          errorCounts, requestBytes, responseBytes, latency);
+    }
+  }
+}
@@ -20,11 +20,23 @@
 
 package com.googlecode.protobuf.socketrpc;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.ObjectName;
+
 import com.google.protobuf.BlockingService;
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.Service;
@@ -45,6 +57,47 @@ import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
  * <li>When calling a nonblocking service, the connection may be left open until
  * the callback is called based on the {@code
  * closeConnectionAfterInvokingService} constructor argument.
+ * <li>With a non-blocking factory (see
+ * {@link SocketRpcConnectionFactories#createNioServerRpcConnectionFactory(int)})
+ * requests are read by the factory's I/O threads and only fully read requests
+ * are handed to the {@link ExecutorService}, so idle connections don't use up
+ * any of its threads.
+ * <li>In keep-alive mode, based on the {@code keepAlive} constructor argument,
+ * each connection is handled by a single thread which serves requests on it
+ * until the client closes it or it times out (see
+ * {@link SocketRpcConnectionFactories#createServerRpcConnectionFactory(int, int, java.net.InetAddress, int)}),
+ * so clients can send any number of RPCs over the same connection.
+ * <li>With {@link RpcExecutors#newVirtualThreadPerTaskExecutor()} every
+ * request, or every connection in keep-alive mode, is handled in its own
+ * virtual thread, so the number of concurrent requests is not limited by a
+ * thread pool.
+ * <li>The number of requests handed to the {@link ExecutorService} at the same
+ * time can be limited with {@link #setAdmissionLimits(int, int)}. Requests
+ * over the limit wait in a bounded queue, and once that is full they are
+ * rejected right away with {@code SERVER_OVERLOADED}.
+ * <li>Requests whose deadline, set by the client with
+ * {@link SocketRpcController#setTimeout(long, java.util.concurrent.TimeUnit)},
+ * passes before they get their turn are answered with
+ * {@code DEADLINE_EXCEEDED} instead of being handed to the service. With the
+ * NIO server connection factory, queued requests are handled earliest
+ * deadline first, see {@link #setDefaultQueueDeadline(long, TimeUnit)} for
+ * requests without one.
+ * <li>With the NIO server connection factory, or one created with
+ * {@link PersistentRpcConnectionFactory#createServerInstance}, clients sharing
+ * a connection can cancel requests (see
+ * {@link SocketRpcController#startCancel()}). The request is answered with
+ * {@code CANCELED} right away and the callbacks registered with
+ * {@link SocketRpcController#notifyOnCancel(RpcCallback)} are run, so the
+ * service can stop working on it.
+ * <li>With the in-process factory (see
+ * {@link SocketRpcConnectionFactories#createInProcessServerRpcConnectionFactory(String)})
+ * clients in the same JVM hand their requests straight to the
+ * {@link ExecutorService}, without sockets and, optionally, without
+ * serializing messages.
+ * <li>Request counts, errors, message sizes and latencies of every method are
+ * recorded, see {@link #getMetrics()}.
+ * <li>While the server runs, its state and metrics are published over JMX,
+ * see {@link RpcServerMXBean}.
  * </ul>
  *
  * @author Shardul Deo
@@ -56,8 +109,15 @@ public class RpcServer {
   private final RpcForwarder rpcForwarder;
   private final ServerRpcConnectionFactory rpcConnectionFactory;
   private final ExecutorService executor;
+  private final AdmissionController admissionController;
+  private final AtomicLong expiredRequests = new AtomicLong(0);
+  private final RpcMetrics metrics = new RpcMetrics();
+  // Requests that can still be canceled by the client
+  private final ConcurrentMap<CallKey, ConnectionHandler> activeCalls =
+      new ConcurrentHashMap<CallKey, ConnectionHandler>();
   private final ServerThread serverThread;
   private final boolean waitForCallback;
+  private final boolean keepAlive;
 
   /**
    * @param rpcConnectionFactory Factory to use to receive connections from
@@ -75,13 +135,45 @@ public class RpcServer {
   public RpcServer(ServerRpcConnectionFactory rpcConnectionFactory,
       ExecutorService executorService,
       boolean closeConnectionAfterInvokingService) {
-	  this.rpcForwarder = new RpcForwarder();
-	  this.rpcConnectionFactory = rpcConnectionFactory;
-		this.executor = executorService;
-		this.serverThread = new ServerThread();
-		serverThread.setDaemon(true);
-		this.waitForCallback = !closeConnectionAfterInvokingService;
-	}
+    this(rpcConnectionFactory, executorService,
+        closeConnectionAfterInvokingService, false /* keepAlive */);
+  }
+
+  /**
+   * @param rpcConnectionFactory Factory to use to receive connections from
+   *        clients. The implementation should be compatible with the factory
+   *        being used by the client.
+   * @param executorService Executor service be used for handling requests.
+   * @param closeConnectionAfterInvokingService See
+   *        {@link #RpcServer(ServerRpcConnectionFactory, ExecutorService, boolean)}.
+   *        In keep-alive mode, if set to false, the next request on a
+   *        connection is not read until the callback for the current one is
+   *        invoked.
+   * @param keepAlive If set to true, connections are left open after sending a
+   *        response and further requests are read from them, until the client
+   *        closes the connection or the read times out. Each open connection
+   *        uses up a thread of the {@link ExecutorService}. Requires a
+   *        delimited factory, and should not be used with
+   *        {@link PersistentRpcConnectionFactory#createServerInstance}.
+   */
+  public RpcServer(ServerRpcConnectionFactory rpcConnectionFactory,
+      ExecutorService executorService,
+      boolean closeConnectionAfterInvokingService, boolean keepAlive) {
+    this.rpcForwarder = new RpcForwarder();
+    this.rpcConnectionFactory = rpcConnectionFactory;
+    this.executor = executorService;
+    this.admissionController = new AdmissionController(executorService,
+        new AdmissionController.ShedHandler() {
+          @Override
+          public void shed(Runnable task) {
+            ((ConnectionHandler) task).reject();
+          }
+        });
+    this.serverThread = new ServerThread();
+    serverThread.setDaemon(true);
+    this.waitForCallback = !closeConnectionAfterInvokingService;
+    this.keepAlive = keepAlive;
+  }
 
   /**
    * Register an RPC service implementation on this server.
@@ -97,6 +189,98 @@ public class RpcServer {
     rpcForwarder.registerBlockingService(service);
   }
 
+  /**
+   * Unregister an RPC service implementation from this server. Services can be
+   * registered and unregistered while the server is running.
+   */
+  public void unregisterService(Service service) {
+    rpcForwarder.unregisterService(service);
+  }
+
+  /**
+   * Unregister an RPC blocking service implementation from this server.
+   */
+  public void unregisterBlockingService(BlockingService service) {
+    rpcForwarder.unregisterBlockingService(service);
+  }
+
+  /**
+   * Limit the number of requests being handled at the same time, by default
+   * every request is handed to the {@link ExecutorService} right away. In
+   * keep-alive mode, the limits apply to connections instead of requests. Can
+   * be changed while the server is running.
+   *
+   * @param maxInFlightRequests Maximum number of requests handed to the
+   *        {@link ExecutorService} at the same time.
+   * @param maxQueuedRequests Maximum number of requests waiting for one of
+   *        those in flight to complete. Requests that arrive when the queue is
+   *        full are rejected with {@code SERVER_OVERLOADED}.
+   */
+  public void setAdmissionLimits(int maxInFlightRequests,
+      int maxQueuedRequests) {
+    admissionController.setLimits(maxInFlightRequests, maxQueuedRequests);
+  }
+
+  /**
+   * Set how long requests without a deadline can wait in the admission queue
+   * before requests with a deadline stop going ahead of them, one second by
+   * default. They are still handled once it passes, it only keeps them from
+   * waiting forever behind a steady stream of requests with deadlines.
+   */
+  public void setDefaultQueueDeadline(long timeout, TimeUnit unit) {
+    admissionController.setDefaultQueueDeadline(timeout, unit);
+  }
+
+  /**
+   * @return Number of requests accepted so far, whether handled right away or
+   *         queued.
+   */
+  public long getAcceptedRequests() {
+    return admissionController.getAcceptedCount();
+  }
+
+  /**
+   * @return Number of requests rejected with {@code SERVER_OVERLOADED} so far.
+   */
+  public long getShedRequests() {
+    return admissionController.getShedCount();
+  }
+
+  /**
+   * @return Number of requests answered with {@code DEADLINE_EXCEEDED}
+   *         without being handed to the service so far.
+   */
+  public long getExpiredRequests() {
+    return expiredRequests.get();
+  }
+
+  /**
+   * @return Per-method metrics of the requests handled by this server.
+   */
+  public RpcMetrics getMetrics() {
+    return metrics;
+  }
+
+  private MethodMetrics getMethodMetrics(RequestDecoder rpcRequest) {
+    String methodName = rpcForwarder.getMethodName(rpcRequest);
+    return metrics.getMethodMetrics(methodName == null
+        ? RpcMetrics.UNKNOWN_METHOD : methodName);
+  }
+
+  /**
+   * @return Number of requests currently being handled.
+   */
+  public int getInFlightRequests() {
+    return admissionController.getInFlight();
+  }
+
+  /**
+   * @return Number of requests currently waiting to be handled.
+   */
+  public int getQueuedRequests() {
+    return admissionController.getQueued();
+  }
+
   /**
    * Start the server to listen for requests. The calling thread is blocked
    * permanently.
@@ -151,28 +335,66 @@ public class RpcServer {
     @Override
     public void run() {
       LOG.info("Starting RPC server");
+      ObjectName mbeanName = RpcMBeans.registerServer(new ServerBean());
       try {
         running = true;
+        if (rpcConnectionFactory
+            instanceof InProcessServerRpcConnectionFactory) {
+          // Clients hand over their connections without going through this
+          // thread
+          ((InProcessServerRpcConnectionFactory) rpcConnectionFactory)
+              .setHandler(new InProcessServerRpcConnectionFactory.Handler() {
+                @Override
+                public void handle(Connection connection) {
+                  handleConnection(connection);
+                }
+              });
+        }
         while (running) {
           // Thread blocks here waiting for requests
           Connection connection = rpcConnectionFactory.createConnection();
-          if (running && !executor.isShutdown()) {
-            if (connection.isClosed()) {
-              // Connection was closed, don't execute
-              try {
-                Thread.sleep(100);
-              } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-              }
-            } else {
-              executor.execute(new ConnectionHandler(connection));
-            }
-          }
+          handleConnection(connection);
         }
       } catch (IOException ex) {
         stopServer();
       } finally {
         running = false;
+        RpcMBeans.unregister(mbeanName);
+      }
+    }
+
+    private void handleConnection(Connection connection) {
+      if (!running || executor.isShutdown()) {
+        return;
+      }
+      if (connection.isClosed()) {
+        // Connection was closed, don't execute
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return;
+      }
+      ConnectionHandler handler = new ConnectionHandler(connection);
+      if (handler.cancelRequest) {
+        // Must not wait behind the request it cancels
+        try {
+          handler.run();
+        } catch (RuntimeException e) {
+          // Would otherwise stop the server
+          LOG.log(Level.WARNING, "Error while handling cancel request", e);
+        }
+        return;
+      }
+      if (handler.callKey != null) {
+        activeCalls.put(handler.callKey, handler);
+      }
+      boolean admitted = handler.hasDeadline
+          ? admissionController.admit(handler, handler.deadlineNanos)
+          : admissionController.admit(handler);
+      if (!admitted) {
+        handler.reject();
       }
     }
 
@@ -196,6 +418,122 @@ public class RpcServer {
     }
   }
 
+  /**
+   * Publishes the state of this server over JMX.
+   */
+  private class ServerBean implements RpcServerMXBean {
+
+    private final RpcMBeans.MetricsView metricsView =
+        new RpcMBeans.MetricsView(metrics);
+
+    @Override
+    public boolean isRunning() {
+      return RpcServer.this.isRunning();
+    }
+
+    @Override
+    public List<String> getRegisteredServices() {
+      return rpcForwarder.getServiceNames();
+    }
+
+    @Override
+    public long getAcceptedRequests() {
+      return RpcServer.this.getAcceptedRequests();
+    }
+
+    @Override
+    public long getShedRequests() {
+      return RpcServer.this.getShedRequests();
+    }
+
+    @Override
+    public long getExpiredRequests() {
+      return RpcServer.this.getExpiredRequests();
+    }
+
+    @Override
+    public int getInFlightRequests() {
+      return RpcServer.this.getInFlightRequests();
+    }
+
+    @Override
+    public int getQueuedRequests() {
+      return RpcServer.this.getQueuedRequests();
+    }
+
+    @Override
+    public int getOpenConnections() {
+      if (rpcConnectionFactory instanceof NioServerRpcConnectionFactory) {
+        return ((NioServerRpcConnectionFactory) rpcConnectionFactory)
+            .getOpenConnections();
+      }
+      return -1;
+    }
+
+    @Override
+    public int getExecutorActiveThreads() {
+      return executor instanceof ThreadPoolExecutor
+          ? ((ThreadPoolExecutor) executor).getActiveCount() : -1;
+    }
+
+    @Override
+    public int getExecutorPoolSize() {
+      return executor instanceof ThreadPoolExecutor
+          ? ((ThreadPoolExecutor) executor).getPoolSize() : -1;
+    }
+
+    @Override
+    public int getExecutorMaxPoolSize() {
+      return executor instanceof ThreadPoolExecutor
+          ? ((ThreadPoolExecutor) executor).getMaximumPoolSize() : -1;
+    }
+
+    @Override
+    public int getExecutorQueueSize() {
+      return executor instanceof ThreadPoolExecutor
+          ? ((ThreadPoolExecutor) executor).getQueue().size() : -1;
+    }
+
+    @Override
+    public List<MethodStatistics> getMethods() {
+      return metricsView.getMethods();
+    }
+
+    @Override
+    public void resetMetrics() {
+      metrics.reset();
+    }
+  }
+
+  /**
+   * Identifies a request by its id on a client connection.
+   */
+  private static class CallKey {
+
+    private final Object channel;
+    private final long requestId;
+
+    private CallKey(Object channel, long requestId) {
+      this.channel = channel;
+      this.requestId = requestId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CallKey)) {
+        return false;
+      }
+      CallKey other = (CallKey) obj;
+      return channel == other.channel && requestId == other.requestId;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(channel)
+          + (int) (requestId ^ (requestId >>> 32));
+    }
+  }
+
   /**
    * Handles socket requests.
    */
@@ -203,92 +541,350 @@ public class RpcServer {
 
     private final Connection connection;
 
+    // Request id to copy into the response, for multiplexed connections
+    private boolean hasRequestId = false;
+    private long requestId = 0;
+
+    // In keep-alive mode, counted down when the current response is sent.
+    // Set up front since a queued request can be canceled before it runs.
+    private volatile CountDownLatch responseSent = new CountDownLatch(1);
+
+    // When the request arrived, and its deadline if it is known before
+    // reading it
+    private final long receivedNanos;
+    private final boolean hasDeadline;
+    private final long deadlineNanos;
+
+    // Set if the request can be canceled, or cancels another one. On a
+    // persistent connection, only known once the request is read.
+    private volatile CallKey callKey;
+    private final boolean cancelRequest;
+    private volatile boolean canceled = false;
+    private volatile SocketRpcController controller = null;
+    // Only the first of the service's response and CANCELED is sent
+    private final AtomicBoolean responded = new AtomicBoolean(false);
+
+    // What to record the response under, set after the fields it guards
+    private volatile MethodMetrics methodMetrics = null;
+    private long startNanos;
+    private int requestSize = 0;
+
     ConnectionHandler(Connection connection) {
       this.connection = connection;
+      RequestDecoder header = null;
+      Object channel = null;
+      if (connection instanceof BufferedConnection) {
+        BufferedConnection buffered = (BufferedConnection) connection;
+        receivedNanos = buffered.getReceivedNanos();
+        byte[] request = buffered.peekRequest();
+        header = request == null ? null : RequestDecoder.peekHeader(request);
+        channel = buffered.getChannel();
+      } else {
+        // Clients send the request right after connecting
+        receivedNanos = System.nanoTime();
+      }
+      hasDeadline = header != null && header.hasTimeout();
+      deadlineNanos = !hasDeadline ? 0 : receivedNanos
+          + TimeUnit.MILLISECONDS.toNanos(header.getTimeoutMillis());
+      cancelRequest = header != null && header.isCancel();
+      startNanos = receivedNanos;
+      if (header != null && !cancelRequest) {
+        // Known up front for requests canceled before being read
+        requestSize = header.getRequestSize();
+        methodMetrics = getMethodMetrics(header);
+      }
+      if (header != null && header.hasRequestId() && channel != null) {
+        // Known up front so that CANCELED can be sent before the read
+        hasRequestId = true;
+        requestId = header.getRequestId();
+        callKey = new CallKey(channel, requestId);
+      } else {
+        callKey = null;
+      }
     }
 
     @Override
     public void run() {
+      if (!keepAlive) {
+        handleRequest();
+        return;
+      }
+      try {
+        while (!connection.isClosed()) {
+          if (!handleRequest()) {
+            break;
+          }
+          // Responses must be sent in order, wait for async services
+          responseSent.await();
+          // Reset only once the response is sent, a request canceled before
+          // it was read has already been answered
+          responseSent = new CountDownLatch(1);
+          responded.set(false);
+          canceled = false;
+          controller = null;
+          methodMetrics = null;
+        }
+      } catch (InterruptedException e) {
+        // Server is shutting down
+      } finally {
+        closeConnection();
+      }
+    }
+
+    /**
+     * Read and handle a single request.
+     *
+     * @return false if the connection was closed or timed out while waiting
+     *         for a request in keep-alive mode.
+     */
+    private boolean handleRequest() {
       try {
-        // Parse request
-        SocketRpcProtos.Request.Builder builder = SocketRpcProtos.Request
-            .newBuilder();
-        connection.receiveProtoMessage(builder);
-        if (!builder.isInitialized()) {
+        // Parse request, along with the request message if possible
+        RequestDecoder rpcRequest = new RequestDecoder(rpcForwarder);
+        connection.receiveProtoMessage(rpcRequest);
+        // In keep-alive mode the request was only just sent
+        startNanos = keepAlive ? System.nanoTime() : receivedNanos;
+        rpcRequest.setReceivedNanos(startNanos);
+        hasRequestId = rpcRequest.hasRequestId();
+        requestId = rpcRequest.getRequestId();
+        if (hasRequestId && connection instanceof PersistentConnection) {
+          // Requests share the connection, so a later one can cancel this
+          callKey = new CallKey(connection, requestId);
+          if (!rpcRequest.isCancel()) {
+            activeCalls.put(callKey, this);
+          }
+        }
+        if (rpcRequest.isCancel()) {
+          handleCancelRequest();
+          return true;
+        }
+        if (canceled) {
+          // Already answered with CANCELED
+          return true;
+        }
+        requestSize = rpcRequest.getRequestSize();
+        methodMetrics = getMethodMetrics(rpcRequest);
+        if (!rpcRequest.isInitialized()) {
           sendResponse(handleError("Invalid request from client",
               ErrorReason.BAD_REQUEST_DATA, null));
-          return;
+          return true;
+        }
+        if (rpcRequest.hasTimeout()
+            && rpcRequest.getDeadlineNanos() - System.nanoTime() <= 0) {
+          // Client has given up on it, don't waste time on it
+          expiredRequests.incrementAndGet();
+          LOG.fine("Request deadline exceeded before handling it");
+          sendResponse(ResponseEnvelope.forError(
+              "Deadline exceeded before handling request",
+              ErrorReason.DEADLINE_EXCEEDED));
+          return true;
         }
 
-        SocketRpcProtos.Request rpcRequest = builder.build();
+        controller = RpcForwarder.newController(rpcRequest);
+        if (canceled) {
+          // Canceled while the controller was being created
+          controller.cancel();
+        }
         if (waitForCallback) {
-          forwardRpc(rpcRequest);
+          forwardRpc(rpcRequest, controller);
         } else {
-          forwardBlockingRpc(rpcRequest);
+          forwardBlockingRpc(rpcRequest, controller);
         }
+      } catch (EOFException e) {
+        if (keepAlive) {
+          // Client is done with the connection
+          return false;
+        }
+        sendResponse(handleError("Bad request data from client",
+            ErrorReason.BAD_REQUEST_DATA, e));
+      } catch (SocketTimeoutException e) {
+        if (keepAlive) {
+          LOG.fine("Closing idle connection");
+          return false;
+        }
+        sendResponse(handleError("Bad request data from client",
+            ErrorReason.BAD_REQUEST_DATA, e));
       } catch (IOException e) {
         sendResponse(handleError("Bad request data from client",
             ErrorReason.BAD_REQUEST_DATA, e));
       }
+      return true;
+    }
+
+    /**
+     * Reject the request with {@code SERVER_OVERLOADED} without handing it to
+     * the service. Called in the server thread, or in the thread that shed
+     * it from the admission queue, so the request is only read if it is
+     * already in memory, and the response then carries its request id.
+     * Otherwise the response is sent without reading the request, since a
+     * client that is slow to send it would hold up every other client.
+     */
+    void reject() {
+      if (callKey != null) {
+        activeCalls.remove(callKey, this);
+      }
+      if (!responded.compareAndSet(false, true)) {
+        // Canceled while queued, the client already has its response
+        closeConnection();
+        return;
+      }
+      try {
+        ResponseEnvelope rpcResponse = ResponseEnvelope.forError(
+            "Server overloaded", ErrorReason.SERVER_OVERLOADED);
+        MethodMetrics method = null;
+        int size = 0;
+        if (connection instanceof BufferedConnection
+            && ((BufferedConnection) connection).peekRequest() != null) {
+          RequestDecoder rpcRequest = new RequestDecoder(null);
+          connection.receiveProtoMessage(rpcRequest);
+          if (rpcRequest.hasRequestId()) {
+            rpcResponse = rpcResponse.withRequestId(
+                rpcRequest.getRequestId());
+          }
+          method = getMethodMetrics(rpcRequest);
+          size = rpcRequest.getRequestSize();
+        }
+        connection.sendProtoMessage(rpcResponse);
+        if (method == null) {
+          method = metrics.getMethodMetrics(RpcMetrics.UNKNOWN_METHOD);
+        }
+        method.record(System.nanoTime() - receivedNanos,
+            ErrorReason.SERVER_OVERLOADED, size, 0);
+      } catch (IOException e) {
+        LOG.log(Level.FINE, "Error while rejecting request", e);
+      } finally {
+        closeConnection();
+      }
     }
 
-    private void forwardRpc(SocketRpcProtos.Request rpcRequest) {
+    /**
+     * Cancel the request with the same id on the same client connection, if
+     * it is still being handled. Cancel requests don't get a response.
+     */
+    private void handleCancelRequest() {
+      if (callKey != null) {
+        ConnectionHandler target = activeCalls.remove(callKey);
+        if (target != null) {
+          target.cancel();
+        }
+      }
+      if (connection instanceof BufferedConnection) {
+        // Other requests share the channel, so it must be left open. This
+        // also ends the keep-alive loop, there is nothing more to read.
+        ((BufferedConnection) connection).release();
+      } else if (!keepAlive) {
+        closeConnection();
+      }
+      if (keepAlive) {
+        responseSent.countDown();
+      }
+    }
+
+    /**
+     * Answer the request with {@code CANCELED} and let the service know, if it
+     * is already handling it.
+     */
+    void cancel() {
+      canceled = true;
+      SocketRpcController current = controller;
+      if (current != null) {
+        current.cancel();
+      }
+      sendResponse(ResponseEnvelope.forError("Canceled by client",
+          ErrorReason.CANCELED));
+    }
+
+    private void forwardRpc(RequestDecoder rpcRequest,
+        SocketRpcController controller) {
       // Create callback to pass to the forwarder
-      RpcCallback<SocketRpcProtos.Response> rpcCallback =
-          new RpcCallback<SocketRpcProtos.Response>() {
+      RpcCallback<ResponseEnvelope> rpcCallback =
+          new RpcCallback<ResponseEnvelope>() {
         @Override
-        public void run(SocketRpcProtos.Response rpcResponse) {
+        public void run(ResponseEnvelope rpcResponse) {
           sendResponse(rpcResponse);
         }
       };
 
       // Forward request
       try {
-        rpcForwarder.doRpc(rpcRequest, rpcCallback);
+        rpcForwarder.doRpc(rpcRequest, controller, rpcCallback);
       } catch (RpcException e) {
         sendResponse(handleError(e.msg, e.errorReason, e.getCause()));
       }
     }
 
-    private void forwardBlockingRpc(SocketRpcProtos.Request rpcRequest) {
+    private void forwardBlockingRpc(RequestDecoder rpcRequest,
+        SocketRpcController controller) {
       // Forward request
       try {
-        SocketRpcProtos.Response rpcResponse =
-            rpcForwarder.doBlockingRpc(rpcRequest);
+        ResponseEnvelope rpcResponse = rpcForwarder.doBlockingRpc(rpcRequest,
+            controller);
         sendResponse(rpcResponse);
       } catch (RpcException e) {
         sendResponse(handleError(e.msg, e.errorReason, e.getCause()));
       }
     }
 
-    private void sendResponse(SocketRpcProtos.Response rpcResponse) {
+    private void sendResponse(ResponseEnvelope rpcResponse) {
+      if (!responded.compareAndSet(false, true)) {
+        // Request was canceled, or the service responded to it already
+        return;
+      }
+      if (callKey != null) {
+        activeCalls.remove(callKey, this);
+      }
+      SocketRpcController current = controller;
+      if (current != null) {
+        current.callCompleted();
+      }
       try {
         if (connection.isClosed()) {
           // Connection was closed for some reason
           LOG.warning("Connection closed");
           return;
         }
+        if (hasRequestId) {
+          rpcResponse = rpcResponse.withRequestId(requestId);
+        }
+        // Recorded first so the client can see it once it has the response
+        recordResponse(rpcResponse);
         connection.sendProtoMessage(rpcResponse);
       } catch (IOException e) {
         LOG.log(Level.WARNING, "Error while writing", e);
+        closeConnection();
       } finally {
-        try {
-          connection.close();
-        } catch (IOException e) {
-          // It's ok
-          LOG.log(Level.WARNING, "Error while closing I/O", e);
+        if (keepAlive) {
+          responseSent.countDown();
+        } else {
+          closeConnection();
         }
       }
     }
 
-    private SocketRpcProtos.Response handleError(String msg,
-        ErrorReason reason, Throwable throwable) {
+    private void recordResponse(ResponseEnvelope rpcResponse) {
+      MethodMetrics method = methodMetrics;
+      if (method == null) {
+        // Request could not be read
+        method = metrics.getMethodMetrics(RpcMetrics.UNKNOWN_METHOD);
+      }
+      method.record(System.nanoTime() - startNanos,
+          rpcResponse.hasError() ? rpcResponse.getErrorReason() : null,
+          requestSize, rpcResponse.getResponseSize());
+    }
+
+    private void closeConnection() {
+      try {
+        connection.close();
+      } catch (IOException e) {
+        // It's ok
+        LOG.log(Level.WARNING, "Error while closing I/O", e);
+      }
+    }
+
+    private ResponseEnvelope handleError(String msg, ErrorReason reason,
+        Throwable throwable) {
       LOG.log(Level.WARNING, reason + ": " + msg, throwable);
-      return SocketRpcProtos.Response
-          .newBuilder()
-          .setError(msg)
-          .setErrorReason(reason)
-          .build();
+      return ResponseEnvelope.forError(msg, reason);
     }
   }
 }
@@ -0,0 +1,108 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.List;
+
+/**
+ * Management interface of a running {@link RpcServer}, registered as
+ * {@code com.googlecode.protobuf.socketrpc:type=RpcServer,name=server-N}
+ * while the server runs. Attributes are computed when they are read.
+ *
+ * @author Shardul Deo
+ */
+public interface RpcServerMXBean {
+
+  boolean isRunning();
+
+  /**
+   * @return Full names of the registered services.
+   */
+  List<String> getRegisteredServices();
+
+  /**
+   * @see RpcServer#getAcceptedRequests()
+   */
+  long getAcceptedRequests();
+
+  /**
+   * @see RpcServer#getShedRequests()
+   */
+  long getShedRequests();
+
+  /**
+   * @see RpcServer#getExpiredRequests()
+   */
+  long getExpiredRequests();
+
+  /**
+   * @return Number of requests, or connections in keep-alive mode, being
+   *         handled by the executor.
+   */
+  int getInFlightRequests();
+
+  /**
+   * @return Number of requests waiting for their turn, see
+   *         {@link RpcServer#setAdmissionLimits(int, int)}.
+   */
+  int getQueuedRequests();
+
+  /**
+   * @return Number of open client connections, or -1 if the connection
+   *         factory doesn't keep track of them.
+   */
+  int getOpenConnections();
+
+  /**
+   * @return Number of executor threads running tasks, or -1 if the executor
+   *         is not a {@link java.util.concurrent.ThreadPoolExecutor}.
+   */
+  int getExecutorActiveThreads();
+
+  /**
+   * @return Number of executor threads, or -1 if the executor is not a
+   *         {@link java.util.concurrent.ThreadPoolExecutor}.
+   */
+  int getExecutorPoolSize();
+
+  /**
+   * @return Maximum number of executor threads, or -1 if the executor is not
+   *         a {@link java.util.concurrent.ThreadPoolExecutor}.
+   */
+  int getExecutorMaxPoolSize();
+
+  /**
+   * @return Number of tasks in the executor's own queue, or -1 if the
+   *         executor is not a {@link java.util.concurrent.ThreadPoolExecutor}.
+   */
+  int getExecutorQueueSize();
+
+  /**
+   * @return Metrics of every method called so far, see
+   *         {@link RpcServer#getMetrics()}.
+   */
+  List<MethodStatistics> getMethods();
+
+  /**
+   * Set the method metrics back to 0.
+   */
+  void resetMetrics();
+}
@@ -0,0 +1,370 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+
+/**
+ * Calls the same method on a number of shards at once and merges their
+ * responses. Each shard is a {@link RpcChannel}, and a call is sent to all of
+ * them without waiting for any response. The call completes as soon as:
+ * <ul>
+ * <li>a quorum of the shards, the first K of N, responded successfully,</li>
+ * <li>so many shards failed that the quorum can't be reached,</li>
+ * <li>the deadline of the call's {@link SocketRpcController}, if it has one,
+ * passed, with the responses received so far, or</li>
+ * <li>the call was canceled with the controller or the returned future.</li>
+ * </ul>
+ * Shards that are still in progress then are canceled. Responses and failures
+ * are passed to a {@link Merger} one at a time as they arrive, never after the
+ * call completed, and the {@link Result} says how many shards responded.
+ * <p>
+ * With {@link AsyncRpcChannel} shards, no thread waits for the responses. With
+ * channels from {@link RpcChannels#newRpcChannel}, every shard call takes a
+ * thread of the channel's executor until it completes. A call to a shard whose
+ * server-side implementation doesn't call the callback counts as a success
+ * with a null response for these channels and {@link HedgingRpcChannel}, for
+ * other channels it stays in progress.
+ * <p>
+ * Use {@link RpcChannels#newScatterGather(List)} to create instances. The
+ * {@link #close()} method must explicitly be called when the client has
+ * finished using it.
+ *
+ * @author Shardul Deo
+ */
+public class ScatterGather implements Closeable {
+
+  /**
+   * Merges the responses of the shards. Its methods are never called
+   * concurrently for the same call.
+   */
+  public interface Merger {
+
+    /**
+     * Called with the response of a shard that succeeded.
+     *
+     * @param shard Index of the shard in the list of shards.
+     */
+    void onResponse(int shard, Message response);
+
+    /**
+     * Called for a shard that failed, the controller has the error
+     * information.
+     *
+     * @param shard Index of the shard in the list of shards.
+     */
+    void onFailure(int shard, SocketRpcController controller);
+  }
+
+  /**
+   * Outcome of a call to all shards.
+   */
+  public static final class Result {
+
+    private final int responseCount;
+    private final int failureCount;
+    private final int canceledCount;
+    private final boolean quorumReached;
+
+    private Result(int responseCount, int failureCount, int canceledCount,
+        boolean quorumReached) {
+      this.responseCount = responseCount;
+      this.failureCount = failureCount;
+      this.canceledCount = canceledCount;
+      this.quorumReached = quorumReached;
+    }
+
+    /**
+     * @return Number of shards whose responses were merged.
+     */
+    public int getResponseCount() {
+      return responseCount;
+    }
+
+    /**
+     * @return Number of shards that failed.
+     */
+    public int getFailureCount() {
+      return failureCount;
+    }
+
+    /**
+     * @return Number of shards that were still in progress when the call
+     *         completed and were canceled.
+     */
+    public int getCanceledCount() {
+      return canceledCount;
+    }
+
+    /**
+     * @return Whether the quorum of shards responded, false if the call
+     *         completed with partial results.
+     */
+    public boolean isQuorumReached() {
+      return quorumReached;
+    }
+
+    @Override
+    public String toString() {
+      return responseCount + " responses, " + failureCount + " failures, "
+          + canceledCount + " canceled";
+    }
+  }
+
+  private final List<RpcChannel> shards;
+  private final ScheduledExecutorService timer;
+
+  ScatterGather(List<? extends RpcChannel> shards) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("No shards");
+    }
+    this.shards = Collections.unmodifiableList(
+        new ArrayList<RpcChannel>(shards));
+    timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ScatterGather");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * @return The shards, in the order their indexes refer to.
+   */
+  public List<RpcChannel> getShards() {
+    return shards;
+  }
+
+  /**
+   * Send the same request to all shards, see
+   * {@link #call(MethodDescriptor, SocketRpcController, List, Message, int,
+   * Merger)}.
+   */
+  public RpcFuture<Result> call(MethodDescriptor method,
+      SocketRpcController controller, Message request,
+      Message responsePrototype, int quorum, Merger merger) {
+    return call(method, controller,
+        Collections.nCopies(shards.size(), request), responsePrototype,
+        quorum, merger);
+  }
+
+  /**
+   * Send each shard its own request without blocking.
+   *
+   * @param controller Controller of the whole call, its deadline bounds the
+   *        call and is passed on to the shards. It fails only if the call is
+   *        canceled, which also cancels the future.
+   * @param requests Request of each shard, in the order of the shards.
+   * @param quorum Number of successful responses after which the call
+   *        completes and the other shards are canceled. The number of shards
+   *        waits for all of them.
+   * @return Future result, which completes once the last call to the merger
+   *         has returned.
+   */
+  public RpcFuture<Result> call(MethodDescriptor method,
+      SocketRpcController controller, List<? extends Message> requests,
+      Message responsePrototype, int quorum, Merger merger) {
+    if (requests.size() != shards.size()) {
+      throw new IllegalArgumentException("Expected " + shards.size()
+          + " requests but got " + requests.size());
+    }
+    if (quorum < 1 || quorum > shards.size()) {
+      throw new IllegalArgumentException(
+          "quorum must be between 1 and the number of shards");
+    }
+    FanOut fanOut = new FanOut(controller, quorum, merger);
+    fanOut.start(method, requests, responsePrototype);
+    return fanOut.future;
+  }
+
+  /**
+   * Stop the deadline timer. Calls in progress still complete once enough
+   * shards responded, but no longer at their deadline.
+   */
+  @Override
+  public void close() {
+    timer.shutdownNow();
+  }
+
+  /**
+   * Call the method on a shard, making sure the callback is called if the
+   * channel supports it.
+   */
+  private static void callShard(RpcChannel channel, MethodDescriptor method,
+      SocketRpcController controller, Message request,
+      Message responsePrototype, RpcCallback<Message> done) {
+    if (channel instanceof RpcChannelImpl) {
+      ((RpcChannelImpl) channel).call(method, controller, request,
+          responsePrototype, done, true /* alwaysCallback */);
+    } else if (channel instanceof AsyncRpcChannel) {
+      ((AsyncRpcChannel) channel).call(method, controller, request,
+          responsePrototype, done, true /* alwaysCallback */);
+    } else {
+      channel.callMethod(method, controller, request, responsePrototype,
+          done);
+    }
+  }
+
+  /**
+   * A call to all shards.
+   */
+  private class FanOut {
+
+    private final SocketRpcController controller;
+    private final int quorum;
+    private final Merger merger;
+    private final RpcFuture<Result> future;
+    private final SocketRpcController[] calls;
+
+    // Guarded by this
+    private final boolean[] done;
+    private int pending;
+    private int responses = 0;
+    private int failures = 0;
+    private boolean completed = false;
+    private ScheduledFuture<?> deadlineTimer = null;
+
+    private FanOut(SocketRpcController controller, int quorum,
+        Merger merger) {
+      this.controller = controller;
+      this.quorum = quorum;
+      this.merger = merger;
+      this.future = new RpcFuture<Result>(controller);
+      this.calls = new SocketRpcController[shards.size()];
+      for (int i = 0; i < calls.length; i++) {
+        calls[i] = new SocketRpcController();
+        calls[i].inheritDeadline(controller);
+      }
+      this.done = new boolean[calls.length];
+      this.pending = calls.length;
+    }
+
+    private void start(MethodDescriptor method,
+        List<? extends Message> requests, Message responsePrototype) {
+      controller.setCancelHook(new Runnable() {
+        @Override
+        public void run() {
+          complete(true /* canceled */);
+        }
+      });
+      if (controller.hasDeadline()) {
+        synchronized (this) {
+          try {
+            deadlineTimer = timer.schedule(new Runnable() {
+              @Override
+              public void run() {
+                complete(false /* canceled */);
+              }
+            }, controller.getTimeRemaining(TimeUnit.NANOSECONDS),
+                TimeUnit.NANOSECONDS);
+          } catch (RejectedExecutionException e) {
+            // Closed, the call completes once enough shards responded
+          }
+        }
+      }
+      for (int i = 0; i < calls.length; i++) {
+        final int shard = i;
+        // Shards not started yet when the call completes fail right away
+        callShard(shards.get(i), method, calls[i], requests.get(i),
+            responsePrototype, new RpcCallback<Message>() {
+              @Override
+              public void run(Message response) {
+                shardCompleted(shard, response);
+              }
+            });
+      }
+    }
+
+    private void shardCompleted(int shard, Message response) {
+      boolean quorumDecided;
+      synchronized (this) {
+        if (completed || done[shard]) {
+          return;
+        }
+        done[shard] = true;
+        pending--;
+        SocketRpcController call = calls[shard];
+        if (call.failed()) {
+          failures++;
+          merger.onFailure(shard, call);
+        } else {
+          responses++;
+          merger.onResponse(shard, response);
+        }
+        quorumDecided = responses >= quorum || responses + pending < quorum;
+      }
+      if (quorumDecided) {
+        complete(false /* canceled */);
+      }
+    }
+
+    private void complete(boolean canceled) {
+      List<SocketRpcController> stragglers =
+          new ArrayList<SocketRpcController>();
+      Result result;
+      synchronized (this) {
+        if (completed) {
+          return;
+        }
+        completed = true;
+        if (deadlineTimer != null) {
+          deadlineTimer.cancel(false);
+        }
+        for (int i = 0; i < calls.length; i++) {
+          if (!done[i]) {
+            stragglers.add(calls[i]);
+          }
+        }
+        result = new Result(responses, failures, pending,
+            responses >= quorum);
+      }
+      controller.setCancelHook(null);
+      for (SocketRpcController straggler : stragglers) {
+        straggler.startCancel();
+      }
+      if (canceled) {
+        controller.setFailed("Canceled", ErrorReason.CANCELED);
+        controller.callCompleted();
+        future.cancel(false /* mayInterruptIfRunning */);
+      } else {
+        controller.callCompleted();
+        future.set(result);
+      }
+    }
+  }
+}
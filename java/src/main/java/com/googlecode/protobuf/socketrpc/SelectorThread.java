@@ -0,0 +1,209 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread that runs a {@link Selector} event loop doing non-blocking reads and
+ * writes of delimited protocol buffer frames over {@link NioChannel}s.
+ * <p>
+ * All selector operations happen in this thread. Other threads hand work to it
+ * using {@link #execute(Runnable)}, which also wakes up the selector.
+ *
+ * @author Shardul Deo
+ */
+class SelectorThread extends Thread {
+
+  private static final Logger LOG =
+      Logger.getLogger(SelectorThread.class.getName());
+
+  // Socket data is read into a single buffer shared by all channels of a loop
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Called in the selector thread when a server socket accepts a connection.
+   */
+  interface AcceptHandler {
+
+    void accepted(SocketChannel channel) throws IOException;
+  }
+
+  private final Selector selector;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  private final ByteBuffer readBuffer =
+      ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+  private volatile boolean running = true;
+
+  SelectorThread(String name) throws IOException {
+    super(name);
+    setDaemon(true);
+    selector = Selector.open();
+  }
+
+  /**
+   * Run the given task in the selector thread.
+   */
+  void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Start accepting connections from the given server channel, handing them to
+   * the given handler.
+   */
+  void registerAcceptor(final ServerSocketChannel serverChannel,
+      final AcceptHandler handler) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          serverChannel.register(selector, SelectionKey.OP_ACCEPT, handler);
+        } catch (ClosedChannelException e) {
+          LOG.log(Level.WARNING, "Server channel closed before registering", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Start reading frames from the given channel.
+   */
+  void register(final NioChannel channel) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          channel.registered(channel.channel.register(selector,
+              SelectionKey.OP_READ, channel));
+        } catch (IOException e) {
+          channel.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Stop the event loop and close every channel registered with it.
+   */
+  void shutDown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        selector.select();
+        runTasks();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (key.isValid()) {
+            handleKey(key);
+          }
+        }
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Error in selector loop", e);
+    } finally {
+      closeAll();
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  private void handleKey(SelectionKey key) {
+    if (key.isAcceptable()) {
+      accept(key);
+      return;
+    }
+    NioChannel channel = (NioChannel) key.attachment();
+    try {
+      if (key.isReadable()) {
+        channel.read(readBuffer);
+      }
+      if (key.isValid() && key.isWritable()) {
+        channel.flush();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Closing channel " + channel, e);
+      channel.close();
+    }
+  }
+
+  private void accept(SelectionKey key) {
+    ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+    AcceptHandler handler = (AcceptHandler) key.attachment();
+    SocketChannel channel = null;
+    try {
+      while ((channel = serverChannel.accept()) != null) {
+        handler.accepted(channel);
+      }
+    } catch (IOException e) {
+      if (serverChannel.isOpen()) {
+        LOG.log(Level.WARNING, "Error while accepting connection", e);
+      }
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException ioe) {
+          // It's ok
+        }
+      }
+    }
+  }
+
+  private void closeAll() {
+    runTasks();
+    for (SelectionKey key : selector.keys()) {
+      Object attachment = key.attachment();
+      if (attachment instanceof NioChannel) {
+        ((NioChannel) attachment).close();
+      }
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Error while closing selector", e);
+    }
+  }
+}
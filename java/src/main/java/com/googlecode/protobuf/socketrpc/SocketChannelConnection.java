@@ -0,0 +1,133 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.MessageLite.Builder;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+
+/**
+ * {@link Connection} impl that wraps a blocking {@link SocketChannel}, for
+ * sockets that have no {@link java.net.Socket} such as Unix domain sockets.
+ * Uses the delimited communication mode.
+ * <p>
+ * The streams of {@link java.nio.channels.Channels} hold the channel's
+ * blocking lock while reading, which would keep a multiplexed connection from
+ * sending while it waits for a response, so the channel is wrapped directly.
+ *
+ * @author Shardul Deo
+ */
+class SocketChannelConnection implements Connection {
+
+  private final SocketChannel channel;
+  private final OutputStream out;
+  private final InputStream in;
+
+  SocketChannelConnection(SocketChannel channel) {
+    this.channel = channel;
+    out = new BufferedOutputStream(new ChannelOutputStream(channel));
+    in = new BufferedInputStream(new ChannelInputStream(channel));
+  }
+
+  @Override
+  public void sendProtoMessage(MessageLite message) throws IOException {
+    try {
+      message.writeDelimitedTo(out);
+      out.flush();
+    } catch (IOException e) {
+      // Cannot write anymore, just close channel
+      channel.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void receiveProtoMessage(Builder messageBuilder) throws IOException {
+    if (!messageBuilder.mergeDelimitedFrom(in)) {
+      // Other side closed the connection
+      throw new EOFException("Connection closed: " + channel);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  @Override
+  public boolean isClosed() {
+    return !channel.isOpen();
+  }
+
+  private static class ChannelInputStream extends InputStream {
+
+    private final SocketChannel channel;
+
+    private ChannelInputStream(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      return channel.read(ByteBuffer.wrap(b, off, len));
+    }
+  }
+
+  private static class ChannelOutputStream extends OutputStream {
+
+    private final SocketChannel channel;
+
+    private ChannelOutputStream(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+}
@@ -22,6 +22,7 @@ package com.googlecode.protobuf.socketrpc;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -85,7 +86,10 @@ class SocketConnection implements Connection {
   public void receiveProtoMessage(Builder messageBuilder) throws IOException {
     // Read message
     if (delimited) {
-      messageBuilder.mergeDelimitedFrom(in);
+      if (!messageBuilder.mergeDelimitedFrom(in)) {
+        // Other side closed the connection, e.g. a server closing an idle one
+        throw new EOFException("Connection closed: " + socket);
+      }
     } else {
       messageBuilder.mergeFrom(in);
     }
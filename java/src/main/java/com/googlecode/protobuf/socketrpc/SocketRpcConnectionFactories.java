@@ -99,6 +99,144 @@ public class SocketRpcConnectionFactories {
         true /* delimited */);
   }
 
+  /**
+   * Create a server-side {@link ServerRpcConnectionFactory} at the given port.
+   * This uses delimited communication mode which allows multiple protocol
+   * buffers to be sent/received over a single {@link Connection}. Reads time
+   * out after the given idle timeout, which lets a keep-alive
+   * {@link RpcServer} close connections that clients left open.
+   *
+   * @param port Port that this server socket will be started on.
+   * @param backlog the maximum length of the queue. A value <=0 uses default
+   *        backlog.
+   * @param bindAddr the local InetAddress the server socket will bind to. A
+   *        null value binds to any/all local IP addresses.
+   * @param idleTimeoutMillis Time after which waiting for a request on a
+   *        connection times out. A value <=0 means no timeout.
+   */
+  public static ServerRpcConnectionFactory createServerRpcConnectionFactory(
+      int port, int backlog, InetAddress bindAddr, int idleTimeoutMillis) {
+    return new SocketServerRpcConnectionFactory(port, backlog, bindAddr,
+        true /* delimited */, idleTimeoutMillis);
+  }
+
+  /**
+   * Create a server-side {@link ServerRpcConnectionFactory} at the given port
+   * which uses non-blocking I/O, so that the number of client connections is
+   * not limited by the number of threads handling requests. This uses
+   * delimited communication mode and a single I/O thread.
+   */
+  public static ServerRpcConnectionFactory createNioServerRpcConnectionFactory(
+      int port) {
+    return new NioServerRpcConnectionFactory(port, 0, null, 1 /* ioThreads */);
+  }
+
+  /**
+   * Create a server-side {@link ServerRpcConnectionFactory} at the given port
+   * which uses non-blocking I/O, so that the number of client connections is
+   * not limited by the number of threads handling requests. This uses
+   * delimited communication mode.
+   *
+   * @param port Port that this server socket will be started on.
+   * @param backlog the maximum length of the queue. A value <=0 uses default
+   *        backlog.
+   * @param bindAddr the local InetAddress the server socket will bind to. A
+   *        null value binds to any/all local IP addresses.
+   * @param ioThreads Number of threads used for reading requests and writing
+   *        responses. Requests are still handled in the server's executor.
+   */
+  public static ServerRpcConnectionFactory createNioServerRpcConnectionFactory(
+      int port, int backlog, InetAddress bindAddr, int ioThreads) {
+    return new NioServerRpcConnectionFactory(port, backlog, bindAddr,
+        ioThreads);
+  }
+
+  /**
+   * @return Whether Unix domain sockets can be used on this JDK, which needs
+   *         Java 16 or later. If not, use loopback TCP sockets instead.
+   */
+  public static boolean isUnixDomainSocketSupported() {
+    return UnixDomainSockets.isSupported();
+  }
+
+  /**
+   * Create a client-side {@link RpcConnectionFactory} that connects to a
+   * server on the same host over a Unix domain socket. This uses delimited
+   * communication mode and saves the TCP/IP processing of loopback sockets.
+   *
+   * @param path Path of the server's socket file.
+   * @throws UnsupportedOperationException If this JDK doesn't support Unix
+   *         domain sockets, see {@link #isUnixDomainSocketSupported()}.
+   */
+  public static RpcConnectionFactory createUnixDomainRpcConnectionFactory(
+      String path) {
+    return new UnixDomainRpcConnectionFactory(path);
+  }
+
+  /**
+   * Create a server-side {@link ServerRpcConnectionFactory} that accepts
+   * connections from clients on the same host over a Unix domain socket.
+   * This uses delimited communication mode.
+   *
+   * @param path Path of the socket file, which is created when the server
+   *        starts and deleted when the factory is closed.
+   * @throws UnsupportedOperationException If this JDK doesn't support Unix
+   *         domain sockets, see {@link #isUnixDomainSocketSupported()}.
+   */
+  public static ServerRpcConnectionFactory
+      createUnixDomainServerRpcConnectionFactory(String path) {
+    return new UnixDomainServerRpcConnectionFactory(path);
+  }
+
+  /**
+   * Create a client-side {@link RpcConnectionFactory} that connects to a
+   * server in the same JVM, see
+   * {@link #createInProcessServerRpcConnectionFactory(String)}. Messages are
+   * serialized but not sent over a socket, so the client and the service
+   * don't share any objects.
+   *
+   * @param name Name of the server.
+   */
+  public static RpcConnectionFactory createInProcessRpcConnectionFactory(
+      String name) {
+    return createInProcessRpcConnectionFactory(name,
+        false /* passByReference */);
+  }
+
+  /**
+   * Create a client-side {@link RpcConnectionFactory} that connects to a
+   * server in the same JVM, see
+   * {@link #createInProcessServerRpcConnectionFactory(String)}.
+   *
+   * @param name Name of the server.
+   * @param passByReference If true, request and response messages are handed
+   *        over as they are instead of being serialized, so a call costs
+   *        about as much as calling the service directly. The service gets
+   *        the client's request object and the client gets the service's
+   *        response object, which is safe since messages are immutable.
+   *        Messages still get serialized when connections of this factory
+   *        are wrapped by other factories, e.g.
+   *        {@link MultiplexedRpcConnectionFactory}.
+   */
+  public static RpcConnectionFactory createInProcessRpcConnectionFactory(
+      String name, boolean passByReference) {
+    return new InProcessRpcConnectionFactory(name, passByReference);
+  }
+
+  /**
+   * Create a server-side {@link ServerRpcConnectionFactory} for clients in the
+   * same JVM, which connect to it by name without using sockets. The name is
+   * taken when the server starts and released when the factory is closed.
+   * An {@link RpcServer} using this factory directly hands requests to its
+   * executor in the client's thread.
+   *
+   * @param name Name the server is known by, unique within the JVM.
+   */
+  public static ServerRpcConnectionFactory
+      createInProcessServerRpcConnectionFactory(String name) {
+    return new InProcessServerRpcConnectionFactory(name);
+  }
+
   /**
    * Create an undelimited server-side {@link ServerRpcConnectionFactory} at the
    * given port. This uses delimited communication mode. Only one RPC
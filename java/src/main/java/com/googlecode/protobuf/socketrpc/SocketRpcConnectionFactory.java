@@ -63,4 +63,9 @@ class SocketRpcConnectionFactory implements RpcConnectionFactory {
     Socket socket = socketFactory.createSocket(host, port);
     return new SocketConnection(socket, delimited);
   }
+
+  @Override
+  public String toString() {
+    return host + ":" + port;
+  }
 }
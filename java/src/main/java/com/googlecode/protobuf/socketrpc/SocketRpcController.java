@@ -20,12 +20,31 @@
 
 package com.googlecode.protobuf.socketrpc;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
 import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
 
 /**
  * Simple {@link RpcController}.
+ * <p>
+ * Clients can give a call a deadline with {@link #setTimeout(long, TimeUnit)}.
+ * The time left is sent to the server, which skips the request if the
+ * deadline passes before it gets to it, and the client fails the call with
+ * {@code DEADLINE_EXCEEDED} if the deadline passes while it waits for the
+ * response. The controller passed to services carries the same deadline, so
+ * services can check the time left with {@link #getTimeRemaining(TimeUnit)},
+ * and pass it on to RPCs they make in turn with
+ * {@link #inheritDeadline(RpcController)}.
+ * <p>
+ * Calls can be canceled with {@link #startCancel()}. The call then fails with
+ * {@code CANCELED}, the client stops waiting for the response and, if the
+ * connection is shared with other calls, tells the server. Servers using the
+ * NIO server connection factory then run the callbacks given to
+ * {@link #notifyOnCancel(RpcCallback)} by the service.
  *
  * @author Shardul Deo
  */
@@ -34,12 +53,92 @@ public class SocketRpcController implements RpcController {
   private boolean failed = false;
   private String error = null;
   private ErrorReason reason = null;
+  private boolean hasDeadline = false;
+  private long deadlineNanos = 0;
+
+  // Guarded by this, callbacks are null once the call was canceled or
+  // completed
+  private volatile boolean canceled = false;
+  private List<RpcCallback<Object>> cancelCallbacks =
+      new ArrayList<RpcCallback<Object>>();
+  private Runnable cancelHook = null;
 
   @Override
   public void reset() {
     failed = false;
     error = null;
     reason = null;
+    hasDeadline = false;
+    deadlineNanos = 0;
+    synchronized (this) {
+      canceled = false;
+      cancelCallbacks = new ArrayList<RpcCallback<Object>>();
+      cancelHook = null;
+    }
+  }
+
+  /**
+   * Set the deadline of the next call to the given time from now.
+   */
+  public void setTimeout(long timeout, TimeUnit unit) {
+    setDeadlineNanos(System.nanoTime() + unit.toNanos(timeout));
+  }
+
+  /**
+   * Use the deadline of the given controller, e.g. the one passed to a
+   * service, for the next call. Does nothing if it has no deadline.
+   */
+  public void inheritDeadline(RpcController parent) {
+    if (parent instanceof SocketRpcController) {
+      SocketRpcController socketParent = (SocketRpcController) parent;
+      if (socketParent.hasDeadline) {
+        setDeadlineNanos(socketParent.deadlineNanos);
+      }
+    }
+  }
+
+  /**
+   * @return Whether the call has a deadline.
+   */
+  public boolean hasDeadline() {
+    return hasDeadline;
+  }
+
+  /**
+   * @return Time left until the deadline, 0 if it has passed or
+   *         {@link Long#MAX_VALUE} if there is no deadline.
+   */
+  public long getTimeRemaining(TimeUnit unit) {
+    if (!hasDeadline) {
+      return Long.MAX_VALUE;
+    }
+    long remaining = deadlineNanos - System.nanoTime();
+    return remaining <= 0 ? 0 : unit.convert(remaining, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return Whether the deadline has passed.
+   */
+  public boolean isDeadlineExceeded() {
+    return hasDeadline && deadlineNanos - System.nanoTime() <= 0;
+  }
+
+  /**
+   * @param deadlineNanos Deadline as a {@link System#nanoTime()} value.
+   */
+  void setDeadlineNanos(long deadlineNanos) {
+    hasDeadline = true;
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  /**
+   * @return Milliseconds left until the deadline to send to the server,
+   *         rounded up so that a call that hasn't timed out yet is never sent
+   *         with no time left.
+   */
+  long getTimeoutMillis() {
+    long remaining = deadlineNanos - System.nanoTime();
+    return remaining <= 0 ? 0 : (remaining + 999999) / 1000000;
   }
 
   @Override
@@ -60,11 +159,78 @@ public class SocketRpcController implements RpcController {
     return error;
   }
 
+  /**
+   * Cancel the call in progress with this controller, or the next one if
+   * none is. The call fails with {@code CANCELED}, unless it completes first.
+   */
   @Override
   public void startCancel() {
-    // Not yet supported
-    throw new UnsupportedOperationException(
-        "Cannot cancel request in Socket RPC");
+    Runnable hook;
+    synchronized (this) {
+      hook = cancelHook;
+      cancelHook = null;
+    }
+    cancel();
+    if (hook != null) {
+      hook.run();
+    }
+  }
+
+  /**
+   * Mark the call canceled and run the callbacks waiting for that.
+   */
+  void cancel() {
+    List<RpcCallback<Object>> callbacks;
+    synchronized (this) {
+      canceled = true;
+      callbacks = cancelCallbacks;
+      cancelCallbacks = null;
+    }
+    runCallbacks(callbacks);
+  }
+
+  /**
+   * Run the callbacks waiting for the call to be canceled, if it wasn't,
+   * since they are called exactly once either way.
+   */
+  void callCompleted() {
+    List<RpcCallback<Object>> callbacks;
+    synchronized (this) {
+      callbacks = cancelCallbacks;
+      cancelCallbacks = null;
+    }
+    runCallbacks(callbacks);
+  }
+
+  private static void runCallbacks(List<RpcCallback<Object>> callbacks) {
+    if (callbacks != null) {
+      for (RpcCallback<Object> callback : callbacks) {
+        callback.run(null);
+      }
+    }
+  }
+
+  /**
+   * Set what the channel does to cancel the call in progress, run right away
+   * if the call was already canceled. Null clears it once the call completes.
+   */
+  void setCancelHook(Runnable hook) {
+    synchronized (this) {
+      if (!canceled || hook == null) {
+        cancelHook = hook;
+        return;
+      }
+    }
+    hook.run();
+  }
+
+  /**
+   * Clear the error of a failed attempt before retrying the call.
+   */
+  void clearFailure() {
+    failed = false;
+    error = null;
+    reason = null;
   }
 
   @Override
@@ -78,18 +244,28 @@ public class SocketRpcController implements RpcController {
     reason = errorReason;
   }
 
+  /**
+   * @return Whether the call was canceled, by the client on the server side
+   *         or by {@link #startCancel()} on the client side.
+   */
   @Override
   public boolean isCanceled() {
-    // Not yet supported
-    throw new UnsupportedOperationException(
-        "Cannot cancel request in Socket RPC");
+    return canceled;
   }
 
+  /**
+   * The callback is run once, when the call is canceled or after it
+   * completes, or right away if either already happened.
+   */
   @Override
   public void notifyOnCancel(RpcCallback<Object> callback) {
-    // Not yet supported
-    throw new UnsupportedOperationException(
-        "Cannot cancel request in Socket RPC");
+    synchronized (this) {
+      if (cancelCallbacks != null) {
+        cancelCallbacks.add(callback);
+        return;
+      }
+    }
+    callback.run(null);
   }
 
   @Override
@@ -97,6 +273,9 @@ public class SocketRpcController implements RpcController {
     return new StringBuffer("SocketRpcController:")
         .append("\nFailed: " + failed)
         .append("\nError: " + error)
-        .append("\nReason: " + reason).toString();
+        .append("\nReason: " + reason)
+        .append("\nDeadline: " + (hasDeadline
+            ? getTimeRemaining(TimeUnit.MILLISECONDS) + " ms left" : "none"))
+        .toString();
   }
 }
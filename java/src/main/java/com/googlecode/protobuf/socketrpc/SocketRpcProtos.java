@@ -40,6 +40,10 @@ public final class SocketRpcProtos {
     BAD_RESPONSE_PROTO(7, 7),
     UNKNOWN_HOST(8, 8),
     IO_ERROR(9, 9),
+    SERVER_OVERLOADED(10, 10),
+    DEADLINE_EXCEEDED(11, 11),
+    CANCELED(12, 12),
+    CIRCUIT_OPEN(13, 13),
     ;
 
     public static final int BAD_REQUEST_DATA_VALUE = 0;
@@ -52,6 +56,10 @@ public final class SocketRpcProtos {
     public static final int BAD_RESPONSE_PROTO_VALUE = 7;
     public static final int UNKNOWN_HOST_VALUE = 8;
     public static final int IO_ERROR_VALUE = 9;
+    public static final int SERVER_OVERLOADED_VALUE = 10;
+    public static final int DEADLINE_EXCEEDED_VALUE = 11;
+    public static final int CANCELED_VALUE = 12;
+    public static final int CIRCUIT_OPEN_VALUE = 13;
 
 
     public final int getNumber() { return value; }
@@ -68,6 +76,10 @@ public final class SocketRpcProtos {
         case 7: return BAD_RESPONSE_PROTO;
         case 8: return UNKNOWN_HOST;
         case 9: return IO_ERROR;
+        case 10: return SERVER_OVERLOADED;
+        case 11: return DEADLINE_EXCEEDED;
+        case 12: return CANCELED;
+        case 13: return CIRCUIT_OPEN;
         default: return null;
       }
     }
@@ -98,7 +110,7 @@ public final class SocketRpcProtos {
     }
 
     private static final ErrorReason[] VALUES = {
-      BAD_REQUEST_DATA, BAD_REQUEST_PROTO, SERVICE_NOT_FOUND, METHOD_NOT_FOUND, RPC_ERROR, RPC_FAILED, INVALID_REQUEST_PROTO, BAD_RESPONSE_PROTO, UNKNOWN_HOST, IO_ERROR,
+      BAD_REQUEST_DATA, BAD_REQUEST_PROTO, SERVICE_NOT_FOUND, METHOD_NOT_FOUND, RPC_ERROR, RPC_FAILED, INVALID_REQUEST_PROTO, BAD_RESPONSE_PROTO, UNKNOWN_HOST, IO_ERROR, SERVER_OVERLOADED, DEADLINE_EXCEEDED, CANCELED, CIRCUIT_OPEN,
     };
 
     public static ErrorReason valueOf(
@@ -135,6 +147,22 @@ public final class SocketRpcProtos {
     // required bytes request_proto = 3;
     boolean hasRequestProto();
     com.google.protobuf.ByteString getRequestProto();
+
+    // optional uint64 request_id = 4;
+    boolean hasRequestId();
+    long getRequestId();
+
+    // optional uint32 method_id = 5;
+    boolean hasMethodId();
+    int getMethodId();
+
+    // optional uint64 timeout_millis = 6;
+    boolean hasTimeoutMillis();
+    long getTimeoutMillis();
+
+    // optional bool cancel = 7 [default = false];
+    boolean hasCancel();
+    boolean getCancel();
   }
   public static final class Request extends
       com.google.protobuf.GeneratedMessage
@@ -167,12 +195,12 @@ public final class SocketRpcProtos {
     private int bitField0_;
     // required string service_name = 1;
     public static final int SERVICE_NAME_FIELD_NUMBER = 1;
-    private Object serviceName_;
+    private java.lang.Object serviceName_;
     public boolean hasServiceName() {
       return ((bitField0_ & 0x00000001) == 0x00000001);
     }
     public String getServiceName() {
-      Object ref = serviceName_;
+      java.lang.Object ref = serviceName_;
       if (ref instanceof String) {
         return (String) ref;
       } else {
@@ -186,7 +214,7 @@ public final class SocketRpcProtos {
       }
     }
     private com.google.protobuf.ByteString getServiceNameBytes() {
-      Object ref = serviceName_;
+      java.lang.Object ref = serviceName_;
       if (ref instanceof String) {
         com.google.protobuf.ByteString b =
             com.google.protobuf.ByteString.copyFromUtf8((String) ref);
@@ -199,12 +227,12 @@ public final class SocketRpcProtos {
 
     // required string method_name = 2;
     public static final int METHOD_NAME_FIELD_NUMBER = 2;
-    private Object methodName_;
+    private java.lang.Object methodName_;
     public boolean hasMethodName() {
       return ((bitField0_ & 0x00000002) == 0x00000002);
     }
     public String getMethodName() {
-      Object ref = methodName_;
+      java.lang.Object ref = methodName_;
       if (ref instanceof String) {
         return (String) ref;
       } else {
@@ -218,7 +246,7 @@ public final class SocketRpcProtos {
       }
     }
     private com.google.protobuf.ByteString getMethodNameBytes() {
-      Object ref = methodName_;
+      java.lang.Object ref = methodName_;
       if (ref instanceof String) {
         com.google.protobuf.ByteString b =
             com.google.protobuf.ByteString.copyFromUtf8((String) ref);
@@ -239,10 +267,54 @@ public final class SocketRpcProtos {
       return requestProto_;
     }
 
+    // optional uint64 request_id = 4;
+    public static final int REQUEST_ID_FIELD_NUMBER = 4;
+    private long requestId_;
+    public boolean hasRequestId() {
+      return ((bitField0_ & 0x00000008) == 0x00000008);
+    }
+    public long getRequestId() {
+      return requestId_;
+    }
+
+    // optional uint32 method_id = 5;
+    public static final int METHOD_ID_FIELD_NUMBER = 5;
+    private int methodId_;
+    public boolean hasMethodId() {
+      return ((bitField0_ & 0x00000010) == 0x00000010);
+    }
+    public int getMethodId() {
+      return methodId_;
+    }
+
+    // optional uint64 timeout_millis = 6;
+    public static final int TIMEOUT_MILLIS_FIELD_NUMBER = 6;
+    private long timeoutMillis_;
+    public boolean hasTimeoutMillis() {
+      return ((bitField0_ & 0x00000020) == 0x00000020);
+    }
+    public long getTimeoutMillis() {
+      return timeoutMillis_;
+    }
+
+    // optional bool cancel = 7 [default = false];
+    public static final int CANCEL_FIELD_NUMBER = 7;
+    private boolean cancel_;
+    public boolean hasCancel() {
+      return ((bitField0_ & 0x00000040) == 0x00000040);
+    }
+    public boolean getCancel() {
+      return cancel_;
+    }
+
     private void initFields() {
       serviceName_ = "";
       methodName_ = "";
       requestProto_ = com.google.protobuf.ByteString.EMPTY;
+      requestId_ = 0L;
+      methodId_ = 0;
+      timeoutMillis_ = 0L;
+      cancel_ = false;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -277,6 +349,18 @@ public final class SocketRpcProtos {
       if (((bitField0_ & 0x00000004) == 0x00000004)) {
         output.writeBytes(3, requestProto_);
       }
+      if (((bitField0_ & 0x00000008) == 0x00000008)) {
+        output.writeUInt64(4, requestId_);
+      }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        output.writeUInt32(5, methodId_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        output.writeUInt64(6, timeoutMillis_);
+      }
+      if (((bitField0_ & 0x00000040) == 0x00000040)) {
+        output.writeBool(7, cancel_);
+      }
       getUnknownFields().writeTo(output);
     }
 
@@ -298,13 +382,31 @@ public final class SocketRpcProtos {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(3, requestProto_);
       }
+      if (((bitField0_ & 0x00000008) == 0x00000008)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt64Size(4, requestId_);
+      }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(5, methodId_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt64Size(6, timeoutMillis_);
+      }
+      if (((bitField0_ & 0x00000040) == 0x00000040)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(7, cancel_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
     }
 
+    private static final long serialVersionUID = 0L;
     @java.lang.Override
-    protected Object writeReplace() throws java.io.ObjectStreamException {
+    protected java.lang.Object writeReplace()
+        throws java.io.ObjectStreamException {
       return super.writeReplace();
     }
 
@@ -426,6 +528,14 @@ public final class SocketRpcProtos {
         bitField0_ = (bitField0_ & ~0x00000002);
         requestProto_ = com.google.protobuf.ByteString.EMPTY;
         bitField0_ = (bitField0_ & ~0x00000004);
+        requestId_ = 0L;
+        bitField0_ = (bitField0_ & ~0x00000008);
+        methodId_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000010);
+        timeoutMillis_ = 0L;
+        bitField0_ = (bitField0_ & ~0x00000020);
+        cancel_ = false;
+        bitField0_ = (bitField0_ & ~0x00000040);
         return this;
       }
 
@@ -476,6 +586,22 @@ public final class SocketRpcProtos {
           to_bitField0_ |= 0x00000004;
         }
         result.requestProto_ = requestProto_;
+        if (((from_bitField0_ & 0x00000008) == 0x00000008)) {
+          to_bitField0_ |= 0x00000008;
+        }
+        result.requestId_ = requestId_;
+        if (((from_bitField0_ & 0x00000010) == 0x00000010)) {
+          to_bitField0_ |= 0x00000010;
+        }
+        result.methodId_ = methodId_;
+        if (((from_bitField0_ & 0x00000020) == 0x00000020)) {
+          to_bitField0_ |= 0x00000020;
+        }
+        result.timeoutMillis_ = timeoutMillis_;
+        if (((from_bitField0_ & 0x00000040) == 0x00000040)) {
+          to_bitField0_ |= 0x00000040;
+        }
+        result.cancel_ = cancel_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -501,6 +627,18 @@ public final class SocketRpcProtos {
         if (other.hasRequestProto()) {
           setRequestProto(other.getRequestProto());
         }
+        if (other.hasRequestId()) {
+          setRequestId(other.getRequestId());
+        }
+        if (other.hasMethodId()) {
+          setMethodId(other.getMethodId());
+        }
+        if (other.hasTimeoutMillis()) {
+          setTimeoutMillis(other.getTimeoutMillis());
+        }
+        if (other.hasCancel()) {
+          setCancel(other.getCancel());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -559,6 +697,26 @@ public final class SocketRpcProtos {
               requestProto_ = input.readBytes();
               break;
             }
+            case 32: {
+              bitField0_ |= 0x00000008;
+              requestId_ = input.readUInt64();
+              break;
+            }
+            case 40: {
+              bitField0_ |= 0x00000010;
+              methodId_ = input.readUInt32();
+              break;
+            }
+            case 48: {
+              bitField0_ |= 0x00000020;
+              timeoutMillis_ = input.readUInt64();
+              break;
+            }
+            case 56: {
+              bitField0_ |= 0x00000040;
+              cancel_ = input.readBool();
+              break;
+            }
           }
         }
       }
@@ -566,12 +724,12 @@ public final class SocketRpcProtos {
       private int bitField0_;
 
       // required string service_name = 1;
-      private Object serviceName_ = "";
+      private java.lang.Object serviceName_ = "";
       public boolean hasServiceName() {
         return ((bitField0_ & 0x00000001) == 0x00000001);
       }
       public String getServiceName() {
-        Object ref = serviceName_;
+        java.lang.Object ref = serviceName_;
         if (!(ref instanceof String)) {
           String s = ((com.google.protobuf.ByteString) ref).toStringUtf8();
           serviceName_ = s;
@@ -602,12 +760,12 @@ public final class SocketRpcProtos {
       }
 
       // required string method_name = 2;
-      private Object methodName_ = "";
+      private java.lang.Object methodName_ = "";
       public boolean hasMethodName() {
         return ((bitField0_ & 0x00000002) == 0x00000002);
       }
       public String getMethodName() {
-        Object ref = methodName_;
+        java.lang.Object ref = methodName_;
         if (!(ref instanceof String)) {
           String s = ((com.google.protobuf.ByteString) ref).toStringUtf8();
           methodName_ = s;
@@ -661,6 +819,90 @@ public final class SocketRpcProtos {
         return this;
       }
 
+      // optional uint64 request_id = 4;
+      private long requestId_ ;
+      public boolean hasRequestId() {
+        return ((bitField0_ & 0x00000008) == 0x00000008);
+      }
+      public long getRequestId() {
+        return requestId_;
+      }
+      public Builder setRequestId(long value) {
+        bitField0_ |= 0x00000008;
+        requestId_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearRequestId() {
+        bitField0_ = (bitField0_ & ~0x00000008);
+        requestId_ = 0L;
+        onChanged();
+        return this;
+      }
+
+      // optional uint32 method_id = 5;
+      private int methodId_ ;
+      public boolean hasMethodId() {
+        return ((bitField0_ & 0x00000010) == 0x00000010);
+      }
+      public int getMethodId() {
+        return methodId_;
+      }
+      public Builder setMethodId(int value) {
+        bitField0_ |= 0x00000010;
+        methodId_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearMethodId() {
+        bitField0_ = (bitField0_ & ~0x00000010);
+        methodId_ = 0;
+        onChanged();
+        return this;
+      }
+
+      // optional uint64 timeout_millis = 6;
+      private long timeoutMillis_ ;
+      public boolean hasTimeoutMillis() {
+        return ((bitField0_ & 0x00000020) == 0x00000020);
+      }
+      public long getTimeoutMillis() {
+        return timeoutMillis_;
+      }
+      public Builder setTimeoutMillis(long value) {
+        bitField0_ |= 0x00000020;
+        timeoutMillis_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearTimeoutMillis() {
+        bitField0_ = (bitField0_ & ~0x00000020);
+        timeoutMillis_ = 0L;
+        onChanged();
+        return this;
+      }
+
+      // optional bool cancel = 7 [default = false];
+      private boolean cancel_ ;
+      public boolean hasCancel() {
+        return ((bitField0_ & 0x00000040) == 0x00000040);
+      }
+      public boolean getCancel() {
+        return cancel_;
+      }
+      public Builder setCancel(boolean value) {
+        bitField0_ |= 0x00000040;
+        cancel_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearCancel() {
+        bitField0_ = (bitField0_ & ~0x00000040);
+        cancel_ = false;
+        onChanged();
+        return this;
+      }
+
       // @@protoc_insertion_point(builder_scope:protobuf.socketrpc.Request)
     }
 
@@ -690,6 +932,10 @@ public final class SocketRpcProtos {
     // optional .protobuf.socketrpc.ErrorReason error_reason = 4;
     boolean hasErrorReason();
     com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason getErrorReason();
+
+    // optional uint64 request_id = 5;
+    boolean hasRequestId();
+    long getRequestId();
   }
   public static final class Response extends
       com.google.protobuf.GeneratedMessage
@@ -732,12 +978,12 @@ public final class SocketRpcProtos {
 
     // optional string error = 2;
     public static final int ERROR_FIELD_NUMBER = 2;
-    private Object error_;
+    private java.lang.Object error_;
     public boolean hasError() {
       return ((bitField0_ & 0x00000002) == 0x00000002);
     }
     public String getError() {
-      Object ref = error_;
+      java.lang.Object ref = error_;
       if (ref instanceof String) {
         return (String) ref;
       } else {
@@ -751,7 +997,7 @@ public final class SocketRpcProtos {
       }
     }
     private com.google.protobuf.ByteString getErrorBytes() {
-      Object ref = error_;
+      java.lang.Object ref = error_;
       if (ref instanceof String) {
         com.google.protobuf.ByteString b =
             com.google.protobuf.ByteString.copyFromUtf8((String) ref);
@@ -782,11 +1028,22 @@ public final class SocketRpcProtos {
       return errorReason_;
     }
 
+    // optional uint64 request_id = 5;
+    public static final int REQUEST_ID_FIELD_NUMBER = 5;
+    private long requestId_;
+    public boolean hasRequestId() {
+      return ((bitField0_ & 0x00000010) == 0x00000010);
+    }
+    public long getRequestId() {
+      return requestId_;
+    }
+
     private void initFields() {
       responseProto_ = com.google.protobuf.ByteString.EMPTY;
       error_ = "";
       callback_ = false;
       errorReason_ = com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason.BAD_REQUEST_DATA;
+      requestId_ = 0L;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -812,6 +1069,9 @@ public final class SocketRpcProtos {
       if (((bitField0_ & 0x00000008) == 0x00000008)) {
         output.writeEnum(4, errorReason_.getNumber());
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        output.writeUInt64(5, requestId_);
+      }
       getUnknownFields().writeTo(output);
     }
 
@@ -837,13 +1097,19 @@ public final class SocketRpcProtos {
         size += com.google.protobuf.CodedOutputStream
           .computeEnumSize(4, errorReason_.getNumber());
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt64Size(5, requestId_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
     }
 
+    private static final long serialVersionUID = 0L;
     @java.lang.Override
-    protected Object writeReplace() throws java.io.ObjectStreamException {
+    protected java.lang.Object writeReplace()
+        throws java.io.ObjectStreamException {
       return super.writeReplace();
     }
 
@@ -967,6 +1233,8 @@ public final class SocketRpcProtos {
         bitField0_ = (bitField0_ & ~0x00000004);
         errorReason_ = com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason.BAD_REQUEST_DATA;
         bitField0_ = (bitField0_ & ~0x00000008);
+        requestId_ = 0L;
+        bitField0_ = (bitField0_ & ~0x00000010);
         return this;
       }
 
@@ -1021,6 +1289,10 @@ public final class SocketRpcProtos {
           to_bitField0_ |= 0x00000008;
         }
         result.errorReason_ = errorReason_;
+        if (((from_bitField0_ & 0x00000010) == 0x00000010)) {
+          to_bitField0_ |= 0x00000010;
+        }
+        result.requestId_ = requestId_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -1049,6 +1321,9 @@ public final class SocketRpcProtos {
         if (other.hasErrorReason()) {
           setErrorReason(other.getErrorReason());
         }
+        if (other.hasRequestId()) {
+          setRequestId(other.getRequestId());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -1106,6 +1381,11 @@ public final class SocketRpcProtos {
               }
               break;
             }
+            case 40: {
+              bitField0_ |= 0x00000010;
+              requestId_ = input.readUInt64();
+              break;
+            }
           }
         }
       }
@@ -1137,12 +1417,12 @@ public final class SocketRpcProtos {
       }
 
       // optional string error = 2;
-      private Object error_ = "";
+      private java.lang.Object error_ = "";
       public boolean hasError() {
         return ((bitField0_ & 0x00000002) == 0x00000002);
       }
       public String getError() {
-        Object ref = error_;
+        java.lang.Object ref = error_;
         if (!(ref instanceof String)) {
           String s = ((com.google.protobuf.ByteString) ref).toStringUtf8();
           error_ = s;
@@ -1217,6 +1497,27 @@ public final class SocketRpcProtos {
         return this;
       }
 
+      // optional uint64 request_id = 5;
+      private long requestId_ ;
+      public boolean hasRequestId() {
+        return ((bitField0_ & 0x00000010) == 0x00000010);
+      }
+      public long getRequestId() {
+        return requestId_;
+      }
+      public Builder setRequestId(long value) {
+        bitField0_ |= 0x00000010;
+        requestId_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearRequestId() {
+        bitField0_ = (bitField0_ & ~0x00000010);
+        requestId_ = 0L;
+        onChanged();
+        return this;
+      }
+
       // @@protoc_insertion_point(builder_scope:protobuf.socketrpc.Response)
     }
 
@@ -1228,60 +1529,1207 @@ public final class SocketRpcProtos {
     // @@protoc_insertion_point(class_scope:protobuf.socketrpc.Response)
   }
 
-  private static com.google.protobuf.Descriptors.Descriptor
-    internal_static_protobuf_socketrpc_Request_descriptor;
-  private static
-    com.google.protobuf.GeneratedMessage.FieldAccessorTable
-      internal_static_protobuf_socketrpc_Request_fieldAccessorTable;
-  private static com.google.protobuf.Descriptors.Descriptor
-    internal_static_protobuf_socketrpc_Response_descriptor;
-  private static
-    com.google.protobuf.GeneratedMessage.FieldAccessorTable
-      internal_static_protobuf_socketrpc_Response_fieldAccessorTable;
+  public interface HandshakeResponseOrBuilder
+      extends com.google.protobuf.MessageOrBuilder {
 
-  public static com.google.protobuf.Descriptors.FileDescriptor
-      getDescriptor() {
-    return descriptor;
+    // repeated .protobuf.socketrpc.MethodId method = 1;
+    java.util.List<com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId>
+        getMethodList();
+    com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId getMethod(int index);
+    int getMethodCount();
+    java.util.List<? extends com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodIdOrBuilder>
+        getMethodOrBuilderList();
+    com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodIdOrBuilder getMethodOrBuilder(
+        int index);
   }
-  private static com.google.protobuf.Descriptors.FileDescriptor
-      descriptor;
-  static {
-    java.lang.String[] descriptorData = {
-      "\n\017proto/rpc.proto\022\022protobuf.socketrpc\"K\n" +
-      "\007Request\022\024\n\014service_name\030\001 \002(\t\022\023\n\013method" +
-      "_name\030\002 \002(\t\022\025\n\rrequest_proto\030\003 \002(\014\"\201\001\n\010R" +
-      "esponse\022\026\n\016response_proto\030\001 \001(\014\022\r\n\005error" +
-      "\030\002 \001(\t\022\027\n\010callback\030\003 \001(\010:\005false\0225\n\014error" +
-      "_reason\030\004 \001(\0162\037.protobuf.socketrpc.Error" +
-      "Reason*\331\001\n\013ErrorReason\022\024\n\020BAD_REQUEST_DA" +
-      "TA\020\000\022\025\n\021BAD_REQUEST_PROTO\020\001\022\025\n\021SERVICE_N" +
-      "OT_FOUND\020\002\022\024\n\020METHOD_NOT_FOUND\020\003\022\r\n\tRPC_" +
-      "ERROR\020\004\022\016\n\nRPC_FAILED\020\005\022\031\n\025INVALID_REQUE",
-      "ST_PROTO\020\006\022\026\n\022BAD_RESPONSE_PROTO\020\007\022\020\n\014UN" +
-      "KNOWN_HOST\020\010\022\014\n\010IO_ERROR\020\tB4\n!com.google" +
-      "code.protobuf.socketrpcB\017SocketRpcProtos"
-    };
-    com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
-      new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
-        public com.google.protobuf.ExtensionRegistry assignDescriptors(
-            com.google.protobuf.Descriptors.FileDescriptor root) {
-          descriptor = root;
-          internal_static_protobuf_socketrpc_Request_descriptor =
-            getDescriptor().getMessageTypes().get(0);
-          internal_static_protobuf_socketrpc_Request_fieldAccessorTable = new
-            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
-              internal_static_protobuf_socketrpc_Request_descriptor,
-              new java.lang.String[] { "ServiceName", "MethodName", "RequestProto", },
-              com.googlecode.protobuf.socketrpc.SocketRpcProtos.Request.class,
-              com.googlecode.protobuf.socketrpc.SocketRpcProtos.Request.Builder.class);
-          internal_static_protobuf_socketrpc_Response_descriptor =
-            getDescriptor().getMessageTypes().get(1);
-          internal_static_protobuf_socketrpc_Response_fieldAccessorTable = new
-            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
-              internal_static_protobuf_socketrpc_Response_descriptor,
-              new java.lang.String[] { "ResponseProto", "Error", "Callback", "ErrorReason", },
-              com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response.class,
-              com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response.Builder.class);
+  public static final class HandshakeResponse extends
+      com.google.protobuf.GeneratedMessage
+      implements HandshakeResponseOrBuilder {
+    // Use HandshakeResponse.newBuilder() to construct.
+    private HandshakeResponse(Builder builder) {
+      super(builder);
+    }
+    private HandshakeResponse(boolean noInit) {}
+
+    private static final HandshakeResponse defaultInstance;
+    public static HandshakeResponse getDefaultInstance() {
+      return defaultInstance;
+    }
+
+    public HandshakeResponse getDefaultInstanceForType() {
+      return defaultInstance;
+    }
+
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return com.googlecode.protobuf.socketrpc.SocketRpcProtos.internal_static_protobuf_socketrpc_HandshakeResponse_descriptor;
+    }
+
+    protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return com.googlecode.protobuf.socketrpc.SocketRpcProtos.internal_static_protobuf_socketrpc_HandshakeResponse_fieldAccessorTable;
+    }
+
+    // repeated .protobuf.socketrpc.MethodId method = 1;
+    public static final int METHOD_FIELD_NUMBER = 1;
+    private java.util.List<com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId> method_;
+    public java.util.List<com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId> getMethodList() {
+      return method_;
+    }
+    public java.util.List<? extends com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodIdOrBuilder>
+        getMethodOrBuilderList() {
+      return method_;
+    }
+    public int getMethodCount() {
+      return method_.size();
+    }
+    public com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId getMethod(int index) {
+      return method_.get(index);
+    }
+    public com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodIdOrBuilder getMethodOrBuilder(
+        int index) {
+      return method_.get(index);
+    }
+
+    private void initFields() {
+      method_ = java.util.Collections.emptyList();
+    }
+    private byte memoizedIsInitialized = -1;
+    public final boolean isInitialized() {
+      byte isInitialized = memoizedIsInitialized;
+      if (isInitialized != -1) return isInitialized == 1;
+
+      for (int i = 0; i < getMethodCount(); i++) {
+        if (!getMethod(i).isInitialized()) {
+          memoizedIsInitialized = 0;
+          return false;
+        }
+      }
+      memoizedIsInitialized = 1;
+      return true;
+    }
+
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      getSerializedSize();
+      for (int i = 0; i < method_.size(); i++) {
+        output.writeMessage(1, method_.get(i));
+      }
+      getUnknownFields().writeTo(output);
+    }
+
+    private int memoizedSerializedSize = -1;
+    public int getSerializedSize() {
+      int size = memoizedSerializedSize;
+      if (size != -1) return size;
+
+      size = 0;
+      for (int i = 0; i < method_.size(); i++) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeMessageSize(1, method_.get(i));
+      }
+      size += getUnknownFields().getSerializedSize();
+      memoizedSerializedSize = size;
+      return size;
+    }
+
+    private static final long serialVersionUID = 0L;
+    @java.lang.Override
+    protected java.lang.Object writeReplace()
+        throws java.io.ObjectStreamException {
+      return super.writeReplace();
+    }
+
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input, extensionRegistry)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+
+    public static Builder newBuilder() { return Builder.create(); }
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder(com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse prototype) {
+      return newBuilder().mergeFrom(prototype);
+    }
+    public Builder toBuilder() { return newBuilder(this); }
+
+    @java.lang.Override
+    protected Builder newBuilderForType(
+        com.google.protobuf.GeneratedMessage.BuilderParent parent) {
+      Builder builder = new Builder(parent);
+      return builder;
+    }
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessage.Builder<Builder>
+       implements com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponseOrBuilder {
+      public static final com.google.protobuf.Descriptors.Descriptor
+          getDescriptor() {
+        return com.googlecode.protobuf.socketrpc.SocketRpcProtos.internal_static_protobuf_socketrpc_HandshakeResponse_descriptor;
+      }
+
+      protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+          internalGetFieldAccessorTable() {
+        return com.googlecode.protobuf.socketrpc.SocketRpcProtos.internal_static_protobuf_socketrpc_HandshakeResponse_fieldAccessorTable;
+      }
+
+      // Construct using com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse.newBuilder()
+      private Builder() {
+        maybeForceBuilderInitialization();
+      }
+
+      private Builder(BuilderParent parent) {
+        super(parent);
+        maybeForceBuilderInitialization();
+      }
+      private void maybeForceBuilderInitialization() {
+        if (com.google.protobuf.GeneratedMessage.alwaysUseFieldBuilders) {
+          getMethodFieldBuilder();
+        }
+      }
+      private static Builder create() {
+        return new Builder();
+      }
+
+      public Builder clear() {
+        super.clear();
+        if (methodBuilder_ == null) {
+          method_ = java.util.Collections.emptyList();
+          bitField0_ = (bitField0_ & ~0x00000001);
+        } else {
+          methodBuilder_.clear();
+        }
+        return this;
+      }
+
+      public Builder clone() {
+        return create().mergeFrom(buildPartial());
+      }
+
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse.getDescriptor();
+      }
+
+      public com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse getDefaultInstanceForType() {
+        return com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse.getDefaultInstance();
+      }
+
+      public com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse build() {
+        com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse result = buildPartial();
+        if (!result.isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return result;
+      }
+
+      private com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse buildParsed()
+          throws com.google.protobuf.InvalidProtocolBufferException {
+        com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse result = buildPartial();
+        if (!result.isInitialized()) {
+          throw newUninitializedMessageException(
+            result).asInvalidProtocolBufferException();
+        }
+        return result;
+      }
+
+      public com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse buildPartial() {
+        com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse result = new com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse(this);
+        int from_bitField0_ = bitField0_;
+        if (methodBuilder_ == null) {
+          if (((bitField0_ & 0x00000001) == 0x00000001)) {
+            method_ = java.util.Collections.unmodifiableList(method_);
+            bitField0_ = (bitField0_ & ~0x00000001);
+          }
+          result.method_ = method_;
+        } else {
+          result.method_ = methodBuilder_.build();
+        }
+        onBuilt();
+        return result;
+      }
+
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse) {
+          return mergeFrom((com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+
+      public Builder mergeFrom(com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse other) {
+        if (other == com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse.getDefaultInstance()) return this;
+        if (methodBuilder_ == null) {
+          if (!other.method_.isEmpty()) {
+            if (method_.isEmpty()) {
+              method_ = other.method_;
+              bitField0_ = (bitField0_ & ~0x00000001);
+            } else {
+              ensureMethodIsMutable();
+              method_.addAll(other.method_);
+            }
+            onChanged();
+          }
+        } else {
+          if (!other.method_.isEmpty()) {
+            if (methodBuilder_.isEmpty()) {
+              methodBuilder_.dispose();
+              methodBuilder_ = null;
+              method_ = other.method_;
+              bitField0_ = (bitField0_ & ~0x00000001);
+              methodBuilder_ =
+                com.google.protobuf.GeneratedMessage.alwaysUseFieldBuilders ?
+                   getMethodFieldBuilder() : null;
+            } else {
+              methodBuilder_.addAllMessages(other.method_);
+            }
+          }
+        }
+        this.mergeUnknownFields(other.getUnknownFields());
+        return this;
+      }
+
+      public final boolean isInitialized() {
+        for (int i = 0; i < getMethodCount(); i++) {
+          if (!getMethod(i).isInitialized()) {
+
+            return false;
+          }
+        }
+        return true;
+      }
+
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder(
+            this.getUnknownFields());
+        while (true) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              this.setUnknownFields(unknownFields.build());
+              onChanged();
+              return this;
+            default: {
+              if (!parseUnknownField(input, unknownFields,
+                                     extensionRegistry, tag)) {
+                this.setUnknownFields(unknownFields.build());
+                onChanged();
+                return this;
+              }
+              break;
+            }
+            case 10: {
+              com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.Builder subBuilder = com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.newBuilder();
+              input.readMessage(subBuilder, extensionRegistry);
+              addMethod(subBuilder.buildPartial());
+              break;
+            }
+          }
+        }
+      }
+
+      private int bitField0_;
+
+      // repeated .protobuf.socketrpc.MethodId method = 1;
+      private java.util.List<com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId> method_ =
+        java.util.Collections.emptyList();
+      private void ensureMethodIsMutable() {
+        if (!((bitField0_ & 0x00000001) == 0x00000001)) {
+          method_ = new java.util.ArrayList<com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId>(method_);
+          bitField0_ |= 0x00000001;
+         }
+      }
+
+      private com.google.protobuf.RepeatedFieldBuilder<
+          com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId, com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.Builder, com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodIdOrBuilder> methodBuilder_;
+
+      public java.util.List<com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId> getMethodList() {
+        if (methodBuilder_ == null) {
+          return java.util.Collections.unmodifiableList(method_);
+        } else {
+          return methodBuilder_.getMessageList();
+        }
+      }
+      public int getMethodCount() {
+        if (methodBuilder_ == null) {
+          return method_.size();
+        } else {
+          return methodBuilder_.getCount();
+        }
+      }
+      public com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId getMethod(int index) {
+        if (methodBuilder_ == null) {
+          return method_.get(index);
+        } else {
+          return methodBuilder_.getMessage(index);
+        }
+      }
+      public Builder setMethod(
+          int index, com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId value) {
+        if (methodBuilder_ == null) {
+          if (value == null) {
+            throw new NullPointerException();
+          }
+          ensureMethodIsMutable();
+          method_.set(index, value);
+          onChanged();
+        } else {
+          methodBuilder_.setMessage(index, value);
+        }
+        return this;
+      }
+      public Builder setMethod(
+          int index, com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.Builder builderForValue) {
+        if (methodBuilder_ == null) {
+          ensureMethodIsMutable();
+          method_.set(index, builderForValue.build());
+          onChanged();
+        } else {
+          methodBuilder_.setMessage(index, builderForValue.build());
+        }
+        return this;
+      }
+      public Builder addMethod(com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId value) {
+        if (methodBuilder_ == null) {
+          if (value == null) {
+            throw new NullPointerException();
+          }
+          ensureMethodIsMutable();
+          method_.add(value);
+          onChanged();
+        } else {
+          methodBuilder_.addMessage(value);
+        }
+        return this;
+      }
+      public Builder addMethod(
+          int index, com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId value) {
+        if (methodBuilder_ == null) {
+          if (value == null) {
+            throw new NullPointerException();
+          }
+          ensureMethodIsMutable();
+          method_.add(index, value);
+          onChanged();
+        } else {
+          methodBuilder_.addMessage(index, value);
+        }
+        return this;
+      }
+      public Builder addMethod(
+          com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.Builder builderForValue) {
+        if (methodBuilder_ == null) {
+          ensureMethodIsMutable();
+          method_.add(builderForValue.build());
+          onChanged();
+        } else {
+          methodBuilder_.addMessage(builderForValue.build());
+        }
+        return this;
+      }
+      public Builder addMethod(
+          int index, com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.Builder builderForValue) {
+        if (methodBuilder_ == null) {
+          ensureMethodIsMutable();
+          method_.add(index, builderForValue.build());
+          onChanged();
+        } else {
+          methodBuilder_.addMessage(index, builderForValue.build());
+        }
+        return this;
+      }
+      public Builder addAllMethod(
+          java.lang.Iterable<? extends com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId> values) {
+        if (methodBuilder_ == null) {
+          ensureMethodIsMutable();
+          super.addAll(values, method_);
+          onChanged();
+        } else {
+          methodBuilder_.addAllMessages(values);
+        }
+        return this;
+      }
+      public Builder clearMethod() {
+        if (methodBuilder_ == null) {
+          method_ = java.util.Collections.emptyList();
+          bitField0_ = (bitField0_ & ~0x00000001);
+          onChanged();
+        } else {
+          methodBuilder_.clear();
+        }
+        return this;
+      }
+      public Builder removeMethod(int index) {
+        if (methodBuilder_ == null) {
+          ensureMethodIsMutable();
+          method_.remove(index);
+          onChanged();
+        } else {
+          methodBuilder_.remove(index);
+        }
+        return this;
+      }
+      public com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.Builder getMethodBuilder(
+          int index) {
+        return getMethodFieldBuilder().getBuilder(index);
+      }
+      public com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodIdOrBuilder getMethodOrBuilder(
+          int index) {
+        if (methodBuilder_ == null) {
+          return method_.get(index);  } else {
+          return methodBuilder_.getMessageOrBuilder(index);
+        }
+      }
+      public java.util.List<? extends com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodIdOrBuilder>
+           getMethodOrBuilderList() {
+        if (methodBuilder_ != null) {
+          return methodBuilder_.getMessageOrBuilderList();
+        } else {
+          return java.util.Collections.unmodifiableList(method_);
+        }
+      }
+      public com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.Builder addMethodBuilder() {
+        return getMethodFieldBuilder().addBuilder(
+            com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.getDefaultInstance());
+      }
+      public com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.Builder addMethodBuilder(
+          int index) {
+        return getMethodFieldBuilder().addBuilder(
+            index, com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.getDefaultInstance());
+      }
+      public java.util.List<com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.Builder>
+           getMethodBuilderList() {
+        return getMethodFieldBuilder().getBuilderList();
+      }
+      private com.google.protobuf.RepeatedFieldBuilder<
+          com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId, com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.Builder, com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodIdOrBuilder>
+          getMethodFieldBuilder() {
+        if (methodBuilder_ == null) {
+          methodBuilder_ = new com.google.protobuf.RepeatedFieldBuilder<
+              com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId, com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.Builder, com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodIdOrBuilder>(
+                  method_,
+                  ((bitField0_ & 0x00000001) == 0x00000001),
+                  getParentForChildren(),
+                  isClean());
+          method_ = null;
+        }
+        return methodBuilder_;
+      }
+
+      // @@protoc_insertion_point(builder_scope:protobuf.socketrpc.HandshakeResponse)
+    }
+
+    static {
+      defaultInstance = new HandshakeResponse(true);
+      defaultInstance.initFields();
+    }
+
+    // @@protoc_insertion_point(class_scope:protobuf.socketrpc.HandshakeResponse)
+  }
+
+  public interface MethodIdOrBuilder
+      extends com.google.protobuf.MessageOrBuilder {
+
+    // required string service_name = 1;
+    boolean hasServiceName();
+    String getServiceName();
+
+    // required string method_name = 2;
+    boolean hasMethodName();
+    String getMethodName();
+
+    // required uint32 id = 3;
+    boolean hasId();
+    int getId();
+  }
+  public static final class MethodId extends
+      com.google.protobuf.GeneratedMessage
+      implements MethodIdOrBuilder {
+    // Use MethodId.newBuilder() to construct.
+    private MethodId(Builder builder) {
+      super(builder);
+    }
+    private MethodId(boolean noInit) {}
+
+    private static final MethodId defaultInstance;
+    public static MethodId getDefaultInstance() {
+      return defaultInstance;
+    }
+
+    public MethodId getDefaultInstanceForType() {
+      return defaultInstance;
+    }
+
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return com.googlecode.protobuf.socketrpc.SocketRpcProtos.internal_static_protobuf_socketrpc_MethodId_descriptor;
+    }
+
+    protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return com.googlecode.protobuf.socketrpc.SocketRpcProtos.internal_static_protobuf_socketrpc_MethodId_fieldAccessorTable;
+    }
+
+    private int bitField0_;
+    // required string service_name = 1;
+    public static final int SERVICE_NAME_FIELD_NUMBER = 1;
+    private java.lang.Object serviceName_;
+    public boolean hasServiceName() {
+      return ((bitField0_ & 0x00000001) == 0x00000001);
+    }
+    public String getServiceName() {
+      java.lang.Object ref = serviceName_;
+      if (ref instanceof String) {
+        return (String) ref;
+      } else {
+        com.google.protobuf.ByteString bs =
+            (com.google.protobuf.ByteString) ref;
+        String s = bs.toStringUtf8();
+        if (com.google.protobuf.Internal.isValidUtf8(bs)) {
+          serviceName_ = s;
+        }
+        return s;
+      }
+    }
+    private com.google.protobuf.ByteString getServiceNameBytes() {
+      java.lang.Object ref = serviceName_;
+      if (ref instanceof String) {
+        com.google.protobuf.ByteString b =
+            com.google.protobuf.ByteString.copyFromUtf8((String) ref);
+        serviceName_ = b;
+        return b;
+      } else {
+        return (com.google.protobuf.ByteString) ref;
+      }
+    }
+
+    // required string method_name = 2;
+    public static final int METHOD_NAME_FIELD_NUMBER = 2;
+    private java.lang.Object methodName_;
+    public boolean hasMethodName() {
+      return ((bitField0_ & 0x00000002) == 0x00000002);
+    }
+    public String getMethodName() {
+      java.lang.Object ref = methodName_;
+      if (ref instanceof String) {
+        return (String) ref;
+      } else {
+        com.google.protobuf.ByteString bs =
+            (com.google.protobuf.ByteString) ref;
+        String s = bs.toStringUtf8();
+        if (com.google.protobuf.Internal.isValidUtf8(bs)) {
+          methodName_ = s;
+        }
+        return s;
+      }
+    }
+    private com.google.protobuf.ByteString getMethodNameBytes() {
+      java.lang.Object ref = methodName_;
+      if (ref instanceof String) {
+        com.google.protobuf.ByteString b =
+            com.google.protobuf.ByteString.copyFromUtf8((String) ref);
+        methodName_ = b;
+        return b;
+      } else {
+        return (com.google.protobuf.ByteString) ref;
+      }
+    }
+
+    // required uint32 id = 3;
+    public static final int ID_FIELD_NUMBER = 3;
+    private int id_;
+    public boolean hasId() {
+      return ((bitField0_ & 0x00000004) == 0x00000004);
+    }
+    public int getId() {
+      return id_;
+    }
+
+    private void initFields() {
+      serviceName_ = "";
+      methodName_ = "";
+      id_ = 0;
+    }
+    private byte memoizedIsInitialized = -1;
+    public final boolean isInitialized() {
+      byte isInitialized = memoizedIsInitialized;
+      if (isInitialized != -1) return isInitialized == 1;
+
+      if (!hasServiceName()) {
+        memoizedIsInitialized = 0;
+        return false;
+      }
+      if (!hasMethodName()) {
+        memoizedIsInitialized = 0;
+        return false;
+      }
+      if (!hasId()) {
+        memoizedIsInitialized = 0;
+        return false;
+      }
+      memoizedIsInitialized = 1;
+      return true;
+    }
+
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      getSerializedSize();
+      if (((bitField0_ & 0x00000001) == 0x00000001)) {
+        output.writeBytes(1, getServiceNameBytes());
+      }
+      if (((bitField0_ & 0x00000002) == 0x00000002)) {
+        output.writeBytes(2, getMethodNameBytes());
+      }
+      if (((bitField0_ & 0x00000004) == 0x00000004)) {
+        output.writeUInt32(3, id_);
+      }
+      getUnknownFields().writeTo(output);
+    }
+
+    private int memoizedSerializedSize = -1;
+    public int getSerializedSize() {
+      int size = memoizedSerializedSize;
+      if (size != -1) return size;
+
+      size = 0;
+      if (((bitField0_ & 0x00000001) == 0x00000001)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBytesSize(1, getServiceNameBytes());
+      }
+      if (((bitField0_ & 0x00000002) == 0x00000002)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBytesSize(2, getMethodNameBytes());
+      }
+      if (((bitField0_ & 0x00000004) == 0x00000004)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(3, id_);
+      }
+      size += getUnknownFields().getSerializedSize();
+      memoizedSerializedSize = size;
+      return size;
+    }
+
+    private static final long serialVersionUID = 0L;
+    @java.lang.Override
+    protected java.lang.Object writeReplace()
+        throws java.io.ObjectStreamException {
+      return super.writeReplace();
+    }
+
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data).buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return newBuilder().mergeFrom(data, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      Builder builder = newBuilder();
+      if (builder.mergeDelimitedFrom(input, extensionRegistry)) {
+        return builder.buildParsed();
+      } else {
+        return null;
+      }
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input).buildParsed();
+    }
+    public static com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return newBuilder().mergeFrom(input, extensionRegistry)
+               .buildParsed();
+    }
+
+    public static Builder newBuilder() { return Builder.create(); }
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder(com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId prototype) {
+      return newBuilder().mergeFrom(prototype);
+    }
+    public Builder toBuilder() { return newBuilder(this); }
+
+    @java.lang.Override
+    protected Builder newBuilderForType(
+        com.google.protobuf.GeneratedMessage.BuilderParent parent) {
+      Builder builder = new Builder(parent);
+      return builder;
+    }
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessage.Builder<Builder>
+       implements com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodIdOrBuilder {
+      public static final com.google.protobuf.Descriptors.Descriptor
+          getDescriptor() {
+        return com.googlecode.protobuf.socketrpc.SocketRpcProtos.internal_static_protobuf_socketrpc_MethodId_descriptor;
+      }
+
+      protected com.google.protobuf.GeneratedMessage.FieldAccessorTable
+          internalGetFieldAccessorTable() {
+        return com.googlecode.protobuf.socketrpc.SocketRpcProtos.internal_static_protobuf_socketrpc_MethodId_fieldAccessorTable;
+      }
+
+      // Construct using com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.newBuilder()
+      private Builder() {
+        maybeForceBuilderInitialization();
+      }
+
+      private Builder(BuilderParent parent) {
+        super(parent);
+        maybeForceBuilderInitialization();
+      }
+      private void maybeForceBuilderInitialization() {
+        if (com.google.protobuf.GeneratedMessage.alwaysUseFieldBuilders) {
+        }
+      }
+      private static Builder create() {
+        return new Builder();
+      }
+
+      public Builder clear() {
+        super.clear();
+        serviceName_ = "";
+        bitField0_ = (bitField0_ & ~0x00000001);
+        methodName_ = "";
+        bitField0_ = (bitField0_ & ~0x00000002);
+        id_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000004);
+        return this;
+      }
+
+      public Builder clone() {
+        return create().mergeFrom(buildPartial());
+      }
+
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.getDescriptor();
+      }
+
+      public com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId getDefaultInstanceForType() {
+        return com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.getDefaultInstance();
+      }
+
+      public com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId build() {
+        com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId result = buildPartial();
+        if (!result.isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return result;
+      }
+
+      private com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId buildParsed()
+          throws com.google.protobuf.InvalidProtocolBufferException {
+        com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId result = buildPartial();
+        if (!result.isInitialized()) {
+          throw newUninitializedMessageException(
+            result).asInvalidProtocolBufferException();
+        }
+        return result;
+      }
+
+      public com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId buildPartial() {
+        com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId result = new com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId(this);
+        int from_bitField0_ = bitField0_;
+        int to_bitField0_ = 0;
+        if (((from_bitField0_ & 0x00000001) == 0x00000001)) {
+          to_bitField0_ |= 0x00000001;
+        }
+        result.serviceName_ = serviceName_;
+        if (((from_bitField0_ & 0x00000002) == 0x00000002)) {
+          to_bitField0_ |= 0x00000002;
+        }
+        result.methodName_ = methodName_;
+        if (((from_bitField0_ & 0x00000004) == 0x00000004)) {
+          to_bitField0_ |= 0x00000004;
+        }
+        result.id_ = id_;
+        result.bitField0_ = to_bitField0_;
+        onBuilt();
+        return result;
+      }
+
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId) {
+          return mergeFrom((com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+
+      public Builder mergeFrom(com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId other) {
+        if (other == com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.getDefaultInstance()) return this;
+        if (other.hasServiceName()) {
+          setServiceName(other.getServiceName());
+        }
+        if (other.hasMethodName()) {
+          setMethodName(other.getMethodName());
+        }
+        if (other.hasId()) {
+          setId(other.getId());
+        }
+        this.mergeUnknownFields(other.getUnknownFields());
+        return this;
+      }
+
+      public final boolean isInitialized() {
+        if (!hasServiceName()) {
+
+          return false;
+        }
+        if (!hasMethodName()) {
+
+          return false;
+        }
+        if (!hasId()) {
+
+          return false;
+        }
+        return true;
+      }
+
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder(
+            this.getUnknownFields());
+        while (true) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              this.setUnknownFields(unknownFields.build());
+              onChanged();
+              return this;
+            default: {
+              if (!parseUnknownField(input, unknownFields,
+                                     extensionRegistry, tag)) {
+                this.setUnknownFields(unknownFields.build());
+                onChanged();
+                return this;
+              }
+              break;
+            }
+            case 10: {
+              bitField0_ |= 0x00000001;
+              serviceName_ = input.readBytes();
+              break;
+            }
+            case 18: {
+              bitField0_ |= 0x00000002;
+              methodName_ = input.readBytes();
+              break;
+            }
+            case 24: {
+              bitField0_ |= 0x00000004;
+              id_ = input.readUInt32();
+              break;
+            }
+          }
+        }
+      }
+
+      private int bitField0_;
+
+      // required string service_name = 1;
+      private java.lang.Object serviceName_ = "";
+      public boolean hasServiceName() {
+        return ((bitField0_ & 0x00000001) == 0x00000001);
+      }
+      public String getServiceName() {
+        java.lang.Object ref = serviceName_;
+        if (!(ref instanceof String)) {
+          String s = ((com.google.protobuf.ByteString) ref).toStringUtf8();
+          serviceName_ = s;
+          return s;
+        } else {
+          return (String) ref;
+        }
+      }
+      public Builder setServiceName(String value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  bitField0_ |= 0x00000001;
+        serviceName_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearServiceName() {
+        bitField0_ = (bitField0_ & ~0x00000001);
+        serviceName_ = getDefaultInstance().getServiceName();
+        onChanged();
+        return this;
+      }
+      void setServiceName(com.google.protobuf.ByteString value) {
+        bitField0_ |= 0x00000001;
+        serviceName_ = value;
+        onChanged();
+      }
+
+      // required string method_name = 2;
+      private java.lang.Object methodName_ = "";
+      public boolean hasMethodName() {
+        return ((bitField0_ & 0x00000002) == 0x00000002);
+      }
+      public String getMethodName() {
+        java.lang.Object ref = methodName_;
+        if (!(ref instanceof String)) {
+          String s = ((com.google.protobuf.ByteString) ref).toStringUtf8();
+          methodName_ = s;
+          return s;
+        } else {
+          return (String) ref;
+        }
+      }
+      public Builder setMethodName(String value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  bitField0_ |= 0x00000002;
+        methodName_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearMethodName() {
+        bitField0_ = (bitField0_ & ~0x00000002);
+        methodName_ = getDefaultInstance().getMethodName();
+        onChanged();
+        return this;
+      }
+      void setMethodName(com.google.protobuf.ByteString value) {
+        bitField0_ |= 0x00000002;
+        methodName_ = value;
+        onChanged();
+      }
+
+      // required uint32 id = 3;
+      private int id_ ;
+      public boolean hasId() {
+        return ((bitField0_ & 0x00000004) == 0x00000004);
+      }
+      public int getId() {
+        return id_;
+      }
+      public Builder setId(int value) {
+        bitField0_ |= 0x00000004;
+        id_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearId() {
+        bitField0_ = (bitField0_ & ~0x00000004);
+        id_ = 0;
+        onChanged();
+        return this;
+      }
+
+      // @@protoc_insertion_point(builder_scope:protobuf.socketrpc.MethodId)
+    }
+
+    static {
+      defaultInstance = new MethodId(true);
+      defaultInstance.initFields();
+    }
+
+    // @@protoc_insertion_point(class_scope:protobuf.socketrpc.MethodId)
+  }
+
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_protobuf_socketrpc_Request_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_protobuf_socketrpc_Request_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_protobuf_socketrpc_Response_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_protobuf_socketrpc_Response_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_protobuf_socketrpc_HandshakeResponse_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_protobuf_socketrpc_HandshakeResponse_fieldAccessorTable;
+  private static com.google.protobuf.Descriptors.Descriptor
+    internal_static_protobuf_socketrpc_MethodId_descriptor;
+  private static
+    com.google.protobuf.GeneratedMessage.FieldAccessorTable
+      internal_static_protobuf_socketrpc_MethodId_fieldAccessorTable;
+
+  public static com.google.protobuf.Descriptors.FileDescriptor
+      getDescriptor() {
+    return descriptor;
+  }
+  private static com.google.protobuf.Descriptors.FileDescriptor
+      descriptor;
+  static {
+    java.lang.String[] descriptorData = {
+      "\n\017proto/rpc.proto\022\022protobuf.socketrpc\"\241\001" +
+      "\n\007Request\022\024\n\014service_name\030\001 \002(\t\022\023\n\013metho" +
+      "d_name\030\002 \002(\t\022\025\n\rrequest_proto\030\003 \002(\014\022\022\n\nr" +
+      "equest_id\030\004 \001(\004\022\021\n\tmethod_id\030\005 \001(\r\022\026\n\016ti" +
+      "meout_millis\030\006 \001(\004\022\025\n\006cancel\030\007 \001(\010:\005fals" +
+      "e\"\225\001\n\010Response\022\026\n\016response_proto\030\001 \001(\014\022\r" +
+      "\n\005error\030\002 \001(\t\022\027\n\010callback\030\003 \001(\010:\005false\0225" +
+      "\n\014error_reason\030\004 \001(\0162\037.protobuf.socketrp" +
+      "c.ErrorReason\022\022\n\nrequest_id\030\005 \001(\004\"A\n\021Han" +
+      "dshakeResponse\022,\n\006method\030\001 \003(\0132\034.protobu",
+      "f.socketrpc.MethodId\"A\n\010MethodId\022\024\n\014serv" +
+      "ice_name\030\001 \002(\t\022\023\n\013method_name\030\002 \002(\t\022\n\n\002i" +
+      "d\030\003 \002(\r*\247\002\n\013ErrorReason\022\024\n\020BAD_REQUEST_D" +
+      "ATA\020\000\022\025\n\021BAD_REQUEST_PROTO\020\001\022\025\n\021SERVICE_" +
+      "NOT_FOUND\020\002\022\024\n\020METHOD_NOT_FOUND\020\003\022\r\n\tRPC" +
+      "_ERROR\020\004\022\016\n\nRPC_FAILED\020\005\022\031\n\025INVALID_REQU" +
+      "EST_PROTO\020\006\022\026\n\022BAD_RESPONSE_PROTO\020\007\022\020\n\014U" +
+      "NKNOWN_HOST\020\010\022\014\n\010IO_ERROR\020\t\022\025\n\021SERVER_OV" +
+      "ERLOADED\020\n\022\025\n\021DEADLINE_EXCEEDED\020\013\022\014\n\010CAN" +
+      "CELED\020\014\022\020\n\014CIRCUIT_OPEN\020\rB4\n!com.googlec",
+      "ode.protobuf.socketrpcB\017SocketRpcProtos"
+    };
+    com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
+      new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
+        public com.google.protobuf.ExtensionRegistry assignDescriptors(
+            com.google.protobuf.Descriptors.FileDescriptor root) {
+          descriptor = root;
+          internal_static_protobuf_socketrpc_Request_descriptor =
+            getDescriptor().getMessageTypes().get(0);
+          internal_static_protobuf_socketrpc_Request_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_protobuf_socketrpc_Request_descriptor,
+              new java.lang.String[] { "ServiceName", "MethodName", "RequestProto", "RequestId", "MethodId", "TimeoutMillis", "Cancel", },
+              com.googlecode.protobuf.socketrpc.SocketRpcProtos.Request.class,
+              com.googlecode.protobuf.socketrpc.SocketRpcProtos.Request.Builder.class);
+          internal_static_protobuf_socketrpc_Response_descriptor =
+            getDescriptor().getMessageTypes().get(1);
+          internal_static_protobuf_socketrpc_Response_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_protobuf_socketrpc_Response_descriptor,
+              new java.lang.String[] { "ResponseProto", "Error", "Callback", "ErrorReason", "RequestId", },
+              com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response.class,
+              com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response.Builder.class);
+          internal_static_protobuf_socketrpc_HandshakeResponse_descriptor =
+            getDescriptor().getMessageTypes().get(2);
+          internal_static_protobuf_socketrpc_HandshakeResponse_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_protobuf_socketrpc_HandshakeResponse_descriptor,
+              new java.lang.String[] { "Method", },
+              com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse.class,
+              com.googlecode.protobuf.socketrpc.SocketRpcProtos.HandshakeResponse.Builder.class);
+          internal_static_protobuf_socketrpc_MethodId_descriptor =
+            getDescriptor().getMessageTypes().get(3);
+          internal_static_protobuf_socketrpc_MethodId_fieldAccessorTable = new
+            com.google.protobuf.GeneratedMessage.FieldAccessorTable(
+              internal_static_protobuf_socketrpc_MethodId_descriptor,
+              new java.lang.String[] { "ServiceName", "MethodName", "Id", },
+              com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.class,
+              com.googlecode.protobuf.socketrpc.SocketRpcProtos.MethodId.Builder.class);
           return null;
         }
       };
@@ -23,6 +23,7 @@ package com.googlecode.protobuf.socketrpc;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.logging.Logger;
 
 import javax.net.ServerSocketFactory;
@@ -43,6 +44,7 @@ class SocketServerRpcConnectionFactory implements ServerRpcConnectionFactory {
   private final int backlog;
   private final InetAddress bindAddr;
   private final boolean delimited;
+  private final int idleTimeoutMillis;
   private final ServerSocketFactory socketFactory;
 
   private volatile ServerSocket serverSocket = null;
@@ -65,17 +67,34 @@ class SocketServerRpcConnectionFactory implements ServerRpcConnectionFactory {
    */
   public SocketServerRpcConnectionFactory(int port, int backlog,
       InetAddress bindAddr, boolean delimited) {
-    this(port, backlog, bindAddr, delimited, ServerSocketFactory.getDefault());
+    this(port, backlog, bindAddr, delimited, 0 /* idleTimeoutMillis */);
+  }
+
+  /**
+   * @param port Port that this server socket will be started on.
+   * @param backlog the maximum length of the queue. A value <=0 uses default
+   *        backlog.
+   * @param bindAddr the local InetAddress the server socket will bind to. A
+   *        null value binds to any/all local IP addresses.
+   * @param delimited Use delimited communication mode.
+   * @param idleTimeoutMillis Reads from accepted connections time out after
+   *        this long. A value <=0 means no timeout.
+   */
+  public SocketServerRpcConnectionFactory(int port, int backlog,
+      InetAddress bindAddr, boolean delimited, int idleTimeoutMillis) {
+    this(port, backlog, bindAddr, delimited, idleTimeoutMillis,
+        ServerSocketFactory.getDefault());
   }
 
   // Visible for testing
   SocketServerRpcConnectionFactory(int port, int backlog,
-      InetAddress bindAddr, boolean delimited,
+      InetAddress bindAddr, boolean delimited, int idleTimeoutMillis,
       ServerSocketFactory socketFactory) {
     this.port = port;
     this.backlog = backlog;
     this.bindAddr = bindAddr;
     this.delimited = delimited;
+    this.idleTimeoutMillis = Math.max(idleTimeoutMillis, 0);
     this.socketFactory = socketFactory;
   }
 
@@ -87,7 +106,11 @@ class SocketServerRpcConnectionFactory implements ServerRpcConnectionFactory {
       local = initServerSocket();
     }
     // Thread blocks here waiting for requests
-    return new SocketConnection(serverSocket.accept(), delimited);
+    Socket socket = serverSocket.accept();
+    if (idleTimeoutMillis > 0) {
+      socket.setSoTimeout(idleTimeoutMillis);
+    }
+    return new SocketConnection(socket, delimited);
   }
 
   private synchronized ServerSocket initServerSocket() throws IOException {
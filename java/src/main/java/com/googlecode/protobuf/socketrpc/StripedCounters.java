@@ -0,0 +1,148 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed number of counters that many threads can update at the same time
+ * without contending. Each thread updates its own stripe, picked by thread
+ * id, and reads add up all stripes. Stripes are only allocated once a thread
+ * uses them.
+ * <p>
+ * Reads are not atomic with respect to concurrent updates, so counters read
+ * together may be slightly out of step.
+ *
+ * @author Shardul Deo
+ */
+class StripedCounters {
+
+  // Longs between stripes so that they don't share cache lines
+  private static final int PADDING = 8;
+  static final int MAX_STRIPES = 64;
+
+  private final int size;
+  private final int stripeCount;
+  private final AtomicReferenceArray<AtomicLongArray> stripes;
+
+  StripedCounters(int size) {
+    this(size, MAX_STRIPES);
+  }
+
+  /**
+   * @param size Number of counters.
+   * @param maxStripes Maximum number of stripes, each takes {@code size}
+   *        longs once used. Rounded up to a power of two.
+   */
+  StripedCounters(int size, int maxStripes) {
+    this.size = size;
+    this.stripeCount = stripeCount(maxStripes);
+    this.stripes = new AtomicReferenceArray<AtomicLongArray>(stripeCount);
+  }
+
+  private static int stripeCount(int maxStripes) {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int count = 1;
+    while (count < processors && count < maxStripes) {
+      count <<= 1;
+    }
+    return count;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Add the given value to the counter at the given index.
+   */
+  void add(int index, long delta) {
+    stripe().addAndGet(PADDING + index, delta);
+  }
+
+  /**
+   * Raise the counter at the given index to the given value, if it is lower.
+   * Use {@link #max(int)} to read it.
+   */
+  void updateMax(int index, long value) {
+    AtomicLongArray stripe = stripe();
+    int i = PADDING + index;
+    long current = stripe.get(i);
+    while (value > current && !stripe.compareAndSet(i, current, value)) {
+      current = stripe.get(i);
+    }
+  }
+
+  /**
+   * @return The sum of the counter at the given index over all stripes.
+   */
+  long sum(int index) {
+    long sum = 0;
+    for (int s = 0; s < stripeCount; s++) {
+      AtomicLongArray stripe = stripes.get(s);
+      if (stripe != null) {
+        sum += stripe.get(PADDING + index);
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * @return The maximum of the counter at the given index over all stripes.
+   */
+  long max(int index) {
+    long max = 0;
+    for (int s = 0; s < stripeCount; s++) {
+      AtomicLongArray stripe = stripes.get(s);
+      if (stripe != null) {
+        max = Math.max(max, stripe.get(PADDING + index));
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Set all counters back to 0.
+   */
+  void reset() {
+    for (int s = 0; s < stripeCount; s++) {
+      AtomicLongArray stripe = stripes.get(s);
+      if (stripe != null) {
+        for (int i = 0; i < size; i++) {
+          stripe.set(PADDING + i, 0);
+        }
+      }
+    }
+  }
+
+  private AtomicLongArray stripe() {
+    // Pool threads have consecutive ids, so they land on different stripes
+    int s = (int) Thread.currentThread().getId() & (stripeCount - 1);
+    AtomicLongArray stripe = stripes.get(s);
+    if (stripe == null) {
+      stripes.compareAndSet(s, null,
+          new AtomicLongArray(PADDING + size + PADDING));
+      stripe = stripes.get(s);
+    }
+    return stripe;
+  }
+}
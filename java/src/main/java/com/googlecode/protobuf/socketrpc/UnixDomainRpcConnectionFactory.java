@@ -0,0 +1,57 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client-side {@link RpcConnectionFactory} that creates a new Unix domain
+ * socket for every RPC, to a server on the same host. Skips the TCP/IP stack
+ * that loopback sockets go through. Use {@link SocketRpcConnectionFactories}
+ * to create instances.
+ *
+ * @author Shardul Deo
+ */
+class UnixDomainRpcConnectionFactory implements RpcConnectionFactory {
+
+  private final String path;
+  private final SocketAddress address;
+
+  /**
+   * @param path Path of the server's socket file.
+   */
+  UnixDomainRpcConnectionFactory(String path) {
+    this.path = path;
+    this.address = UnixDomainSockets.newAddress(path);
+  }
+
+  @Override
+  public Connection createConnection() throws IOException {
+    return new SocketChannelConnection(SocketChannel.open(address));
+  }
+
+  @Override
+  public String toString() {
+    return "unix:" + path;
+  }
+}
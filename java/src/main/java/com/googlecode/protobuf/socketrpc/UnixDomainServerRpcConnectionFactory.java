@@ -0,0 +1,118 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+/**
+ * Server-side {@link ServerRpcConnectionFactory} that accepts Unix domain
+ * socket connections at a socket file. Use
+ * {@link SocketRpcConnectionFactories} to create instances.
+ * <p>
+ * The socket file is created when the server starts listening and deleted
+ * when the factory is closed. A file left behind by a server that didn't shut
+ * down cleanly is replaced, as long as no server accepts connections on it.
+ *
+ * @author Shardul Deo
+ */
+class UnixDomainServerRpcConnectionFactory implements
+    ServerRpcConnectionFactory {
+
+  private static final Logger LOG =
+      Logger.getLogger(UnixDomainServerRpcConnectionFactory.class.getName());
+
+  private final String path;
+  private final SocketAddress address;
+
+  private volatile ServerSocketChannel serverChannel = null;
+
+  /**
+   * @param path Path of the socket file to listen on.
+   */
+  UnixDomainServerRpcConnectionFactory(String path) {
+    this.path = path;
+    this.address = UnixDomainSockets.newAddress(path);
+  }
+
+  @Override
+  public Connection createConnection() throws IOException {
+    ServerSocketChannel local = serverChannel;
+    if (local == null) {
+      local = initServerChannel();
+    }
+    // Thread blocks here waiting for requests
+    SocketChannel channel = local.accept();
+    return new SocketChannelConnection(channel);
+  }
+
+  private synchronized ServerSocketChannel initServerChannel()
+      throws IOException {
+    ServerSocketChannel local = serverChannel;
+    if (local == null) {
+      deleteStaleSocketFile();
+      LOG.info("Listening for requests on socket file: " + path);
+      local = UnixDomainSockets.openServerChannel();
+      try {
+        UnixDomainSockets.bind(local, address);
+      } catch (IOException e) {
+        local.close();
+        throw e;
+      }
+      serverChannel = local;
+    }
+    return local;
+  }
+
+  private void deleteStaleSocketFile() throws IOException {
+    File file = new File(path);
+    if (!file.exists()) {
+      return;
+    }
+    boolean inUse;
+    try {
+      SocketChannel.open(address).close();
+      inUse = true;
+    } catch (IOException e) {
+      // Nothing is listening
+      inUse = false;
+    }
+    if (inUse) {
+      throw new IOException("Socket file is in use: " + path);
+    }
+    if (!file.delete()) {
+      throw new IOException("Could not delete stale socket file: " + path);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    ServerSocketChannel local = serverChannel;
+    if (local != null && local.isOpen()) {
+      local.close();
+      new File(path).delete();
+    }
+  }
+}
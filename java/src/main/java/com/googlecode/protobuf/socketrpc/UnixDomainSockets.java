@@ -0,0 +1,160 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Access to Unix domain sockets, which the JDK supports since Java 16. The
+ * classes of this package are compiled for Java 6, so the new API, and the
+ * Java 7 API it builds on, is looked up by reflection and only used where it
+ * exists.
+ *
+ * @author Shardul Deo
+ */
+final class UnixDomainSockets {
+
+  // UnixDomainSocketAddress.of(String), null if not available
+  private static final Method NEW_ADDRESS;
+
+  // ServerSocketChannel.open(ProtocolFamily), null if not available
+  private static final Method OPEN_SERVER_CHANNEL;
+
+  // ServerSocketChannel.bind(SocketAddress), null if not available
+  private static final Method BIND;
+
+  // StandardProtocolFamily.UNIX, null if not available
+  private static final Object UNIX;
+
+  static {
+    Method newAddress = null;
+    Method openServerChannel = null;
+    Method bind = null;
+    Object unix = null;
+    try {
+      newAddress = Class.forName("java.net.UnixDomainSocketAddress")
+          .getMethod("of", String.class);
+      openServerChannel = ServerSocketChannel.class.getMethod("open",
+          Class.forName("java.net.ProtocolFamily"));
+      bind = ServerSocketChannel.class.getMethod("bind", SocketAddress.class);
+      unix = Class.forName("java.net.StandardProtocolFamily")
+          .getField("UNIX").get(null);
+    } catch (ClassNotFoundException e) {
+      newAddress = null;
+    } catch (NoSuchMethodException e) {
+      newAddress = null;
+    } catch (NoSuchFieldException e) {
+      // No UNIX protocol family
+      newAddress = null;
+    } catch (IllegalAccessException e) {
+      newAddress = null;
+    }
+    if (newAddress == null) {
+      openServerChannel = null;
+      bind = null;
+      unix = null;
+    }
+    NEW_ADDRESS = newAddress;
+    OPEN_SERVER_CHANNEL = openServerChannel;
+    BIND = bind;
+    UNIX = unix;
+  }
+
+  private UnixDomainSockets() {
+  }
+
+  /**
+   * @return Whether this JDK supports Unix domain sockets.
+   */
+  static boolean isSupported() {
+    return NEW_ADDRESS != null;
+  }
+
+  /**
+   * @throws UnsupportedOperationException If this JDK doesn't support Unix
+   *         domain sockets.
+   */
+  static void checkSupported() {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException(
+          "Unix domain sockets need Java 16 or later");
+    }
+  }
+
+  /**
+   * @return Address of the socket file at the given path.
+   */
+  static SocketAddress newAddress(String path) {
+    checkSupported();
+    return (SocketAddress) invoke(NEW_ADDRESS, path);
+  }
+
+  /**
+   * @return New unbound server channel for Unix domain sockets.
+   */
+  static ServerSocketChannel openServerChannel() throws IOException {
+    checkSupported();
+    return (ServerSocketChannel) invokeIO(OPEN_SERVER_CHANNEL, null, UNIX);
+  }
+
+  /**
+   * Bind the given server channel to the given address.
+   */
+  static void bind(ServerSocketChannel channel, SocketAddress address)
+      throws IOException {
+    checkSupported();
+    invokeIO(BIND, channel, address);
+  }
+
+  private static Object invokeIO(Method method, Object target, Object arg)
+      throws IOException {
+    try {
+      return method.invoke(target, arg);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private static Object invoke(Method method, Object arg) {
+    try {
+      return method.invoke(null, arg);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,202 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link AdmissionController}.
+ *
+ * @author Shardul Deo
+ */
+public class AdmissionControllerTest extends TestCase {
+
+  private static final Runnable TASK = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+
+  private List<Runnable> submitted;
+  private List<Runnable> shedTasks;
+  private boolean rejectTasks;
+  private AdmissionController controller;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    submitted = new ArrayList<Runnable>();
+    shedTasks = new ArrayList<Runnable>();
+    rejectTasks = false;
+    controller = new AdmissionController(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        if (rejectTasks) {
+          throw new RejectedExecutionException();
+        }
+        submitted.add(command);
+      }
+    }, new AdmissionController.ShedHandler() {
+      @Override
+      public void shed(Runnable task) {
+        shedTasks.add(task);
+      }
+    });
+  }
+
+  public void testNoLimits() {
+    for (int i = 0; i < 100; i++) {
+      assertTrue(controller.admit(TASK));
+    }
+    assertEquals(100, submitted.size());
+    assertEquals(100, controller.getAcceptedCount());
+    assertEquals(100, controller.getInFlight());
+    runSubmitted();
+    assertEquals(0, controller.getInFlight());
+  }
+
+  public void testQueueAndShed() {
+    controller.setLimits(2, 1);
+    assertTrue(controller.admit(TASK));
+    assertTrue(controller.admit(TASK));
+    assertTrue(controller.admit(TASK));
+    assertFalse(controller.admit(TASK));
+    assertEquals(2, submitted.size());
+    assertEquals(1, controller.getQueued());
+    assertEquals(3, controller.getAcceptedCount());
+    assertEquals(1, controller.getShedCount());
+
+    // Completing a task hands the queued one to the executor
+    submitted.remove(0).run();
+    assertEquals(2, submitted.size());
+    assertEquals(0, controller.getQueued());
+    assertEquals(2, controller.getInFlight());
+    assertTrue(controller.admit(TASK));
+    runSubmitted();
+    assertEquals(0, controller.getInFlight());
+    assertEquals(0, controller.getQueued());
+  }
+
+  public void testExecutorRejects() {
+    rejectTasks = true;
+    assertFalse(controller.admit(TASK));
+    assertEquals(1, controller.getShedCount());
+    assertEquals(0, controller.getAcceptedCount());
+    assertEquals(0, controller.getInFlight());
+  }
+
+  public void testExecutorRejectsQueued() {
+    controller.setLimits(1, 2);
+    controller.admit(TASK);
+    controller.admit(TASK);
+    controller.admit(TASK);
+    rejectTasks = true;
+
+    // Queued tasks are shed rather than dropped
+    submitted.remove(0).run();
+    assertEquals(2, shedTasks.size());
+    assertEquals(2, controller.getShedCount());
+    assertEquals(0, controller.getQueued());
+    assertEquals(0, controller.getInFlight());
+  }
+
+  public void testLimitsLowered() {
+    controller.setLimits(2, 1);
+    controller.admit(TASK);
+    controller.admit(TASK);
+    controller.admit(TASK);
+    controller.setLimits(1, 1);
+
+    // Queued task waits until in flight tasks are under the new limit
+    submitted.remove(0).run();
+    assertEquals(1, submitted.size());
+    assertEquals(1, controller.getQueued());
+    runSubmitted();
+    assertEquals(0, controller.getQueued());
+  }
+
+  public void testDeadlineOrder() {
+    final List<String> order = new ArrayList<String>();
+    controller.setLimits(1, 10);
+    controller.admit(TASK);
+    controller.admit(new NamedTask("a", order));
+    controller.admit(new NamedTask("b", order), 300);
+    controller.admit(new NamedTask("c", order), 100);
+    controller.admit(new NamedTask("d", order));
+    controller.admit(new NamedTask("e", order), 100);
+    assertEquals(5, controller.getQueued());
+
+    // Earliest deadline first, then those without deadlines in order
+    runSubmitted();
+    assertEquals(Arrays.asList("c", "e", "b", "a", "d"), order);
+  }
+
+  public void testNoDeadlineNotStarved() throws InterruptedException {
+    final List<String> order = new ArrayList<String>();
+    controller.setLimits(1, 100);
+    controller.setDefaultQueueDeadline(10, TimeUnit.MILLISECONDS);
+    controller.admit(TASK);
+    controller.admit(new NamedTask("old", order));
+    Thread.sleep(20);
+
+    // Tasks with deadlines keep arriving, but only those due before the
+    // default deadline of the old task go ahead of it
+    for (int i = 0; i < 10; i++) {
+      controller.admit(new NamedTask("new", order),
+          System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+    }
+    controller.admit(new NamedTask("urgent", order),
+        System.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+    for (int i = 0; i < 4; i++) {
+      submitted.remove(0).run();
+    }
+    assertEquals(Arrays.asList("urgent", "old", "new"), order);
+  }
+
+  private static class NamedTask implements Runnable {
+
+    private final String name;
+    private final List<String> order;
+
+    private NamedTask(String name, List<String> order) {
+      this.name = name;
+      this.order = order;
+    }
+
+    @Override
+    public void run() {
+      order.add(name);
+    }
+  }
+
+  private void runSubmitted() {
+    while (!submitted.isEmpty()) {
+      submitted.remove(0).run();
+    }
+  }
+}
@@ -0,0 +1,248 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Tests for {@link AsyncRpcChannel}.
+ *
+ * @author Shardul Deo
+ */
+public class AsyncRpcChannelTest extends TestCase {
+
+  private static final int PORT = 8082;
+  private static final MethodDescriptor METHOD =
+      TestService.getDescriptor().getMethods().get(0);
+  private static final Request REQUEST = Request.newBuilder()
+      .setStrData("Request")
+      .build();
+  private static final Response RESPONSE = Response.newBuilder()
+      .setStrData("Response")
+      .build();
+
+  private ExecutorService threadPool;
+  private ExecutorService callbackExecutor;
+  private RpcServer rpcServer;
+  private AsyncRpcChannel channel;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    threadPool = Executors.newFixedThreadPool(4);
+    callbackExecutor = Executors.newSingleThreadExecutor();
+    channel = RpcChannels.newAsyncRpcChannel("localhost", PORT,
+        callbackExecutor);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    channel.close();
+    if (rpcServer != null) {
+      rpcServer.shutDown();
+    }
+    threadPool.shutdownNow();
+    callbackExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  private void startServer(FakeServiceImpl service) throws Exception {
+    rpcServer = new RpcServer(SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(PORT), threadPool, true);
+    rpcServer.registerService(service);
+    rpcServer.startServer();
+    Thread.sleep(500);
+  }
+
+  public void testCallMethod() throws Exception {
+    startServer(new FakeServiceImpl(REQUEST).withResponse(RESPONSE));
+    final SocketRpcController controller = new SocketRpcController();
+    final AtomicReference<Response> response = new AtomicReference<Response>();
+    final CountDownLatch done = new CountDownLatch(1);
+    TestService.newStub(channel).testMethod(controller, REQUEST,
+        new RpcCallback<Response>() {
+          @Override
+          public void run(Response parameter) {
+            response.set(parameter);
+            done.countDown();
+          }
+        });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertFalse(controller.failed());
+    assertEquals(RESPONSE, response.get());
+  }
+
+  public void testManyPendingCalls() throws Exception {
+    startServer(new FakeServiceImpl(REQUEST).withResponse(RESPONSE));
+    List<RpcFuture<Message>> futures = new ArrayList<RpcFuture<Message>>();
+    for (int i = 0; i < 1000; i++) {
+      futures.add(channel.callMethod(METHOD, new SocketRpcController(),
+          REQUEST, Response.getDefaultInstance()));
+    }
+    final CountDownLatch notified = new CountDownLatch(1);
+    futures.get(999).addListener(new Runnable() {
+      @Override
+      public void run() {
+        notified.countDown();
+      }
+    }, RpcChannels.SAME_THREAD_EXECUTOR);
+    for (RpcFuture<Message> future : futures) {
+      assertEquals(RESPONSE, future.get(5, TimeUnit.SECONDS));
+    }
+    assertTrue(notified.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testNoCallback() throws Exception {
+    startServer(new FakeServiceImpl(REQUEST));
+    RpcFuture<Message> future = channel.callMethod(METHOD,
+        new SocketRpcController(), REQUEST, Response.getDefaultInstance());
+    assertNull(future.get(5, TimeUnit.SECONDS));
+  }
+
+  public void testRpcFailed() throws Exception {
+    startServer(new FakeServiceImpl(REQUEST).failsWithError("Error"));
+    SocketRpcController controller = new SocketRpcController();
+    RpcFuture<Message> future = channel.callMethod(METHOD, controller,
+        REQUEST, Response.getDefaultInstance());
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("Should have thrown exception");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ServiceException);
+    }
+    assertEquals(ErrorReason.RPC_FAILED, controller.errorReason());
+    assertEquals("Error", controller.errorText());
+  }
+
+  public void testCancel() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch notified = new CountDownLatch(1);
+    rpcServer = new RpcServer(SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(PORT), threadPool, false);
+    rpcServer.registerService(new TestService() {
+      @Override
+      public void testMethod(RpcController controller, Request request,
+          RpcCallback<Response> done) {
+        // Never responds, waits to be canceled
+        controller.notifyOnCancel(new RpcCallback<Object>() {
+          @Override
+          public void run(Object parameter) {
+            notified.countDown();
+          }
+        });
+        started.countDown();
+      }
+    });
+    rpcServer.startServer();
+    Thread.sleep(500);
+
+    SocketRpcController controller = new SocketRpcController();
+    RpcFuture<Message> future = channel.callMethod(METHOD, controller,
+        REQUEST, Response.getDefaultInstance());
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertTrue(future.cancel(true));
+    assertTrue(future.isCancelled());
+    assertTrue(controller.isCanceled());
+    assertTrue(notified.await(5, TimeUnit.SECONDS));
+    try {
+      future.get();
+      fail("Should have thrown exception");
+    } catch (CancellationException e) {
+      // Expected
+    }
+    assertFalse(future.cancel(true));
+  }
+
+  public void testDeadlineExceeded() throws Exception {
+    final CountDownLatch notified = new CountDownLatch(1);
+    rpcServer = new RpcServer(SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(PORT), threadPool, false);
+    rpcServer.registerService(new TestService() {
+      @Override
+      public void testMethod(RpcController controller, Request request,
+          RpcCallback<Response> done) {
+        // Never responds, the client gives up and cancels it
+        controller.notifyOnCancel(new RpcCallback<Object>() {
+          @Override
+          public void run(Object parameter) {
+            notified.countDown();
+          }
+        });
+      }
+    });
+    rpcServer.startServer();
+    Thread.sleep(500);
+
+    SocketRpcController controller = new SocketRpcController();
+    controller.setTimeout(200, TimeUnit.MILLISECONDS);
+    RpcFuture<Message> future = channel.callMethod(METHOD, controller,
+        REQUEST, Response.getDefaultInstance());
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("Should have thrown exception");
+    } catch (ExecutionException e) {
+      // Expected
+    }
+    assertEquals(ErrorReason.DEADLINE_EXCEEDED, controller.errorReason());
+    assertTrue(notified.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testConnectionRefused() throws Exception {
+    SocketRpcController controller = new SocketRpcController();
+    RpcFuture<Message> future = channel.callMethod(METHOD, controller,
+        REQUEST, Response.getDefaultInstance());
+    assertTrue(future.isDone());
+    assertEquals(ErrorReason.IO_ERROR, controller.errorReason());
+  }
+
+  public void testClosed() throws Exception {
+    startServer(new FakeServiceImpl(REQUEST).withResponse(RESPONSE));
+    assertEquals(RESPONSE, channel.callMethod(METHOD,
+        new SocketRpcController(), REQUEST, Response.getDefaultInstance())
+        .get(5, TimeUnit.SECONDS));
+    channel.close();
+    SocketRpcController controller = new SocketRpcController();
+    RpcFuture<Message> future = channel.callMethod(METHOD, controller,
+        REQUEST, Response.getDefaultInstance());
+    assertTrue(future.isDone());
+    assertEquals(ErrorReason.IO_ERROR, controller.errorReason());
+  }
+}
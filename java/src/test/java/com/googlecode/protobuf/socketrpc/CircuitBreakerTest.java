@@ -0,0 +1,128 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.googlecode.protobuf.socketrpc.CircuitBreaker.Permit;
+import com.googlecode.protobuf.socketrpc.CircuitBreaker.State;
+
+/**
+ * Tests for {@link CircuitBreaker}.
+ *
+ * @author Shardul Deo
+ */
+public class CircuitBreakerTest extends TestCase {
+
+  private static final long EJECTION = 1000;
+  private static final long MAX_EJECTION = 3000;
+
+  private AtomicInteger openBreakers;
+  private CircuitBreaker breaker;
+  private long now;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    openBreakers = new AtomicInteger();
+    breaker = new CircuitBreaker(3, EJECTION, MAX_EJECTION, openBreakers, 1);
+    now = System.nanoTime();
+  }
+
+  private void failRpcs(int times) {
+    for (int i = 0; i < times; i++) {
+      breaker.onResult(breaker.acquire(now), true /* failed */, now);
+    }
+  }
+
+  public void testConsecutiveFailures() {
+    failRpcs(2);
+    breaker.onResult(Permit.ALLOWED, false /* failed */, now);
+    failRpcs(2);
+    assertEquals(State.CLOSED, breaker.getState());
+    failRpcs(1);
+    assertEquals(State.OPEN, breaker.getState());
+    assertEquals(1, openBreakers.get());
+    assertEquals(1, breaker.getEjections());
+    assertFalse(breaker.isAvailable(now));
+    assertEquals(Permit.DENIED, breaker.acquire(now));
+
+    // Results of RPCs started before opening don't count
+    breaker.onResult(Permit.ALLOWED, false /* failed */, now);
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  public void testHalfOpen() {
+    failRpcs(3);
+    now += EJECTION;
+    assertTrue(breaker.isAvailable(now));
+    assertEquals(Permit.PROBE, breaker.acquire(now));
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    // Only one probe at a time
+    assertFalse(breaker.isAvailable(now));
+    assertEquals(Permit.DENIED, breaker.acquire(now));
+
+    // Failed probe opens the breaker for twice as long
+    breaker.onResult(Permit.PROBE, true /* failed */, now);
+    assertEquals(State.OPEN, breaker.getState());
+    assertEquals(2, breaker.getEjections());
+    assertEquals(Permit.DENIED, breaker.acquire(now + EJECTION));
+    now += 2 * EJECTION;
+    assertEquals(Permit.PROBE, breaker.acquire(now));
+
+    // Successful probe closes it
+    breaker.onResult(Permit.PROBE, false /* failed */, now);
+    assertEquals(State.CLOSED, breaker.getState());
+    assertEquals(0, openBreakers.get());
+    assertEquals(Permit.ALLOWED, breaker.acquire(now));
+  }
+
+  public void testBackoff() {
+    failRpcs(3);
+    for (int i = 0; i < 3; i++) {
+      now += MAX_EJECTION;
+      assertEquals(Permit.PROBE, breaker.acquire(now));
+      breaker.onResult(Permit.PROBE, true /* failed */, now);
+    }
+    // Capped at the maximum ejection time
+    assertEquals(4, breaker.getEjections());
+    assertEquals(Permit.DENIED, breaker.acquire(now + MAX_EJECTION - 1));
+    assertEquals(Permit.PROBE, breaker.acquire(now + MAX_EJECTION));
+    breaker.onResult(Permit.PROBE, false /* failed */, now + MAX_EJECTION);
+
+    // Ejections are forgotten after being closed for a while
+    now += 3 * MAX_EJECTION;
+    failRpcs(3);
+    assertEquals(1, breaker.getEjections());
+  }
+
+  public void testMaxOpenBreakers() {
+    CircuitBreaker other = new CircuitBreaker(3, EJECTION, MAX_EJECTION,
+        openBreakers, 1);
+    assertTrue(other.eject(now));
+    assertFalse(other.eject(now));
+    failRpcs(3);
+    assertEquals(State.CLOSED, breaker.getState());
+    assertFalse(breaker.eject(now));
+  }
+}
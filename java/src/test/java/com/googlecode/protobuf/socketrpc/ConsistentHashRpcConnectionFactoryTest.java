@@ -0,0 +1,243 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileOptions;
+import com.googlecode.protobuf.socketrpc.ConsistentHashRpcConnectionFactory.KeyExtractor;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Tests for {@link ConsistentHashRpcConnectionFactory}.
+ *
+ * @author Shardul Deo
+ */
+public class ConsistentHashRpcConnectionFactoryTest extends TestCase {
+
+  private static final int KEYS = 10000;
+
+  private final Map<String, FakeFactory> factories =
+      new HashMap<String, FakeFactory>();
+
+  private ConsistentHashRpcConnectionFactory create(int endpoints) {
+    ConsistentHashRpcConnectionFactory.Builder builder =
+        ConsistentHashRpcConnectionFactory.newBuilder("str_data");
+    for (int i = 0; i < endpoints; i++) {
+      FakeFactory factory = new FakeFactory();
+      factories.put("server" + i, factory);
+      builder.addEndpoint("server" + i, factory);
+    }
+    return builder.build();
+  }
+
+  private static ByteString key(int i) {
+    return ByteString.copyFromUtf8("key" + i);
+  }
+
+  private static Map<ByteString, String> route(
+      ConsistentHashRpcConnectionFactory factory) {
+    Map<ByteString, String> routes = new HashMap<ByteString, String>();
+    for (int i = 0; i < KEYS; i++) {
+      routes.put(key(i), factory.getEndpointName(key(i)));
+    }
+    return routes;
+  }
+
+  public void testBalanced() {
+    Map<ByteString, String> routes = route(create(4));
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (String name : routes.values()) {
+      Integer count = counts.get(name);
+      counts.put(name, count == null ? 1 : count + 1);
+    }
+    assertEquals(4, counts.size());
+    for (int count : counts.values()) {
+      // Within 25% of an even share
+      assertTrue("" + counts, Math.abs(count - KEYS / 4) < KEYS / 16);
+    }
+
+    // Same routes in another client
+    assertEquals(routes, route(create(4)));
+  }
+
+  public void testAddEndpoint() {
+    ConsistentHashRpcConnectionFactory factory = create(4);
+    Map<ByteString, String> before = route(factory);
+    factory.addEndpoint("server4", new FakeFactory());
+    Map<ByteString, String> after = route(factory);
+    int moved = 0;
+    for (ByteString key : before.keySet()) {
+      if (!before.get(key).equals(after.get(key))) {
+        // Keys only move to the new endpoint
+        assertEquals("server4", after.get(key));
+        moved++;
+      }
+    }
+    assertTrue("" + moved, moved > KEYS / 8 && moved < KEYS * 3 / 10);
+
+    try {
+      factory.addEndpoint("server4", new FakeFactory());
+      fail("Should have thrown exception");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  public void testRemoveEndpoint() {
+    ConsistentHashRpcConnectionFactory factory = create(4);
+    Map<ByteString, String> before = route(factory);
+    assertNotNull(factory.removeEndpoint("server2"));
+    assertNull(factory.removeEndpoint("server2"));
+    Map<ByteString, String> after = route(factory);
+    for (ByteString key : before.keySet()) {
+      // Only keys of the removed endpoint move
+      if (before.get(key).equals("server2")) {
+        assertFalse("server2".equals(after.get(key)));
+      } else {
+        assertEquals(before.get(key), after.get(key));
+      }
+    }
+    assertEquals(3, factory.getEndpointNames().size());
+
+    factory = create(1);
+    try {
+      factory.removeEndpoint("server0");
+      fail("Should have thrown exception");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+
+  public void testFieldKeyExtractor() {
+    KeyExtractor extractor =
+        ConsistentHashRpcConnectionFactory.newFieldKeyExtractor("str_data");
+    assertEquals(ByteString.copyFromUtf8("abc"),
+        extractor.getKey(Request.newBuilder().setStrData("abc").build()));
+    assertNull(extractor.getKey(Request.getDefaultInstance()));
+
+    // Nested field
+    extractor = ConsistentHashRpcConnectionFactory.newFieldKeyExtractor(
+        "options.java_package");
+    FileDescriptorProto file = FileDescriptorProto.newBuilder()
+        .setName("test.proto")
+        .build();
+    assertNull(extractor.getKey(file));
+    file = file.toBuilder()
+        .setOptions(FileOptions.newBuilder().setJavaPackage("com.test"))
+        .build();
+    assertEquals(ByteString.copyFromUtf8("com.test"), extractor.getKey(file));
+
+    // Numbers and enums
+    extractor =
+        ConsistentHashRpcConnectionFactory.newFieldKeyExtractor("number");
+    FieldDescriptorProto field = FieldDescriptorProto.newBuilder()
+        .setNumber(42)
+        .setType(FieldDescriptorProto.Type.TYPE_STRING)
+        .build();
+    assertEquals(ByteString.copyFromUtf8("42"), extractor.getKey(field));
+    extractor = ConsistentHashRpcConnectionFactory.newFieldKeyExtractor("type");
+    assertEquals(ByteString.copyFromUtf8("9"), extractor.getKey(field));
+
+    // Missing and repeated fields
+    extractor =
+        ConsistentHashRpcConnectionFactory.newFieldKeyExtractor("missing");
+    assertNull(extractor.getKey(field));
+    extractor = ConsistentHashRpcConnectionFactory.newFieldKeyExtractor(
+        "message_type");
+    assertNull(extractor.getKey(file));
+  }
+
+  public void testRouting() throws Exception {
+    ConsistentHashRpcConnectionFactory factory = create(3);
+    BlockingRpcChannel channel = RpcChannels.newBlockingRpcChannel(factory);
+    TestService.BlockingInterface service =
+        TestService.newBlockingStub(channel);
+    Request request = Request.newBuilder().setStrData("user42").build();
+    for (int i = 0; i < 5; i++) {
+      service.testMethod(new SocketRpcController(), request);
+    }
+    String name = factory.getEndpointName(
+        ByteString.copyFromUtf8("user42"));
+    for (Map.Entry<String, FakeFactory> entry : factories.entrySet()) {
+      assertEquals(entry.getKey().equals(name) ? 5 : 0,
+          entry.getValue().created);
+    }
+
+    factory.close();
+    for (FakeFactory fake : factories.values()) {
+      assertTrue(fake.closed);
+    }
+  }
+
+  private static class FakeFactory implements RpcConnectionFactory,
+      Closeable {
+
+    private int created = 0;
+    private boolean closed = false;
+
+    @Override
+    public Connection createConnection() {
+      created++;
+      return new Connection() {
+        @Override
+        public void sendProtoMessage(MessageLite message) {
+        }
+
+        @Override
+        public void receiveProtoMessage(MessageLite.Builder messageBuilder)
+            throws IOException {
+          messageBuilder.mergeFrom(SocketRpcProtos.Response.newBuilder()
+              .setResponseProto(Response.newBuilder().setStrData("Response")
+                  .build().toByteString())
+              .build().toByteString());
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isClosed() {
+          return false;
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.MessageLite.Builder;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+import com.googlecode.protobuf.socketrpc.RpcForwarder.RpcException;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Tests for {@link HandshakeRpcConnectionFactory}.
+ *
+ * @author Shardul Deo
+ */
+public class HandshakeRpcConnectionFactoryTest extends TestCase {
+
+  private static final MethodDescriptor METHOD =
+      TestService.getDescriptor().getMethods().get(0);
+  private static final Request REQUEST = Request.newBuilder()
+      .setStrData("Request")
+      .build();
+  private static final Response RESPONSE = Response.newBuilder()
+      .setStrData("Response")
+      .build();
+
+  private RpcForwarder rpcForwarder;
+  private FakeConnection connection;
+  private RpcConnectionFactory factory;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    rpcForwarder = new RpcForwarder();
+    rpcForwarder.registerService(TestService.newReflectiveService(
+        new FakeServiceImpl(REQUEST).withResponse(RESPONSE)));
+    factory = HandshakeRpcConnectionFactory.createInstance(
+        new RpcConnectionFactory() {
+          @Override
+          public Connection createConnection() {
+            return connection;
+          }
+        });
+  }
+
+  public void testMethodIdSent() throws IOException {
+    connection = new FakeConnection(rpcForwarder);
+    assertEquals(RESPONSE, doRpc(factory.createConnection()));
+
+    // Handshake followed by request with empty names
+    assertEquals(2, connection.requests.size());
+    assertEquals(RpcForwarder.HANDSHAKE_SERVICE,
+        connection.requests.get(0).getServiceName());
+    SocketRpcProtos.Request rpcRequest = connection.requests.get(1);
+    assertTrue(rpcRequest.hasMethodId());
+    assertEquals("", rpcRequest.getServiceName());
+    assertEquals("", rpcRequest.getMethodName());
+  }
+
+  public void testOldServer() throws IOException {
+    connection = new FakeConnection(rpcForwarder);
+    connection.supportsHandshake = false;
+    assertEquals(RESPONSE, doRpc(factory.createConnection()));
+
+    // Names are sent after the failed handshake
+    assertEquals(2, connection.requests.size());
+    SocketRpcProtos.Request rpcRequest = connection.requests.get(1);
+    assertFalse(rpcRequest.hasMethodId());
+    assertEquals(METHOD.getService().getFullName(),
+        rpcRequest.getServiceName());
+    assertEquals(METHOD.getName(), rpcRequest.getMethodName());
+  }
+
+  public void testHandshakeFailure() {
+    connection = new FakeConnection(rpcForwarder);
+    connection.fail = true;
+    try {
+      factory.createConnection();
+      fail("Should have thrown exception");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertTrue(connection.isClosed());
+  }
+
+  private static Response doRpc(Connection connection) throws IOException {
+    connection.sendProtoMessage(new RequestEnvelope(METHOD, REQUEST));
+    SocketRpcProtos.Response.Builder rpcResponse =
+        SocketRpcProtos.Response.newBuilder();
+    connection.receiveProtoMessage(rpcResponse);
+    return Response.parseFrom(rpcResponse.getResponseProto());
+  }
+
+  /**
+   * Connection that forwards requests to an {@link RpcForwarder}, like a
+   * server would.
+   */
+  private static class FakeConnection implements Connection {
+
+    private final RpcForwarder rpcForwarder;
+    private final List<SocketRpcProtos.Request> requests =
+        new ArrayList<SocketRpcProtos.Request>();
+    private boolean supportsHandshake = true;
+    private boolean fail = false;
+    private boolean closed = false;
+    private MessageLite response;
+
+    private FakeConnection(RpcForwarder rpcForwarder) {
+      this.rpcForwarder = rpcForwarder;
+    }
+
+    @Override
+    public void sendProtoMessage(MessageLite message) throws IOException {
+      if (fail) {
+        throw new IOException("Connection reset");
+      }
+      RequestDecoder decoder = new RequestDecoder(rpcForwarder);
+      decoder.mergeFrom(message.toByteString());
+      requests.add(decoder.build());
+      if (!supportsHandshake && RpcForwarder.HANDSHAKE_SERVICE.equals(
+          decoder.getServiceName())) {
+        response = ResponseEnvelope.forError("Not found",
+            ErrorReason.SERVICE_NOT_FOUND);
+        return;
+      }
+      try {
+        response = rpcForwarder.doBlockingRpc(decoder);
+      } catch (RpcException e) {
+        response = ResponseEnvelope.forError(e.msg, e.errorReason);
+      }
+    }
+
+    @Override
+    public void receiveProtoMessage(Builder messageBuilder)
+        throws IOException {
+      messageBuilder.mergeFrom(response.toByteString());
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+      return closed;
+    }
+  }
+}
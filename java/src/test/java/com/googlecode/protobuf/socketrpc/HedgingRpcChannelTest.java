@@ -0,0 +1,280 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.ServiceException;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Tests for {@link HedgingRpcChannel}.
+ *
+ * @author Shardul Deo
+ */
+public class HedgingRpcChannelTest extends TestCase {
+
+  private static final MethodDescriptor METHOD =
+      TestService.getDescriptor().getMethods().get(0);
+  private static final Request REQUEST =
+      Request.newBuilder().setStrData("Request").build();
+  private static final Response RESPONSE =
+      Response.newBuilder().setStrData("Response").build();
+
+  private ExecutorService executor;
+  private FakeFactory factory;
+  private HedgingRpcChannel channel;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newCachedThreadPool();
+    factory = new FakeFactory();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (channel != null) {
+      channel.close();
+    }
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  private HedgingRpcChannel.Builder newBuilder() {
+    return HedgingRpcChannel.newBuilder(factory, executor)
+        .addIdempotentMethod(METHOD)
+        .setHedgeDelay(10, TimeUnit.MILLISECONDS)
+        .setHedgeDelayPercentile(0);
+  }
+
+  private Message call() throws ServiceException {
+    return channel.callBlockingMethod(METHOD, new SocketRpcController(),
+        REQUEST, Response.getDefaultInstance());
+  }
+
+  public void testHedgeWins() throws Exception {
+    channel = newBuilder().build();
+    FakeConnection slow = factory.add(5000, false /* fail */);
+    FakeConnection fast = factory.add(0, false /* fail */);
+    long start = System.nanoTime();
+    assertEquals(RESPONSE, call());
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    assertEquals(1, channel.getHedgeCount());
+    assertEquals(1, channel.getHedgeWinCount());
+    // Loser is canceled
+    assertTrue(slow.closed.await(1, TimeUnit.SECONDS));
+    assertTrue(fast.closed.await(1, TimeUnit.SECONDS));
+  }
+
+  public void testFastCallNotHedged() throws Exception {
+    channel = newBuilder().setHedgeDelay(1, TimeUnit.SECONDS).build();
+    assertEquals(RESPONSE, call());
+    assertEquals(RESPONSE, call());
+    assertEquals(2, factory.created.size());
+    assertEquals(2, channel.getHedgeableCallCount());
+    assertEquals(0, channel.getHedgeCount());
+  }
+
+  public void testNotIdempotent() throws Exception {
+    channel = HedgingRpcChannel.newBuilder(factory, executor)
+        .setHedgeDelay(1, TimeUnit.MILLISECONDS)
+        .setHedgeDelayPercentile(0)
+        .build();
+    factory.add(100, false /* fail */);
+    assertEquals(RESPONSE, call());
+    assertEquals(1, factory.created.size());
+    assertEquals(0, channel.getHedgeableCallCount());
+  }
+
+  public void testFailureWaitsForHedge() throws Exception {
+    channel = newBuilder().build();
+    factory.add(100, true /* fail */);
+    factory.add(200, false /* fail */);
+    assertEquals(RESPONSE, call());
+    assertEquals(1, channel.getHedgeWinCount());
+
+    // Fails once both attempts failed
+    factory.add(100, true /* fail */);
+    factory.add(200, true /* fail */);
+    SocketRpcController controller = new SocketRpcController();
+    try {
+      channel.callBlockingMethod(METHOD, controller, REQUEST,
+          Response.getDefaultInstance());
+      fail("Should have thrown exception");
+    } catch (ServiceException e) {
+      assertEquals(ErrorReason.IO_ERROR, controller.errorReason());
+    }
+  }
+
+  public void testBudget() throws Exception {
+    channel = newBuilder().setHedgeDelay(1, TimeUnit.MILLISECONDS)
+        .setHedgeBudgetPercent(0)
+        .build();
+    for (int i = 0; i < 12; i++) {
+      factory.add(30, false /* fail */);
+      factory.add(30, false /* fail */);
+      assertEquals(RESPONSE, call());
+    }
+    // Only the initial burst
+    assertEquals(10, channel.getHedgeCount());
+  }
+
+  public void testCancel() throws Exception {
+    channel = newBuilder().build();
+    FakeConnection first = factory.add(5000, false /* fail */);
+    FakeConnection second = factory.add(5000, false /* fail */);
+    SocketRpcController controller = new SocketRpcController();
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Message> response =
+        new AtomicReference<Message>(RESPONSE);
+    channel.callMethod(METHOD, controller, REQUEST,
+        Response.getDefaultInstance(), new RpcCallback<Message>() {
+          @Override
+          public void run(Message parameter) {
+            response.set(parameter);
+            done.countDown();
+          }
+        });
+    // Wait for the hedge
+    long waitUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    while (channel.getHedgeCount() == 0 && System.nanoTime() < waitUntil) {
+      Thread.sleep(5);
+    }
+    Thread.sleep(50);
+    controller.startCancel();
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+    assertNull(response.get());
+    assertEquals(ErrorReason.CANCELED, controller.errorReason());
+    assertTrue(first.closed.await(1, TimeUnit.SECONDS));
+    assertTrue(second.closed.await(1, TimeUnit.SECONDS));
+  }
+
+  public void testPercentileDelay() {
+    channel = newBuilder().setHedgeDelayPercentile(95).build();
+    String methodName = "test.HedgingRpcChannelTest.Method";
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(10),
+        channel.getHedgeDelayNanos(methodName));
+    MethodMetrics metrics =
+        RpcMetrics.getClientMetrics().getMethodMetrics(methodName);
+    for (int i = 0; i < HedgingRpcChannel.MIN_LATENCY_SAMPLES; i++) {
+      metrics.record(TimeUnit.MICROSECONDS.toNanos(i < 90 ? 100 : 500), null,
+          0, 0);
+    }
+    // Delay is cached for a while
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(10),
+        channel.getHedgeDelayNanos(methodName));
+    channel.close();
+    channel = newBuilder().setHedgeDelayPercentile(95).build();
+    long delay = channel.getHedgeDelayNanos(methodName);
+    assertTrue(delay >= TimeUnit.MICROSECONDS.toNanos(500));
+    assertTrue(delay < TimeUnit.MICROSECONDS.toNanos(600));
+  }
+
+  private static class FakeFactory implements RpcConnectionFactory {
+
+    private final LinkedList<FakeConnection> queued =
+        new LinkedList<FakeConnection>();
+    private final List<FakeConnection> created =
+        new ArrayList<FakeConnection>();
+
+    synchronized FakeConnection add(long delayMillis, boolean fail) {
+      FakeConnection connection = new FakeConnection(delayMillis, fail);
+      queued.add(connection);
+      return connection;
+    }
+
+    @Override
+    public synchronized Connection createConnection() {
+      FakeConnection connection = queued.isEmpty()
+          ? new FakeConnection(0, false /* fail */) : queued.removeFirst();
+      created.add(connection);
+      return connection;
+    }
+  }
+
+  /**
+   * Connection that responds after a delay, unless it is closed first.
+   */
+  private static class FakeConnection implements Connection {
+
+    private final long delayMillis;
+    private final boolean fail;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    private FakeConnection(long delayMillis, boolean fail) {
+      this.delayMillis = delayMillis;
+      this.fail = fail;
+    }
+
+    @Override
+    public void sendProtoMessage(MessageLite message) {
+    }
+
+    @Override
+    public void receiveProtoMessage(MessageLite.Builder messageBuilder)
+        throws IOException {
+      try {
+        if (closed.await(delayMillis, TimeUnit.MILLISECONDS)) {
+          throw new IOException("Closed");
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      if (fail) {
+        throw new IOException("Failed");
+      }
+      messageBuilder.mergeFrom(SocketRpcProtos.Response.newBuilder()
+          .setResponseProto(RESPONSE.toByteString())
+          .setCallback(true)
+          .build()
+          .toByteString());
+    }
+
+    @Override
+    public void close() {
+      closed.countDown();
+    }
+
+    @Override
+    public boolean isClosed() {
+      return closed.getCount() == 0;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.ByteString;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Request;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response;
+
+/**
+ * Tests for {@link InProcessServerRpcConnectionFactory}.
+ *
+ * @author Shardul Deo
+ */
+public class InProcessServerRpcConnectionFactoryTest extends TestCase {
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testNoServer() throws IOException {
+    try {
+      new InProcessRpcConnectionFactory("testNoServer", false)
+          .createConnection();
+      fail("Should have thrown exception");
+    } catch (ConnectException e) {
+      // Expected
+    }
+  }
+
+  public void testSendAndReceive() throws Exception {
+    InProcessServerRpcConnectionFactory factory =
+        new InProcessServerRpcConnectionFactory("testSendAndReceive");
+    Future<Connection> server = accept(factory);
+    waitUntilListening("testSendAndReceive");
+
+    Connection client = new InProcessRpcConnectionFactory(
+        "testSendAndReceive", false).createConnection();
+    Request request = Request.newBuilder()
+        .setServiceName("service")
+        .setMethodName("method")
+        .setRequestProto(ByteString.copyFromUtf8("request"))
+        .build();
+    client.sendProtoMessage(request);
+    Connection connection = server.get(5, TimeUnit.SECONDS);
+    Request.Builder requestBuilder = Request.newBuilder();
+    connection.receiveProtoMessage(requestBuilder);
+    assertEquals(request, requestBuilder.build());
+
+    Response response = Response.newBuilder()
+        .setResponseProto(ByteString.copyFromUtf8("response"))
+        .build();
+    connection.sendProtoMessage(response);
+    connection.close();
+    Response.Builder responseBuilder = Response.newBuilder();
+    client.receiveProtoMessage(responseBuilder);
+    assertEquals(response, responseBuilder.build());
+    // Server closed its end after responding
+    try {
+      client.receiveProtoMessage(Response.newBuilder());
+      fail("Should have thrown exception");
+    } catch (EOFException e) {
+      // Expected
+    }
+    factory.close();
+  }
+
+  public void testNameInUse() throws Exception {
+    InProcessServerRpcConnectionFactory factory =
+        new InProcessServerRpcConnectionFactory("testNameInUse");
+    Future<Connection> server = accept(factory);
+    waitUntilListening("testNameInUse");
+
+    InProcessServerRpcConnectionFactory other =
+        new InProcessServerRpcConnectionFactory("testNameInUse");
+    try {
+      other.createConnection();
+      fail("Should have thrown exception");
+    } catch (IOException e) {
+      // Expected
+    }
+
+    // Closing releases the name
+    factory.close();
+    try {
+      server.get(5, TimeUnit.SECONDS);
+      fail("Should have thrown exception");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    assertNull(InProcessServerRpcConnectionFactory.getServer("testNameInUse"));
+    other.close();
+  }
+
+  private Future<Connection> accept(
+      final InProcessServerRpcConnectionFactory factory) {
+    return executor.submit(new Callable<Connection>() {
+      @Override
+      public Connection call() throws IOException {
+        return factory.createConnection();
+      }
+    });
+  }
+
+  private static void waitUntilListening(String name)
+      throws InterruptedException {
+    long waitUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (InProcessServerRpcConnectionFactory.getServer(name) == null) {
+      assertTrue(System.nanoTime() < waitUntil);
+      Thread.sleep(10);
+    }
+  }
+}
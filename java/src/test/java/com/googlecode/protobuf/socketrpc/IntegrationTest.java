@@ -21,14 +21,26 @@
 package com.googlecode.protobuf.socketrpc;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
 import com.google.protobuf.ServiceException;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
 import com.googlecode.protobuf.socketrpc.TestProtos.Request;
 import com.googlecode.protobuf.socketrpc.TestProtos.Response;
 import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
@@ -109,6 +121,550 @@ public class IntegrationTest extends TestCase {
     doTest(rpcServer);
   }
 
+  public void testBlockingService_persistentCancel() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch canceled = new CountDownLatch(1);
+    serverConnectionFactory = PersistentRpcConnectionFactory
+        .createServerInstance(serverConnectionFactory);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true);
+    rpcServer.registerBlockingService(TestService.newReflectiveBlockingService(
+        new BlockingInterface() {
+          @Override
+          public Response testMethod(RpcController controller,
+              Request request) throws ServiceException {
+            controller.notifyOnCancel(new RpcCallback<Object>() {
+              @Override
+              public void run(Object parameter) {
+                canceled.countDown();
+              }
+            });
+            started.countDown();
+            try {
+              // Slow unless canceled, the response is then dropped
+              canceled.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              throw new ServiceException("Interrupted");
+            }
+            return RESPONSE;
+          }
+        }));
+    clientConnectionFactory = PersistentRpcConnectionFactory
+        .createInstance(clientConnectionFactory);
+    final BlockingInterface blockingStub = TestService.newBlockingStub(
+        RpcChannels.newBlockingRpcChannel(clientConnectionFactory));
+    try {
+      rpcServer.startServer();
+      Thread.sleep(500);
+
+      final SocketRpcController controller = new SocketRpcController();
+      Future<ErrorReason> call = threadPool.submit(
+          new Callable<ErrorReason>() {
+        @Override
+        public ErrorReason call() {
+          try {
+            blockingStub.testMethod(controller, REQUEST);
+            return null;
+          } catch (ServiceException e) {
+            return controller.errorReason();
+          }
+        }
+      });
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      controller.startCancel();
+      assertEquals(ErrorReason.CANCELED, call.get(5, TimeUnit.SECONDS));
+      assertTrue(canceled.await(5, TimeUnit.SECONDS));
+
+      // Connection can still be used, the late response is not read
+      doBlockingRpc(blockingStub);
+    } finally {
+      ((Closeable) clientConnectionFactory).close();
+      rpcServer.shutDown();
+    }
+  }
+
+  public void testBlockingService_nio() throws InterruptedException,
+      ServiceException, IOException {
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(8080, -1, null, 2);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true);
+    rpcServer.registerBlockingService(TestService
+        .newReflectiveBlockingService(service));
+
+    doTest(rpcServer);
+  }
+
+  public void testNonBlockingService_nioPersistentClient()
+      throws InterruptedException, ServiceException, IOException {
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(8080);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true);
+    rpcServer.registerService(service);
+
+    clientConnectionFactory = PersistentRpcConnectionFactory
+        .createInstance(clientConnectionFactory);
+    doTest(rpcServer);
+  }
+
+  public void testBlockingService_multiplexed() throws Exception {
+    serverConnectionFactory = PersistentRpcConnectionFactory
+        .createServerInstance(serverConnectionFactory);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true);
+    rpcServer.registerBlockingService(TestService
+        .newReflectiveBlockingService(service));
+
+    clientConnectionFactory = MultiplexedRpcConnectionFactory
+        .createInstance(clientConnectionFactory);
+    doConcurrentTest(rpcServer);
+  }
+
+  public void testNonBlockingService_nioMultiplexed() throws Exception {
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(8080);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true);
+    rpcServer.registerService(service);
+
+    clientConnectionFactory = MultiplexedRpcConnectionFactory
+        .createInstance(clientConnectionFactory);
+    doConcurrentTest(rpcServer);
+  }
+
+  public void testBlockingService_nioPooled() throws Exception {
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(8080);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true);
+    rpcServer.registerService(service);
+
+    clientConnectionFactory = PooledRpcConnectionFactory
+        .newBuilder(clientConnectionFactory)
+        .setMaxConnections(4)
+        .build();
+    doConcurrentTest(rpcServer);
+  }
+
+  public void testBlockingService_keepAlivePooled() throws Exception {
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createServerRpcConnectionFactory(8080, -1, null, 5000);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true /* closeConnectionAfterInvokingService */, true /* keepAlive */);
+    rpcServer.registerService(service);
+
+    clientConnectionFactory = PooledRpcConnectionFactory
+        .newBuilder(clientConnectionFactory)
+        .setMaxConnections(4)
+        .build();
+    doConcurrentTest(rpcServer);
+  }
+
+  public void testBlockingService_nioMultiplexedHandshake() throws Exception {
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(8080);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true);
+    rpcServer.registerBlockingService(TestService
+        .newReflectiveBlockingService(service));
+
+    clientConnectionFactory = MultiplexedRpcConnectionFactory
+        .createInstance(HandshakeRpcConnectionFactory
+            .createInstance(clientConnectionFactory));
+    doConcurrentTest(rpcServer);
+  }
+
+  public void testNonBlockingService_keepAlivePooledHandshake()
+      throws Exception {
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createServerRpcConnectionFactory(8080, -1, null, 5000);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true /* closeConnectionAfterInvokingService */, true /* keepAlive */);
+    rpcServer.registerService(service);
+
+    clientConnectionFactory = PooledRpcConnectionFactory
+        .newBuilder(HandshakeRpcConnectionFactory
+            .createInstance(clientConnectionFactory))
+        .setMaxConnections(4)
+        .build();
+    doConcurrentTest(rpcServer);
+  }
+
+  public void testNonBlockingService_keepAlive() throws Exception {
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createServerRpcConnectionFactory(8080, -1, null, 5000);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        false /* closeConnectionAfterInvokingService */, true /* keepAlive */);
+    rpcServer.registerService(service);
+
+    clientConnectionFactory = PooledRpcConnectionFactory
+        .newBuilder(clientConnectionFactory)
+        .setMaxConnections(1)
+        .build();
+    doTest(rpcServer);
+  }
+
+  public void testBlockingService_unixDomain() throws Exception {
+    if (!SocketRpcConnectionFactories.isUnixDomainSocketSupported()) {
+      return;
+    }
+    File socketFile = newSocketFile();
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createUnixDomainServerRpcConnectionFactory(socketFile.getPath());
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true);
+    rpcServer.registerBlockingService(TestService
+        .newReflectiveBlockingService(service));
+
+    clientConnectionFactory = SocketRpcConnectionFactories
+        .createUnixDomainRpcConnectionFactory(socketFile.getPath());
+    doTest(rpcServer);
+    assertFalse(socketFile.exists());
+  }
+
+  public void testNonBlockingService_unixDomainMultiplexed() throws Exception {
+    if (!SocketRpcConnectionFactories.isUnixDomainSocketSupported()) {
+      return;
+    }
+    File socketFile = newSocketFile();
+    serverConnectionFactory = PersistentRpcConnectionFactory
+        .createServerInstance(SocketRpcConnectionFactories
+            .createUnixDomainServerRpcConnectionFactory(socketFile.getPath()));
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true);
+    rpcServer.registerService(service);
+
+    clientConnectionFactory = MultiplexedRpcConnectionFactory
+        .createInstance(SocketRpcConnectionFactories
+            .createUnixDomainRpcConnectionFactory(socketFile.getPath()));
+    doConcurrentTest(rpcServer);
+  }
+
+  private static File newSocketFile() throws IOException {
+    File socketFile = File.createTempFile("socketrpc", ".sock");
+    assertTrue(socketFile.delete());
+    return socketFile;
+  }
+
+  public void testBlockingService_inProcess() throws Exception {
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createInProcessServerRpcConnectionFactory("testBlockingService");
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true);
+    rpcServer.registerBlockingService(TestService
+        .newReflectiveBlockingService(service));
+
+    clientConnectionFactory = SocketRpcConnectionFactories
+        .createInProcessRpcConnectionFactory("testBlockingService");
+    doTest(rpcServer);
+  }
+
+  public void testBlockingService_inProcessByReference() throws Exception {
+    final List<Request> requests = new ArrayList<Request>();
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createInProcessServerRpcConnectionFactory("testByReference");
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true);
+    rpcServer.registerBlockingService(TestService
+        .newReflectiveBlockingService(new BlockingInterface() {
+          @Override
+          public Response testMethod(RpcController controller,
+              Request request) {
+            requests.add(request);
+            return RESPONSE;
+          }
+        }));
+    BlockingInterface blockingStub = TestService.newBlockingStub(RpcChannels
+        .newBlockingRpcChannel(SocketRpcConnectionFactories
+            .createInProcessRpcConnectionFactory("testByReference",
+                true /* passByReference */)));
+
+    rpcServer.startServer();
+    try {
+      Thread.sleep(500);
+      SocketRpcController controller = new SocketRpcController();
+      assertSame(RESPONSE, blockingStub.testMethod(controller, REQUEST));
+      assertFalse(controller.failed());
+      assertEquals(1, requests.size());
+      assertSame(REQUEST, requests.get(0));
+    } finally {
+      rpcServer.shutDown();
+    }
+  }
+
+  public void testNonBlockingService_inProcessMultiplexed() throws Exception {
+    serverConnectionFactory = PersistentRpcConnectionFactory
+        .createServerInstance(SocketRpcConnectionFactories
+            .createInProcessServerRpcConnectionFactory("testMultiplexed"));
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true);
+    rpcServer.registerService(service);
+
+    // Responses are serialized for the multiplexed connection
+    clientConnectionFactory = MultiplexedRpcConnectionFactory
+        .createInstance(SocketRpcConnectionFactories
+            .createInProcessRpcConnectionFactory("testMultiplexed",
+                true /* passByReference */));
+    doConcurrentTest(rpcServer);
+  }
+
+  public void testBlockingService_overloaded() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        true /* closeConnectionAfterInvokingService */);
+    rpcServer.registerBlockingService(TestService.newReflectiveBlockingService(
+        new BlockingInterface() {
+          @Override
+          public Response testMethod(RpcController controller,
+              Request request) throws ServiceException {
+            started.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new ServiceException("Interrupted");
+            }
+            return RESPONSE;
+          }
+        }));
+    rpcServer.setAdmissionLimits(1, 0);
+    final BlockingInterface blockingStub = TestService.newBlockingStub(
+        RpcChannels.newBlockingRpcChannel(clientConnectionFactory));
+    try {
+      rpcServer.startServer();
+      Thread.sleep(500);
+
+      // First request takes the only slot
+      Future<Void> first = threadPool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws ServiceException {
+          doBlockingRpc(blockingStub);
+          return null;
+        }
+      });
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+
+      // A client that connects and never sends is shed without holding up
+      // the server thread
+      Socket silent = new Socket("localhost", 8080);
+      try {
+        // Third one is shed too
+        Future<ErrorReason> shed = threadPool.submit(
+            new Callable<ErrorReason>() {
+          @Override
+          public ErrorReason call() {
+            SocketRpcController controller = new SocketRpcController();
+            try {
+              blockingStub.testMethod(controller, REQUEST);
+              return null;
+            } catch (ServiceException e) {
+              return controller.errorReason();
+            }
+          }
+        });
+        assertEquals(ErrorReason.SERVER_OVERLOADED,
+            shed.get(5, TimeUnit.SECONDS));
+      } finally {
+        silent.close();
+      }
+      assertEquals(2, rpcServer.getShedRequests());
+
+      release.countDown();
+      first.get(5, TimeUnit.SECONDS);
+      assertEquals(1, rpcServer.getAcceptedRequests());
+    } finally {
+      release.countDown();
+      rpcServer.shutDown();
+    }
+  }
+
+  public void testBlockingService_deadlineExceeded() throws Exception {
+    final CountDownLatch notified = new CountDownLatch(1);
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(8080);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        false /* closeConnectionAfterInvokingService */);
+    rpcServer.registerService(new TestService() {
+      @Override
+      public void testMethod(final RpcController controller,
+          Request request, RpcCallback<Response> done) {
+        // Never responds
+        controller.notifyOnCancel(new RpcCallback<Object>() {
+          @Override
+          public void run(Object parameter) {
+            if (controller.isCanceled()) {
+              notified.countDown();
+            }
+          }
+        });
+      }
+    });
+    MultiplexedRpcConnectionFactory multiplexedFactory =
+        MultiplexedRpcConnectionFactory.createInstance(clientConnectionFactory);
+    try {
+      rpcServer.startServer();
+      Thread.sleep(500);
+
+      // Closes the connection
+      assertEquals(ErrorReason.DEADLINE_EXCEEDED,
+          doRpcWithTimeout(clientConnectionFactory));
+      // Sends a cancel request over the shared connection
+      assertEquals(ErrorReason.DEADLINE_EXCEEDED,
+          doRpcWithTimeout(multiplexedFactory));
+      assertTrue(notified.await(5, TimeUnit.SECONDS));
+    } finally {
+      multiplexedFactory.close();
+      rpcServer.shutDown();
+    }
+  }
+
+  public void testNonBlockingService_nioKeepAliveCancel() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(8080);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        false /* closeConnectionAfterInvokingService */, true /* keepAlive */);
+    rpcServer.registerService(new TestService() {
+      @Override
+      public void testMethod(RpcController controller, Request request,
+          final RpcCallback<Response> done) {
+        if (started.getCount() == 0) {
+          // Never responds, so the client cancels it
+          return;
+        }
+        started.countDown();
+        threadPool.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            done.run(RESPONSE);
+          }
+        });
+      }
+    });
+    MultiplexedRpcConnectionFactory multiplexedFactory =
+        MultiplexedRpcConnectionFactory.createInstance(clientConnectionFactory);
+    final BlockingInterface blockingStub = TestService.newBlockingStub(
+        RpcChannels.newBlockingRpcChannel(multiplexedFactory));
+    try {
+      rpcServer.startServer();
+      Thread.sleep(500);
+
+      Future<Void> call = threadPool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws ServiceException {
+          doBlockingRpc(blockingStub);
+          return null;
+        }
+      });
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      // Cancel request shares the channel with the call in flight
+      assertEquals(ErrorReason.DEADLINE_EXCEEDED,
+          doRpcWithTimeout(multiplexedFactory));
+      Thread.sleep(200);
+      release.countDown();
+      call.get(5, TimeUnit.SECONDS);
+    } finally {
+      release.countDown();
+      multiplexedFactory.close();
+      rpcServer.shutDown();
+    }
+  }
+
+  public void testNonBlockingService_nioKeepAliveCancelQueued()
+      throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    serverConnectionFactory = SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(8080);
+    RpcServer rpcServer = new RpcServer(serverConnectionFactory, threadPool,
+        false /* closeConnectionAfterInvokingService */, true /* keepAlive */);
+    rpcServer.setAdmissionLimits(1, 10);
+    rpcServer.registerService(new TestService() {
+      @Override
+      public void testMethod(RpcController controller, Request request,
+          final RpcCallback<Response> done) {
+        if (started.getCount() == 0) {
+          done.run(RESPONSE);
+          return;
+        }
+        started.countDown();
+        // Holds the only slot, so the next request is queued
+        threadPool.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            done.run(RESPONSE);
+          }
+        });
+      }
+    });
+    MethodDescriptor method = TestService.getDescriptor().getMethods().get(0);
+    AsyncRpcChannel channel = RpcChannels.newAsyncRpcChannel("localhost",
+        8080, RpcChannels.SAME_THREAD_EXECUTOR);
+    try {
+      rpcServer.startServer();
+      Thread.sleep(500);
+
+      RpcFuture<Message> first = channel.callMethod(method,
+          new SocketRpcController(), REQUEST, Response.getDefaultInstance());
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      SocketRpcController controller = new SocketRpcController();
+      channel.callMethod(method, controller, REQUEST,
+          Response.getDefaultInstance());
+      Thread.sleep(200);
+      controller.startCancel();
+      Thread.sleep(200);
+      assertTrue(rpcServer.isRunning());
+
+      release.countDown();
+      assertEquals(RESPONSE, first.get(5, TimeUnit.SECONDS));
+      // Canceled request gave up its slot
+      assertEquals(RESPONSE, channel.callMethod(method,
+          new SocketRpcController(), REQUEST, Response.getDefaultInstance())
+          .get(5, TimeUnit.SECONDS));
+    } finally {
+      release.countDown();
+      channel.close();
+      rpcServer.shutDown();
+    }
+  }
+
+  /**
+   * Do a blocking RPC with a short deadline.
+   *
+   * @return Error reason of the RPC.
+   */
+  private ErrorReason doRpcWithTimeout(RpcConnectionFactory factory)
+      throws Exception {
+    final BlockingInterface blockingStub = TestService.newBlockingStub(
+        RpcChannels.newBlockingRpcChannel(factory));
+    Future<ErrorReason> call = threadPool.submit(new Callable<ErrorReason>() {
+      @Override
+      public ErrorReason call() {
+        SocketRpcController controller = new SocketRpcController();
+        controller.setTimeout(200, TimeUnit.MILLISECONDS);
+        try {
+          blockingStub.testMethod(controller, REQUEST);
+          return null;
+        } catch (ServiceException e) {
+          return controller.errorReason();
+        }
+      }
+    });
+    return call.get(5, TimeUnit.SECONDS);
+  }
+
   private void doTest(RpcServer rpcServer) throws InterruptedException,
       ServiceException, IOException {
     BlockingRpcChannel blockingChannel = RpcChannels
@@ -131,7 +687,7 @@ public class IntegrationTest extends TestCase {
       Thread.sleep(500);
       System.out.println("Closing Client");
       if (clientConnectionFactory instanceof Closeable) {
-        ((PersistentRpcConnectionFactory) clientConnectionFactory).close();
+        ((Closeable) clientConnectionFactory).close();
       }
       Thread.sleep(100);
       System.out.println("Closing Server");
@@ -139,6 +695,36 @@ public class IntegrationTest extends TestCase {
     }
   }
 
+  /**
+   * Do many blocking RPCs from multiple threads at the same time.
+   */
+  private void doConcurrentTest(RpcServer rpcServer) throws Exception {
+    final BlockingInterface blockingStub = TestService.newBlockingStub(
+        RpcChannels.newBlockingRpcChannel(clientConnectionFactory));
+    ExecutorService clients = Executors.newFixedThreadPool(8);
+    try {
+      rpcServer.startServer();
+      Thread.sleep(500);
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (int i = 0; i < 64; i++) {
+        results.add(clients.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws ServiceException {
+            doBlockingRpc(blockingStub);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      clients.shutdownNow();
+      ((Closeable) clientConnectionFactory).close();
+      rpcServer.shutDown();
+    }
+  }
+
   private static void doRpc(TestService stub) {
     final SocketRpcController controller = new SocketRpcController();
     stub.testMethod(controller, REQUEST, new RpcCallback<Response>() {
@@ -0,0 +1,118 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ *
+ * @author Shardul Deo
+ */
+public class LatencyHistogramTest extends TestCase {
+
+  public void testBuckets() {
+    // Small values get their own bucket
+    for (long value = 0; value < 32; value++) {
+      assertEquals(value, LatencyHistogram.bucketIndex(value));
+    }
+    // Buckets are contiguous and values fall within their bounds
+    for (int i = 1; i < LatencyHistogram.BUCKETS; i++) {
+      assertEquals(LatencyHistogram.bucketUpperBound(i - 1) + 1,
+          LatencyHistogram.bucketLowerBound(i));
+    }
+    long[] values = { 100, 1000, 123456, 999999999L, 1L << 40 };
+    for (long value : values) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertTrue(LatencyHistogram.bucketLowerBound(index) <= value);
+      assertTrue(LatencyHistogram.bucketUpperBound(index) >= value);
+      // Within 1/16th of the value
+      assertTrue(LatencyHistogram.bucketUpperBound(index)
+          - LatencyHistogram.bucketLowerBound(index) <= value / 16);
+    }
+    // Huge values go in the last bucket
+    assertEquals(LatencyHistogram.BUCKETS - 1,
+        LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+  }
+
+  public void testSnapshot() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(0, snapshot.getCount());
+    assertEquals(0, snapshot.getValueAtPercentile(99));
+    assertEquals(0.0, snapshot.getMean());
+
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i, TimeUnit.MICROSECONDS);
+    }
+    histogram.record(-5);
+    snapshot = histogram.getSnapshot();
+    assertEquals(1001, snapshot.getCount());
+    assertEquals(0, snapshot.getMin());
+    assertEquals(1000000, snapshot.getMax());
+    assertEquals(500500000.0 / 1001, snapshot.getMean(), 1);
+    assertWithin(500000, snapshot.getValueAtPercentile(50));
+    assertWithin(990000, snapshot.getValueAtPercentile(99));
+    assertEquals(1000000, snapshot.getValueAtPercentile(100));
+
+    histogram.reset();
+    assertEquals(0, histogram.getSnapshot().getCount());
+  }
+
+  public void testBadPercentile() {
+    try {
+      new LatencyHistogram().getSnapshot().getValueAtPercentile(101);
+      fail("Should have thrown exception");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  public void testConcurrentRecording() throws InterruptedException {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final int threads = 8;
+    final int values = 10000;
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < values; i++) {
+            histogram.record(i);
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(threads * values, snapshot.getCount());
+    assertEquals(values - 1, snapshot.getMax());
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue("Expected about " + expected + " but was " + actual,
+        Math.abs(expected - actual) <= expected / 16);
+  }
+}
@@ -0,0 +1,392 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.ServiceException;
+import com.googlecode.protobuf.socketrpc.CircuitBreaker.Permit;
+import com.googlecode.protobuf.socketrpc.LoadBalancingRpcConnectionFactory.Endpoint;
+import com.googlecode.protobuf.socketrpc.LoadBalancingRpcConnectionFactory.Policy;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Tests for {@link LoadBalancingRpcConnectionFactory}.
+ *
+ * @author Shardul Deo
+ */
+public class LoadBalancingRpcConnectionFactoryTest extends TestCase {
+
+  private static final long DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private List<FakeFactory> factories;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    factories = Arrays.asList(new FakeFactory(), new FakeFactory(),
+        new FakeFactory());
+  }
+
+  private LoadBalancingRpcConnectionFactory create(Policy policy) {
+    return LoadBalancingRpcConnectionFactory.newBuilder(factories)
+        .setPolicy(policy)
+        .build();
+  }
+
+  public void testRoundRobin() throws IOException {
+    LoadBalancingRpcConnectionFactory factory = create(Policy.ROUND_ROBIN);
+    List<Connection> connections = new ArrayList<Connection>();
+    for (int i = 0; i < 6; i++) {
+      connections.add(factory.createConnection());
+    }
+    for (int i = 0; i < 3; i++) {
+      assertEquals(2, factories.get(i).created);
+      assertEquals(2, factory.getEndpoints().get(i).getInFlightRequests());
+    }
+    for (Connection connection : connections) {
+      connection.close();
+      // Closing twice only counts once
+      connection.close();
+    }
+    for (Endpoint endpoint : factory.getEndpoints()) {
+      assertEquals(0, endpoint.getInFlightRequests());
+      assertEquals(2, endpoint.getCallCount());
+    }
+  }
+
+  public void testLeastOutstanding() throws IOException {
+    LoadBalancingRpcConnectionFactory factory =
+        create(Policy.LEAST_OUTSTANDING);
+    List<Endpoint> endpoints = factory.getEndpoints();
+    Connection first = factory.createConnection();
+    Connection second = factory.createConnection();
+    Connection third = factory.createConnection();
+    for (Endpoint endpoint : endpoints) {
+      assertEquals(1, endpoint.getInFlightRequests());
+    }
+    second.close();
+    third.close();
+    // Endpoints without RPCs in progress are chosen first
+    for (int i = 0; i < 10; i++) {
+      Endpoint endpoint = factory.chooseEndpoint(System.nanoTime());
+      assertEquals(0, endpoint.getInFlightRequests());
+    }
+    first.close();
+  }
+
+  public void testPeakEwma() throws IOException {
+    factories = factories.subList(0, 2);
+    LoadBalancingRpcConnectionFactory factory = create(Policy.PEAK_EWMA);
+    Endpoint slow = factory.getEndpoints().get(0);
+    Endpoint fast = factory.getEndpoints().get(1);
+    long now = System.nanoTime();
+    slow.recordLatency(TimeUnit.MILLISECONDS.toNanos(100), now);
+    fast.recordLatency(TimeUnit.MILLISECONDS.toNanos(1), now);
+    for (int i = 0; i < 20; i++) {
+      assertSame(fast, factory.chooseEndpoint(System.nanoTime()));
+    }
+
+    // Outstanding RPCs add to the cost
+    List<Connection> connections = new ArrayList<Connection>();
+    for (int i = 0; i < 200; i++) {
+      connections.add(factory.createConnection(fast, Permit.ALLOWED));
+    }
+    assertSame(slow, factory.chooseEndpoint(System.nanoTime()));
+    for (Connection connection : connections) {
+      connection.close();
+    }
+  }
+
+  public void testEwma() {
+    Endpoint endpoint = new Endpoint(new FakeFactory(), DECAY_NANOS,
+        new CircuitBreaker(0, 1, 1, new AtomicInteger(), 1));
+    long now = System.nanoTime();
+    endpoint.recordLatency(1000, now);
+    assertEquals(1000.0, endpoint.getEwma(now), 0.001);
+
+    // Lower latencies are averaged in
+    endpoint.recordLatency(100, now + DECAY_NANOS);
+    double expected = 1000 * Math.exp(-1) + 100 * (1 - Math.exp(-1));
+    assertEquals(expected, endpoint.getEwma(now + DECAY_NANOS), 0.001);
+
+    // Higher ones count right away
+    endpoint.recordLatency(5000, now + DECAY_NANOS);
+    assertEquals(5000.0, endpoint.getEwma(now + DECAY_NANOS), 0.001);
+
+    // Decays without responses
+    assertEquals(5000 * Math.exp(-2),
+        endpoint.getEwma(now + 3 * DECAY_NANOS), 0.001);
+  }
+
+  public void testFailures() throws IOException {
+    LoadBalancingRpcConnectionFactory factory = create(Policy.ROUND_ROBIN);
+    Endpoint endpoint = factory.getEndpoints().get(0);
+
+    factories.get(0).connectError = new IOException();
+    try {
+      factory.createConnection();
+      fail("Should have thrown exception");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertEquals(0, endpoint.getInFlightRequests());
+    assertEquals(1, endpoint.getFailureCount());
+    factories.get(0).connectError = null;
+
+    assertFailure(factory, ErrorReason.SERVER_OVERLOADED, true);
+    assertFailure(factory, ErrorReason.RPC_FAILED, false);
+    assertFailure(factory, ErrorReason.IO_ERROR, true);
+    assertEquals(4, endpoint.getCallCount());
+  }
+
+  private void assertFailure(LoadBalancingRpcConnectionFactory factory,
+      ErrorReason reason, boolean failure) throws IOException {
+    Endpoint endpoint = factory.getEndpoints().get(0);
+    long failures = endpoint.getFailureCount();
+    Connection connection = factory.createConnection(endpoint,
+        Permit.ALLOWED);
+    factories.get(0).response = SocketRpcProtos.Response.newBuilder()
+        .setError("Error")
+        .setErrorReason(reason)
+        .build();
+    connection.receiveProtoMessage(SocketRpcProtos.Response.newBuilder());
+    connection.close();
+    assertEquals(failures + (failure ? 1 : 0), endpoint.getFailureCount());
+  }
+
+  public void testCircuitBreaking() throws Exception {
+    factories = factories.subList(0, 2);
+    LoadBalancingRpcConnectionFactory factory =
+        LoadBalancingRpcConnectionFactory.newBuilder(factories)
+            .setPolicy(Policy.ROUND_ROBIN)
+            .setFailureThreshold(2)
+            .setEjectionTimeMillis(200)
+            .setMaxEjectionPercent(100)
+            .build();
+    Endpoint first = factory.getEndpoints().get(0);
+    Endpoint second = factory.getEndpoints().get(1);
+    TestService.BlockingInterface stub = TestService.newBlockingStub(
+        RpcChannels.newBlockingRpcChannel(factory));
+
+    // Consecutive failures eject the endpoint
+    factories.get(0).connectError = new IOException();
+    for (int i = 0; i < 2; i++) {
+      assertConnectFails(factory, first, Permit.ALLOWED);
+    }
+    assertTrue(first.isEjected());
+    assertEquals(1, first.getEjectionCount());
+    for (int i = 0; i < 4; i++) {
+      factory.createConnection().close();
+    }
+    assertEquals(4, factories.get(1).created);
+
+    // Fail fast once all endpoints are ejected
+    factories.get(1).connectError = new IOException();
+    for (int i = 0; i < 2; i++) {
+      assertConnectFails(factory, second, Permit.ALLOWED);
+    }
+    assertTrue(second.isEjected());
+    try {
+      factory.createConnection();
+      fail("Should have thrown exception");
+    } catch (CircuitOpenException e) {
+      // Expected
+    }
+    SocketRpcController controller = new SocketRpcController();
+    try {
+      stub.testMethod(controller, Request.getDefaultInstance());
+      fail("Should have thrown exception");
+    } catch (ServiceException e) {
+      assertEquals(ErrorReason.CIRCUIT_OPEN, controller.errorReason());
+    }
+
+    // After the ejection time a single probe goes through
+    Thread.sleep(250);
+    factories.get(0).connectError = null;
+    Connection probe = factory.createConnection(first,
+        first.breaker.acquire(System.nanoTime()));
+    assertEquals(1, factories.get(0).created);
+    assertConnectFails(factory, second, second.breaker.acquire(
+        System.nanoTime()));
+    try {
+      factory.createConnection();
+      fail("Should have thrown exception");
+    } catch (CircuitOpenException e) {
+      // Expected, waiting for the probe
+    }
+    probe.close();
+    factory.createConnection().close();
+    assertEquals(2, factories.get(0).created);
+    assertFalse(first.isEjected());
+    assertTrue(second.isEjected());
+    assertEquals(2, second.getEjectionCount());
+  }
+
+  private void assertConnectFails(LoadBalancingRpcConnectionFactory factory,
+      Endpoint endpoint, Permit permit) {
+    try {
+      factory.createConnection(endpoint, permit);
+      fail("Should have thrown exception");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  public void testLatencyOutlier() throws IOException {
+    LoadBalancingRpcConnectionFactory factory = create(Policy.ROUND_ROBIN);
+    Endpoint slow = factory.getEndpoints().get(0);
+    long now = System.nanoTime();
+    for (Endpoint endpoint : factory.getEndpoints()) {
+      endpoint.recordLatency(TimeUnit.MICROSECONDS.toNanos(100), now);
+    }
+    factories.get(0).receiveDelayMillis = 20;
+    for (int i = 0; i < LoadBalancingRpcConnectionFactory.OUTLIER_RESPONSES;
+        i++) {
+      assertFalse(slow.isEjected());
+      doRpc(factory, slow);
+    }
+    assertTrue(slow.isEjected());
+    for (int i = 0; i < 4; i++) {
+      assertNotSame(slow, factory.chooseEndpoint(System.nanoTime()));
+    }
+
+    // No more endpoints are ejected than allowed
+    Endpoint other = factory.getEndpoints().get(1);
+    factories.get(1).receiveDelayMillis = 20;
+    for (int i = 0; i < LoadBalancingRpcConnectionFactory.OUTLIER_RESPONSES;
+        i++) {
+      doRpc(factory, other);
+    }
+    assertFalse(other.isEjected());
+  }
+
+  public void testSingleSlowResponse() throws IOException {
+    LoadBalancingRpcConnectionFactory factory = create(Policy.ROUND_ROBIN);
+    Endpoint endpoint = factory.getEndpoints().get(0);
+    long now = System.nanoTime();
+    for (Endpoint other : factory.getEndpoints()) {
+      other.recordLatency(TimeUnit.MICROSECONDS.toNanos(100), now);
+    }
+    // E.g. a garbage collection pause, between fast responses
+    for (int i = 0; i < 2 * LoadBalancingRpcConnectionFactory.OUTLIER_RESPONSES;
+        i++) {
+      factories.get(0).receiveDelayMillis = i % 2 == 0 ? 20 : 0;
+      doRpc(factory, endpoint);
+    }
+    assertFalse(endpoint.isEjected());
+  }
+
+  private static void doRpc(LoadBalancingRpcConnectionFactory factory,
+      Endpoint endpoint) throws IOException {
+    Connection connection = factory.createConnection(endpoint,
+        Permit.ALLOWED);
+    connection.receiveProtoMessage(SocketRpcProtos.Response.newBuilder());
+    connection.close();
+  }
+
+  public void testWithChannel() throws IOException, ServiceException {
+    Response response = Response.newBuilder().setStrData("Response").build();
+    List<RpcConnectionFactory> sockets = new ArrayList<RpcConnectionFactory>();
+    for (int i = 0; i < 2; i++) {
+      sockets.add(new SocketRpcConnectionFactory("host" + i, 8080,
+          new FakeSocketFactory().returnsSocket(
+              new FakeSocket(true).withResponseProto(response)),
+          true /* delimited */));
+    }
+    LoadBalancingRpcConnectionFactory factory =
+        LoadBalancingRpcConnectionFactory.newBuilder(sockets)
+            .setPolicy(Policy.ROUND_ROBIN)
+            .build();
+    TestService.BlockingInterface stub = TestService.newBlockingStub(
+        RpcChannels.newBlockingRpcChannel(factory));
+    Request request = Request.newBuilder().setStrData("Request").build();
+    for (int i = 0; i < 2; i++) {
+      assertEquals(response, stub.testMethod(new SocketRpcController(),
+          request));
+    }
+    for (Endpoint endpoint : factory.getEndpoints()) {
+      assertEquals(0, endpoint.getInFlightRequests());
+      assertEquals(1, endpoint.getCallCount());
+      assertEquals(0, endpoint.getFailureCount());
+      assertTrue(endpoint.getLatencyNanos() > 0);
+    }
+  }
+
+  private static class FakeFactory implements RpcConnectionFactory {
+
+    private int created = 0;
+    private IOException connectError = null;
+    private long receiveDelayMillis = 0;
+    private MessageLite response = SocketRpcProtos.Response
+        .getDefaultInstance();
+
+    @Override
+    public Connection createConnection() throws IOException {
+      if (connectError != null) {
+        throw connectError;
+      }
+      created++;
+      return new Connection() {
+        private boolean closed = false;
+
+        @Override
+        public void sendProtoMessage(MessageLite message) {
+        }
+
+        @Override
+        public void receiveProtoMessage(MessageLite.Builder messageBuilder)
+            throws IOException {
+          if (receiveDelayMillis > 0) {
+            try {
+              Thread.sleep(receiveDelayMillis);
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+          }
+          messageBuilder.mergeFrom(response.toByteString());
+        }
+
+        @Override
+        public void close() {
+          closed = true;
+        }
+
+        @Override
+        public boolean isClosed() {
+          return closed;
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,206 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.MessageLite.Builder;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Request;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response;
+
+/**
+ * Tests for {@link MultiplexedRpcConnectionFactory}.
+ *
+ * @author Shardul Deo
+ */
+public class MultiplexedRpcConnectionFactoryTest extends TestCase {
+
+  private FakeConnection connection;
+  private int connectionsCreated;
+  private MultiplexedRpcConnectionFactory factory;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    connectionsCreated = 0;
+    factory = MultiplexedRpcConnectionFactory.createInstance(
+        new RpcConnectionFactory() {
+          @Override
+          public Connection createConnection() {
+            connectionsCreated++;
+            connection = new FakeConnection();
+            return connection;
+          }
+        });
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    factory.close();
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testResponsesOutOfOrder() throws Exception {
+    Future<Response> call1 = doCall(createRequest(1));
+    Request sent1 = connection.sent.take();
+    Future<Response> call2 = doCall(createRequest(2));
+    Request sent2 = connection.sent.take();
+
+    // Both requests are in progress over the same connection
+    assertEquals(1, connectionsCreated);
+    assertEquals("service1", sent1.getServiceName());
+    assertEquals("service2", sent2.getServiceName());
+    assertTrue(sent1.getRequestId() != sent2.getRequestId());
+
+    // Second RPC completes first
+    connection.respond(sent2.getRequestId(), "Response2");
+    assertEquals("Response2", call2.get().getError());
+    assertFalse(call1.isDone());
+    connection.respond(sent1.getRequestId(), "Response1");
+    assertEquals("Response1", call1.get().getError());
+  }
+
+  public void testConnectionFailure() throws Exception {
+    Future<Response> call = doCall(createRequest(1));
+    connection.sent.take();
+
+    // Pending call fails when connection fails
+    connection.fail();
+    try {
+      call.get();
+      fail("Should have thrown exception");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+
+    // Next call uses a new connection
+    call = doCall(createRequest(2));
+    Request sent = connection.sent.take();
+    assertEquals(2, connectionsCreated);
+    connection.respond(sent.getRequestId(), "Response2");
+    assertEquals("Response2", call.get().getError());
+  }
+
+  public void testClose() throws Exception {
+    doCall(createRequest(1));
+    connection.sent.take();
+    factory.close();
+    assertTrue(connection.isClosed());
+    try {
+      factory.createConnection();
+      fail("Should have thrown exception");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  private Future<Response> doCall(final Request request) throws IOException {
+    final Connection call = factory.createConnection();
+    return executor.submit(new Callable<Response>() {
+      @Override
+      public Response call() throws IOException {
+        try {
+          call.sendProtoMessage(request);
+          Response.Builder builder = Response.newBuilder();
+          call.receiveProtoMessage(builder);
+          return builder.build();
+        } finally {
+          call.close();
+        }
+      }
+    });
+  }
+
+  private static Request createRequest(int index) {
+    return Request.newBuilder()
+        .setMethodName("method" + index)
+        .setServiceName("service" + index)
+        .setRequestProto(ByteString.EMPTY)
+        .build();
+  }
+
+  /**
+   * Connection that records requests and returns responses given by the test.
+   */
+  private static class FakeConnection implements Connection {
+
+    // Response without a request id signifies failure
+    private static final Response FAILURE = Response.getDefaultInstance();
+
+    private final BlockingQueue<Request> sent =
+        new LinkedBlockingQueue<Request>();
+    private final BlockingQueue<Response> responses =
+        new LinkedBlockingQueue<Response>();
+    private volatile boolean closed = false;
+
+    private void respond(long requestId, String data) {
+      responses.add(Response.newBuilder()
+          .setRequestId(requestId)
+          .setError(data)
+          .build());
+    }
+
+    private void fail() {
+      responses.add(FAILURE);
+    }
+
+    @Override
+    public void sendProtoMessage(MessageLite message) {
+      sent.add((Request) message);
+    }
+
+    @Override
+    public void receiveProtoMessage(Builder messageBuilder)
+        throws IOException {
+      try {
+        ((Response.Builder) messageBuilder).mergeFrom(responses.take());
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      responses.add(FAILURE);
+    }
+
+    @Override
+    public boolean isClosed() {
+      return closed;
+    }
+  }
+}
@@ -0,0 +1,189 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.ByteString;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Request;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response;
+
+/**
+ * Tests for {@link NioServerRpcConnectionFactory}.
+ *
+ * @author Shardul Deo
+ */
+public class NioServerRpcConnectionFactoryTest extends TestCase {
+
+  private static final int PORT = 8081;
+
+  private NioServerRpcConnectionFactory factory;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    factory = new NioServerRpcConnectionFactory(PORT, 0, null, 2);
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    factory.close();
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testMultipleRequestsOnSameSocket() throws Exception {
+    // Send both requests before reading any response
+    Future<Connection> client = connectAndSend(createRequest(1),
+        createRequest(2));
+    Connection connection1 = factory.createConnection();
+    Connection connection2 = factory.createConnection();
+    Request.Builder builder = Request.newBuilder();
+    connection1.receiveProtoMessage(builder);
+    assertEquals(createRequest(1), builder.build());
+    builder = Request.newBuilder();
+    connection2.receiveProtoMessage(builder);
+    assertEquals(createRequest(2), builder.build());
+
+    // Respond out of order
+    connection2.sendProtoMessage(createResponse(2));
+    connection2.close();
+    connection1.sendProtoMessage(createResponse(1));
+    connection1.close();
+
+    Connection clientConnection = client.get();
+    Response.Builder responseBuilder = Response.newBuilder();
+    clientConnection.receiveProtoMessage(responseBuilder);
+    assertEquals(createResponse(2), responseBuilder.build());
+    responseBuilder = Response.newBuilder();
+    clientConnection.receiveProtoMessage(responseBuilder);
+    assertEquals(createResponse(1), responseBuilder.build());
+
+    // Socket is still usable
+    clientConnection.sendProtoMessage(createRequest(3));
+    Connection connection3 = factory.createConnection();
+    builder = Request.newBuilder();
+    connection3.receiveProtoMessage(builder);
+    assertEquals(createRequest(3), builder.build());
+    assertFalse(connection3.isClosed());
+    clientConnection.close();
+  }
+
+  public void testLargeRequest() throws Exception {
+    Request request = Request.newBuilder()
+        .setServiceName("service")
+        .setMethodName("method")
+        .setRequestProto(ByteString.copyFrom(new byte[1 << 20]))
+        .build();
+    Future<Connection> client = connectAndSend(request);
+
+    Connection connection = factory.createConnection();
+    Request.Builder builder = Request.newBuilder();
+    connection.receiveProtoMessage(builder);
+    assertEquals(request, builder.build());
+    client.get().close();
+  }
+
+  public void testCloseWithoutResponse() throws Exception {
+    Future<Connection> client = connectAndSend(createRequest(1));
+    Connection connection = factory.createConnection();
+    connection.close();
+    assertTrue(connection.isClosed());
+
+    // Client sees end of stream instead of waiting for a response
+    try {
+      client.get().receiveProtoMessage(Response.newBuilder());
+      fail("Should have thrown exception");
+    } catch (EOFException e) {
+      // Expected
+    }
+    client.get().close();
+  }
+
+  public void testClose() throws Exception {
+    final Future<Connection> client = connectAndSend();
+    executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        client.get().close();
+        factory.close();
+        return null;
+      }
+    });
+    try {
+      factory.createConnection();
+      fail("Should have thrown exception");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Connect to the server, once it is listening, and send the given requests.
+   */
+  private Future<Connection> connectAndSend(final Request... requests) {
+    return executor.submit(new Callable<Connection>() {
+      @Override
+      public Connection call() throws Exception {
+        Socket socket = null;
+        while (socket == null) {
+          try {
+            socket = new Socket("localhost", PORT);
+          } catch (IOException e) {
+            // Server isn't listening yet
+            Thread.sleep(10);
+          }
+        }
+        Connection connection = new SocketConnection(socket,
+            true /* delimited */);
+        for (Request request : requests) {
+          connection.sendProtoMessage(request);
+        }
+        return connection;
+      }
+    });
+  }
+
+  private static Request createRequest(int index) {
+    return Request.newBuilder()
+        .setMethodName("method" + index)
+        .setServiceName("service" + index)
+        .setRequestProto(ByteString.EMPTY)
+        .build();
+  }
+
+  private static Response createResponse(int index) {
+    return Response.newBuilder()
+        .setError("Error" + index)
+        .build();
+  }
+}
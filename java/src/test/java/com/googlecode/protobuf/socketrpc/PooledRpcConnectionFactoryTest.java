@@ -0,0 +1,274 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.MessageLite.Builder;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Request;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response;
+
+/**
+ * Tests for {@link PooledRpcConnectionFactory}.
+ *
+ * @author Shardul Deo
+ */
+public class PooledRpcConnectionFactoryTest extends TestCase {
+
+  private static final Request REQUEST = Request.newBuilder()
+      .setServiceName("Service")
+      .setMethodName("Method")
+      .setRequestProto(ByteString.EMPTY)
+      .build();
+
+  private List<FakeConnection> created;
+  private boolean failCreate;
+  private RpcConnectionFactory fakeFactory;
+  private PooledRpcConnectionFactory factory;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    created = new CopyOnWriteArrayList<FakeConnection>();
+    failCreate = false;
+    fakeFactory = new RpcConnectionFactory() {
+      @Override
+      public synchronized Connection createConnection() throws IOException {
+        if (failCreate) {
+          throw new IOException("Connection refused");
+        }
+        FakeConnection connection = new FakeConnection();
+        created.add(connection);
+        return connection;
+      }
+    };
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (factory != null) {
+      factory.close();
+    }
+    super.tearDown();
+  }
+
+  public void testConnectionReused() throws IOException {
+    factory = PooledRpcConnectionFactory.newBuilder(fakeFactory).build();
+    doRpc(factory.createConnection());
+    doRpc(factory.createConnection());
+    assertEquals(1, created.size());
+    assertFalse(created.get(0).isClosed());
+    assertEquals(1, factory.getIdleConnections());
+  }
+
+  public void testConcurrentCheckouts() throws IOException {
+    factory = PooledRpcConnectionFactory.newBuilder(fakeFactory).build();
+    Connection connection1 = factory.createConnection();
+    Connection connection2 = factory.createConnection();
+    assertEquals(2, created.size());
+    assertEquals(2, factory.getOpenConnections());
+    doRpc(connection1);
+    doRpc(connection2);
+    assertEquals(2, factory.getIdleConnections());
+  }
+
+  public void testFailedConnectionNotReused() throws IOException {
+    factory = PooledRpcConnectionFactory.newBuilder(fakeFactory).build();
+    Connection connection = factory.createConnection();
+    created.get(0).fail = true;
+    try {
+      doRpc(connection);
+      fail("Should have thrown exception");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertTrue(created.get(0).isClosed());
+    assertEquals(0, factory.getOpenConnections());
+
+    // Connection closed without receiving response is not reused either
+    connection = factory.createConnection();
+    connection.sendProtoMessage(REQUEST);
+    connection.close();
+    assertTrue(created.get(1).isClosed());
+    assertEquals(0, factory.getOpenConnections());
+  }
+
+  public void testCreateFailure() throws IOException {
+    factory = PooledRpcConnectionFactory.newBuilder(fakeFactory)
+        .setMaxConnections(1)
+        .build();
+    failCreate = true;
+    try {
+      factory.createConnection();
+      fail("Should have thrown exception");
+    } catch (IOException e) {
+      // Expected
+    }
+    // Place in pool is given back
+    failCreate = false;
+    doRpc(factory.createConnection());
+  }
+
+  public void testPoolExhausted() throws IOException {
+    factory = PooledRpcConnectionFactory.newBuilder(fakeFactory)
+        .setMaxConnections(1)
+        .setMaxWaitMillis(50)
+        .build();
+    Connection connection = factory.createConnection();
+    try {
+      factory.createConnection();
+      fail("Should have thrown exception");
+    } catch (IOException e) {
+      // Expected
+    }
+    doRpc(connection);
+
+    factory.close();
+    factory = PooledRpcConnectionFactory.newBuilder(fakeFactory)
+        .setMaxConnections(1)
+        .setMaxWaiting(0)
+        .build();
+    factory.createConnection();
+    long start = System.currentTimeMillis();
+    try {
+      factory.createConnection();
+      fail("Should have thrown exception");
+    } catch (IOException e) {
+      // Expected, without waiting
+      assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+  }
+
+  public void testWaitForConnection() throws Exception {
+    factory = PooledRpcConnectionFactory.newBuilder(fakeFactory)
+        .setMaxConnections(1)
+        .build();
+    final Connection connection = factory.createConnection();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+          doRpc(connection);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    doRpc(factory.createConnection());
+    thread.join();
+    assertEquals(1, created.size());
+  }
+
+  public void testMinIdleAndEviction() throws Exception {
+    factory = PooledRpcConnectionFactory.newBuilder(fakeFactory)
+        .setMinIdle(2)
+        .setMaxIdleMillis(300)
+        .setMaintenanceIntervalMillis(20)
+        .build();
+    Thread.sleep(100);
+    assertEquals(2, created.size());
+    assertEquals(2, factory.getIdleConnections());
+
+    // Idle connections are closed and replaced
+    Thread.sleep(500);
+    assertTrue(created.size() > 2);
+    assertTrue(created.get(0).isClosed());
+    assertTrue(factory.getOpenConnections() <= 2);
+  }
+
+  public void testMaxLifetime() throws Exception {
+    factory = PooledRpcConnectionFactory.newBuilder(fakeFactory)
+        .setMaxLifetimeMillis(50)
+        .build();
+    doRpc(factory.createConnection());
+    Thread.sleep(100);
+    doRpc(factory.createConnection());
+    assertEquals(2, created.size());
+    assertTrue(created.get(0).isClosed());
+  }
+
+  public void testClose() throws IOException {
+    factory = PooledRpcConnectionFactory.newBuilder(fakeFactory).build();
+    Connection idle = factory.createConnection();
+    Connection inUse = factory.createConnection();
+    doRpc(idle);
+    factory.close();
+    assertTrue(created.get(0).isClosed());
+    assertFalse(created.get(1).isClosed());
+    doRpc(inUse);
+    assertTrue(created.get(1).isClosed());
+    try {
+      factory.createConnection();
+      fail("Should have thrown exception");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  private static void doRpc(Connection connection) throws IOException {
+    try {
+      connection.sendProtoMessage(REQUEST);
+      connection.receiveProtoMessage(Response.newBuilder());
+    } finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * Connection that responds to every request with an empty response.
+   */
+  private static class FakeConnection implements Connection {
+
+    private volatile boolean fail = false;
+    private volatile boolean closed = false;
+
+    @Override
+    public void sendProtoMessage(MessageLite message) {
+    }
+
+    @Override
+    public void receiveProtoMessage(Builder messageBuilder)
+        throws IOException {
+      if (fail) {
+        throw new IOException("Connection reset");
+      }
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+      return closed;
+    }
+  }
+}
@@ -0,0 +1,193 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Tests for {@link RequestDecoder}.
+ *
+ * @author Shardul Deo
+ */
+public class RequestDecoderTest extends TestCase {
+
+  private static final Request REQUEST = Request.newBuilder()
+      .setStrData("Request Data")
+      .build();
+  private static final SocketRpcProtos.Request RPC_REQUEST =
+      SocketRpcProtos.Request.newBuilder()
+          .setServiceName(TestService.getDescriptor().getFullName())
+          .setMethodName(TestService.getDescriptor().getMethods().get(0)
+              .getName())
+          .setRequestProto(REQUEST.toByteString())
+          .setRequestId(3)
+          .build();
+
+  private RpcForwarder rpcForwarder;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    rpcForwarder = new RpcForwarder();
+    rpcForwarder.registerService(
+        TestService.newReflectiveService(new FakeServiceImpl(REQUEST)));
+  }
+
+  public void testDecode_parsesRequest() throws IOException {
+    RequestDecoder decoder = decodeDelimited(RPC_REQUEST);
+    assertTrue(decoder.isInitialized());
+    assertEquals(RPC_REQUEST.getServiceName(), decoder.getServiceName());
+    assertEquals(RPC_REQUEST.getMethodName(), decoder.getMethodName());
+    assertTrue(decoder.hasRequestId());
+    assertEquals(3, decoder.getRequestId());
+    assertEquals(REQUEST, decoder.getRequest());
+    assertNull(decoder.getRequestBytes());
+    assertEquals(RPC_REQUEST, decoder.build());
+  }
+
+  public void testDecode_unknownService() throws IOException {
+    SocketRpcProtos.Request rpcRequest = RPC_REQUEST.toBuilder()
+        .setServiceName("Unknown")
+        .build();
+    RequestDecoder decoder = decodeDelimited(rpcRequest);
+    assertNull(decoder.getRequest());
+    assertEquals(REQUEST.toByteString(), decoder.getRequestBytes());
+    assertEquals(rpcRequest, decoder.build());
+  }
+
+  public void testDecode_methodId() throws IOException {
+    // Only registered method has the first id
+    RequestEnvelope envelope = new RequestEnvelope(
+        TestService.getDescriptor().getMethods().get(0), REQUEST)
+        .withMethodId(1);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    envelope.writeDelimitedTo(bytes);
+    RequestDecoder decoder = new RequestDecoder(rpcForwarder);
+    assertTrue(decoder.mergeDelimitedFrom(
+        new ByteArrayInputStream(bytes.toByteArray())));
+    assertTrue(decoder.isInitialized());
+    assertTrue(decoder.hasMethodId());
+    assertEquals(1, decoder.getMethodId());
+    assertEquals("", decoder.getServiceName());
+    assertEquals(REQUEST, decoder.getRequest());
+  }
+
+  public void testDecode_timeout() throws IOException {
+    SocketRpcProtos.Request rpcRequest = RPC_REQUEST.toBuilder()
+        .setTimeoutMillis(2000)
+        .build();
+    RequestDecoder decoder = decodeDelimited(rpcRequest);
+    assertTrue(decoder.hasTimeout());
+    assertEquals(2000, decoder.getTimeoutMillis());
+    decoder.setReceivedNanos(1000);
+    assertEquals(1000 + 2000000000L, decoder.getDeadlineNanos());
+    assertEquals(rpcRequest, decoder.build());
+    assertFalse(decodeDelimited(RPC_REQUEST).hasTimeout());
+
+    // Timeouts too long to be deadlines are cut down
+    decoder = decodeDelimited(RPC_REQUEST.toBuilder()
+        .setTimeoutMillis(-1L)
+        .build());
+    assertEquals(RequestDecoder.MAX_TIMEOUT_MILLIS,
+        decoder.getTimeoutMillis());
+  }
+
+  public void testPeekHeader() {
+    RequestDecoder header = RequestDecoder.peekHeader(RPC_REQUEST.toBuilder()
+        .setTimeoutMillis(2000)
+        .setRequestId(7)
+        .build().toByteArray());
+    assertEquals(2000, header.getTimeoutMillis());
+    assertEquals(7, header.getRequestId());
+    assertFalse(header.isCancel());
+    // Request message is skipped
+    assertNull(header.getRequest());
+    assertFalse(RequestDecoder.peekHeader(RPC_REQUEST.toByteArray())
+        .hasTimeout());
+    assertNull(RequestDecoder.peekHeader(new byte[] { 10, 5 }));
+  }
+
+  public void testDecode_cancel() throws IOException {
+    SocketRpcProtos.Request rpcRequest =
+        RpcChannelImpl.createCancelRequest(42);
+    RequestDecoder decoder = decodeDelimited(rpcRequest);
+    assertTrue(decoder.isCancel());
+    assertEquals(42, decoder.getRequestId());
+    assertEquals(rpcRequest, decoder.build());
+    assertFalse(decodeDelimited(RPC_REQUEST).isCancel());
+  }
+
+  public void testDecode_requestBeforeMethod() throws IOException {
+    // Request proto comes before the method name, so it can't be parsed yet
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    output.writeBytes(3, REQUEST.toByteString());
+    output.writeString(1, RPC_REQUEST.getServiceName());
+    output.writeString(2, RPC_REQUEST.getMethodName());
+    output.flush();
+
+    RequestDecoder decoder = new RequestDecoder(rpcForwarder);
+    decoder.mergeFrom(bytes.toByteArray());
+    assertTrue(decoder.isInitialized());
+    assertNull(decoder.getRequest());
+    assertEquals(REQUEST.toByteString(), decoder.getRequestBytes());
+  }
+
+  public void testDecode_badRequestProto() throws IOException {
+    SocketRpcProtos.Request rpcRequest = RPC_REQUEST.toBuilder()
+        .setRequestProto(ByteString.copyFrom(new byte[] { 10, 20 }))
+        .build();
+    RequestDecoder decoder = decodeDelimited(rpcRequest);
+
+    // Error is saved and the rest of the envelope is still read
+    assertTrue(decoder.isInitialized());
+    assertNotNull(decoder.getRequestError());
+    assertEquals(3, decoder.getRequestId());
+  }
+
+  public void testDecode_missingFields() throws IOException {
+    RequestDecoder decoder = new RequestDecoder(rpcForwarder);
+    decoder.mergeFrom(SocketRpcProtos.Request.newBuilder()
+        .setServiceName("Service")
+        .buildPartial()
+        .toByteArray());
+    assertFalse(decoder.isInitialized());
+  }
+
+  private RequestDecoder decodeDelimited(SocketRpcProtos.Request rpcRequest)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    rpcRequest.writeDelimitedTo(bytes);
+    RequestDecoder decoder = new RequestDecoder(rpcForwarder);
+    assertTrue(decoder.mergeDelimitedFrom(
+        new ByteArrayInputStream(bytes.toByteArray())));
+    return decoder;
+  }
+}
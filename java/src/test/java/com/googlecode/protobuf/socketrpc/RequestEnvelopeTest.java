@@ -0,0 +1,110 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Tests for {@link RequestEnvelope}.
+ *
+ * @author Shardul Deo
+ */
+public class RequestEnvelopeTest extends TestCase {
+
+  private static final MethodDescriptor METHOD =
+      TestService.getDescriptor().getMethods().get(0);
+  private static final Request REQUEST = Request.newBuilder()
+      .setStrData("Request Data")
+      .build();
+  private static final SocketRpcProtos.Request RPC_REQUEST =
+      SocketRpcProtos.Request.newBuilder()
+          .setServiceName(TestService.getDescriptor().getFullName())
+          .setMethodName(METHOD.getName())
+          .setRequestProto(REQUEST.toByteString())
+          .build();
+
+  public void testEncoding() throws IOException {
+    RequestEnvelope envelope = new RequestEnvelope(METHOD, REQUEST);
+    assertEquals(RPC_REQUEST.getSerializedSize(),
+        envelope.getSerializedSize());
+    assertEquals(RPC_REQUEST.toByteString(), envelope.toByteString());
+    assertEquals(RPC_REQUEST, envelope.toBuilder().build());
+
+    // Same bytes when written delimited to a stream
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    RPC_REQUEST.writeDelimitedTo(expected);
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    envelope.writeDelimitedTo(actual);
+    assertEquals(expected.toString("ISO-8859-1"),
+        actual.toString("ISO-8859-1"));
+  }
+
+  public void testRequestId() {
+    RequestEnvelope envelope = new RequestEnvelope(METHOD, REQUEST)
+        .withRequestId(1L << 40);
+    SocketRpcProtos.Request expected = RPC_REQUEST.toBuilder()
+        .setRequestId(1L << 40)
+        .build();
+    assertEquals(expected.getSerializedSize(), envelope.getSerializedSize());
+    assertEquals(expected.toByteString(), envelope.toByteString());
+  }
+
+  public void testTimeout() {
+    RequestEnvelope envelope = new RequestEnvelope(METHOD, REQUEST)
+        .withTimeoutMillis(1500)
+        .withRequestId(7);
+    SocketRpcProtos.Request expected = RPC_REQUEST.toBuilder()
+        .setTimeoutMillis(1500)
+        .setRequestId(7)
+        .build();
+    assertEquals(expected.getSerializedSize(), envelope.getSerializedSize());
+    assertEquals(expected, envelope.toBuilder().build());
+
+    // Kept when switching to a method id
+    assertEquals(1500, envelope.withMethodId(1).toBuilder().build()
+        .getTimeoutMillis());
+  }
+
+  public void testMethodId() throws IOException {
+    RequestEnvelope envelope = new RequestEnvelope(METHOD, REQUEST)
+        .withRequestId(5)
+        .withMethodId(300);
+    assertSame(METHOD, envelope.getMethod());
+    // Required names are sent empty, so the request is still valid
+    SocketRpcProtos.Request expected = SocketRpcProtos.Request.newBuilder()
+        .setServiceName("")
+        .setMethodName("")
+        .setMethodId(300)
+        .setRequestProto(REQUEST.toByteString())
+        .setRequestId(5)
+        .build();
+    assertEquals(expected.getSerializedSize(), envelope.getSerializedSize());
+    assertEquals(expected, SocketRpcProtos.Request.parseFrom(
+        envelope.toByteString()));
+  }
+}
@@ -0,0 +1,79 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import junit.framework.TestCase;
+
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+
+/**
+ * Tests for {@link ResponseEnvelope}.
+ *
+ * @author Shardul Deo
+ */
+public class ResponseEnvelopeTest extends TestCase {
+
+  private static final Response RESPONSE = Response.newBuilder()
+      .setStrData("Response Data")
+      .setIntData(5)
+      .build();
+
+  public void testEncoding_response() {
+    assertEncoding(new ResponseEnvelope(RESPONSE, true, null, null),
+        SocketRpcProtos.Response.newBuilder()
+            .setResponseProto(RESPONSE.toByteString())
+            .setCallback(true)
+            .build());
+  }
+
+  public void testEncoding_noResponse() {
+    assertEncoding(new ResponseEnvelope(null, false, null, null),
+        SocketRpcProtos.Response.newBuilder()
+            .setCallback(false)
+            .build());
+  }
+
+  public void testEncoding_error() {
+    assertEncoding(ResponseEnvelope.forError("Error", ErrorReason.RPC_ERROR),
+        SocketRpcProtos.Response.newBuilder()
+            .setError("Error")
+            .setCallback(false)
+            .setErrorReason(ErrorReason.RPC_ERROR)
+            .build());
+    assertEncoding(new ResponseEnvelope(RESPONSE, true, "Failed",
+        ErrorReason.RPC_FAILED).withRequestId(7),
+        SocketRpcProtos.Response.newBuilder()
+            .setResponseProto(RESPONSE.toByteString())
+            .setError("Failed")
+            .setCallback(true)
+            .setErrorReason(ErrorReason.RPC_FAILED)
+            .setRequestId(7)
+            .build());
+  }
+
+  private static void assertEncoding(ResponseEnvelope envelope,
+      SocketRpcProtos.Response expected) {
+    assertEquals(expected.getSerializedSize(), envelope.getSerializedSize());
+    assertEquals(expected.toByteString(), envelope.toByteString());
+    assertEquals(expected, envelope.toBuilder().build());
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Tests for {@link RetryPolicy}.
+ *
+ * @author Shardul Deo
+ */
+public class RetryPolicyTest extends TestCase {
+
+  private static final MethodDescriptor METHOD =
+      TestService.getDescriptor().getMethods().get(0);
+
+  public void testRetryableReasons() {
+    RetryPolicy policy = RetryPolicy.newBuilder().build();
+    assertTrue(policy.isRetryable(METHOD, ErrorReason.IO_ERROR, false));
+    assertFalse(policy.isRetryable(METHOD, ErrorReason.IO_ERROR, true));
+    assertTrue(policy.isRetryable(METHOD, ErrorReason.SERVER_OVERLOADED,
+        true));
+    assertFalse(policy.isRetryable(METHOD, ErrorReason.RPC_ERROR, true));
+    assertFalse(policy.isRetryable(METHOD, ErrorReason.UNKNOWN_HOST, false));
+    assertFalse(policy.isRetryable(METHOD, null, false));
+
+    policy = RetryPolicy.newBuilder()
+        .setRetryableReasons(ErrorReason.RPC_ERROR)
+        .setRetryableReasons(METHOD, ErrorReason.IO_ERROR)
+        .build();
+    // Method's reasons replace the default ones
+    assertTrue(policy.isRetryable(METHOD, ErrorReason.IO_ERROR, true));
+    assertFalse(policy.isRetryable(METHOD, ErrorReason.RPC_ERROR, true));
+  }
+
+  public void testBackoff() {
+    RetryPolicy policy = RetryPolicy.newBuilder()
+        .setInitialBackoff(10, TimeUnit.MILLISECONDS)
+        .setMaxBackoff(50, TimeUnit.MILLISECONDS)
+        .build();
+    long max = 0;
+    for (int i = 0; i < 1000; i++) {
+      long backoff = policy.getBackoffNanos(2);
+      assertTrue(backoff >= 0);
+      assertTrue(backoff < TimeUnit.MILLISECONDS.toNanos(20));
+      max = Math.max(max, backoff);
+      // Capped
+      assertTrue(policy.getBackoffNanos(10)
+          < TimeUnit.MILLISECONDS.toNanos(50));
+    }
+    // Jittered over the whole range
+    assertTrue(max > TimeUnit.MILLISECONDS.toNanos(15));
+  }
+
+  public void testBudget() {
+    RequestBudget budget = new RequestBudget(50, 2);
+    assertTrue(budget.tryWithdraw());
+    assertTrue(budget.tryWithdraw());
+    assertFalse(budget.tryWithdraw());
+    budget.deposit();
+    assertFalse(budget.tryWithdraw());
+    budget.deposit();
+    assertTrue(budget.tryWithdraw());
+    // No more than the maximum is saved up
+    for (int i = 0; i < 100; i++) {
+      budget.deposit();
+    }
+    assertTrue(budget.tryWithdraw());
+    assertTrue(budget.tryWithdraw());
+    assertFalse(budget.tryWithdraw());
+  }
+}
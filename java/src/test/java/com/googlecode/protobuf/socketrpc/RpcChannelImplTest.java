@@ -21,7 +21,10 @@
 package com.googlecode.protobuf.socketrpc;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.TestCase;
 
@@ -269,6 +272,231 @@ public class RpcChannelImplTest extends TestCase {
     verifyRequestToSocket(request);
   }
 
+  /**
+   * Time left until the deadline is sent to the server.
+   */
+  public void testDeadline() throws IOException, ServiceException {
+    Request request = Request.newBuilder().setStrData("Request Data").build();
+    socket.withResponseProto(Response.newBuilder().setStrData("Response Data")
+        .build());
+
+    SocketRpcController controller = new SocketRpcController();
+    controller.setTimeout(1, TimeUnit.MINUTES);
+    TestService.newBlockingStub(rpcChannel).testMethod(controller, request);
+    assertFalse(controller.failed());
+    SocketRpcProtos.Request rpcRequest = socket.getRequest();
+    assertTrue(rpcRequest.hasTimeoutMillis());
+    assertTrue(rpcRequest.getTimeoutMillis() > 50000);
+    assertTrue(rpcRequest.getTimeoutMillis() <= 60000);
+  }
+
+  /**
+   * Request is not sent if the deadline has already passed.
+   */
+  public void testDeadlineExceeded() throws IOException {
+    Request request = Request.newBuilder().setStrData("Request Data").build();
+
+    SocketRpcController controller = new SocketRpcController();
+    controller.setTimeout(0, TimeUnit.MILLISECONDS);
+    try {
+      TestService.newBlockingStub(rpcChannel).testMethod(controller, request);
+      fail("Should have failed");
+    } catch (ServiceException e) {
+      assertEquals(ErrorReason.DEADLINE_EXCEEDED, controller.errorReason());
+    }
+    // No connection was made, it would have been closed after the call
+    assertFalse(socket.isClosed());
+  }
+
+  /**
+   * Request is not sent if the call was canceled before it started.
+   */
+  public void testCanceledBeforeStart() {
+    Request request = Request.newBuilder().setStrData("Request Data").build();
+
+    SocketRpcController controller = new SocketRpcController();
+    controller.startCancel();
+    try {
+      TestService.newBlockingStub(rpcChannel).testMethod(controller, request);
+      fail("Should have failed");
+    } catch (ServiceException e) {
+      assertEquals(ErrorReason.CANCELED, controller.errorReason());
+    }
+    assertFalse(socket.isClosed());
+  }
+
+  /**
+   * Calls are recorded in the client metrics.
+   */
+  public void testMetrics() throws IOException {
+    String methodName = TestService.getDescriptor().getMethods().get(0)
+        .getFullName();
+    RpcMetrics.MethodSnapshot before =
+        RpcMetrics.getClientMetrics().getSnapshot(methodName);
+    Request request = Request.newBuilder().setStrData("Request Data").build();
+    Response response = Response.newBuilder().setStrData("Response Data")
+        .build();
+    socket.withResponseProto(response);
+    callRpc(request, null);
+    socket = new FakeSocket(true);
+    socket.withErrorResponseProto("Error", ErrorReason.RPC_FAILED);
+    connectionFactory = new SocketRpcConnectionFactory("host", 8080,
+        new FakeSocketFactory().returnsSocket(socket), true /* delimited */);
+    rpcChannel = new RpcChannelImpl(connectionFactory,
+        RpcChannels.SAME_THREAD_EXECUTOR);
+    callRpc(request, ErrorReason.RPC_FAILED);
+
+    RpcMetrics.MethodSnapshot after =
+        RpcMetrics.getClientMetrics().getSnapshot(methodName);
+    long requests = before == null ? 0 : before.getRequestCount();
+    long failed = before == null ? 0
+        : before.getErrorCount(ErrorReason.RPC_FAILED);
+    assertEquals(requests + 2, after.getRequestCount());
+    assertEquals(failed + 1, after.getErrorCount(ErrorReason.RPC_FAILED));
+  }
+
+  /**
+   * Calls that failed before the request was sent are retried.
+   */
+  public void testRetryConnectionError() throws Exception {
+    Request request = Request.newBuilder().setStrData("Request Data").build();
+    socket.withResponseProto(Response.newBuilder().setStrData("Response Data")
+        .build());
+    CountingFactory factory = new CountingFactory(2 /* failures */);
+    rpcChannel = new RpcChannelImpl(factory, RpcChannels.SAME_THREAD_EXECUTOR,
+        newRetryPolicy().build());
+    assertEquals("Response Data", callBlockingRpc(request, null).getStrData());
+    assertEquals(3, factory.attempts);
+
+    // Gives up after the maximum number of attempts
+    factory = new CountingFactory(3 /* failures */);
+    rpcChannel = new RpcChannelImpl(factory, RpcChannels.SAME_THREAD_EXECUTOR,
+        newRetryPolicy().build());
+    callRetriedRpc(request, ErrorReason.IO_ERROR);
+    assertEquals(3, factory.attempts);
+  }
+
+  /**
+   * Errors after the request was sent are only retried if the method allows
+   * them.
+   */
+  public void testRetryErrorResponse() throws Exception {
+    Request request = Request.newBuilder().setStrData("Request Data").build();
+    CountingFactory factory = new CountingFactory(0 /* failures */);
+    rpcChannel = new RpcChannelImpl(factory, RpcChannels.SAME_THREAD_EXECUTOR,
+        newRetryPolicy().build());
+    socket.withErrorResponseProto("Error", ErrorReason.RPC_ERROR);
+    callBlockingRpc(request, ErrorReason.RPC_ERROR);
+    assertEquals(1, factory.attempts);
+    socket.withErrorResponseProto("Error", ErrorReason.SERVER_OVERLOADED);
+    callBlockingRpc(request, ErrorReason.SERVER_OVERLOADED);
+    assertEquals(4, factory.attempts);
+
+    factory = new CountingFactory(0 /* failures */);
+    rpcChannel = new RpcChannelImpl(factory, RpcChannels.SAME_THREAD_EXECUTOR,
+        newRetryPolicy().setRetryableReasons(
+            TestService.getDescriptor().getMethods().get(0),
+            ErrorReason.RPC_ERROR).build());
+    socket.withErrorResponseProto("Error", ErrorReason.RPC_ERROR);
+    callRetriedRpc(request, ErrorReason.RPC_ERROR);
+    assertEquals(3, factory.attempts);
+    socket.withErrorResponseProto("Error", ErrorReason.SERVER_OVERLOADED);
+    callRetriedRpc(request, ErrorReason.SERVER_OVERLOADED);
+    assertEquals(4, factory.attempts);
+  }
+
+  /**
+   * Non-blocking calls don't hold a thread while backing off.
+   */
+  public void testRetryBackoffNotBlocking() throws Exception {
+    Request request = Request.newBuilder().setStrData("Request Data").build();
+    socket.withResponseProto(Response.newBuilder().setStrData("Response Data")
+        .build());
+    CountingFactory factory = new CountingFactory(1 /* failures */);
+    rpcChannel = new RpcChannelImpl(factory, RpcChannels.SAME_THREAD_EXECUTOR,
+        newRetryPolicy().build());
+    SocketRpcController controller = new SocketRpcController();
+    final AtomicReference<Thread> retryThread = new AtomicReference<Thread>();
+    final CountDownLatch done = new CountDownLatch(1);
+    TestService.newStub(rpcChannel).testMethod(controller, request,
+        new RpcCallback<Response>() {
+          @Override
+          public void run(Response response) {
+            retryThread.set(Thread.currentThread());
+            done.countDown();
+          }
+        });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertFalse(controller.failed());
+    assertEquals(2, factory.attempts);
+    // Calling thread did not wait for the backoff
+    assertNotSame(Thread.currentThread(), retryThread.get());
+  }
+
+  /**
+   * Retries stop once the budget is used up.
+   */
+  public void testRetryBudget() {
+    Request request = Request.newBuilder().setStrData("Request Data").build();
+    CountingFactory factory = new CountingFactory(Integer.MAX_VALUE);
+    rpcChannel = new RpcChannelImpl(factory, RpcChannels.SAME_THREAD_EXECUTOR,
+        newRetryPolicy().setMaxAttempts(2).setRetryBudgetPercent(0).build());
+    for (int i = 0; i < 12; i++) {
+      callBlockingRpc(request, ErrorReason.IO_ERROR);
+    }
+    // Every call plus the initial burst of retries
+    assertEquals(12 + 10, factory.attempts);
+  }
+
+  /**
+   * Calls are not retried if the backoff would go past their deadline.
+   */
+  public void testRetryDeadline() {
+    Request request = Request.newBuilder().setStrData("Request Data").build();
+    CountingFactory factory = new CountingFactory(Integer.MAX_VALUE);
+    rpcChannel = new RpcChannelImpl(factory, RpcChannels.SAME_THREAD_EXECUTOR,
+        newRetryPolicy()
+            .setInitialBackoff(1000, TimeUnit.SECONDS)
+            .setMaxBackoff(1000, TimeUnit.SECONDS)
+            .build());
+    SocketRpcController controller = new SocketRpcController();
+    controller.setTimeout(50, TimeUnit.MILLISECONDS);
+    try {
+      TestService.newBlockingStub(rpcChannel).testMethod(controller, request);
+      fail("Should have failed");
+    } catch (ServiceException e) {
+      assertEquals(ErrorReason.IO_ERROR, controller.errorReason());
+    }
+    assertEquals(1, factory.attempts);
+  }
+
+  private static RetryPolicy.Builder newRetryPolicy() {
+    return RetryPolicy.newBuilder()
+        .setInitialBackoff(1, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Connection factory that counts connection attempts and fails the first
+   * ones.
+   */
+  private class CountingFactory implements RpcConnectionFactory {
+
+    private final int failures;
+    private int attempts = 0;
+
+    private CountingFactory(int failures) {
+      this.failures = failures;
+    }
+
+    @Override
+    public Connection createConnection() throws IOException {
+      if (attempts++ < failures) {
+        throw new IOException("Connection refused");
+      }
+      return connectionFactory.createConnection();
+    }
+  }
+
   private FakeCallback callRpc(Request request, ErrorReason reason) {
     SocketRpcController controller = new SocketRpcController();
     TestService service = TestService.newStub(rpcChannel);
@@ -285,6 +513,26 @@ public class RpcChannelImplTest extends TestCase {
     return callback;
   }
 
+  /**
+   * Call the non-blocking method and wait for it to fail, since retries are
+   * started from another thread.
+   */
+  private void callRetriedRpc(Request request, ErrorReason reason)
+      throws InterruptedException {
+    SocketRpcController controller = new SocketRpcController();
+    final CountDownLatch done = new CountDownLatch(1);
+    TestService.newStub(rpcChannel).testMethod(controller, request,
+        new RpcCallback<Response>() {
+          @Override
+          public void run(Response response) {
+            done.countDown();
+          }
+        });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(controller.failed());
+    assertEquals(reason, controller.errorReason());
+  }
+
   /**
    * Executor that just stores commands to be executed later.
    */
@@ -0,0 +1,107 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.RpcCallback;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Tests for {@link RpcExecutors}.
+ *
+ * @author Shardul Deo
+ */
+public class RpcExecutorsTest extends TestCase {
+
+  private static final int PORT = 8084;
+  private static final Request REQUEST = Request.newBuilder()
+      .setStrData("Request")
+      .build();
+  private static final Response RESPONSE = Response.newBuilder()
+      .setStrData("Response")
+      .build();
+
+  public void testVirtualThreadPerTaskExecutor() throws Exception {
+    ExecutorService executor = RpcExecutors.newVirtualThreadPerTaskExecutor();
+    try {
+      Future<Thread> thread = executor.submit(new Callable<Thread>() {
+        @Override
+        public Thread call() {
+          return Thread.currentThread();
+        }
+      });
+      assertEquals(RpcExecutors.isVirtualThreadSupported(),
+          isVirtual(thread.get(5, TimeUnit.SECONDS)));
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+  }
+
+  public void testVirtualThreadRpcChannel() throws Exception {
+    RpcServer rpcServer = new RpcServer(SocketRpcConnectionFactories
+        .createServerRpcConnectionFactory(PORT),
+        RpcExecutors.newVirtualThreadPerTaskExecutor(), true);
+    rpcServer.registerService(new FakeServiceImpl(REQUEST)
+        .withResponse(RESPONSE));
+    rpcServer.startServer();
+    try {
+      Thread.sleep(500);
+      final SocketRpcController controller = new SocketRpcController();
+      final AtomicReference<Response> response =
+          new AtomicReference<Response>();
+      final CountDownLatch done = new CountDownLatch(1);
+      TestService.newStub(RpcChannels.newVirtualThreadRpcChannel(
+          SocketRpcConnectionFactories.createRpcConnectionFactory(
+              "localhost", PORT))).testMethod(controller, REQUEST,
+          new RpcCallback<Response>() {
+            @Override
+            public void run(Response parameter) {
+              response.set(parameter);
+              done.countDown();
+            }
+          });
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertFalse(controller.failed());
+      assertEquals(RESPONSE, response.get());
+    } finally {
+      rpcServer.shutDown();
+    }
+  }
+
+  private static boolean isVirtual(Thread thread) throws Exception {
+    try {
+      return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+}
@@ -22,6 +22,7 @@ package com.googlecode.protobuf.socketrpc;
 
 import junit.framework.TestCase;
 
+import com.google.protobuf.BlockingService;
 import com.google.protobuf.ByteString;
 import com.googlecode.protobuf.socketrpc.RpcForwarder.Callback;
 import com.googlecode.protobuf.socketrpc.RpcForwarder.RpcException;
@@ -68,14 +69,14 @@ public class RpcForwarderTest extends TestCase {
         .withResponse(response)));
 
     // Test doBlockingRpc
-    SocketRpcProtos.Response rpcResponse =
+    ResponseEnvelope rpcResponse =
         rpcForwarder.doBlockingRpc(RPC_REQUEST);
     assertTrue(rpcResponse.getCallback());
     assertEquals(response.toByteString(), rpcResponse.getResponseProto());
 
     // Test doRpc
-    Callback<SocketRpcProtos.Response> rpcCallback =
-        new Callback<SocketRpcProtos.Response>();
+    Callback<ResponseEnvelope> rpcCallback =
+        new Callback<ResponseEnvelope>();
     rpcForwarder.doRpc(RPC_REQUEST, rpcCallback);
     assertTrue(rpcCallback.isInvoked());
     rpcResponse = rpcCallback.getResponse();
@@ -93,7 +94,7 @@ public class RpcForwarderTest extends TestCase {
     assertEquals(response.toByteString(), rpcResponse.getResponseProto());
 
     // Test doRpc
-    rpcCallback = new Callback<SocketRpcProtos.Response>();
+    rpcCallback = new Callback<ResponseEnvelope>();
     rpcForwarder.doRpc(RPC_REQUEST, rpcCallback);
     assertTrue(rpcCallback.isInvoked());
     rpcResponse = rpcCallback.getResponse();
@@ -109,14 +110,14 @@ public class RpcForwarderTest extends TestCase {
     rpcForwarder.registerService(new FakeServiceImpl(REQUEST));
 
     // Test doBlockingRpc
-    SocketRpcProtos.Response rpcResponse =
+    ResponseEnvelope rpcResponse =
         rpcForwarder.doBlockingRpc(RPC_REQUEST);
     assertFalse(rpcResponse.getCallback());
     assertFalse(rpcResponse.hasResponseProto());
 
     // Test doRpc
-    Callback<SocketRpcProtos.Response> rpcCallback =
-        new Callback<SocketRpcProtos.Response>();
+    Callback<ResponseEnvelope> rpcCallback =
+        new Callback<ResponseEnvelope>();
     rpcForwarder.doRpc(RPC_REQUEST, rpcCallback);
     assertFalse(rpcCallback.isInvoked());
 
@@ -130,7 +131,7 @@ public class RpcForwarderTest extends TestCase {
     assertFalse(rpcResponse.hasResponseProto());
 
     // Test doRpc
-    rpcCallback = new Callback<SocketRpcProtos.Response>();
+    rpcCallback = new Callback<ResponseEnvelope>();
     rpcForwarder.doRpc(RPC_REQUEST, rpcCallback);
     assertTrue(rpcCallback.isInvoked());
     rpcResponse = rpcCallback.getResponse();
@@ -147,14 +148,14 @@ public class RpcForwarderTest extends TestCase {
         new FakeServiceImpl(REQUEST).withResponse(null));
 
     // Test doBlockingRpc
-    SocketRpcProtos.Response rpcResponse =
+    ResponseEnvelope rpcResponse =
         rpcForwarder.doBlockingRpc(RPC_REQUEST);
     assertTrue(rpcResponse.getCallback());
     assertFalse(rpcResponse.hasResponseProto());
 
     // Test doRpc
-    Callback<SocketRpcProtos.Response> rpcCallback =
-        new Callback<SocketRpcProtos.Response>();
+    Callback<ResponseEnvelope> rpcCallback =
+        new Callback<ResponseEnvelope>();
     rpcForwarder.doRpc(RPC_REQUEST, rpcCallback);
     assertTrue(rpcCallback.isInvoked());
     rpcResponse = rpcCallback.getResponse();
@@ -171,7 +172,7 @@ public class RpcForwarderTest extends TestCase {
     assertFalse(rpcResponse.hasResponseProto());
 
     // Test doRpc
-    rpcCallback = new Callback<SocketRpcProtos.Response>();
+    rpcCallback = new Callback<ResponseEnvelope>();
     rpcForwarder.doRpc(RPC_REQUEST, rpcCallback);
     assertTrue(rpcCallback.isInvoked());
     rpcResponse = rpcCallback.getResponse();
@@ -206,6 +207,128 @@ public class RpcForwarderTest extends TestCase {
     }
   }
 
+  /**
+   * Services can be unregistered, uncovering services registered under the
+   * same name.
+   */
+  public void testUnregister() throws RpcException {
+    Response response = Response.newBuilder().setStrData("Response").build();
+    FakeServiceImpl service = new FakeServiceImpl(REQUEST)
+        .withResponse(response);
+    rpcForwarder.registerService(service);
+    BlockingService blockingService = new FakeServiceImpl(REQUEST)
+        .withResponse(Response.newBuilder().setStrData("Blocking").build())
+        .toBlockingService();
+    rpcForwarder.registerBlockingService(blockingService);
+
+    rpcForwarder.unregisterBlockingService(blockingService);
+    ResponseEnvelope rpcResponse = rpcForwarder.doBlockingRpc(RPC_REQUEST);
+    assertEquals(response.toByteString(), rpcResponse.getResponseProto());
+
+    // Unregistering a service that isn't registered does nothing
+    rpcForwarder.unregisterService(new FakeServiceImpl(REQUEST));
+    rpcForwarder.doBlockingRpc(RPC_REQUEST);
+
+    rpcForwarder.unregisterService(service);
+    assertNull(rpcForwarder.getRequestPrototype(
+        RPC_REQUEST.getServiceName(), RPC_REQUEST.getMethodName()));
+    try {
+      rpcForwarder.doBlockingRpc(RPC_REQUEST);
+      fail("Should have failed");
+    } catch (RpcException e) {
+      assertEquals(ErrorReason.SERVICE_NOT_FOUND, e.errorReason);
+    }
+  }
+
+  /**
+   * Methods can be called by the ids given out in the handshake, which stay
+   * the same when services are registered again.
+   */
+  public void testMethodIds() throws Exception {
+    Response response = Response.newBuilder().setStrData("Response").build();
+    FakeServiceImpl service = new FakeServiceImpl(REQUEST)
+        .withResponse(response);
+    rpcForwarder.registerService(service);
+    int id = getMethodId(RPC_REQUEST.getServiceName(),
+        RPC_REQUEST.getMethodName());
+    assertTrue(id > 0);
+
+    SocketRpcProtos.Request rpcRequest = SocketRpcProtos.Request.newBuilder()
+        .setServiceName("")
+        .setMethodName("")
+        .setMethodId(id)
+        .setRequestProto(REQUEST.toByteString())
+        .build();
+    ResponseEnvelope rpcResponse = rpcForwarder.doBlockingRpc(rpcRequest);
+    assertEquals(response.toByteString(), rpcResponse.getResponseProto());
+    assertNotNull(rpcForwarder.getRequestPrototype(id));
+
+    // Ids are not reused
+    rpcForwarder.unregisterService(service);
+    try {
+      rpcForwarder.doBlockingRpc(rpcRequest);
+      fail("Should have failed");
+    } catch (RpcException e) {
+      assertEquals(ErrorReason.METHOD_NOT_FOUND, e.errorReason);
+    }
+    rpcForwarder.registerBlockingService(service.toBlockingService());
+    assertEquals(id, getMethodId(RPC_REQUEST.getServiceName(),
+        RPC_REQUEST.getMethodName()));
+    rpcForwarder.doBlockingRpc(rpcRequest);
+
+    try {
+      rpcForwarder.doBlockingRpc(rpcRequest.toBuilder()
+          .setMethodId(1000)
+          .build());
+      fail("Should have failed");
+    } catch (RpcException e) {
+      assertEquals(ErrorReason.METHOD_NOT_FOUND, e.errorReason);
+    }
+  }
+
+  private int getMethodId(String service, String method) throws Exception {
+    Callback<ResponseEnvelope> rpcCallback =
+        new Callback<ResponseEnvelope>();
+    rpcForwarder.doRpc(createRpcRequest(RpcForwarder.HANDSHAKE_SERVICE,
+        "Handshake", ByteString.EMPTY), rpcCallback);
+    SocketRpcProtos.HandshakeResponse handshake =
+        SocketRpcProtos.HandshakeResponse.parseFrom(
+            rpcCallback.getResponse().getResponseProto());
+    for (SocketRpcProtos.MethodId methodId : handshake.getMethodList()) {
+      if (methodId.getServiceName().equals(service)
+          && methodId.getMethodName().equals(method)) {
+        return methodId.getId();
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Services can be registered while RPCs are being forwarded.
+   */
+  public void testRegisterWhileForwarding() throws Exception {
+    final FakeServiceImpl service = new FakeServiceImpl(REQUEST)
+        .withResponse(Response.newBuilder().setStrData("Response").build());
+    rpcForwarder.registerService(service);
+    Thread registerer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 1000; i++) {
+          BlockingService other = new FakeServiceImpl(REQUEST)
+              .toBlockingService();
+          rpcForwarder.registerBlockingService(other);
+          rpcForwarder.unregisterBlockingService(other);
+        }
+      }
+    };
+    registerer.start();
+    while (registerer.isAlive()) {
+      // Either service handles it, but the lookup never fails
+      assertTrue(rpcForwarder.doBlockingRpc(RPC_REQUEST).getCallback());
+    }
+    registerer.join();
+  }
+
   /**
    * Server is called with RPC for unknown method.
    */
@@ -328,15 +451,15 @@ public class RpcForwarderTest extends TestCase {
         new FakeServiceImpl(REQUEST).failsWithError("Error"));
 
     // Test doBlockingRpc
-    SocketRpcProtos.Response rpcResponse =
+    ResponseEnvelope rpcResponse =
         rpcForwarder.doBlockingRpc(RPC_REQUEST);
     assertFalse(rpcResponse.getCallback());
     assertEquals("Error", rpcResponse.getError());
     assertEquals(ErrorReason.RPC_FAILED, rpcResponse.getErrorReason());
 
     // Test doRpc
-    Callback<SocketRpcProtos.Response> rpcCallback =
-        new Callback<SocketRpcProtos.Response>();
+    Callback<ResponseEnvelope> rpcCallback =
+        new Callback<ResponseEnvelope>();
     rpcForwarder.doRpc(RPC_REQUEST, rpcCallback);
     assertFalse(rpcCallback.isInvoked());
 
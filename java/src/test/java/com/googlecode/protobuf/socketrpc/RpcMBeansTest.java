@@ -0,0 +1,173 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Tests for the MBeans registered by {@link RpcMBeans}.
+ *
+ * @author Shardul Deo
+ */
+public class RpcMBeansTest extends TestCase {
+
+  private static final int PORT = 8085;
+  private static final MethodDescriptor METHOD =
+      TestService.getDescriptor().getMethods().get(0);
+  private static final Request REQUEST = Request.newBuilder()
+      .setStrData("Request")
+      .build();
+  private static final Response RESPONSE = Response.newBuilder()
+      .setStrData("Response")
+      .build();
+
+  private final MBeanServer mbeanServer =
+      ManagementFactory.getPlatformMBeanServer();
+  private ExecutorService threadPool;
+  private RpcServer rpcServer;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    threadPool = Executors.newFixedThreadPool(2);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (rpcServer != null) {
+      rpcServer.shutDown();
+    }
+    threadPool.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testServerAndChannel() throws Exception {
+    Set<ObjectName> oldServers = queryNames("type=RpcServer");
+    rpcServer = new RpcServer(SocketRpcConnectionFactories
+        .createNioServerRpcConnectionFactory(PORT), threadPool, true);
+    rpcServer.registerService(new FakeServiceImpl(REQUEST)
+        .withResponse(RESPONSE));
+    rpcServer.startServer();
+    Thread.sleep(500);
+
+    Set<ObjectName> servers = queryNames("type=RpcServer");
+    servers.removeAll(oldServers);
+    assertEquals(1, servers.size());
+    ObjectName serverName = servers.iterator().next();
+    RpcServerMXBean server = JMX.newMXBeanProxy(mbeanServer, serverName,
+        RpcServerMXBean.class);
+    assertTrue(server.isRunning());
+    assertEquals(1, server.getRegisteredServices().size());
+    assertEquals(TestService.getDescriptor().getFullName(),
+        server.getRegisteredServices().get(0));
+    assertEquals(2, server.getExecutorMaxPoolSize());
+
+    Set<ObjectName> oldChannels = queryNames("type=RpcChannel");
+    AsyncRpcChannel channel = RpcChannels.newAsyncRpcChannel("localhost",
+        PORT, RpcChannels.SAME_THREAD_EXECUTOR);
+    Set<ObjectName> channels = queryNames("type=RpcChannel");
+    channels.removeAll(oldChannels);
+    assertEquals(1, channels.size());
+    ObjectName channelName = channels.iterator().next();
+    RpcChannelMXBean channelBean = JMX.newMXBeanProxy(mbeanServer,
+        channelName, RpcChannelMXBean.class);
+    assertEquals("localhost:" + PORT, channelBean.getTarget());
+
+    RpcFuture<Message> future = channel.callMethod(METHOD,
+        new SocketRpcController(), REQUEST, Response.getDefaultInstance());
+    assertEquals(RESPONSE, future.get(5, TimeUnit.SECONDS));
+    assertEquals(1, channelBean.getCallsStarted());
+    assertEquals(0, channelBean.getCallsFailed());
+    assertEquals(0, channelBean.getCallsInFlight());
+    assertEquals(1, channelBean.getOpenConnections());
+    assertEquals(1, server.getOpenConnections());
+
+    List<MethodStatistics> methods = server.getMethods();
+    assertEquals(1, methods.size());
+    assertEquals(METHOD.getFullName(), methods.get(0).getMethodName());
+    assertEquals(1, methods.get(0).getRequestCount());
+    assertEquals(0, methods.get(0).getErrorCount());
+    assertTrue(methods.get(0).getRequestBytes() > 0);
+    server.resetMetrics();
+    assertEquals(0, server.getMethods().get(0).getRequestCount());
+
+    channel.close();
+    assertFalse(mbeanServer.isRegistered(channelName));
+    rpcServer.shutDown();
+    rpcServer = null;
+    Thread.sleep(500);
+    assertFalse(mbeanServer.isRegistered(serverName));
+  }
+
+  public void testMetricsView() {
+    RpcMetrics metrics = new RpcMetrics();
+    RpcMBeans.MetricsView view = new RpcMBeans.MetricsView(metrics);
+    assertTrue(view.getMethods().isEmpty());
+
+    MethodMetrics method = metrics.getMethodMetrics("Service.a");
+    method.record(TimeUnit.MILLISECONDS.toNanos(2), null, 10, 20);
+    method.record(TimeUnit.MILLISECONDS.toNanos(4),
+        ErrorReason.RPC_FAILED, 10, 0);
+    MethodStatistics statistics = view.getMethods().get(0);
+    assertEquals("Service.a", statistics.getMethodName());
+    assertEquals(2, statistics.getRequestCount());
+    assertEquals(1, statistics.getErrorCount());
+    assertEquals(Long.valueOf(1),
+        statistics.getErrorCounts().get(ErrorReason.RPC_FAILED.name()));
+    assertEquals(3000, statistics.getMeanMicros(), 1);
+    assertTrue(Math.abs(statistics.getMaxMicros() - 4000) <= 4000 / 16);
+    assertTrue(statistics.getRequestsPerSecond() > 0);
+
+    // Reading doesn't restart the window
+    assertTrue(view.getMethods().get(0).getRequestsPerSecond() > 0);
+    // No calls once the window has moved past them
+    for (int i = 0; i <= RpcMBeans.RATE_WINDOW_SAMPLES; i++) {
+      view.sample(System.nanoTime());
+    }
+    assertEquals(0.0, view.getMethods().get(0).getRequestsPerSecond());
+    view.reset();
+    assertEquals(0, view.getMethods().get(0).getRequestCount());
+  }
+
+  private Set<ObjectName> queryNames(String type) throws Exception {
+    return new HashSet<ObjectName>(mbeanServer.queryNames(
+        new ObjectName(RpcMBeans.DOMAIN + ":" + type + ",*"), null));
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.util.SortedMap;
+
+import junit.framework.TestCase;
+
+import com.googlecode.protobuf.socketrpc.RpcMetrics.MethodSnapshot;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+
+/**
+ * Tests for {@link RpcMetrics}.
+ *
+ * @author Shardul Deo
+ */
+public class RpcMetricsTest extends TestCase {
+
+  public void testRecord() {
+    RpcMetrics metrics = new RpcMetrics();
+    assertNull(metrics.getSnapshot("Service.a"));
+    MethodMetrics method = metrics.getMethodMetrics("Service.a");
+    assertSame(method, metrics.getMethodMetrics("Service.a"));
+
+    method.record(1000, null, 10, 20);
+    method.record(3000, ErrorReason.RPC_FAILED, 5, 0);
+    method.record(2000, ErrorReason.CANCELED, 5, 0);
+    metrics.getMethodMetrics("Service.b").record(100, null, 1, 1);
+
+    MethodSnapshot snapshot = metrics.getSnapshot("Service.a");
+    assertEquals("Service.a", snapshot.getMethodName());
+    assertEquals(3, snapshot.getRequestCount());
+    assertEquals(2, snapshot.getErrorCount());
+    assertEquals(1, snapshot.getErrorCount(ErrorReason.RPC_FAILED));
+    assertEquals(1, snapshot.getErrorCount(ErrorReason.CANCELED));
+    assertEquals(0, snapshot.getErrorCount(ErrorReason.IO_ERROR));
+    assertEquals(2, snapshot.getErrorCounts().size());
+    assertEquals(20, snapshot.getRequestBytes());
+    assertEquals(20, snapshot.getResponseBytes());
+    assertEquals(3, snapshot.getLatency().getCount());
+    assertEquals(3000, snapshot.getLatency().getMax());
+
+    SortedMap<String, MethodSnapshot> all = metrics.getSnapshot();
+    assertEquals(2, all.size());
+    assertEquals("Service.a", all.firstKey());
+    assertEquals(1, all.get("Service.b").getRequestCount());
+
+    metrics.reset();
+    snapshot = metrics.getSnapshot("Service.a");
+    assertEquals(0, snapshot.getRequestCount());
+    assertEquals(0, snapshot.getErrorCount());
+    assertTrue(snapshot.getErrorCounts().isEmpty());
+    assertEquals(0, snapshot.getLatency().getCount());
+  }
+
+  public void testEveryErrorReason() {
+    MethodMetrics method = new RpcMetrics().getMethodMetrics("Service.a");
+    for (ErrorReason reason : ErrorReason.values()) {
+      method.record(1, reason, 0, 0);
+    }
+    MethodSnapshot snapshot = method.getSnapshot();
+    for (ErrorReason reason : ErrorReason.values()) {
+      assertEquals(1, snapshot.getErrorCount(reason));
+    }
+  }
+}
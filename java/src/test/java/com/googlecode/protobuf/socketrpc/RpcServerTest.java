@@ -20,7 +20,9 @@
 
 package com.googlecode.protobuf.socketrpc;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
@@ -30,6 +32,7 @@ import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
 import com.google.protobuf.MessageLite.Builder;
 import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
 import com.googlecode.protobuf.socketrpc.TestProtos.Request;
 import com.googlecode.protobuf.socketrpc.TestProtos.Response;
 import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
@@ -69,12 +72,14 @@ public class RpcServerTest extends TestCase {
   private class FakeServiceImpl extends TestService {
 
     private RpcCallback<Response> callback;
+    private RpcController controller;
 
     @Override
     public void testMethod(RpcController controller, Request request,
         RpcCallback<Response> done) {
       assertEquals(REQUEST, request);
       callback = done;
+      this.controller = controller;
     }
   }
 
@@ -84,21 +89,32 @@ public class RpcServerTest extends TestCase {
   private static class FakeConnection implements Connection {
 
     private final SocketRpcProtos.Request rpcRequest;
+    private int requests;
     private boolean closed = false;
     private SocketRpcProtos.Response response = null;
+    private int responses = 0;
 
     private FakeConnection(SocketRpcProtos.Request rpcRequest) {
+      this(rpcRequest, 1);
+    }
+
+    private FakeConnection(SocketRpcProtos.Request rpcRequest, int requests) {
       this.rpcRequest = rpcRequest;
+      this.requests = requests;
     }
 
     @Override
     public void receiveProtoMessage(Builder messageBuilder) throws IOException {
+      if (requests-- <= 0) {
+        throw new EOFException();
+      }
       messageBuilder.mergeFrom(rpcRequest.toByteArray());
     }
 
     @Override
-    public void sendProtoMessage(MessageLite message) {
-      response = (SocketRpcProtos.Response) message;
+    public void sendProtoMessage(MessageLite message) throws IOException {
+      response = SocketRpcProtos.Response.parseFrom(message.toByteString());
+      responses++;
     }
 
     @Override
@@ -168,6 +184,174 @@ public class RpcServerTest extends TestCase {
     assertFalse(fakeConnection.response.hasResponseProto());
   }
 
+  /**
+   * Test that the request id is copied to the response.
+   */
+  public void testRequestId() {
+    // Create fakes
+    FakeConnection fakeConnection = new FakeConnection(
+        RPC_REQUEST.toBuilder().setRequestId(42).build());
+    rpcServer.registerService(fakeServiceImpl);
+
+    // Call handler and do callback
+    runHandler(fakeConnection);
+    fakeServiceImpl.callback.run(null);
+
+    // Verify result
+    assertEquals(42, fakeConnection.response.getRequestId());
+
+    // No request id if request didn't have one
+    fakeConnection = new FakeConnection(RPC_REQUEST);
+    runHandler(fakeConnection);
+    fakeServiceImpl.callback.run(null);
+    assertFalse(fakeConnection.response.hasRequestId());
+  }
+
+  /**
+   * Test that in keep-alive mode requests are read until the client closes the
+   * connection.
+   */
+  public void testKeepAlive() {
+    rpcServer = new RpcServer(null, null,
+        false /* closeConnectionAfterInvokingService */, true /* keepAlive */);
+    rpcServer.registerService(new TestService() {
+      @Override
+      public void testMethod(RpcController controller, Request request,
+          RpcCallback<Response> done) {
+        done.run(Response.getDefaultInstance());
+      }
+    });
+    FakeConnection fakeConnection = new FakeConnection(RPC_REQUEST, 3);
+
+    runHandler(fakeConnection);
+
+    // All requests handled on the same connection, which is then closed
+    assertEquals(3, fakeConnection.responses);
+    assertTrue(fakeConnection.response.getCallback());
+    assertTrue(fakeConnection.closed);
+  }
+
+  /**
+   * Test that a rejected request gets SERVER_OVERLOADED without invoking the
+   * service, and without reading the request from a connection that may
+   * block.
+   */
+  public void testReject() {
+    FakeConnection fakeConnection = new FakeConnection(
+        RPC_REQUEST.toBuilder().setRequestId(42).build());
+    rpcServer.registerService(fakeServiceImpl);
+
+    rpcServer.new ConnectionHandler(fakeConnection).reject();
+
+    assertNull(fakeServiceImpl.callback);
+    assertEquals(ErrorReason.SERVER_OVERLOADED,
+        fakeConnection.response.getErrorReason());
+    assertEquals(1, fakeConnection.requests);
+    assertFalse(fakeConnection.response.hasRequestId());
+    assertTrue(fakeConnection.closed);
+  }
+
+  /**
+   * Test that a request whose deadline has passed is not handed to the
+   * service.
+   */
+  public void testDeadlineExceeded() {
+    FakeConnection fakeConnection = new FakeConnection(
+        RPC_REQUEST.toBuilder().setTimeoutMillis(0).build());
+    rpcServer.registerService(fakeServiceImpl);
+
+    runHandler(fakeConnection);
+
+    assertNull(fakeServiceImpl.callback);
+    assertEquals(ErrorReason.DEADLINE_EXCEEDED,
+        fakeConnection.response.getErrorReason());
+    assertEquals(1, rpcServer.getExpiredRequests());
+  }
+
+  /**
+   * Test that the service gets the time left until the deadline.
+   */
+  public void testDeadline() {
+    FakeConnection fakeConnection = new FakeConnection(
+        RPC_REQUEST.toBuilder().setTimeoutMillis(60000).build());
+    rpcServer.registerService(fakeServiceImpl);
+
+    runHandler(fakeConnection);
+
+    SocketRpcController controller =
+        (SocketRpcController) fakeServiceImpl.controller;
+    assertTrue(controller.hasDeadline());
+    long remaining = controller.getTimeRemaining(TimeUnit.MILLISECONDS);
+    assertTrue(remaining > 50000 && remaining <= 60000);
+    fakeServiceImpl.callback.run(null);
+    assertFalse(fakeConnection.response.hasError());
+    assertEquals(0, rpcServer.getExpiredRequests());
+
+    // No deadline if the client didn't send one
+    runHandler(new FakeConnection(RPC_REQUEST));
+    assertFalse(((SocketRpcController) fakeServiceImpl.controller)
+        .hasDeadline());
+  }
+
+  /**
+   * Test that canceling a request answers it with CANCELED and tells the
+   * service, whose response is then dropped.
+   */
+  public void testCancel() {
+    FakeConnection fakeConnection = new FakeConnection(RPC_REQUEST);
+    rpcServer.registerService(fakeServiceImpl);
+    RpcServer.ConnectionHandler handler =
+        rpcServer.new ConnectionHandler(fakeConnection);
+    handler.run();
+    final boolean[] notified = new boolean[1];
+    fakeServiceImpl.controller.notifyOnCancel(new RpcCallback<Object>() {
+      @Override
+      public void run(Object parameter) {
+        notified[0] = true;
+      }
+    });
+
+    handler.cancel();
+    assertTrue(notified[0]);
+    assertTrue(fakeServiceImpl.controller.isCanceled());
+    assertEquals(ErrorReason.CANCELED,
+        fakeConnection.response.getErrorReason());
+
+    fakeServiceImpl.callback.run(null);
+    assertEquals(1, fakeConnection.responses);
+  }
+
+  /**
+   * Test that responses are recorded under the method they are for.
+   */
+  public void testMetrics() {
+    rpcServer.registerService(fakeServiceImpl);
+    String methodName = TestService.getDescriptor().getMethods().get(0)
+        .getFullName();
+    Response response = Response.newBuilder()
+        .setStrData("Response Data")
+        .build();
+
+    runHandler(new FakeConnection(RPC_REQUEST));
+    fakeServiceImpl.callback.run(response);
+    runHandler(new FakeConnection(RPC_REQUEST));
+    fakeServiceImpl.controller.setFailed("Error");
+    fakeServiceImpl.callback.run(null);
+    runHandler(new FakeConnection(createRpcRequest("Unknown", "method",
+        REQUEST.toByteString())));
+
+    RpcMetrics.MethodSnapshot snapshot =
+        rpcServer.getMetrics().getSnapshot(methodName);
+    assertEquals(2, snapshot.getRequestCount());
+    assertEquals(1, snapshot.getErrorCount(ErrorReason.RPC_FAILED));
+    assertEquals(2 * REQUEST.getSerializedSize(), snapshot.getRequestBytes());
+    assertEquals(response.getSerializedSize(), snapshot.getResponseBytes());
+    assertEquals(2, snapshot.getLatency().getCount());
+    assertEquals(1, rpcServer.getMetrics()
+        .getSnapshot(RpcMetrics.UNKNOWN_METHOD)
+        .getErrorCount(ErrorReason.SERVICE_NOT_FOUND));
+  }
+
   private static SocketRpcProtos.Request createRpcRequest(String service,
       String method, ByteString request) {
     return SocketRpcProtos.Request.newBuilder()
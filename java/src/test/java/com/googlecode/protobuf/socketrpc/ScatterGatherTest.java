@@ -0,0 +1,308 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+import com.googlecode.protobuf.socketrpc.ScatterGather.Merger;
+import com.googlecode.protobuf.socketrpc.ScatterGather.Result;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+import com.googlecode.protobuf.socketrpc.TestProtos.Request;
+import com.googlecode.protobuf.socketrpc.TestProtos.Response;
+import com.googlecode.protobuf.socketrpc.TestProtos.TestService;
+
+/**
+ * Tests for {@link ScatterGather}.
+ *
+ * @author Shardul Deo
+ */
+public class ScatterGatherTest extends TestCase {
+
+  private static final MethodDescriptor METHOD =
+      TestService.getDescriptor().getMethods().get(0);
+  private static final Request REQUEST =
+      Request.newBuilder().setStrData("Request").build();
+
+  private List<FakeShard> shards;
+  private ScatterGather scatterGather;
+  private RecordingMerger merger;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    shards = new ArrayList<FakeShard>();
+    for (int i = 0; i < 5; i++) {
+      shards.add(new FakeShard());
+    }
+    scatterGather = RpcChannels.newScatterGather(shards);
+    merger = new RecordingMerger();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    scatterGather.close();
+    super.tearDown();
+  }
+
+  private static Response response(int shard) {
+    return Response.newBuilder().setStrData("Shard " + shard).build();
+  }
+
+  public void testAllShards() throws Exception {
+    SocketRpcController controller = new SocketRpcController();
+    RpcFuture<Result> future = scatterGather.call(METHOD, controller, REQUEST,
+        Response.getDefaultInstance(), 5, merger);
+    for (FakeShard shard : shards) {
+      assertNotNull(shard.done);
+    }
+    for (int i = 4; i >= 0; i--) {
+      assertFalse(future.isDone());
+      shards.get(i).respond(response(i));
+    }
+    Result result = future.get(1, TimeUnit.SECONDS);
+    assertTrue(result.isQuorumReached());
+    assertEquals(5, result.getResponseCount());
+    assertEquals(0, result.getCanceledCount());
+    assertEquals(Arrays.asList(4, 3, 2, 1, 0), merger.shards);
+    assertEquals(response(2), merger.responses.get(2));
+    assertFalse(controller.failed());
+  }
+
+  public void testQuorumCancelsStragglers() throws Exception {
+    RpcFuture<Result> future = scatterGather.call(METHOD,
+        new SocketRpcController(), REQUEST, Response.getDefaultInstance(), 2,
+        merger);
+    shards.get(1).respond(response(1));
+    shards.get(3).fail();
+    assertFalse(future.isDone());
+    shards.get(4).respond(response(4));
+    Result result = future.get(1, TimeUnit.SECONDS);
+    assertTrue(result.isQuorumReached());
+    assertEquals(2, result.getResponseCount());
+    assertEquals(1, result.getFailureCount());
+    assertEquals(2, result.getCanceledCount());
+    assertTrue(shards.get(0).controller.isCanceled());
+    assertTrue(shards.get(2).controller.isCanceled());
+    assertFalse(shards.get(1).controller.isCanceled());
+    assertEquals(Arrays.asList(1, 3, 4), merger.shards);
+    assertEquals(Arrays.asList(3), merger.failures);
+
+    // Late responses are not merged
+    shards.get(0).respond(response(0));
+    assertEquals(Arrays.asList(1, 3, 4), merger.shards);
+  }
+
+  public void testQuorumUnreachable() throws Exception {
+    RpcFuture<Result> future = scatterGather.call(METHOD,
+        new SocketRpcController(), REQUEST, Response.getDefaultInstance(), 4,
+        merger);
+    shards.get(0).fail();
+    assertFalse(future.isDone());
+    shards.get(1).fail();
+    Result result = future.get(1, TimeUnit.SECONDS);
+    assertFalse(result.isQuorumReached());
+    assertEquals(2, result.getFailureCount());
+    assertEquals(3, result.getCanceledCount());
+  }
+
+  public void testDeadline() throws Exception {
+    SocketRpcController controller = new SocketRpcController();
+    controller.setTimeout(100, TimeUnit.MILLISECONDS);
+    RpcFuture<Result> future = scatterGather.call(METHOD, controller, REQUEST,
+        Response.getDefaultInstance(), 5, merger);
+    // Shards get the deadline
+    assertTrue(shards.get(0).controller.hasDeadline());
+    shards.get(0).respond(response(0));
+    shards.get(1).respond(response(1));
+    Result result = future.get(1, TimeUnit.SECONDS);
+    assertFalse(result.isQuorumReached());
+    assertEquals(2, result.getResponseCount());
+    assertEquals(3, result.getCanceledCount());
+    assertTrue(shards.get(4).controller.isCanceled());
+    // Partial results are not a failure
+    assertFalse(controller.failed());
+  }
+
+  public void testCancel() throws Exception {
+    SocketRpcController controller = new SocketRpcController();
+    RpcFuture<Result> future = scatterGather.call(METHOD, controller, REQUEST,
+        Response.getDefaultInstance(), 5, merger);
+    shards.get(0).respond(response(0));
+    controller.startCancel();
+    assertTrue(future.isDone());
+    assertEquals(ErrorReason.CANCELED, controller.errorReason());
+    for (int i = 1; i < 5; i++) {
+      assertTrue(shards.get(i).controller.isCanceled());
+    }
+
+    future = scatterGather.call(METHOD, new SocketRpcController(), REQUEST,
+        Response.getDefaultInstance(), 5, merger);
+    assertTrue(future.cancel(false));
+    assertTrue(shards.get(0).controller.isCanceled());
+    try {
+      future.get();
+      fail("Should have thrown exception");
+    } catch (CancellationException e) {
+      // Expected
+    }
+  }
+
+  public void testPerShardRequests() throws Exception {
+    List<Request> requests = new ArrayList<Request>();
+    for (int i = 0; i < 5; i++) {
+      requests.add(Request.newBuilder().setStrData("Shard " + i).build());
+    }
+    scatterGather.call(METHOD, new SocketRpcController(), requests,
+        Response.getDefaultInstance(), 5, merger);
+    assertEquals(requests.get(3), shards.get(3).request);
+
+    try {
+      scatterGather.call(METHOD, new SocketRpcController(),
+          requests.subList(0, 4), Response.getDefaultInstance(), 5, merger);
+      fail("Should have thrown exception");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  public void testRpcChannels() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      List<RpcChannel> channels = new ArrayList<RpcChannel>();
+      for (int i = 0; i < 3; i++) {
+        channels.add(RpcChannels.newRpcChannel(new FakeFactory(), executor));
+      }
+      ScatterGather channelScatterGather =
+          RpcChannels.newScatterGather(channels);
+      Result result = channelScatterGather.call(METHOD,
+          new SocketRpcController(), REQUEST, Response.getDefaultInstance(), 3,
+          merger).get(1, TimeUnit.SECONDS);
+      assertEquals(3, result.getResponseCount());
+      channelScatterGather.close();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static class RecordingMerger implements Merger {
+
+    private final List<Integer> shards = new ArrayList<Integer>();
+    private final List<Integer> failures = new ArrayList<Integer>();
+    private final List<Message> responses = new ArrayList<Message>();
+
+    @Override
+    public void onResponse(int shard, Message response) {
+      shards.add(shard);
+      while (responses.size() <= shard) {
+        responses.add(null);
+      }
+      responses.set(shard, response);
+    }
+
+    @Override
+    public void onFailure(int shard, SocketRpcController controller) {
+      assertTrue(controller.failed());
+      shards.add(shard);
+      failures.add(shard);
+    }
+  }
+
+  /**
+   * Shard that holds on to its call until the test completes it.
+   */
+  private static class FakeShard implements RpcChannel {
+
+    private SocketRpcController controller;
+    private Message request;
+    private RpcCallback<Message> done;
+
+    @Override
+    public void callMethod(MethodDescriptor method, RpcController controller,
+        Message request, Message responsePrototype,
+        RpcCallback<Message> done) {
+      this.controller = (SocketRpcController) controller;
+      this.request = request;
+      this.done = done;
+      this.controller.setCancelHook(new Runnable() {
+        @Override
+        public void run() {
+          FakeShard.this.controller.setFailed("Canceled",
+              ErrorReason.CANCELED);
+          FakeShard.this.done.run(null);
+        }
+      });
+    }
+
+    private void respond(Message response) {
+      done.run(response);
+    }
+
+    private void fail() {
+      controller.setFailed("Failed", ErrorReason.IO_ERROR);
+      done.run(null);
+    }
+  }
+
+  private static class FakeFactory implements RpcConnectionFactory {
+
+    @Override
+    public Connection createConnection() {
+      return new Connection() {
+        @Override
+        public void sendProtoMessage(MessageLite message) {
+        }
+
+        @Override
+        public void receiveProtoMessage(MessageLite.Builder messageBuilder)
+            throws IOException {
+          messageBuilder.mergeFrom(SocketRpcProtos.Response.newBuilder()
+              .setResponseProto(response(0).toByteString())
+              .build().toByteString());
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isClosed() {
+          return false;
+        }
+      };
+    }
+  }
+}
@@ -51,7 +51,7 @@ public class SocketServerRpcConnectionFactoryTest extends TestCase {
     super.setUp();
     fakeSocketFactory = new FakeServerSocketFactory();
     socketServerConnectionFactory = new SocketServerRpcConnectionFactory(0,
-        0, null, true, fakeSocketFactory);
+        0, null, true, 0, fakeSocketFactory);
   }
 
   public void testCreateConnection() throws IOException {
@@ -83,6 +83,15 @@ public class SocketServerRpcConnectionFactoryTest extends TestCase {
     assertEquals(response2, socket2.getResponse());
   }
 
+  public void testIdleTimeout() throws IOException {
+    socketServerConnectionFactory = new SocketServerRpcConnectionFactory(0,
+        0, null, true, 1000, fakeSocketFactory);
+    FakeSocket socket = new FakeSocket(true).withRequest(createRequest(1));
+    fakeSocketFactory.returnsSocket(socket);
+    socketServerConnectionFactory.createConnection();
+    assertEquals(1000, socket.getSoTimeout());
+  }
+
   public void testClosed() throws IOException {
     FakeSocket socket = new FakeSocket(true).withRequest(createRequest(1));
     fakeSocketFactory.returnsSocket(socket);
@@ -0,0 +1,159 @@
+// Copyright (c) 2011 Shardul Deo
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.googlecode.protobuf.socketrpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.ByteString;
+import com.googlecode.protobuf.socketrpc.RpcConnectionFactory.Connection;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Request;
+
+/**
+ * Tests for {@link UnixDomainServerRpcConnectionFactory}.
+ *
+ * @author Shardul Deo
+ */
+public class UnixDomainServerRpcConnectionFactoryTest extends TestCase {
+
+  private File socketFile;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    socketFile = File.createTempFile("socketrpc", ".sock");
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    socketFile.delete();
+    super.tearDown();
+  }
+
+  public void testUnsupported() {
+    if (UnixDomainSockets.isSupported()) {
+      return;
+    }
+    try {
+      SocketRpcConnectionFactories.createUnixDomainRpcConnectionFactory(
+          socketFile.getPath());
+      fail("Should have thrown exception");
+    } catch (UnsupportedOperationException e) {
+      // Expected
+    }
+  }
+
+  public void testLargeRequest() throws Exception {
+    if (!UnixDomainSockets.isSupported()) {
+      return;
+    }
+    // Stale file is replaced
+    assertTrue(socketFile.exists());
+    final UnixDomainServerRpcConnectionFactory factory =
+        new UnixDomainServerRpcConnectionFactory(socketFile.getPath());
+    Future<Connection> server = executor.submit(new Callable<Connection>() {
+      @Override
+      public Connection call() throws IOException {
+        return factory.createConnection();
+      }
+    });
+    final Request request = Request.newBuilder()
+        .setServiceName("service")
+        .setMethodName("method")
+        .setRequestProto(ByteString.copyFrom(new byte[1 << 20]))
+        .build();
+    // Sending blocks until the server reads
+    Future<Connection> client = executor.submit(new Callable<Connection>() {
+      @Override
+      public Connection call() throws Exception {
+        Connection connection = connect();
+        connection.sendProtoMessage(request);
+        return connection;
+      }
+    });
+
+    Connection connection = server.get(5, TimeUnit.SECONDS);
+    Request.Builder builder = Request.newBuilder();
+    connection.receiveProtoMessage(builder);
+    assertEquals(request, builder.build());
+    connection.close();
+    assertTrue(connection.isClosed());
+    client.get(5, TimeUnit.SECONDS).close();
+
+    factory.close();
+    assertFalse(socketFile.exists());
+  }
+
+  public void testSocketFileInUse() throws Exception {
+    if (!UnixDomainSockets.isSupported()) {
+      return;
+    }
+    final UnixDomainServerRpcConnectionFactory factory =
+        new UnixDomainServerRpcConnectionFactory(socketFile.getPath());
+    executor.submit(new Callable<Connection>() {
+      @Override
+      public Connection call() throws IOException {
+        return factory.createConnection();
+      }
+    });
+    connect().close();
+
+    // Another server can't take over the socket file
+    UnixDomainServerRpcConnectionFactory other =
+        new UnixDomainServerRpcConnectionFactory(socketFile.getPath());
+    try {
+      other.createConnection();
+      fail("Should have thrown exception");
+    } catch (IOException e) {
+      // Expected
+    }
+    factory.close();
+  }
+
+  /**
+   * Connect once the server is listening.
+   */
+  private Connection connect() throws Exception {
+    RpcConnectionFactory clientFactory =
+        new UnixDomainRpcConnectionFactory(socketFile.getPath());
+    long waitUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (true) {
+      try {
+        return clientFactory.createConnection();
+      } catch (IOException e) {
+        if (System.nanoTime() > waitUntil) {
+          throw e;
+        }
+        Thread.sleep(10);
+      }
+    }
+  }
+}
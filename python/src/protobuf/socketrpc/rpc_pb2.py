@@ -31,7 +31,7 @@ from google.protobuf import descriptor_pb2
 DESCRIPTOR = descriptor.FileDescriptor(
   name='rpc.proto',
   package='protobuf.socketrpc',
-  serialized_pb='\n\trpc.proto\x12\x12protobuf.socketrpc\"K\n\x07Request\x12\x14\n\x0cservice_name\x18\x01 \x02(\t\x12\x13\n\x0bmethod_name\x18\x02 \x02(\t\x12\x15\n\rrequest_proto\x18\x03 \x02(\x0c\"\x81\x01\n\x08Response\x12\x16\n\x0eresponse_proto\x18\x01 \x01(\x0c\x12\r\n\x05\x65rror\x18\x02 \x01(\t\x12\x17\n\x08\x63\x61llback\x18\x03 \x01(\x08:\x05\x66\x61lse\x12\x35\n\x0c\x65rror_reason\x18\x04 \x01(\x0e\x32\x1f.protobuf.socketrpc.ErrorReason*\xd9\x01\n\x0b\x45rrorReason\x12\x14\n\x10\x42\x41\x44_REQUEST_DATA\x10\x00\x12\x15\n\x11\x42\x41\x44_REQUEST_PROTO\x10\x01\x12\x15\n\x11SERVICE_NOT_FOUND\x10\x02\x12\x14\n\x10METHOD_NOT_FOUND\x10\x03\x12\r\n\tRPC_ERROR\x10\x04\x12\x0e\n\nRPC_FAILED\x10\x05\x12\x19\n\x15INVALID_REQUEST_PROTO\x10\x06\x12\x16\n\x12\x42\x41\x44_RESPONSE_PROTO\x10\x07\x12\x10\n\x0cUNKNOWN_HOST\x10\x08\x12\x0c\n\x08IO_ERROR\x10\tB4\n!com.googlecode.protobuf.socketrpcB\x0fSocketRpcProtos')
+  serialized_pb='\n\trpc.proto\x12\x12protobuf.socketrpc\"\xa1\x01\n\x07Request\x12\x14\n\x0cservice_name\x18\x01 \x02(\t\x12\x13\n\x0bmethod_name\x18\x02 \x02(\t\x12\x15\n\rrequest_proto\x18\x03 \x02(\x0c\x12\x12\n\nrequest_id\x18\x04 \x01(\x04\x12\x11\n\tmethod_id\x18\x05 \x01(\r\x12\x16\n\x0etimeout_millis\x18\x06 \x01(\x04\x12\x15\n\x06\x63\x61ncel\x18\x07 \x01(\x08:\x05\x66\x61lse\"\x95\x01\n\x08Response\x12\x16\n\x0eresponse_proto\x18\x01 \x01(\x0c\x12\r\n\x05\x65rror\x18\x02 \x01(\t\x12\x17\n\x08\x63\x61llback\x18\x03 \x01(\x08:\x05\x66\x61lse\x12\x35\n\x0c\x65rror_reason\x18\x04 \x01(\x0e\x32\x1f.protobuf.socketrpc.ErrorReason\x12\x12\n\nrequest_id\x18\x05 \x01(\x04\"A\n\x11HandshakeResponse\x12,\n\x06method\x18\x01 \x03(\x0b\x32\x1c.protobuf.socketrpc.MethodId\"A\n\x08MethodId\x12\x14\n\x0cservice_name\x18\x01 \x02(\t\x12\x13\n\x0bmethod_name\x18\x02 \x02(\t\x12\n\n\x02id\x18\x03 \x02(\r*\xa7\x02\n\x0b\x45rrorReason\x12\x14\n\x10\x42\x41\x44_REQUEST_DATA\x10\x00\x12\x15\n\x11\x42\x41\x44_REQUEST_PROTO\x10\x01\x12\x15\n\x11SERVICE_NOT_FOUND\x10\x02\x12\x14\n\x10METHOD_NOT_FOUND\x10\x03\x12\r\n\tRPC_ERROR\x10\x04\x12\x0e\n\nRPC_FAILED\x10\x05\x12\x19\n\x15INVALID_REQUEST_PROTO\x10\x06\x12\x16\n\x12\x42\x41\x44_RESPONSE_PROTO\x10\x07\x12\x10\n\x0cUNKNOWN_HOST\x10\x08\x12\x0c\n\x08IO_ERROR\x10\t\x12\x15\n\x11SERVER_OVERLOADED\x10\n\x12\x15\n\x11\x44\x45\x41\x44LINE_EXCEEDED\x10\x0b\x12\x0c\n\x08\x43\x41NCELED\x10\x0c\x12\x10\n\x0c\x43IRCUIT_OPEN\x10\rB4\n!com.googlecode.protobuf.socketrpcB\x0fSocketRpcProtos')
 
 _ERRORREASON = descriptor.EnumDescriptor(
   name='ErrorReason',
@@ -79,11 +79,27 @@ _ERRORREASON = descriptor.EnumDescriptor(
       name='IO_ERROR', index=9, number=9,
       options=None,
       type=None),
+    descriptor.EnumValueDescriptor(
+      name='SERVER_OVERLOADED', index=10, number=10,
+      options=None,
+      type=None),
+    descriptor.EnumValueDescriptor(
+      name='DEADLINE_EXCEEDED', index=11, number=11,
+      options=None,
+      type=None),
+    descriptor.EnumValueDescriptor(
+      name='CANCELED', index=12, number=12,
+      options=None,
+      type=None),
+    descriptor.EnumValueDescriptor(
+      name='CIRCUIT_OPEN', index=13, number=13,
+      options=None,
+      type=None),
   ],
   containing_type=None,
   options=None,
-  serialized_start=243,
-  serialized_end=460,
+  serialized_start=484,
+  serialized_end=779,
 )
 
 
@@ -97,6 +113,10 @@ INVALID_REQUEST_PROTO = 6
 BAD_RESPONSE_PROTO = 7
 UNKNOWN_HOST = 8
 IO_ERROR = 9
+SERVER_OVERLOADED = 10
+DEADLINE_EXCEEDED = 11
+CANCELED = 12
+CIRCUIT_OPEN = 13
 
 
 
@@ -128,6 +148,34 @@ _REQUEST = descriptor.Descriptor(
       message_type=None, enum_type=None, containing_type=None,
       is_extension=False, extension_scope=None,
       options=None),
+    descriptor.FieldDescriptor(
+      name='request_id', full_name='protobuf.socketrpc.Request.request_id', index=3,
+      number=4, type=4, cpp_type=4, label=1,
+      has_default_value=False, default_value=0,
+      message_type=None, enum_type=None, containing_type=None,
+      is_extension=False, extension_scope=None,
+      options=None),
+    descriptor.FieldDescriptor(
+      name='method_id', full_name='protobuf.socketrpc.Request.method_id', index=4,
+      number=5, type=13, cpp_type=3, label=1,
+      has_default_value=False, default_value=0,
+      message_type=None, enum_type=None, containing_type=None,
+      is_extension=False, extension_scope=None,
+      options=None),
+    descriptor.FieldDescriptor(
+      name='timeout_millis', full_name='protobuf.socketrpc.Request.timeout_millis', index=5,
+      number=6, type=4, cpp_type=4, label=1,
+      has_default_value=False, default_value=0,
+      message_type=None, enum_type=None, containing_type=None,
+      is_extension=False, extension_scope=None,
+      options=None),
+    descriptor.FieldDescriptor(
+      name='cancel', full_name='protobuf.socketrpc.Request.cancel', index=6,
+      number=7, type=8, cpp_type=7, label=1,
+      has_default_value=True, default_value=False,
+      message_type=None, enum_type=None, containing_type=None,
+      is_extension=False, extension_scope=None,
+      options=None),
   ],
   extensions=[
   ],
@@ -137,8 +185,8 @@ _REQUEST = descriptor.Descriptor(
   options=None,
   is_extendable=False,
   extension_ranges=[],
-  serialized_start=33,
-  serialized_end=108,
+  serialized_start=34,
+  serialized_end=195,
 )
 
 
@@ -177,6 +225,83 @@ _RESPONSE = descriptor.Descriptor(
       message_type=None, enum_type=None, containing_type=None,
       is_extension=False, extension_scope=None,
       options=None),
+    descriptor.FieldDescriptor(
+      name='request_id', full_name='protobuf.socketrpc.Response.request_id', index=4,
+      number=5, type=4, cpp_type=4, label=1,
+      has_default_value=False, default_value=0,
+      message_type=None, enum_type=None, containing_type=None,
+      is_extension=False, extension_scope=None,
+      options=None),
+  ],
+  extensions=[
+  ],
+  nested_types=[],
+  enum_types=[
+  ],
+  options=None,
+  is_extendable=False,
+  extension_ranges=[],
+  serialized_start=198,
+  serialized_end=347,
+)
+
+
+_HANDSHAKERESPONSE = descriptor.Descriptor(
+  name='HandshakeResponse',
+  full_name='protobuf.socketrpc.HandshakeResponse',
+  filename=None,
+  file=DESCRIPTOR,
+  containing_type=None,
+  fields=[
+    descriptor.FieldDescriptor(
+      name='method', full_name='protobuf.socketrpc.HandshakeResponse.method', index=0,
+      number=1, type=11, cpp_type=10, label=3,
+      has_default_value=False, default_value=[],
+      message_type=None, enum_type=None, containing_type=None,
+      is_extension=False, extension_scope=None,
+      options=None),
+  ],
+  extensions=[
+  ],
+  nested_types=[],
+  enum_types=[
+  ],
+  options=None,
+  is_extendable=False,
+  extension_ranges=[],
+  serialized_start=349,
+  serialized_end=414,
+)
+
+
+_METHODID = descriptor.Descriptor(
+  name='MethodId',
+  full_name='protobuf.socketrpc.MethodId',
+  filename=None,
+  file=DESCRIPTOR,
+  containing_type=None,
+  fields=[
+    descriptor.FieldDescriptor(
+      name='service_name', full_name='protobuf.socketrpc.MethodId.service_name', index=0,
+      number=1, type=9, cpp_type=9, label=2,
+      has_default_value=False, default_value=unicode("", "utf-8"),
+      message_type=None, enum_type=None, containing_type=None,
+      is_extension=False, extension_scope=None,
+      options=None),
+    descriptor.FieldDescriptor(
+      name='method_name', full_name='protobuf.socketrpc.MethodId.method_name', index=1,
+      number=2, type=9, cpp_type=9, label=2,
+      has_default_value=False, default_value=unicode("", "utf-8"),
+      message_type=None, enum_type=None, containing_type=None,
+      is_extension=False, extension_scope=None,
+      options=None),
+    descriptor.FieldDescriptor(
+      name='id', full_name='protobuf.socketrpc.MethodId.id', index=2,
+      number=3, type=13, cpp_type=3, label=2,
+      has_default_value=False, default_value=0,
+      message_type=None, enum_type=None, containing_type=None,
+      is_extension=False, extension_scope=None,
+      options=None),
   ],
   extensions=[
   ],
@@ -186,13 +311,16 @@ _RESPONSE = descriptor.Descriptor(
   options=None,
   is_extendable=False,
   extension_ranges=[],
-  serialized_start=111,
-  serialized_end=240,
+  serialized_start=416,
+  serialized_end=481,
 )
 
 _RESPONSE.fields_by_name['error_reason'].enum_type = _ERRORREASON
+_HANDSHAKERESPONSE.fields_by_name['method'].message_type = _METHODID
 DESCRIPTOR.message_types_by_name['Request'] = _REQUEST
 DESCRIPTOR.message_types_by_name['Response'] = _RESPONSE
+DESCRIPTOR.message_types_by_name['HandshakeResponse'] = _HANDSHAKERESPONSE
+DESCRIPTOR.message_types_by_name['MethodId'] = _METHODID
 
 class Request(message.Message):
   __metaclass__ = reflection.GeneratedProtocolMessageType
@@ -206,4 +334,16 @@ class Response(message.Message):
   
   # @@protoc_insertion_point(class_scope:protobuf.socketrpc.Response)
 
+class HandshakeResponse(message.Message):
+  __metaclass__ = reflection.GeneratedProtocolMessageType
+  DESCRIPTOR = _HANDSHAKERESPONSE
+  
+  # @@protoc_insertion_point(class_scope:protobuf.socketrpc.HandshakeResponse)
+
+class MethodId(message.Message):
+  __metaclass__ = reflection.GeneratedProtocolMessageType
+  DESCRIPTOR = _METHODID
+  
+  # @@protoc_insertion_point(class_scope:protobuf.socketrpc.MethodId)
+
 # @@protoc_insertion_point(module_scope)